@@ -0,0 +1,70 @@
+package com.github.longkerdandy.mithqtt.api.auth;
+
+import io.netty.handler.codec.mqtt.MqttGrantedQoS;
+import io.netty.handler.codec.mqtt.MqttTopicSubscription;
+import org.apache.commons.configuration.AbstractConfiguration;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Asynchronous Authenticator
+ * <p>
+ * Implementations must not block the calling thread, the broker calls them from its I/O threads.
+ * Synchronous {@link Authenticator} implementations are wrapped by {@link AsyncAuthenticatorAdapter}.
+ */
+@SuppressWarnings("unused")
+public interface AsyncAuthenticator {
+
+    /**
+     * Init the authenticator
+     *
+     * @param config Authenticator Configuration
+     */
+    void init(AbstractConfiguration config);
+
+    /**
+     * Destroy the authenticator
+     */
+    void destroy();
+
+    /**
+     * Authorize client CONNECT
+     *
+     * @param clientId Client Id
+     * @param userName User Name
+     * @param password Password
+     * @return Future of Authorize Result
+     */
+    CompletableFuture<AuthorizeResult> authConnect(String clientId, String userName, String password);
+
+    /**
+     * Authorize client PUBLISH
+     *
+     * @param clientId  Client Id
+     * @param userName  User Name
+     * @param topicName Topic Name
+     * @param qos       QoS
+     * @param retain    Retain
+     * @return Future of Authorize Result
+     */
+    CompletableFuture<AuthorizeResult> authPublish(String clientId, String userName, String topicName, int qos, boolean retain);
+
+    /**
+     * Authorize client SUBSCRIBE
+     *
+     * @param clientId             Client Id
+     * @param userName             User Name
+     * @param requestSubscriptions List of request Topic Subscription
+     * @return Future of List of granted QoS
+     */
+    CompletableFuture<List<MqttGrantedQoS>> authSubscribe(String clientId, String userName, List<MqttTopicSubscription> requestSubscriptions);
+
+    /**
+     * OAuth in HTTP request
+     *
+     * @param credentials OAuth2 bearer-token
+     * @return Future of User Name
+     */
+    CompletableFuture<String> oauth(String credentials);
+}
@@ -0,0 +1,100 @@
+package com.github.longkerdandy.mithqtt.api.auth;
+
+import io.netty.handler.codec.mqtt.MqttGrantedQoS;
+import io.netty.handler.codec.mqtt.MqttTopicSubscription;
+import org.apache.commons.configuration.AbstractConfiguration;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Asynchronous Authenticator Adapter
+ * <p>
+ * Runs a synchronous {@link Authenticator} on a bounded thread pool. When all the threads are busy and the queue is
+ * full, the call fails immediately instead of blocking the caller.
+ * <p>
+ * Authenticators which never block (like in memory rules) can be run on the caller thread instead, by setting
+ * authenticator.async.threads to 0, the returned futures are already completed.
+ */
+@SuppressWarnings("unused")
+public class AsyncAuthenticatorAdapter implements AsyncAuthenticator {
+
+    private final Authenticator authenticator;
+    // null if the authenticator runs on the caller thread
+    private ThreadPoolExecutor executor;
+
+    public AsyncAuthenticatorAdapter(Authenticator authenticator) {
+        this.authenticator = authenticator;
+    }
+
+    /**
+     * Load the authenticator class, wrap it if it is synchronous
+     *
+     * @param className Authenticator implementation (full qualified class name)
+     * @return Asynchronous Authenticator, not initialized
+     * @throws ReflectiveOperationException if the class can not be instantiated
+     */
+    public static AsyncAuthenticator load(String className) throws ReflectiveOperationException {
+        Object authenticator = Class.forName(className).newInstance();
+        if (authenticator instanceof AsyncAuthenticator) return (AsyncAuthenticator) authenticator;
+        return new AsyncAuthenticatorAdapter((Authenticator) authenticator);
+    }
+
+    @Override
+    public void init(AbstractConfiguration config) {
+        int threads = config.getInt("authenticator.async.threads", Runtime.getRuntime().availableProcessors() * 2);
+        int queue = config.getInt("authenticator.async.queue", 10000);
+        if (threads > 0) {
+            AtomicInteger count = new AtomicInteger();
+            this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(queue), r -> {
+                Thread t = new Thread(r, "authenticator-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        this.authenticator.init(config);
+    }
+
+    @Override
+    public void destroy() {
+        if (this.executor != null) this.executor.shutdown();
+        this.authenticator.destroy();
+    }
+
+    @Override
+    public CompletableFuture<AuthorizeResult> authConnect(String clientId, String userName, String password) {
+        return submit(() -> this.authenticator.authConnect(clientId, userName, password));
+    }
+
+    @Override
+    public CompletableFuture<AuthorizeResult> authPublish(String clientId, String userName, String topicName, int qos, boolean retain) {
+        return submit(() -> this.authenticator.authPublish(clientId, userName, topicName, qos, retain));
+    }
+
+    @Override
+    public CompletableFuture<List<MqttGrantedQoS>> authSubscribe(String clientId, String userName, List<MqttTopicSubscription> requestSubscriptions) {
+        return submit(() -> this.authenticator.authSubscribe(clientId, userName, requestSubscriptions));
+    }
+
+    @Override
+    public CompletableFuture<String> oauth(String credentials) {
+        return submit(() -> this.authenticator.oauth(credentials));
+    }
+
+    private <T> CompletableFuture<T> submit(Supplier<T> call) {
+        try {
+            if (this.executor == null) return CompletableFuture.completedFuture(call.get());
+            return CompletableFuture.supplyAsync(call, this.executor);
+        } catch (RuntimeException e) {
+            // rejected by the thread pool, or failed on the caller thread
+            CompletableFuture<T> future = new CompletableFuture<>();
+            future.completeExceptionally(e);
+            return future;
+        }
+    }
+}
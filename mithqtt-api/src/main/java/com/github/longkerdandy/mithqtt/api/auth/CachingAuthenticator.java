@@ -0,0 +1,216 @@
+package com.github.longkerdandy.mithqtt.api.auth;
+
+import io.netty.handler.codec.mqtt.MqttGrantedQoS;
+import io.netty.handler.codec.mqtt.MqttTopicSubscription;
+import org.apache.commons.configuration.AbstractConfiguration;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Caching Authenticator
+ * <p>
+ * Decorates another authenticator, and caches its PUBLISH and SUBSCRIBE authorization decisions per
+ * (client id, user name, topic, qos, retain) for a limited time. Denied decisions are cached with their own time to
+ * live. CONNECT and OAuth always go to the decorated authenticator, since they carry credentials. Cached decisions
+ * are returned as completed futures, so callers can handle them without a thread switch.
+ * <p>
+ * Cached decisions can be dropped with {@link #invalidate(String)} or {@link #invalidateAll()}, for example when the
+ * user's permissions changed.
+ */
+@SuppressWarnings("unused")
+public class CachingAuthenticator implements AsyncAuthenticator {
+
+    private final AsyncAuthenticator authenticator;
+    private final ConcurrentMap<Key, Entry> cache = new ConcurrentHashMap<>();
+
+    // time to live in milliseconds of allowed and denied decisions
+    private long ttl;
+    private long negativeTtl;
+    // maximum number of cached decisions
+    private int maxSize;
+
+    public CachingAuthenticator(AsyncAuthenticator authenticator) {
+        this.authenticator = authenticator;
+    }
+
+    @Override
+    public void init(AbstractConfiguration config) {
+        this.ttl = config.getLong("authenticator.cache.ttl", 60000);
+        this.negativeTtl = config.getLong("authenticator.cache.negativeTtl", this.ttl);
+        this.maxSize = config.getInt("authenticator.cache.maxSize", 100000);
+        this.authenticator.init(config);
+    }
+
+    @Override
+    public void destroy() {
+        this.cache.clear();
+        this.authenticator.destroy();
+    }
+
+    @Override
+    public CompletableFuture<AuthorizeResult> authConnect(String clientId, String userName, String password) {
+        return this.authenticator.authConnect(clientId, userName, password);
+    }
+
+    @Override
+    public CompletableFuture<AuthorizeResult> authPublish(String clientId, String userName, String topicName, int qos, boolean retain) {
+        Key key = new Key(clientId, userName, topicName, retain ? qos | 0x10 : qos);
+        Entry entry = get(key);
+        if (entry != null) return CompletableFuture.completedFuture((AuthorizeResult) entry.value);
+
+        return this.authenticator.authPublish(clientId, userName, topicName, qos, retain).thenApply(result -> {
+            put(key, result, result == AuthorizeResult.OK);
+            return result;
+        });
+    }
+
+    @Override
+    public CompletableFuture<List<MqttGrantedQoS>> authSubscribe(String clientId, String userName, List<MqttTopicSubscription> requestSubscriptions) {
+        // look up each subscription, only pass the missed ones to the decorated authenticator
+        List<MqttGrantedQoS> r = new ArrayList<>(requestSubscriptions.size());
+        List<MqttTopicSubscription> missed = null;
+        List<Integer> missedIndexes = null;
+        for (int i = 0; i < requestSubscriptions.size(); i++) {
+            MqttTopicSubscription subscription = requestSubscriptions.get(i);
+            Entry entry = get(new Key(clientId, userName, subscription.topic(), 0x20 | subscription.requestedQos().value()));
+            if (entry != null) {
+                r.add((MqttGrantedQoS) entry.value);
+            } else {
+                if (missed == null) {
+                    missed = new ArrayList<>();
+                    missedIndexes = new ArrayList<>();
+                }
+                missed.add(subscription);
+                missedIndexes.add(i);
+                r.add(null);
+            }
+        }
+        if (missed == null) return CompletableFuture.completedFuture(r);
+
+        List<MqttTopicSubscription> requested = missed;
+        List<Integer> indexes = missedIndexes;
+        return this.authenticator.authSubscribe(clientId, userName, requested).thenApply(granted -> {
+            // the decorated authenticator returned a wrong number of results, let the caller reject it
+            if (granted.size() != requested.size()) return granted;
+            for (int i = 0; i < requested.size(); i++) {
+                MqttTopicSubscription subscription = requested.get(i);
+                MqttGrantedQoS qos = granted.get(i);
+                r.set(indexes.get(i), qos);
+                put(new Key(clientId, userName, subscription.topic(), 0x20 | subscription.requestedQos().value()), qos, qos != MqttGrantedQoS.NOT_GRANTED);
+            }
+            return r;
+        });
+    }
+
+    @Override
+    public CompletableFuture<String> oauth(String credentials) {
+        return this.authenticator.oauth(credentials);
+    }
+
+    /**
+     * Drop all the cached decisions of the user
+     *
+     * @param userName User Name
+     */
+    public void invalidate(String userName) {
+        this.cache.keySet().removeIf(key -> Objects.equals(key.userName, userName));
+    }
+
+    /**
+     * Drop all the cached decisions
+     */
+    public void invalidateAll() {
+        this.cache.clear();
+    }
+
+    /**
+     * Number of cached decisions, including expired ones not yet evicted
+     *
+     * @return Size
+     */
+    public int size() {
+        return this.cache.size();
+    }
+
+    private Entry get(Key key) {
+        Entry entry = this.cache.get(key);
+        if (entry == null) return null;
+        if (entry.expires < System.currentTimeMillis()) {
+            this.cache.remove(key, entry);
+            return null;
+        }
+        return entry;
+    }
+
+    private void put(Key key, Object value, boolean allowed) {
+        long ttl = allowed ? this.ttl : this.negativeTtl;
+        if (ttl <= 0) return;
+        long now = System.currentTimeMillis();
+        if (this.cache.size() >= this.maxSize) evict(now);
+        this.cache.put(key, new Entry(value, now + ttl));
+    }
+
+    // remove expired decisions, then arbitrary ones until 10% of the space is free
+    private void evict(long now) {
+        this.cache.values().removeIf(entry -> entry.expires < now);
+        Iterator<Map.Entry<Key, Entry>> it = this.cache.entrySet().iterator();
+        int target = this.maxSize - this.maxSize / 10 - 1;
+        while (this.cache.size() > target && it.hasNext()) {
+            it.next();
+            it.remove();
+        }
+    }
+
+    /**
+     * Cache key, type holds qos, retain flag (0x10) and subscribe flag (0x20)
+     */
+    private static final class Key {
+        private final String clientId;
+        private final String userName;
+        private final String topic;
+        private final int type;
+        private final int hash;
+
+        Key(String clientId, String userName, String topic, int type) {
+            this.clientId = clientId;
+            this.userName = userName;
+            this.topic = topic;
+            this.type = type;
+            this.hash = Objects.hash(clientId, userName, topic, type);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key other = (Key) o;
+            return this.hash == other.hash && this.type == other.type && Objects.equals(this.topic, other.topic)
+                    && Objects.equals(this.clientId, other.clientId) && Objects.equals(this.userName, other.userName);
+        }
+
+        @Override
+        public int hashCode() {
+            return this.hash;
+        }
+    }
+
+    /**
+     * Cached decision, AuthorizeResult or MqttGrantedQoS
+     */
+    private static final class Entry {
+        private final Object value;
+        private final long expires;
+
+        Entry(Object value, long expires) {
+            this.value = value;
+            this.expires = expires;
+        }
+    }
+}
@@ -13,6 +13,10 @@ public class MqttAdditionalHeader {
     protected String userName;
     protected String brokerId;
 
+    // Used by json deserialization, fields are set directly
+    protected MqttAdditionalHeader() {
+    }
+
     public MqttAdditionalHeader(
             MqttVersion version,
             String clientId,
@@ -10,6 +10,10 @@ public class MqttPublishPayload {
 
     protected byte[] bytes;
 
+    // Used by json deserialization, fields are set directly
+    protected MqttPublishPayload() {
+    }
+
     public MqttPublishPayload(byte[] bytes) {
         this.bytes = bytes;
     }
@@ -14,6 +14,10 @@ public class MqttSubscribePayloadGranted {
 
     protected List<MqttTopicSubscriptionGranted> subscriptions;
 
+    // Used by json deserialization, fields are set directly
+    protected MqttSubscribePayloadGranted() {
+    }
+
     public MqttSubscribePayloadGranted(List<MqttTopicSubscriptionGranted> subscriptions) {
         this.subscriptions = subscriptions;
     }
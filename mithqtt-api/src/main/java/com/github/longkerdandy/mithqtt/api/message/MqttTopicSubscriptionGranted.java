@@ -12,6 +12,10 @@ public class MqttTopicSubscriptionGranted {
     protected String topic;
     protected MqttGrantedQoS grantedQos;
 
+    // Used by json deserialization, fields are set directly
+    protected MqttTopicSubscriptionGranted() {
+    }
+
     public MqttTopicSubscriptionGranted(String topic, MqttGrantedQoS grantedQos) {
         this.topic = topic;
         this.grantedQos = grantedQos;
@@ -0,0 +1,106 @@
+package com.github.longkerdandy.mithqtt.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock free histogram of non-negative values, like latencies or sizes
+ * <p>
+ * Values are counted in log-linear buckets: each power of two range is split into 8 linear sub-buckets, so a
+ * percentile is reported within 12.5% of the recorded value, using a fixed amount of memory for the whole long range.
+ * Values below 8 are counted exactly.
+ */
+public class Histogram {
+
+    // linear sub-buckets per power of two, as bits
+    private static final int SUB_BITS = 3;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private static final int BUCKETS = (64 - SUB_BITS + 1) * SUB_COUNT;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Record the value
+     *
+     * @param value Value, negative values are recorded as 0
+     */
+    public void record(long value) {
+        if (value < 0) value = 0;
+        this.buckets.incrementAndGet(index(value));
+        this.count.increment();
+        this.sum.add(value);
+        this.max.accumulateAndGet(value, Math::max);
+    }
+
+    /**
+     * @return Number of values recorded
+     */
+    public long count() {
+        return this.count.sum();
+    }
+
+    /**
+     * @return Sum of the values recorded
+     */
+    public long sum() {
+        return this.sum.sum();
+    }
+
+    /**
+     * @return Maximum value recorded
+     */
+    public long max() {
+        return this.max.get();
+    }
+
+    /**
+     * @return Mean of the values recorded, 0 if none
+     */
+    public double mean() {
+        long count = count();
+        return count > 0 ? (double) sum() / count : 0;
+    }
+
+    /**
+     * Get the value at the percentile
+     *
+     * @param percentile Percentile 0 ~ 100
+     * @return Upper bound of the bucket the percentile falls in, not beyond the maximum, 0 if none recorded
+     */
+    public long percentile(double percentile) {
+        long total = 0;
+        long[] counts = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = this.buckets.get(i);
+            total += counts[i];
+        }
+        if (total == 0) return 0;
+
+        long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) return Math.min(upperBound(i), max());
+        }
+        return max();
+    }
+
+    static int index(long value) {
+        if (value < SUB_COUNT) return (int) value;
+        int exp = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exp - SUB_BITS)) & (SUB_COUNT - 1);
+        return (exp - SUB_BITS + 1) * SUB_COUNT + sub;
+    }
+
+    static long upperBound(int index) {
+        if (index < SUB_COUNT) return index;
+        int exp = index / SUB_COUNT + SUB_BITS - 1;
+        int sub = index % SUB_COUNT;
+        long upper = ((long) (SUB_COUNT + sub + 1) << (exp - SUB_BITS)) - 1;
+        return upper < 0 ? Long.MAX_VALUE : upper;
+    }
+}
@@ -1,13 +1,23 @@
 package com.github.longkerdandy.mithqtt.util;
 
+import com.fasterxml.jackson.annotation.JsonAutoDetect;
 import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.PropertyAccessor;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.*;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
 import com.github.longkerdandy.mithqtt.api.message.Message;
+import com.github.longkerdandy.mithqtt.api.message.MqttAdditionalHeader;
 import com.github.longkerdandy.mithqtt.api.message.MqttPublishPayload;
 import com.github.longkerdandy.mithqtt.api.message.MqttSubscribePayloadGranted;
 import io.netty.handler.codec.mqtt.*;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
 
 /**
  * JSON Utils
@@ -17,59 +27,144 @@ public class JSONs {
     // Global JSON ObjectMapper
     public static final ObjectMapper Mapper = new ObjectMapper();
 
+    // Readers of the message parts, built once after the mapper is configured
+    private static final ObjectReader FIXED_HEADER;
+    private static final ObjectReader ADDITIONAL_HEADER;
+    // Readers by message type, null if the message type has no such part, unknown message types are not in the map
+    private static final Map<MqttMessageType, ObjectReader> VARIABLE_HEADERS = new EnumMap<>(MqttMessageType.class);
+    private static final Map<MqttMessageType, ObjectReader> PAYLOADS = new EnumMap<>(MqttMessageType.class);
+
     static {
         Mapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
         Mapper.configure(SerializationFeature.FAIL_ON_EMPTY_BEANS, false);
         Mapper.configure(SerializationFeature.WRITE_NULL_MAP_VALUES, false);
         Mapper.setSerializationInclusion(JsonInclude.Include.NON_NULL);
+        // Messages have no bean accessors, their fields are mapped directly
+        Mapper.setVisibility(PropertyAccessor.ALL, JsonAutoDetect.Visibility.NONE);
+        Mapper.setVisibility(PropertyAccessor.FIELD, JsonAutoDetect.Visibility.ANY);
+
+        FIXED_HEADER = Mapper.readerFor(MqttFixedHeader.class);
+        ADDITIONAL_HEADER = Mapper.readerFor(MqttAdditionalHeader.class);
+        ObjectReader packetId = Mapper.readerFor(MqttPacketIdVariableHeader.class);
+        reader(MqttMessageType.CONNECT, Mapper.readerFor(MqttConnectVariableHeader.class), Mapper.readerFor(MqttConnectPayload.class));
+        reader(MqttMessageType.CONNACK, Mapper.readerFor(MqttConnAckVariableHeader.class), null);
+        reader(MqttMessageType.SUBSCRIBE, packetId, Mapper.readerFor(MqttSubscribePayloadGranted.class));
+        reader(MqttMessageType.SUBACK, packetId, Mapper.readerFor(MqttSubAckPayload.class));
+        reader(MqttMessageType.UNSUBSCRIBE, packetId, Mapper.readerFor(MqttUnsubscribePayload.class));
+        reader(MqttMessageType.PUBLISH, Mapper.readerFor(MqttPublishVariableHeader.class), Mapper.readerFor(MqttPublishPayload.class));
+        reader(MqttMessageType.UNSUBACK, packetId, null);
+        reader(MqttMessageType.PUBACK, packetId, null);
+        reader(MqttMessageType.PUBREC, packetId, null);
+        reader(MqttMessageType.PUBREL, packetId, null);
+        reader(MqttMessageType.PUBCOMP, packetId, null);
+        reader(MqttMessageType.PINGREQ, null, null);
+        reader(MqttMessageType.PINGRESP, null, null);
+        reader(MqttMessageType.DISCONNECT, null, null);
     }
 
     private JSONs() {
     }
 
+    private static void reader(MqttMessageType type, ObjectReader variableHeader, ObjectReader payload) {
+        VARIABLE_HEADERS.put(type, variableHeader);
+        PAYLOADS.put(type, payload);
+    }
+
     /**
      * Decode bytes (json data) to Message
      */
     public static Message decodeMessage(byte[] data) throws IOException {
-        JavaType type = Mapper.getTypeFactory().constructParametricType(Message.class, JsonNode.class, JsonNode.class);
-        Message<JsonNode, JsonNode> m = Mapper.readValue(data, type);
-        switch (m.fixedHeader().messageType()) {
-            case CONNECT:
-                MqttConnectVariableHeader cv = Mapper.treeToValue(m.variableHeader(), MqttConnectVariableHeader.class);
-                MqttConnectPayload cp = Mapper.treeToValue(m.payload(), MqttConnectPayload.class);
-                return new Message<>(m.fixedHeader(), m.additionalHeader(), cv, cp);
-            case CONNACK:
-                MqttConnAckVariableHeader cav = Mapper.treeToValue(m.variableHeader(), MqttConnAckVariableHeader.class);
-                return new Message<>(m.fixedHeader(), m.additionalHeader(), cav, null);
-            case SUBSCRIBE:
-                MqttPacketIdVariableHeader sv = Mapper.treeToValue(m.variableHeader(), MqttPacketIdVariableHeader.class);
-                MqttSubscribePayloadGranted sp = Mapper.treeToValue(m.payload(), MqttSubscribePayloadGranted.class);
-                return new Message<>(m.fixedHeader(), m.additionalHeader(), sv, sp);
-            case SUBACK:
-                MqttPacketIdVariableHeader sav = Mapper.treeToValue(m.variableHeader(), MqttPacketIdVariableHeader.class);
-                MqttSubAckPayload sap = Mapper.treeToValue(m.payload(), MqttSubAckPayload.class);
-                return new Message<>(m.fixedHeader(), m.additionalHeader(), sav, sap);
-            case UNSUBSCRIBE:
-                MqttPacketIdVariableHeader uv = Mapper.treeToValue(m.variableHeader(), MqttPacketIdVariableHeader.class);
-                MqttUnsubscribePayload up = Mapper.treeToValue(m.payload(), MqttUnsubscribePayload.class);
-                return new Message<>(m.fixedHeader(), m.additionalHeader(), uv, up);
-            case PUBLISH:
-                MqttPublishVariableHeader pv = Mapper.treeToValue(m.variableHeader(), MqttPublishVariableHeader.class);
-                MqttPublishPayload pp = Mapper.treeToValue(m.payload(), MqttPublishPayload.class);
-                return new Message<>(m.fixedHeader(), m.additionalHeader(), pv, pp);
-            case UNSUBACK:
-            case PUBACK:
-            case PUBREC:
-            case PUBREL:
-            case PUBCOMP:
-                MqttPacketIdVariableHeader iv = Mapper.treeToValue(m.variableHeader(), MqttPacketIdVariableHeader.class);
-                return new Message<>(m.fixedHeader(), m.additionalHeader(), iv, null);
-            case PINGREQ:
-            case PINGRESP:
-            case DISCONNECT:
-                return m;
-            default:
-                return null;
+        try (JsonParser parser = Mapper.getFactory().createParser(data)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw JsonMappingException.from(parser, "Expected a json object of message");
+            }
+            return decodeMessage(parser);
         }
     }
+
+    /**
+     * Decode bytes (json data) to Messages
+     * Data is either a single message or a json array of messages, as the broker passes them to 3rd party application
+     * in batches
+     */
+    public static List<Message> decodeMessages(byte[] data) throws IOException {
+        List<Message> messages = new ArrayList<>();
+        try (JsonParser parser = Mapper.getFactory().createParser(data)) {
+            JsonToken token = parser.nextToken();
+            if (token == JsonToken.START_ARRAY) {
+                while (parser.nextToken() == JsonToken.START_OBJECT) {
+                    Message message = decodeMessage(parser);
+                    if (message != null) messages.add(message);
+                }
+            } else if (token == JsonToken.START_OBJECT) {
+                Message message = decodeMessage(parser);
+                if (message != null) messages.add(message);
+            } else {
+                throw JsonMappingException.from(parser, "Expected a json object or array of messages");
+            }
+        }
+        return messages;
+    }
+
+    /**
+     * Decode the message the parser is positioned at, in a single pass
+     * Variable header and payload are bound by the message type as they are parsed, only buffered if they come before
+     * the fixed header. The parser is left at the end of the message.
+     *
+     * @param parser Parser positioned at the start of the message object
+     * @return Message, null if the message type is unknown
+     */
+    private static Message decodeMessage(JsonParser parser) throws IOException {
+        MqttFixedHeader fixedHeader = null;
+        MqttAdditionalHeader additionalHeader = null;
+        Object variableHeader = null;
+        Object payload = null;
+        TokenBuffer bufferedVariableHeader = null;
+        TokenBuffer bufferedPayload = null;
+
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            parser.nextToken();
+            switch (field) {
+                case "fixedHeader":
+                    fixedHeader = FIXED_HEADER.readValue(parser);
+                    break;
+                case "additionalHeader":
+                    additionalHeader = ADDITIONAL_HEADER.readValue(parser);
+                    break;
+                case "variableHeader":
+                    if (fixedHeader != null) variableHeader = read(VARIABLE_HEADERS, fixedHeader, parser);
+                    else bufferedVariableHeader = buffer(parser);
+                    break;
+                case "payload":
+                    if (fixedHeader != null) payload = read(PAYLOADS, fixedHeader, parser);
+                    else bufferedPayload = buffer(parser);
+                    break;
+                default:
+                    parser.skipChildren();
+            }
+        }
+
+        if (fixedHeader == null || !VARIABLE_HEADERS.containsKey(fixedHeader.messageType())) return null;
+        if (bufferedVariableHeader != null) variableHeader = read(VARIABLE_HEADERS, fixedHeader, bufferedVariableHeader.asParser(Mapper));
+        if (bufferedPayload != null) payload = read(PAYLOADS, fixedHeader, bufferedPayload.asParser(Mapper));
+        return new Message<>(fixedHeader, additionalHeader, variableHeader, payload);
+    }
+
+    // bind the value by the message type, skipped if the message type has no such part
+    private static Object read(Map<MqttMessageType, ObjectReader> readers, MqttFixedHeader fixedHeader, JsonParser parser) throws IOException {
+        ObjectReader reader = readers.get(fixedHeader.messageType());
+        if (reader == null) {
+            parser.skipChildren();
+            return null;
+        }
+        return reader.readValue(parser);
+    }
+
+    // keep the value until the message type is known
+    private static TokenBuffer buffer(JsonParser parser) throws IOException {
+        TokenBuffer buffer = new TokenBuffer(parser);
+        buffer.copyCurrentStructure(parser);
+        return buffer;
+    }
 }
@@ -0,0 +1,160 @@
+package com.github.longkerdandy.mithqtt.util;
+
+import io.netty.handler.codec.mqtt.MqttQoS;
+import io.netty.handler.codec.mqtt.MqttTopicSubscription;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Shared Subscription Utils
+ * <p>
+ * A subscription to '$share/{group}/{filter}' joins the client to the share group of the topic filter. Each message
+ * matching the topic filter is delivered to only one member of the group.
+ * <p>
+ * Storage keeps the client's subscription under the whole '$share/{group}/{filter}' topic, while the subscription
+ * tree keeps it under the topic filter's levels, with the member '$share/{group}/{filter}\0{clientId}' in place of the
+ * client id. So matching a topic returns both ordinary subscribers and share group members, which are told apart by
+ * {@link #isMember(String)}. A share is identified by both the group and the topic filter, groups of the same name
+ * subscribed to different topic filters are independent of each other.
+ * Neither topic filters nor client ids may contain '\0', which separates them in the member.
+ */
+@SuppressWarnings("unused")
+public class SharedSubscriptions {
+
+    public static final String PREFIX = "$share";
+
+    private SharedSubscriptions() {
+    }
+
+    /**
+     * Is the topic filter a shared subscription
+     *
+     * @param topicFilter Topic Filter
+     * @return True if starts with '$share/'
+     */
+    public static boolean isShared(String topicFilter) {
+        return topicFilter.startsWith(PREFIX + "/");
+    }
+
+    /**
+     * Is the sanitized topic levels a shared subscription
+     *
+     * @param topicLevels Sanitized Topic Levels
+     * @return True if the first level is '$share' followed by the group and the topic filter
+     */
+    public static boolean isShared(List<String> topicLevels) {
+        return topicLevels.size() >= 4 && PREFIX.equals(topicLevels.get(0));
+    }
+
+    /**
+     * Is the shared subscription well formed
+     * The group must not be empty or contain wildcards, and the topic filter must not be empty.
+     *
+     * @param topicFilter Topic Filter
+     * @return True if valid or not a shared subscription
+     */
+    public static boolean isValid(String topicFilter) {
+        if (!isShared(topicFilter)) return true;
+        int start = PREFIX.length() + 1;
+        int end = topicFilter.indexOf('/', start);
+        if (end <= start || end == topicFilter.length() - 1) return false;
+        String group = topicFilter.substring(start, end);
+        return !group.contains("+") && !group.contains("#");
+    }
+
+    /**
+     * Get the share group of the shared subscription
+     *
+     * @param topicLevels Sanitized Topic Levels of the shared subscription
+     * @return Group
+     */
+    public static String group(List<String> topicLevels) {
+        return topicLevels.get(1);
+    }
+
+    /**
+     * Get the topic filter levels of the shared subscription
+     *
+     * @param topicLevels Sanitized Topic Levels of the shared subscription
+     * @return Sanitized Topic Filter Levels
+     */
+    public static List<String> filter(List<String> topicLevels) {
+        return topicLevels.subList(2, topicLevels.size());
+    }
+
+    /**
+     * Get the topic filter of the shared subscription
+     *
+     * @param topicFilter Topic Filter
+     * @return Topic Filter after '$share/{group}/', or the topic filter itself if not a shared subscription
+     */
+    public static String filter(String topicFilter) {
+        if (!isShared(topicFilter)) return topicFilter;
+        return topicFilter.substring(topicFilter.indexOf('/', PREFIX.length() + 1) + 1);
+    }
+
+    /**
+     * Get the subscriptions to be authorized
+     * A shared subscription receives messages of its topic filter, so it is authorized as the topic filter,
+     * the subscription order is kept.
+     *
+     * @param subscriptions Requested Subscriptions, shared subscriptions must be valid
+     * @return Subscriptions with their topic filters in place of the shared subscriptions
+     */
+    public static List<MqttTopicSubscription> authorizable(List<MqttTopicSubscription> subscriptions) {
+        if (subscriptions.stream().noneMatch(subscription -> isShared(subscription.topic()))) return subscriptions;
+        List<MqttTopicSubscription> r = new ArrayList<>(subscriptions.size());
+        for (MqttTopicSubscription subscription : subscriptions) {
+            r.add(isShared(subscription.topic()) ? new MqttTopicSubscription(filter(subscription.topic()), subscription.requestedQos()) : subscription);
+        }
+        return r;
+    }
+
+    /**
+     * Subscriber key of the share group member, used in place of the client id in the subscription tree
+     *
+     * @param topicLevels Sanitized Topic Levels of the shared subscription
+     * @param clientId    Client Id
+     * @return Member
+     */
+    public static String member(List<String> topicLevels, String clientId) {
+        return PREFIX + "/" + group(topicLevels) + "/" + Topics.antidote(filter(topicLevels)) + '\0' + clientId;
+    }
+
+    /**
+     * Is the subscriber key a share group member
+     *
+     * @param subscriber Client Id or Member
+     * @return True if is member
+     */
+    public static boolean isMember(String subscriber) {
+        return subscriber.startsWith(PREFIX + "/");
+    }
+
+    /**
+     * Split the share group members out of the matched subscriptions
+     *
+     * @param subscriptions RETURN VALUE! Subscriptions: Key - Client Id or Member, Value - QoS, members are removed
+     * @return Members by share: Key - '{group}/{filter}', Value - (Key - Client Id, Value - QoS), ordered by client id
+     */
+    public static Map<String, Map<String, MqttQoS>> split(Map<String, MqttQoS> subscriptions) {
+        Map<String, Map<String, MqttQoS>> groups = null;
+        Iterator<Map.Entry<String, MqttQoS>> it = subscriptions.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, MqttQoS> entry = it.next();
+            if (!isMember(entry.getKey())) continue;
+            int start = PREFIX.length() + 1;
+            int end = entry.getKey().lastIndexOf('\0');
+            if (groups == null) groups = new HashMap<>();
+            groups.computeIfAbsent(entry.getKey().substring(start, end), k -> new TreeMap<>())
+                    .put(entry.getKey().substring(end + 1), entry.getValue());
+            it.remove();
+        }
+        return groups != null ? groups : new HashMap<>();
+    }
+}
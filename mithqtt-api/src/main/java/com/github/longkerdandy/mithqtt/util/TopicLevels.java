@@ -0,0 +1,82 @@
+package com.github.longkerdandy.mithqtt.util;
+
+import java.util.AbstractList;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * Immutable sanitized topic levels
+ * <p>
+ * Levels are interned, so the same level of different topics is kept once on the heap. The levels joined by '/' and
+ * the hash code are computed once, storage keys built from the same topic reuse them.
+ */
+public final class TopicLevels extends AbstractList<String> implements RandomAccess {
+
+    // original topic
+    private final String topic;
+    private final String[] levels;
+    // levels joined by '/'
+    private final String joined;
+    private final int hash;
+
+    TopicLevels(String topic, List<String> levels) {
+        this.topic = topic;
+        this.levels = new String[levels.size()];
+        for (int i = 0; i < this.levels.length; i++) {
+            this.levels[i] = levels.get(i).intern();
+        }
+        this.joined = String.join("/", this.levels);
+        this.hash = super.hashCode();
+    }
+
+    /**
+     * Join the topic levels by '/'
+     * Reuse the joined string if the levels are TopicLevels
+     *
+     * @param topicLevels Topic Levels
+     * @return Joined String
+     */
+    public static String join(List<String> topicLevels) {
+        if (topicLevels instanceof TopicLevels) return ((TopicLevels) topicLevels).joined;
+        return String.join("/", topicLevels);
+    }
+
+    /**
+     * @return Original Topic Name or Topic Filter
+     */
+    public String topic() {
+        return this.topic;
+    }
+
+    /**
+     * @return Levels joined by '/'
+     */
+    public String joined() {
+        return this.joined;
+    }
+
+    @Override
+    public String get(int index) {
+        return this.levels[index];
+    }
+
+    @Override
+    public int size() {
+        return this.levels.length;
+    }
+
+    @Override
+    public int hashCode() {
+        return this.hash;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (o == this) return true;
+        if (o instanceof TopicLevels) {
+            TopicLevels other = (TopicLevels) o;
+            return this.hash == other.hash && this.joined.equals(other.joined);
+        }
+        return super.equals(o);
+    }
+}
@@ -16,6 +16,11 @@ public class Topics {
     // Present the end of the wildcard topic filter
     public static final String END = "†";
 
+    // Parsed topic names, direct mapped by hash code, a colliding topic name replaces the cached one
+    // Devices publish to a limited set of topic names, so most topic names are only parsed once
+    private static final int TOPIC_NAME_CACHE_SIZE = 1 << 14;
+    private static final TopicLevels[] TOPIC_NAME_CACHE = new TopicLevels[TOPIC_NAME_CACHE_SIZE];
+
     private Topics() {
     }
 
@@ -56,12 +61,26 @@ public class Topics {
     /**
      * Validate the topic name, add EMPTY and END, return as a List of levels
      * No wildcard allowed!
+     * <p>
+     * Parsed topic names are cached, the returned List is immutable and may be shared.
      *
      * @param topicName Topic Name
      * @return List of levels
      */
     public static List<String> sanitizeTopicName(String topicName) {
         if (StringUtils.isEmpty(topicName)) throw new IllegalArgumentException("Empty topic name");
+
+        // TopicLevels only has final fields, so a racy read sees either null or a fully constructed instance
+        int slot = topicName.hashCode() & (TOPIC_NAME_CACHE_SIZE - 1);
+        TopicLevels cached = TOPIC_NAME_CACHE[slot];
+        if (cached != null && cached.topic().equals(topicName)) return cached;
+
+        TopicLevels levels = new TopicLevels(topicName, parseTopicName(topicName));
+        TOPIC_NAME_CACHE[slot] = levels;
+        return levels;
+    }
+
+    private static List<String> parseTopicName(String topicName) {
         if (topicName.contains("+")) throw new IllegalArgumentException("Topic name contains wildcard");
         if (topicName.contains("#")) throw new IllegalArgumentException("Topic name contains wildcard");
 
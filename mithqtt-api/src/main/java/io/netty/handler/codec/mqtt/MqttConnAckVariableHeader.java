@@ -26,6 +26,10 @@ public class MqttConnAckVariableHeader {
     protected MqttConnectReturnCode returnCode;
     protected boolean sessionPresent;
 
+    // Used by json deserialization, fields are set directly
+    protected MqttConnAckVariableHeader() {
+    }
+
     public MqttConnAckVariableHeader(MqttConnectReturnCode returnCode, boolean sessionPresent) {
         this.returnCode = returnCode;
         this.sessionPresent = sessionPresent;
@@ -29,6 +29,10 @@ public class MqttConnectPayload {
     protected String userName;
     protected String password;
 
+    // Used by json deserialization, fields are set directly
+    protected MqttConnectPayload() {
+    }
+
     public MqttConnectPayload(
             String clientId,
             String willTopic,
@@ -33,6 +33,10 @@ public class MqttConnectVariableHeader {
     protected boolean cleanSession;
     protected int keepAlive;
 
+    // Used by json deserialization, fields are set directly
+    protected MqttConnectVariableHeader() {
+    }
+
     public MqttConnectVariableHeader(
             String protocolName,
             int protocolLevel,
@@ -18,9 +18,8 @@ package io.netty.handler.codec.mqtt;
 
 import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.ByteToMessageDecoder;
 import io.netty.handler.codec.DecoderException;
-import io.netty.handler.codec.ReplayingDecoder;
-import io.netty.handler.codec.mqtt.MqttDecoder.DecoderState;
 import io.netty.util.CharsetUtil;
 
 import java.util.ArrayList;
@@ -30,22 +29,76 @@ import java.util.List;
  * Decodes Mqtt messages from bytes, following
  * <a href="http://public.dhe.ibm.com/software/dw/webservices/ws-mqtt/mqtt-v3r1.html">
  * the MQTT protocol specification v3.1</a>
+ * <p>
+ * Only the fixed header is peeked until the whole frame has been buffered, then the frame is parsed in one pass
+ * from a slice of the cumulated buffer. Nothing is re-parsed when a frame arrives in pieces.
+ * <p>
+ * When a stream threshold is set, QoS 0 non-retained PUBLISH messages larger than the threshold are not buffered.
+ * They are decoded as a sequence of {@link MqttPublishChunk} as soon as the topic name has been received, each chunk
+ * holding the part of the payload received so far. Streamed messages are not limited by the max message size.
  */
-public class MqttDecoder extends ReplayingDecoder<DecoderState> {
+public class MqttDecoder extends ByteToMessageDecoder {
 
     private static final int DEFAULT_MAX_BYTES_IN_MESSAGE = 8092;
     private final int maxBytesInMessage;
-    private MqttFixedHeader mqttFixedHeader;
-    private Object variableHeader;
-    private int bytesRemainingInVariablePart;
+    private final int streamThreshold;
+    // set after an invalid message, keep discarding until disconnection
+    private boolean bad;
+    // the PUBLISH message being streamed, null if none
+    private MqttFixedHeader streamFixedHeader;
+    private MqttPublishVariableHeader streamVariableHeader;
+    private int streamPayloadLength;
+    private int streamRemaining;
 
     public MqttDecoder() {
         this(DEFAULT_MAX_BYTES_IN_MESSAGE);
     }
 
     public MqttDecoder(int maxBytesInMessage) {
-        super(DecoderState.READ_FIXED_HEADER);
+        this(maxBytesInMessage, 0);
+    }
+
+    /**
+     * @param maxBytesInMessage max remaining length of a buffered message
+     * @param streamThreshold   QoS 0 non-retained PUBLISH messages with remaining length larger than this are streamed,
+     *                          0 to disable streaming
+     */
+    public MqttDecoder(int maxBytesInMessage, int streamThreshold) {
         this.maxBytesInMessage = maxBytesInMessage;
+        this.streamThreshold = streamThreshold;
+    }
+
+    /**
+     * Whether the message should be streamed instead of buffered
+     *
+     * @param mqttFixedHeader MqttFixedHeader of the message
+     * @return true if streamed
+     */
+    private boolean isStreamed(MqttFixedHeader mqttFixedHeader) {
+        return this.streamThreshold > 0
+                && mqttFixedHeader.messageType() == MqttMessageType.PUBLISH
+                && mqttFixedHeader.qos() == MqttQoS.AT_MOST_ONCE
+                && !mqttFixedHeader.retain()
+                && mqttFixedHeader.remainingLength() > this.streamThreshold;
+    }
+
+    /**
+     * Peeks whether the fixed header has been fully received, without moving the reader index.
+     *
+     * @param buffer the buffer to peek
+     * @return true if the fixed header can be decoded
+     */
+    private static boolean isFixedHeaderReadable(ByteBuf buffer) {
+        int readable = buffer.readableBytes();
+        int index = buffer.readerIndex() + 1;
+        int loops = 0;
+        short digit;
+        do {
+            if (loops + 1 >= readable) return false;
+            digit = buffer.getUnsignedByte(index + loops);
+            loops++;
+        } while ((digit & 128) != 0 && loops < 4);
+        return true;
     }
 
     /**
@@ -353,82 +406,112 @@ public class MqttDecoder extends ReplayingDecoder<DecoderState> {
 
     @Override
     protected void decode(ChannelHandlerContext ctx, ByteBuf buffer, List<Object> out) throws Exception {
-        switch (state()) {
-            case READ_FIXED_HEADER:
-                try {
-                    mqttFixedHeader = decodeFixedHeader(buffer);
-                    bytesRemainingInVariablePart = mqttFixedHeader.remainingLength();
-                    checkpoint(DecoderState.READ_VARIABLE_HEADER);
-                    // fall through
-                } catch (Exception cause) {
-                    out.add(invalidMessage(cause));
-                    return;
-                }
+        if (bad) {
+            // Keep discarding until disconnection.
+            buffer.skipBytes(buffer.readableBytes());
+            return;
+        }
 
-            case READ_VARIABLE_HEADER:
-                try {
-                    if (bytesRemainingInVariablePart > maxBytesInMessage) {
-                        throw new DecoderException("message size exceeds limit: " + bytesRemainingInVariablePart + " bytes");
-                    }
-                    final Result<?> decodedVariableHeader = decodeVariableHeader(buffer, mqttFixedHeader);
-                    variableHeader = decodedVariableHeader.value;
-                    bytesRemainingInVariablePart -= decodedVariableHeader.numberOfBytesConsumed;
-                    checkpoint(DecoderState.READ_PAYLOAD);
-                    // fall through
-                } catch (Exception cause) {
-                    out.add(invalidMessage(cause));
-                    return;
-                }
+        if (streamFixedHeader != null) {
+            decodeChunk(buffer, out, false);
+            return;
+        }
+
+        if (!isFixedHeaderReadable(buffer)) return;
 
-            case READ_PAYLOAD:
-                try {
-                    final Result<?> decodedPayload =
-                            decodePayload(
-                                    buffer,
-                                    mqttFixedHeader.messageType(),
-                                    bytesRemainingInVariablePart,
-                                    variableHeader);
-                    Object payload = decodedPayload.value;
-                    bytesRemainingInVariablePart -= decodedPayload.numberOfBytesConsumed;
-                    if (bytesRemainingInVariablePart != 0) {
-                        throw new DecoderException(
-                                "non-zero remaining payload bytes: " +
-                                        bytesRemainingInVariablePart + " (" + mqttFixedHeader.messageType() + ')');
-                    }
-                    checkpoint(DecoderState.READ_FIXED_HEADER);
-                    MqttMessage message = MqttMessageFactory.newMessage(mqttFixedHeader, variableHeader, payload);
-                    mqttFixedHeader = null;
-                    variableHeader = null;
-                    Mqtts.sanitize(message);    // sanitize message
-                    out.add(message);
-                    break;
-                } catch (Exception cause) {
-                    out.add(invalidMessage(cause));
-                    return;
+        final MqttFixedHeader mqttFixedHeader;
+        final boolean streamed;
+        try {
+            int readerIndex = buffer.readerIndex();
+            mqttFixedHeader = decodeFixedHeader(buffer);
+            streamed = isStreamed(mqttFixedHeader);
+            if (!streamed && mqttFixedHeader.remainingLength() > maxBytesInMessage) {
+                throw new DecoderException("message size exceeds limit: " + mqttFixedHeader.remainingLength() + " bytes");
+            }
+            // wait for the whole frame, or the topic name if streamed
+            int required = streamed ? 2 : mqttFixedHeader.remainingLength();
+            if (streamed && buffer.readableBytes() >= 2) {
+                required += buffer.getUnsignedShort(buffer.readerIndex());
+                if (required > mqttFixedHeader.remainingLength()) {
+                    throw new DecoderException("invalid topic name length: " + (required - 2) + " bytes");
                 }
+            }
+            if (buffer.readableBytes() < required) {
+                buffer.readerIndex(readerIndex);
+                return;
+            }
+        } catch (Exception cause) {
+            out.add(invalidMessage(cause));
+            return;
+        }
 
-            case BAD_MESSAGE:
-                // Keep discarding until disconnection.
-                buffer.skipBytes(actualReadableBytes());
-                break;
+        if (streamed) {
+            try {
+                Result<MqttPublishVariableHeader> decodedVariableHeader = decodePublishVariableHeader(buffer, mqttFixedHeader);
+                streamFixedHeader = mqttFixedHeader;
+                streamVariableHeader = decodedVariableHeader.value;
+                streamPayloadLength = mqttFixedHeader.remainingLength() - decodedVariableHeader.numberOfBytesConsumed;
+                streamRemaining = streamPayloadLength;
+                decodeChunk(buffer, out, true);
+            } catch (Exception cause) {
+                out.add(invalidMessage(cause));
+            }
+            return;
         }
-    }
 
-    private MqttMessage invalidMessage(Throwable cause) {
-        checkpoint(DecoderState.BAD_MESSAGE);
-        return MqttMessageFactory.newInvalidMessage(cause);
+        try {
+            // parse within the frame, so a malformed frame never reads into the next one
+            ByteBuf frame = buffer.readSlice(mqttFixedHeader.remainingLength());
+            int bytesRemainingInVariablePart = mqttFixedHeader.remainingLength();
+
+            final Result<?> decodedVariableHeader = decodeVariableHeader(frame, mqttFixedHeader);
+            Object variableHeader = decodedVariableHeader.value;
+            bytesRemainingInVariablePart -= decodedVariableHeader.numberOfBytesConsumed;
+
+            final Result<?> decodedPayload =
+                    decodePayload(
+                            frame,
+                            mqttFixedHeader.messageType(),
+                            bytesRemainingInVariablePart,
+                            variableHeader);
+            Object payload = decodedPayload.value;
+            bytesRemainingInVariablePart -= decodedPayload.numberOfBytesConsumed;
+            if (bytesRemainingInVariablePart != 0) {
+                throw new DecoderException(
+                        "non-zero remaining payload bytes: " +
+                                bytesRemainingInVariablePart + " (" + mqttFixedHeader.messageType() + ')');
+            }
+            MqttMessage message = MqttMessageFactory.newMessage(mqttFixedHeader, variableHeader, payload);
+            Mqtts.sanitize(message);    // sanitize message
+            out.add(message);
+        } catch (Exception cause) {
+            out.add(invalidMessage(cause));
+        }
     }
 
     /**
-     * States of the decoder.
-     * We start at READ_FIXED_HEADER, followed by
-     * READ_VARIABLE_HEADER and finally READ_PAYLOAD.
+     * Decodes the part of the streamed PUBLISH message's payload received so far
+     *
+     * @param buffer the buffer to decode from
+     * @param out    the decoded chunk is added to
+     * @param first  whether this is the first chunk of the message
      */
-    enum DecoderState {
-        READ_FIXED_HEADER,
-        READ_VARIABLE_HEADER,
-        READ_PAYLOAD,
-        BAD_MESSAGE,
+    private void decodeChunk(ByteBuf buffer, List<Object> out, boolean first) {
+        int length = Math.min(buffer.readableBytes(), streamRemaining);
+        streamRemaining -= length;
+        boolean last = streamRemaining == 0;
+        MqttPublishChunk chunk = new MqttPublishChunk(streamFixedHeader, streamVariableHeader,
+                buffer.readRetainedSlice(length), streamPayloadLength, first, last);
+        if (last) {
+            streamFixedHeader = null;
+            streamVariableHeader = null;
+        }
+        out.add(chunk);
+    }
+
+    private MqttMessage invalidMessage(Throwable cause) {
+        bad = true;
+        return MqttMessageFactory.newInvalidMessage(cause);
     }
 
     private static final class Result<T> {
@@ -18,17 +18,19 @@ package io.netty.handler.codec.mqtt;
 
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.MessageToMessageEncoder;
-import io.netty.util.CharsetUtil;
-import io.netty.util.internal.EmptyArrays;
 
 import java.util.List;
 
 /**
  * Encodes Mqtt messages into bytes following the protocol specification v3.1
  * as described here <a href="http://public.dhe.ibm.com/software/dw/webservices/ws-mqtt/mqtt-v3r1.html">MQTTV3.1</a>
+ * <p>
+ * Strings are written as UTF-8 straight into the target buffer, without intermediate byte arrays. Constant packets
+ * (CONNACK, PINGREQ, PINGRESP, DISCONNECT) are served from preallocated shared frames.
  */
 @ChannelHandler.Sharable
 public class MqttEncoder extends MessageToMessageEncoder<MqttMessage> {
@@ -36,6 +38,23 @@ public class MqttEncoder extends MessageToMessageEncoder<MqttMessage> {
     // singleton
     public static final MqttEncoder INSTANCE = new MqttEncoder();
 
+    // preallocated CONNACK frames, indexed by return code ordinal * 2 + session present
+    private static final ByteBuf[] CONNACK_FRAMES = new ByteBuf[MqttConnectReturnCode.values().length * 2];
+    // preallocated frames of messages with only fixed header, indexed by message type value
+    private static final ByteBuf[] FIXED_HEADER_ONLY_FRAMES = new ByteBuf[16];
+
+    static {
+        for (MqttConnectReturnCode code : MqttConnectReturnCode.values()) {
+            for (int sessionPresent = 0; sessionPresent < 2; sessionPresent++) {
+                CONNACK_FRAMES[code.ordinal() * 2 + sessionPresent] = sharedFrame(
+                        MqttMessageType.CONNACK.value() << 4, 2, sessionPresent, code.byteValue());
+            }
+        }
+        for (MqttMessageType type : new MqttMessageType[]{MqttMessageType.PINGREQ, MqttMessageType.PINGRESP, MqttMessageType.DISCONNECT}) {
+            FIXED_HEADER_ONLY_FRAMES[type.value()] = sharedFrame(type.value() << 4, 0);
+        }
+    }
+
     private MqttEncoder() {
     }
 
@@ -99,29 +118,29 @@ public class MqttEncoder extends MessageToMessageEncoder<MqttMessage> {
 
         // Client id
         String clientId = payload.clientId();
-        byte[] clientIdBytes = encodeStringUtf8(clientId);
-        payloadBufferSize += 2 + clientIdBytes.length;
+        int clientIdLength = utf8Length(clientId);
+        payloadBufferSize += 2 + clientIdLength;
 
         // Will topic and message
         String willTopic = payload.willTopic();
-        byte[] willTopicBytes = willTopic != null ? encodeStringUtf8(willTopic) : EmptyArrays.EMPTY_BYTES;
+        int willTopicLength = utf8Length(willTopic);
         String willMessage = payload.willMessage();
-        byte[] willMessageBytes = willMessage != null ? encodeStringUtf8(willMessage) : EmptyArrays.EMPTY_BYTES;
+        int willMessageLength = utf8Length(willMessage);
         if (variableHeader.willFlag()) {
-            payloadBufferSize += 2 + willTopicBytes.length;
-            payloadBufferSize += 2 + willMessageBytes.length;
+            payloadBufferSize += 2 + willTopicLength;
+            payloadBufferSize += 2 + willMessageLength;
         }
 
         String userName = payload.userName();
-        byte[] userNameBytes = userName != null ? encodeStringUtf8(userName) : EmptyArrays.EMPTY_BYTES;
+        int userNameLength = utf8Length(userName);
         if (variableHeader.userNameFlag()) {
-            payloadBufferSize += 2 + userNameBytes.length;
+            payloadBufferSize += 2 + userNameLength;
         }
 
         String password = payload.password();
-        byte[] passwordBytes = password != null ? encodeStringUtf8(password) : EmptyArrays.EMPTY_BYTES;
+        int passwordLength = utf8Length(password);
         if (variableHeader.passwordFlag()) {
-            payloadBufferSize += 2 + passwordBytes.length;
+            payloadBufferSize += 2 + passwordLength;
         }
 
         // Fixed header
@@ -141,21 +160,16 @@ public class MqttEncoder extends MessageToMessageEncoder<MqttMessage> {
         buf.writeShort(variableHeader.keepAlive());
 
         // Payload
-        buf.writeShort(clientIdBytes.length);
-        buf.writeBytes(clientIdBytes, 0, clientIdBytes.length);
+        writeStringUtf8(buf, clientId, clientIdLength);
         if (variableHeader.willFlag()) {
-            buf.writeShort(willTopicBytes.length);
-            buf.writeBytes(willTopicBytes, 0, willTopicBytes.length);
-            buf.writeShort(willMessageBytes.length);
-            buf.writeBytes(willMessageBytes, 0, willMessageBytes.length);
+            writeStringUtf8(buf, willTopic, willTopicLength);
+            writeStringUtf8(buf, willMessage, willMessageLength);
         }
         if (variableHeader.userNameFlag()) {
-            buf.writeShort(userNameBytes.length);
-            buf.writeBytes(userNameBytes, 0, userNameBytes.length);
+            writeStringUtf8(buf, userName, userNameLength);
         }
         if (variableHeader.passwordFlag()) {
-            buf.writeShort(passwordBytes.length);
-            buf.writeBytes(passwordBytes, 0, passwordBytes.length);
+            writeStringUtf8(buf, password, passwordLength);
         }
 
         return buf;
@@ -186,6 +200,9 @@ public class MqttEncoder extends MessageToMessageEncoder<MqttMessage> {
     private static ByteBuf encodeConnAckMessage(
             ByteBufAllocator byteBufAllocator,
             MqttConnAckMessage message) {
+        if (getFixedHeaderByte1(message.fixedHeader()) == MqttMessageType.CONNACK.value() << 4) {
+            return encodeConnAck(message.variableHeader().returnCode(), message.variableHeader().sessionPresent());
+        }
         ByteBuf buf = byteBufAllocator.buffer(4);
         buf.writeByte(getFixedHeaderByte1(message.fixedHeader()));
         buf.writeByte(2);
@@ -206,9 +223,7 @@ public class MqttEncoder extends MessageToMessageEncoder<MqttMessage> {
         MqttSubscribePayload payload = message.payload();
 
         for (MqttTopicSubscription topic : payload.subscriptions()) {
-            String topicName = topic.topic();
-            byte[] topicNameBytes = encodeStringUtf8(topicName);
-            payloadBufferSize += 2 + topicNameBytes.length;
+            payloadBufferSize += 2 + utf8Length(topic.topic());
             payloadBufferSize += 1;
         }
 
@@ -226,9 +241,7 @@ public class MqttEncoder extends MessageToMessageEncoder<MqttMessage> {
         // Payload
         for (MqttTopicSubscription topic : payload.subscriptions()) {
             String topicName = topic.topic();
-            byte[] topicNameBytes = encodeStringUtf8(topicName);
-            buf.writeShort(topicNameBytes.length);
-            buf.writeBytes(topicNameBytes, 0, topicNameBytes.length);
+            writeStringUtf8(buf, topicName, utf8Length(topicName));
             buf.writeByte(topic.requestedQos().value());
         }
 
@@ -246,8 +259,7 @@ public class MqttEncoder extends MessageToMessageEncoder<MqttMessage> {
         MqttUnsubscribePayload payload = message.payload();
 
         for (String topicName : payload.topics()) {
-            byte[] topicNameBytes = encodeStringUtf8(topicName);
-            payloadBufferSize += 2 + topicNameBytes.length;
+            payloadBufferSize += 2 + utf8Length(topicName);
         }
 
         int variablePartSize = variableHeaderBufferSize + payloadBufferSize;
@@ -263,9 +275,7 @@ public class MqttEncoder extends MessageToMessageEncoder<MqttMessage> {
 
         // Payload
         for (String topicName : payload.topics()) {
-            byte[] topicNameBytes = encodeStringUtf8(topicName);
-            buf.writeShort(topicNameBytes.length);
-            buf.writeBytes(topicNameBytes, 0, topicNameBytes.length);
+            writeStringUtf8(buf, topicName, utf8Length(topicName));
         }
 
         return buf;
@@ -289,46 +299,51 @@ public class MqttEncoder extends MessageToMessageEncoder<MqttMessage> {
     private static ByteBuf encodePublishMessage(
             ByteBufAllocator byteBufAllocator,
             MqttPublishMessage message) {
-        MqttFixedHeader mqttFixedHeader = message.fixedHeader();
-        MqttPublishVariableHeader variableHeader = message.variableHeader();
-        ByteBuf payload = message.payload().duplicate();
+        ByteBuf payload = message.payload();
+        int payloadBufferSize = payload.readableBytes();
+        ByteBuf buf = encodePublishHeader(byteBufAllocator, message.fixedHeader(), message.variableHeader(),
+                payloadBufferSize, payloadBufferSize);
+        buf.writeBytes(payload, payload.readerIndex(), payloadBufferSize);
+        return buf;
+    }
 
+    private static ByteBuf encodePublishHeader(
+            ByteBufAllocator byteBufAllocator,
+            MqttFixedHeader mqttFixedHeader,
+            MqttPublishVariableHeader variableHeader,
+            int payloadLength,
+            int extraCapacity) {
         String topicName = variableHeader.topicName();
-        byte[] topicNameBytes = encodeStringUtf8(topicName);
+        int topicNameLength = utf8Length(topicName);
 
-        int variableHeaderBufferSize = 2 + topicNameBytes.length +
+        int variableHeaderBufferSize = 2 + topicNameLength +
                 (mqttFixedHeader.qos().value() > 0 ? 2 : 0);
-        int payloadBufferSize = payload.readableBytes();
-        int variablePartSize = variableHeaderBufferSize + payloadBufferSize;
+        int variablePartSize = variableHeaderBufferSize + payloadLength;
         int fixedHeaderBufferSize = 1 + getVariableLengthInt(variablePartSize);
 
-        ByteBuf buf = byteBufAllocator.buffer(fixedHeaderBufferSize + variablePartSize);
+        ByteBuf buf = byteBufAllocator.buffer(fixedHeaderBufferSize + variableHeaderBufferSize + extraCapacity);
         buf.writeByte(getFixedHeaderByte1(mqttFixedHeader));
         writeVariableLengthInt(buf, variablePartSize);
-        buf.writeShort(topicNameBytes.length);
-        buf.writeBytes(topicNameBytes);
+        writeStringUtf8(buf, topicName, topicNameLength);
         if (mqttFixedHeader.qos().value() > 0) {
             buf.writeShort(variableHeader.packetId());
         }
-        buf.writeBytes(payload);
-
         return buf;
     }
 
     private static ByteBuf encodeMessageWithOnlySingleByteFixedHeaderAndPacketId(
             ByteBufAllocator byteBufAllocator,
             MqttMessage message) {
-        MqttFixedHeader mqttFixedHeader = message.fixedHeader();
         MqttPacketIdVariableHeader variableHeader = (MqttPacketIdVariableHeader) message.variableHeader();
-        int msgId = variableHeader.packetId();
-
-        int variableHeaderBufferSize = 2; // variable part only has a message id
-        int fixedHeaderBufferSize = 1 + getVariableLengthInt(variableHeaderBufferSize);
-        ByteBuf buf = byteBufAllocator.buffer(fixedHeaderBufferSize + variableHeaderBufferSize);
-        buf.writeByte(getFixedHeaderByte1(mqttFixedHeader));
-        writeVariableLengthInt(buf, variableHeaderBufferSize);
-        buf.writeShort(msgId);
+        return encodePacketIdFrame(byteBufAllocator, getFixedHeaderByte1(message.fixedHeader()), variableHeader.packetId());
+    }
 
+    private static ByteBuf encodePacketIdFrame(ByteBufAllocator byteBufAllocator, int fixedHeaderByte1, int packetId) {
+        // variable part only has a message id
+        ByteBuf buf = byteBufAllocator.buffer(4);
+        buf.writeByte(fixedHeaderByte1);
+        buf.writeByte(2);
+        buf.writeShort(packetId);
         return buf;
     }
 
@@ -336,6 +351,9 @@ public class MqttEncoder extends MessageToMessageEncoder<MqttMessage> {
             ByteBufAllocator byteBufAllocator,
             MqttMessage message) {
         MqttFixedHeader mqttFixedHeader = message.fixedHeader();
+        if (getFixedHeaderByte1(mqttFixedHeader) == mqttFixedHeader.messageType().value() << 4) {
+            return encodeFixedHeaderOnly(mqttFixedHeader.messageType());
+        }
         ByteBuf buf = byteBufAllocator.buffer(2);
         buf.writeByte(getFixedHeaderByte1(mqttFixedHeader));
         buf.writeByte(0);
@@ -376,8 +394,143 @@ public class MqttEncoder extends MessageToMessageEncoder<MqttMessage> {
         return count;
     }
 
-    private static byte[] encodeStringUtf8(String s) {
-        return s.getBytes(CharsetUtil.UTF_8);
+    /**
+     * Get the UTF-8 encoded length of the string, same as String.getBytes(UTF_8).length
+     * Malformed surrogate is counted as one byte '?'
+     *
+     * @param s String, null as empty
+     * @return Length in bytes
+     */
+    static int utf8Length(String s) {
+        if (s == null) return 0;
+        int length = 0;
+        for (int i = 0, n = s.length(); i < n; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                length += 1;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                length += 1;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Write the string length and the UTF-8 encoded string into the buffer, same bytes as String.getBytes(UTF_8)
+     *
+     * @param buf    Buffer to write to
+     * @param s      String, null as empty
+     * @param length UTF-8 encoded length from {@link #utf8Length(String)}
+     */
+    private static void writeStringUtf8(ByteBuf buf, String s, int length) {
+        buf.writeShort(length);
+        if (s == null) return;
+        buf.ensureWritable(length);
+        int index = buf.writerIndex();
+        for (int i = 0, n = s.length(); i < n; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                buf.setByte(index++, c);
+            } else if (c < 0x800) {
+                buf.setByte(index++, 0xC0 | (c >> 6));
+                buf.setByte(index++, 0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, s.charAt(++i));
+                buf.setByte(index++, 0xF0 | (codePoint >> 18));
+                buf.setByte(index++, 0x80 | ((codePoint >> 12) & 0x3F));
+                buf.setByte(index++, 0x80 | ((codePoint >> 6) & 0x3F));
+                buf.setByte(index++, 0x80 | (codePoint & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                buf.setByte(index++, '?');
+            } else {
+                buf.setByte(index++, 0xE0 | (c >> 12));
+                buf.setByte(index++, 0x80 | ((c >> 6) & 0x3F));
+                buf.setByte(index++, 0x80 | (c & 0x3F));
+            }
+        }
+        buf.writerIndex(index);
+    }
+
+    private static ByteBuf sharedFrame(int... bytes) {
+        ByteBuf buf = Unpooled.directBuffer(bytes.length);
+        for (int b : bytes) {
+            buf.writeByte(b);
+        }
+        return Unpooled.unreleasableBuffer(buf);
+    }
+
+    /**
+     * Encode CONNACK message from the preallocated shared frames
+     *
+     * @param returnCode     Connect Return Code
+     * @param sessionPresent Session Present
+     * @return ByteBuf with encoded bytes, releasing it is a no-op
+     */
+    public static ByteBuf encodeConnAck(MqttConnectReturnCode returnCode, boolean sessionPresent) {
+        return CONNACK_FRAMES[returnCode.ordinal() * 2 + (sessionPresent ? 1 : 0)].duplicate();
+    }
+
+    /**
+     * Encode PINGREQ, PINGRESP or DISCONNECT message from the preallocated shared frames
+     *
+     * @param messageType Message Type
+     * @return ByteBuf with encoded bytes, releasing it is a no-op
+     */
+    public static ByteBuf encodeFixedHeaderOnly(MqttMessageType messageType) {
+        ByteBuf frame = FIXED_HEADER_ONLY_FRAMES[messageType.value()];
+        if (frame == null) {
+            throw new IllegalArgumentException("Message type " + messageType + " has more than fixed header");
+        }
+        return frame.duplicate();
+    }
+
+    /**
+     * Encode PUBACK, PUBREC, PUBREL, PUBCOMP or UNSUBACK message, without creating the message first
+     *
+     * @param byteBufAllocator Allocates ByteBuf
+     * @param messageType      Message Type
+     * @param packetId         Packet Id
+     * @return ByteBuf with encoded bytes
+     */
+    public static ByteBuf encodePacketId(ByteBufAllocator byteBufAllocator, MqttMessageType messageType, int packetId) {
+        // PUBREL has qos 1 according to the protocol
+        int qos = messageType == MqttMessageType.PUBREL ? MqttQoS.AT_LEAST_ONCE.value() : MqttQoS.AT_MOST_ONCE.value();
+        return encodePacketIdFrame(byteBufAllocator, messageType.value() << 4 | qos << 1, packetId);
+    }
+
+    /**
+     * Encode PUBLISH message's fixed header and variable header only, the payload is written separately
+     * Used to stream large payloads without buffering them
+     *
+     * @param byteBufAllocator Allocates ByteBuf
+     * @param mqttFixedHeader  PUBLISH message's fixed header
+     * @param variableHeader   PUBLISH message's variable header
+     * @param payloadLength    Length of the payload which will follow
+     * @return ByteBuf with encoded bytes
+     */
+    public static ByteBuf encodePublishHeader(ByteBufAllocator byteBufAllocator, MqttFixedHeader mqttFixedHeader,
+                                              MqttPublishVariableHeader variableHeader, int payloadLength) {
+        return encodePublishHeader(byteBufAllocator, mqttFixedHeader, variableHeader, payloadLength, 0);
+    }
+
+    /**
+     * Encode MQTT message outside of the pipeline
+     * The encoded bytes can be written to the channel directly, the encoder will pass them through
+     *
+     * @param byteBufAllocator Allocates ByteBuf
+     * @param msg              MQTT message to encode
+     * @return ByteBuf with encoded bytes
+     */
+    public static ByteBuf encode(ByteBufAllocator byteBufAllocator, MqttMessage msg) {
+        Mqtts.sanitize(msg);    // sanitize message
+        return doEncode(byteBufAllocator, msg);
     }
 
     @Override
@@ -30,6 +30,10 @@ public class MqttFixedHeader {
     protected boolean retain;
     protected int remainingLength;
 
+    // Used by json deserialization, fields are set directly
+    protected MqttFixedHeader() {
+    }
+
     public MqttFixedHeader(
             MqttMessageType messageType,
             boolean dup,
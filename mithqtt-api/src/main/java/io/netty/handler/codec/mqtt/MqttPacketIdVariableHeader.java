@@ -26,6 +26,10 @@ public final class MqttPacketIdVariableHeader {
 
     protected int packetId;
 
+    // Used by json deserialization, fields are set directly
+    private MqttPacketIdVariableHeader() {
+    }
+
     private MqttPacketIdVariableHeader(int packetId) {
         this.packetId = packetId;
     }
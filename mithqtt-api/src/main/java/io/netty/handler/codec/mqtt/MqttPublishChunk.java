@@ -0,0 +1,56 @@
+package io.netty.handler.codec.mqtt;
+
+import io.netty.buffer.ByteBuf;
+
+/**
+ * Part of a streamed PUBLISH message's payload
+ * <p>
+ * Large PUBLISH messages may be decoded as a sequence of chunks instead of being fully buffered, see
+ * {@link MqttDecoder}. Every chunk carries the fixed header and variable header of the message, its content is the
+ * part of the payload received so far.
+ */
+public class MqttPublishChunk extends MqttPublishMessage {
+
+    private final int payloadLength;
+    private final boolean first;
+    private final boolean last;
+
+    public MqttPublishChunk(
+            MqttFixedHeader mqttFixedHeader,
+            MqttPublishVariableHeader variableHeader,
+            ByteBuf content,
+            int payloadLength,
+            boolean first,
+            boolean last) {
+        super(mqttFixedHeader, variableHeader, content);
+        this.payloadLength = payloadLength;
+        this.first = first;
+        this.last = last;
+    }
+
+    /**
+     * @return length of the whole payload in bytes
+     */
+    public int payloadLength() {
+        return payloadLength;
+    }
+
+    /**
+     * @return true if this is the first chunk of the message
+     */
+    public boolean isFirst() {
+        return first;
+    }
+
+    /**
+     * @return true if this is the last chunk of the message
+     */
+    public boolean isLast() {
+        return last;
+    }
+
+    @Override
+    public MqttPublishChunk replace(ByteBuf content) {
+        return new MqttPublishChunk(fixedHeader(), variableHeader(), content, payloadLength, first, last);
+    }
+}
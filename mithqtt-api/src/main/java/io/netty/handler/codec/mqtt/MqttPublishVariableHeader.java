@@ -26,6 +26,10 @@ public class MqttPublishVariableHeader {
     protected String topicName;
     protected int packetId;
 
+    // Used by json deserialization, fields are set directly
+    protected MqttPublishVariableHeader() {
+    }
+
     private MqttPublishVariableHeader(String topicName, int packetId) {
         this.topicName = topicName;
         this.packetId = packetId;
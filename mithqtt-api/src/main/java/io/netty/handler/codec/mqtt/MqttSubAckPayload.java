@@ -30,6 +30,10 @@ public class MqttSubAckPayload {
 
     protected List<MqttGrantedQoS> grantedQoSLevels;
 
+    // Used by json deserialization, fields are set directly
+    protected MqttSubAckPayload() {
+    }
+
     public MqttSubAckPayload(MqttGrantedQoS... grantedQoSLevels) {
         if (grantedQoSLevels == null) {
             throw new IllegalArgumentException("Empty grantedQoSLevels");
@@ -29,6 +29,10 @@ public class MqttUnsubscribePayload {
 
     protected List<String> topics;
 
+    // Used by json deserialization, fields are set directly
+    protected MqttUnsubscribePayload() {
+    }
+
     public MqttUnsubscribePayload(List<String> topics) {
         this.topics = Collections.unmodifiableList(topics);
     }
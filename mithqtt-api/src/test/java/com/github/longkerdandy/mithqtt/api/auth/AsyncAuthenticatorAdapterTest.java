@@ -0,0 +1,116 @@
+package com.github.longkerdandy.mithqtt.api.auth;
+
+import io.netty.handler.codec.mqtt.MqttGrantedQoS;
+import io.netty.handler.codec.mqtt.MqttTopicSubscription;
+import org.apache.commons.configuration.AbstractConfiguration;
+import org.apache.commons.configuration.MapConfiguration;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Asynchronous Authenticator Adapter Test
+ */
+public class AsyncAuthenticatorAdapterTest {
+
+    @Test
+    public void loadTest() throws Exception {
+        assert AsyncAuthenticatorAdapter.load(BlockingAuthenticator.class.getName()) instanceof AsyncAuthenticatorAdapter;
+    }
+
+    @Test
+    public void rejectTest() throws Exception {
+        BlockingAuthenticator authenticator = new BlockingAuthenticator();
+        Map<String, Object> map = new HashMap<>();
+        map.put("authenticator.async.threads", 1);
+        map.put("authenticator.async.queue", 1);
+        AsyncAuthenticatorAdapter adapter = new AsyncAuthenticatorAdapter(authenticator);
+        adapter.init(new MapConfiguration(map));
+
+        // one running, one queued, the third is rejected without blocking the caller
+        CompletableFuture<AuthorizeResult> running = adapter.authPublish("client1", "user1", "a/b", 1, false);
+        authenticator.started.await();
+        CompletableFuture<AuthorizeResult> queued = adapter.authPublish("client1", "user1", "a/b", 1, false);
+        CompletableFuture<AuthorizeResult> rejected = adapter.authPublish("client1", "user1", "a/b", 1, false);
+        assert rejected.isCompletedExceptionally();
+        try {
+            rejected.join();
+            assert false;
+        } catch (CompletionException e) {
+            assert e.getCause() instanceof RejectedExecutionException;
+        }
+
+        authenticator.latch.countDown();
+        assert running.get() == AuthorizeResult.OK;
+        assert queued.get() == AuthorizeResult.OK;
+
+        adapter.destroy();
+    }
+
+    @Test
+    public void inlineTest() throws Exception {
+        BlockingAuthenticator authenticator = new BlockingAuthenticator();
+        Map<String, Object> map = new HashMap<>();
+        map.put("authenticator.async.threads", 0);
+        AsyncAuthenticatorAdapter adapter = new AsyncAuthenticatorAdapter(authenticator);
+        adapter.init(new MapConfiguration(map));
+
+        // run on the caller thread, completed when returned
+        CompletableFuture<AuthorizeResult> connect = adapter.authConnect("client1", "user1", "password");
+        assert connect.isDone();
+        assert connect.get() == AuthorizeResult.OK;
+
+        // failure on the caller thread is returned as a failed future
+        CompletableFuture<String> oauth = adapter.oauth(null);
+        assert oauth.isCompletedExceptionally();
+
+        adapter.destroy();
+    }
+
+    public static class BlockingAuthenticator implements Authenticator {
+
+        private final CountDownLatch started = new CountDownLatch(1);
+        private final CountDownLatch latch = new CountDownLatch(1);
+
+        @Override
+        public void init(AbstractConfiguration config) {
+        }
+
+        @Override
+        public void destroy() {
+        }
+
+        @Override
+        public AuthorizeResult authConnect(String clientId, String userName, String password) {
+            return AuthorizeResult.OK;
+        }
+
+        @Override
+        public AuthorizeResult authPublish(String clientId, String userName, String topicName, int qos, boolean retain) {
+            this.started.countDown();
+            try {
+                this.latch.await();
+            } catch (InterruptedException e) {
+                return AuthorizeResult.FORBIDDEN;
+            }
+            return AuthorizeResult.OK;
+        }
+
+        @Override
+        public List<MqttGrantedQoS> authSubscribe(String clientId, String userName, List<MqttTopicSubscription> requestSubscriptions) {
+            return null;
+        }
+
+        @Override
+        public String oauth(String credentials) {
+            if (credentials == null) throw new IllegalArgumentException();
+            return null;
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package com.github.longkerdandy.mithqtt.api.auth;
+
+import io.netty.handler.codec.mqtt.MqttGrantedQoS;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import io.netty.handler.codec.mqtt.MqttTopicSubscription;
+import org.apache.commons.configuration.AbstractConfiguration;
+import org.apache.commons.configuration.MapConfiguration;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Caching Authenticator Test
+ */
+public class CachingAuthenticatorTest {
+
+    private static CachingAuthenticator caching(CountingAuthenticator authenticator, long ttl, long negativeTtl, int maxSize) {
+        Map<String, Object> map = new HashMap<>();
+        map.put("authenticator.cache.ttl", ttl);
+        map.put("authenticator.cache.negativeTtl", negativeTtl);
+        map.put("authenticator.cache.maxSize", maxSize);
+        CachingAuthenticator caching = new CachingAuthenticator(authenticator);
+        caching.init(new MapConfiguration(map));
+        return caching;
+    }
+
+    @Test
+    public void publishTest() {
+        CountingAuthenticator authenticator = new CountingAuthenticator();
+        CachingAuthenticator caching = caching(authenticator, 60000, 60000, 1000);
+
+        assert caching.authPublish("client1", "user1", "a/b", 1, false).join() == AuthorizeResult.OK;
+        assert caching.authPublish("client1", "user1", "a/b", 1, false).join() == AuthorizeResult.OK;
+        assert authenticator.calls == 1;
+
+        // different qos or retain is a different decision
+        assert caching.authPublish("client1", "user1", "a/b", 1, true).join() == AuthorizeResult.OK;
+        assert caching.authPublish("client1", "user1", "a/b", 0, false).join() == AuthorizeResult.OK;
+        assert authenticator.calls == 3;
+
+        // denied decisions are cached too
+        assert caching.authPublish("client1", "user1", "denied", 1, false).join() == AuthorizeResult.FORBIDDEN;
+        assert caching.authPublish("client1", "user1", "denied", 1, false).join() == AuthorizeResult.FORBIDDEN;
+        assert authenticator.calls == 4;
+
+        caching.invalidate("user2");
+        caching.authPublish("client1", "user1", "a/b", 1, false).join();
+        assert authenticator.calls == 4;
+
+        caching.invalidate("user1");
+        caching.authPublish("client1", "user1", "a/b", 1, false).join();
+        assert authenticator.calls == 5;
+
+        caching.invalidateAll();
+        assert caching.size() == 0;
+    }
+
+    @Test
+    public void negativeTtlTest() {
+        CountingAuthenticator authenticator = new CountingAuthenticator();
+        CachingAuthenticator caching = caching(authenticator, 60000, 0, 1000);
+
+        caching.authPublish("client1", "user1", "denied", 1, false).join();
+        caching.authPublish("client1", "user1", "denied", 1, false).join();
+        assert authenticator.calls == 2;
+    }
+
+    @Test
+    public void subscribeTest() {
+        CountingAuthenticator authenticator = new CountingAuthenticator();
+        CachingAuthenticator caching = caching(authenticator, 60000, 60000, 1000);
+
+        List<MqttGrantedQoS> granted = caching.authSubscribe("client1", "user1", Arrays.asList(
+                new MqttTopicSubscription("a/#", MqttQoS.AT_LEAST_ONCE),
+                new MqttTopicSubscription("denied", MqttQoS.AT_LEAST_ONCE))).join();
+        assert granted.equals(Arrays.asList(MqttGrantedQoS.AT_LEAST_ONCE, MqttGrantedQoS.NOT_GRANTED));
+        assert authenticator.subscriptions == 2;
+
+        // only the missed subscription goes to the authenticator, in the requested order
+        granted = caching.authSubscribe("client1", "user1", Arrays.asList(
+                new MqttTopicSubscription("b/+", MqttQoS.EXACTLY_ONCE),
+                new MqttTopicSubscription("denied", MqttQoS.AT_LEAST_ONCE),
+                new MqttTopicSubscription("a/#", MqttQoS.AT_LEAST_ONCE))).join();
+        assert granted.equals(Arrays.asList(MqttGrantedQoS.EXACTLY_ONCE, MqttGrantedQoS.NOT_GRANTED, MqttGrantedQoS.AT_LEAST_ONCE));
+        assert authenticator.subscriptions == 3;
+    }
+
+    @Test
+    public void maxSizeTest() {
+        CountingAuthenticator authenticator = new CountingAuthenticator();
+        CachingAuthenticator caching = caching(authenticator, 60000, 60000, 100);
+
+        for (int i = 0; i < 1000; i++) {
+            caching.authPublish("client1", "user1", "a/" + i, 1, false).join();
+            assert caching.size() <= 100;
+        }
+    }
+
+    private static class CountingAuthenticator implements AsyncAuthenticator {
+
+        private int calls;
+        private int subscriptions;
+
+        @Override
+        public void init(AbstractConfiguration config) {
+        }
+
+        @Override
+        public void destroy() {
+        }
+
+        @Override
+        public CompletableFuture<AuthorizeResult> authConnect(String clientId, String userName, String password) {
+            return CompletableFuture.completedFuture(AuthorizeResult.OK);
+        }
+
+        @Override
+        public CompletableFuture<AuthorizeResult> authPublish(String clientId, String userName, String topicName, int qos, boolean retain) {
+            this.calls++;
+            return CompletableFuture.completedFuture(topicName.equals("denied") ? AuthorizeResult.FORBIDDEN : AuthorizeResult.OK);
+        }
+
+        @Override
+        public CompletableFuture<List<MqttGrantedQoS>> authSubscribe(String clientId, String userName, List<MqttTopicSubscription> requestSubscriptions) {
+            List<MqttGrantedQoS> r = new ArrayList<>();
+            requestSubscriptions.forEach(subscription -> {
+                this.subscriptions++;
+                if (subscription.topic().equals("denied")) r.add(MqttGrantedQoS.NOT_GRANTED);
+                else r.add(MqttGrantedQoS.valueOf(subscription.requestedQos().value()));
+            });
+            return CompletableFuture.completedFuture(r);
+        }
+
+        @Override
+        public CompletableFuture<String> oauth(String credentials) {
+            return CompletableFuture.completedFuture(null);
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package com.github.longkerdandy.mithqtt.util;
+
+import org.junit.Test;
+
+/**
+ * Histogram Test
+ */
+public class HistogramTest {
+
+    @Test
+    public void bucketTest() {
+        // small values are exact
+        for (int i = 0; i < 8; i++) {
+            assert Histogram.upperBound(Histogram.index(i)) == i;
+        }
+        // bucket upper bound within 12.5% of the value
+        for (long v = 8; v > 0 && v < Long.MAX_VALUE / 3; v = v * 3 + 1) {
+            long upper = Histogram.upperBound(Histogram.index(v));
+            assert upper >= v;
+            assert upper - v <= v / 8;
+        }
+        assert Histogram.upperBound(Histogram.index(Long.MAX_VALUE)) == Long.MAX_VALUE;
+    }
+
+    @Test
+    public void percentileTest() {
+        Histogram histogram = new Histogram();
+        assert histogram.percentile(99) == 0;
+        assert histogram.mean() == 0;
+
+        for (int i = 1; i <= 1000; i++) histogram.record(i);
+        histogram.record(-1);
+        assert histogram.count() == 1001;
+        assert histogram.sum() == 500500;
+        assert histogram.max() == 1000;
+
+        long p50 = histogram.percentile(50);
+        assert p50 >= 500 && p50 <= 500 * 9 / 8;
+        long p99 = histogram.percentile(99);
+        assert p99 >= 990 && p99 <= 1000;
+        assert histogram.percentile(100) == 1000;
+    }
+}
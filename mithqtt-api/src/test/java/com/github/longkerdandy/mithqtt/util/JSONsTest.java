@@ -0,0 +1,164 @@
+package com.github.longkerdandy.mithqtt.util;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.github.longkerdandy.mithqtt.api.message.*;
+import io.netty.handler.codec.mqtt.*;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static com.github.longkerdandy.mithqtt.util.JSONs.Mapper;
+
+/**
+ * JSON Utils Test
+ */
+public class JSONsTest {
+
+    private static Message message(MqttMessageType type, MqttQoS qos, Object variableHeader, Object payload) {
+        return new Message<>(
+                new MqttFixedHeader(type, false, qos, false, 0),
+                new MqttAdditionalHeader(MqttVersion.MQTT_3_1_1, "client1", "user1", "broker1"),
+                variableHeader, payload);
+    }
+
+    // one message of each type the decoder knows
+    private static List<Message> messages() {
+        List<Message> messages = new ArrayList<>();
+        messages.add(message(MqttMessageType.CONNECT, MqttQoS.AT_MOST_ONCE,
+                new MqttConnectVariableHeader("MQTT", 4, true, true, true, MqttQoS.AT_LEAST_ONCE, true, false, 60),
+                new MqttConnectPayload("client1", "will/topic", "bye", "user1", "password")));
+        messages.add(message(MqttMessageType.CONNACK, MqttQoS.AT_MOST_ONCE,
+                new MqttConnAckVariableHeader(MqttConnectReturnCode.CONNECTION_ACCEPTED, true), null));
+        messages.add(message(MqttMessageType.SUBSCRIBE, MqttQoS.AT_LEAST_ONCE,
+                MqttPacketIdVariableHeader.from(1),
+                new MqttSubscribePayloadGranted(Arrays.asList(
+                        new MqttTopicSubscriptionGranted("a/+", MqttGrantedQoS.AT_LEAST_ONCE),
+                        new MqttTopicSubscriptionGranted("b/#", MqttGrantedQoS.NOT_GRANTED)))));
+        messages.add(message(MqttMessageType.SUBACK, MqttQoS.AT_MOST_ONCE,
+                MqttPacketIdVariableHeader.from(2),
+                new MqttSubAckPayload(MqttGrantedQoS.EXACTLY_ONCE, MqttGrantedQoS.NOT_GRANTED)));
+        messages.add(message(MqttMessageType.UNSUBSCRIBE, MqttQoS.AT_LEAST_ONCE,
+                MqttPacketIdVariableHeader.from(3),
+                new MqttUnsubscribePayload(Arrays.asList("a/+", "b/#"))));
+        messages.add(message(MqttMessageType.UNSUBACK, MqttQoS.AT_MOST_ONCE, MqttPacketIdVariableHeader.from(4), null));
+        messages.add(message(MqttMessageType.PUBLISH, MqttQoS.EXACTLY_ONCE,
+                MqttPublishVariableHeader.from("a/b/c", 5),
+                new MqttPublishPayload(new byte[]{0, 1, 2, (byte) 0xFF})));
+        messages.add(message(MqttMessageType.PUBACK, MqttQoS.AT_MOST_ONCE, MqttPacketIdVariableHeader.from(6), null));
+        messages.add(message(MqttMessageType.PUBREC, MqttQoS.AT_MOST_ONCE, MqttPacketIdVariableHeader.from(7), null));
+        messages.add(message(MqttMessageType.PUBREL, MqttQoS.AT_LEAST_ONCE, MqttPacketIdVariableHeader.from(8), null));
+        messages.add(message(MqttMessageType.PUBCOMP, MqttQoS.AT_MOST_ONCE, MqttPacketIdVariableHeader.from(9), null));
+        messages.add(message(MqttMessageType.PINGREQ, MqttQoS.AT_MOST_ONCE, null, null));
+        messages.add(message(MqttMessageType.PINGRESP, MqttQoS.AT_MOST_ONCE, null, null));
+        messages.add(message(MqttMessageType.DISCONNECT, MqttQoS.AT_MOST_ONCE, null, null));
+        return messages;
+    }
+
+    // decoded message encodes to the same json as the original one
+    private static void assertSame(Message expected, Message actual) {
+        assert actual != null;
+        assert actual.fixedHeader().messageType() == expected.fixedHeader().messageType();
+        assert Mapper.valueToTree(actual).equals(Mapper.valueToTree(expected));
+    }
+
+    @Test
+    public void roundTripTest() throws IOException {
+        for (Message message : messages()) {
+            JsonNode json = Mapper.valueToTree(message);
+            // fields are encoded, not just an empty object
+            assert json.path("fixedHeader").path("messageType").asText().equals(message.fixedHeader().messageType().name());
+            assert json.path("additionalHeader").path("clientId").asText().equals("client1");
+            assert json.has("variableHeader") == (message.variableHeader() != null);
+            assert json.has("payload") == (message.payload() != null);
+
+            assertSame(message, JSONs.decodeMessage(Mapper.writeValueAsBytes(message)));
+        }
+
+        Message publish = JSONs.decodeMessage(Mapper.writeValueAsBytes(messages().get(6)));
+        assert ((MqttPublishVariableHeader) publish.variableHeader()).topicName().equals("a/b/c");
+        assert ((MqttPublishVariableHeader) publish.variableHeader()).packetId() == 5;
+        assert Arrays.equals(((MqttPublishPayload) publish.payload()).bytes(), new byte[]{0, 1, 2, (byte) 0xFF});
+        assert publish.fixedHeader().qos() == MqttQoS.EXACTLY_ONCE;
+        assert publish.additionalHeader().brokerId().equals("broker1");
+
+        Message subscribe = JSONs.decodeMessage(Mapper.writeValueAsBytes(messages().get(2)));
+        List<MqttTopicSubscriptionGranted> subscriptions = ((MqttSubscribePayloadGranted) subscribe.payload()).subscriptions();
+        assert subscriptions.size() == 2;
+        assert subscriptions.get(1).topic().equals("b/#");
+        assert subscriptions.get(1).grantedQos() == MqttGrantedQoS.NOT_GRANTED;
+    }
+
+    @Test
+    public void outOfOrderTest() throws IOException {
+        for (Message message : messages()) {
+            ObjectNode json = Mapper.valueToTree(message);
+            // variable header and payload before the fixed header, unknown fields skipped
+            ObjectNode reordered = Mapper.createObjectNode();
+            if (json.has("payload")) reordered.set("payload", json.get("payload"));
+            reordered.putObject("unknown").putArray("nested").add(1);
+            if (json.has("variableHeader")) reordered.set("variableHeader", json.get("variableHeader"));
+            reordered.set("additionalHeader", json.get("additionalHeader"));
+            reordered.set("fixedHeader", json.get("fixedHeader"));
+
+            assertSame(message, JSONs.decodeMessage(Mapper.writeValueAsBytes(reordered)));
+        }
+    }
+
+    @Test
+    public void unknownTypeTest() throws IOException {
+        ObjectNode json = Mapper.valueToTree(messages().get(0));
+        ((ObjectNode) json.get("fixedHeader")).put("messageType", "AUTH");
+        try {
+            JSONs.decodeMessage(Mapper.writeValueAsBytes(json));
+            assert false;
+        } catch (IOException ignored) {
+            // unknown enum value
+        }
+
+        json = Mapper.valueToTree(messages().get(0));
+        json.remove("fixedHeader");
+        assert JSONs.decodeMessage(Mapper.writeValueAsBytes(json)) == null;
+    }
+
+    @Test
+    public void decodeMessagesTest() throws IOException {
+        List<Message> messages = messages();
+
+        // single message as it is
+        List<Message> decoded = JSONs.decodeMessages(Mapper.writeValueAsBytes(messages.get(6)));
+        assert decoded.size() == 1;
+        assertSame(messages.get(6), decoded.get(0));
+
+        // array of one
+        decoded = JSONs.decodeMessages(Mapper.writeValueAsBytes(Collections.singletonList(messages.get(6))));
+        assert decoded.size() == 1;
+        assertSame(messages.get(6), decoded.get(0));
+
+        // array of many, in order
+        decoded = JSONs.decodeMessages(Mapper.writeValueAsBytes(messages));
+        assert decoded.size() == messages.size();
+        for (int i = 0; i < messages.size(); i++) assertSame(messages.get(i), decoded.get(i));
+
+        // messages without the fixed header are skipped
+        ArrayNode array = Mapper.valueToTree(messages.subList(0, 3));
+        ((ObjectNode) array.get(1)).remove("fixedHeader");
+        decoded = JSONs.decodeMessages(Mapper.writeValueAsBytes(array));
+        assert decoded.size() == 2;
+        assertSame(messages.get(0), decoded.get(0));
+        assertSame(messages.get(2), decoded.get(1));
+
+        assert JSONs.decodeMessages("[]".getBytes()).isEmpty();
+        try {
+            JSONs.decodeMessages("1".getBytes());
+            assert false;
+        } catch (IOException ignored) {
+            // neither object nor array
+        }
+    }
+}
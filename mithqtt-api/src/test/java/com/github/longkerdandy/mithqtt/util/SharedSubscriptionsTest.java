@@ -0,0 +1,80 @@
+package com.github.longkerdandy.mithqtt.util;
+
+import io.netty.handler.codec.mqtt.MqttQoS;
+import io.netty.handler.codec.mqtt.MqttTopicSubscription;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Shared Subscriptions Test
+ */
+public class SharedSubscriptionsTest {
+
+    @Test
+    public void validTest() {
+        assert SharedSubscriptions.isValid("a/b");
+        assert SharedSubscriptions.isValid("$share/group/a/+");
+        assert SharedSubscriptions.isValid("$share/group/#");
+        assert !SharedSubscriptions.isValid("$share/group");
+        assert !SharedSubscriptions.isValid("$share/group/");
+        assert !SharedSubscriptions.isValid("$share//a/b");
+        assert !SharedSubscriptions.isValid("$share/gr+oup/a/b");
+    }
+
+    @Test
+    public void levelsTest() {
+        List<String> levels = Topics.sanitize("$share/group/a/+");
+        assert SharedSubscriptions.isShared(levels);
+        assert SharedSubscriptions.group(levels).equals("group");
+        assert SharedSubscriptions.filter(levels).equals(Topics.sanitize("a/+"));
+
+        levels = Topics.sanitize("$share/group//a");
+        assert SharedSubscriptions.filter(levels).equals(Topics.sanitize("/a"));
+
+        assert !SharedSubscriptions.isShared(Topics.sanitize("$SYS/a/b"));
+
+        assert SharedSubscriptions.filter("$share/group/a/+").equals("a/+");
+        assert SharedSubscriptions.filter("$share/group//a").equals("/a");
+        assert SharedSubscriptions.filter("a/+").equals("a/+");
+    }
+
+    @Test
+    public void authorizableTest() {
+        List<MqttTopicSubscription> subscriptions = Arrays.asList(
+                new MqttTopicSubscription("a/b", MqttQoS.AT_LEAST_ONCE),
+                new MqttTopicSubscription("$share/group/c/#", MqttQoS.EXACTLY_ONCE));
+        List<MqttTopicSubscription> authorizable = SharedSubscriptions.authorizable(subscriptions);
+        assert authorizable.size() == 2;
+        assert authorizable.get(0).topic().equals("a/b");
+        assert authorizable.get(1).topic().equals("c/#");
+        assert authorizable.get(1).requestedQos() == MqttQoS.EXACTLY_ONCE;
+
+        subscriptions = Collections.singletonList(new MqttTopicSubscription("a/b", MqttQoS.AT_LEAST_ONCE));
+        assert SharedSubscriptions.authorizable(subscriptions) == subscriptions;
+    }
+
+    @Test
+    public void splitTest() {
+        Map<String, MqttQoS> subscriptions = new HashMap<>();
+        subscriptions.put("client1", MqttQoS.AT_LEAST_ONCE);
+        subscriptions.put(SharedSubscriptions.member(Topics.sanitize("$share/g1/a/+"), "client2"), MqttQoS.AT_MOST_ONCE);
+        subscriptions.put(SharedSubscriptions.member(Topics.sanitize("$share/g1/a/+"), "client3"), MqttQoS.EXACTLY_ONCE);
+        subscriptions.put(SharedSubscriptions.member(Topics.sanitize("$share/g2/a/+"), "client1"), MqttQoS.AT_LEAST_ONCE);
+        // same group name with another topic filter is another share
+        subscriptions.put(SharedSubscriptions.member(Topics.sanitize("$share/g1/a/#"), "client4"), MqttQoS.AT_LEAST_ONCE);
+
+        Map<String, Map<String, MqttQoS>> groups = SharedSubscriptions.split(subscriptions);
+        assert subscriptions.size() == 1 && subscriptions.get("client1") == MqttQoS.AT_LEAST_ONCE;
+        assert groups.size() == 3;
+        assert groups.get("g1/a/+").keySet().equals(new TreeSet<>(Arrays.asList("client2", "client3")));
+        assert groups.get("g1/a/+").get("client3") == MqttQoS.EXACTLY_ONCE;
+        assert groups.get("g2/a/+").get("client1") == MqttQoS.AT_LEAST_ONCE;
+        assert groups.get("g1/a/#").keySet().equals(Collections.singleton("client4"));
+    }
+}
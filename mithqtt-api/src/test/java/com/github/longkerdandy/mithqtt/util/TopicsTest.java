@@ -3,6 +3,7 @@ package com.github.longkerdandy.mithqtt.util;
 import org.junit.Test;
 
 import java.util.Arrays;
+import java.util.List;
 
 import static com.github.longkerdandy.mithqtt.util.Topics.EMPTY;
 import static com.github.longkerdandy.mithqtt.util.Topics.END;
@@ -81,6 +82,25 @@ public class TopicsTest {
         assert Arrays.equals(Topics.sanitizeTopicName("/abc/def//g/h").toArray(), new String[]{EMPTY, "abc", "def", EMPTY, "g", "h", END});
     }
 
+    @Test
+    public void sanitizeTopicNameCacheTest() {
+        List<String> levels = Topics.sanitizeTopicName("abc/def/g/h");
+        assert levels == Topics.sanitizeTopicName(new String("abc/def/g/h"));
+        assert levels.equals(Arrays.asList("abc", "def", "g", "h", END));
+        assert Arrays.asList("abc", "def", "g", "h", END).equals(levels);
+        assert levels.hashCode() == Arrays.asList("abc", "def", "g", "h", END).hashCode();
+        assert TopicLevels.join(levels).equals("abc/def/g/h/" + END);
+        assert TopicLevels.join(Arrays.asList("abc", "def", "g", "h", END)).equals(TopicLevels.join(levels));
+
+        // levels are interned
+        assert Topics.sanitizeTopicName("abc/x").get(0) == levels.get(0);
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void sanitizeTopicNameImmutableTest() {
+        Topics.sanitizeTopicName("abc/def/g/h").add("i");
+    }
+
     @Test
     public void sanitizeTest() {
         assert Arrays.equals(Topics.sanitize("abc/+/g/h").toArray(), new String[]{"abc", "+", "g", "h", END});
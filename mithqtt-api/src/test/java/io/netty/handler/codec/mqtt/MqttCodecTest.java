@@ -18,9 +18,11 @@ package io.netty.handler.codec.mqtt;
 
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.Unpooled;
 import io.netty.buffer.UnpooledByteBufAllocator;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.embedded.EmbeddedChannel;
 import io.netty.util.CharsetUtil;
 import org.easymock.Mock;
 import org.junit.Before;
@@ -415,6 +417,96 @@ public class MqttCodecTest {
         testMessageWithOnlyFixedHeader(MqttMessageType.DISCONNECT);
     }
 
+    @Test
+    public void testUtf8Encoding() throws Exception {
+        for (String s : new String[]{"", "a/b/c", "été/中文", "emoji/😀", "bad/\ud83d/\ude00"}) {
+            assertEquals(s.getBytes(CharsetUtil.UTF_8).length, MqttEncoder.utf8Length(s));
+
+            MqttPublishMessage message = new MqttPublishMessage(
+                    new MqttFixedHeader(MqttMessageType.PUBLISH, false, MqttQoS.AT_MOST_ONCE, false, 0),
+                    MqttPublishVariableHeader.from(s),
+                    ALLOCATOR.buffer());
+            ByteBuf byteBuf = MqttEncoder.doEncode(ALLOCATOR, message);
+            byte[] expected = s.getBytes(CharsetUtil.UTF_8);
+            byte[] actual = new byte[byteBuf.getUnsignedShort(2)];
+            byteBuf.getBytes(4, actual);
+            assertArrayEquals(expected, actual);
+        }
+    }
+
+    @Test
+    public void testSharedFrames() throws Exception {
+        ByteBuf connAck = MqttEncoder.encodeConnAck(MqttConnectReturnCode.CONNECTION_REFUSED_NOT_AUTHORIZED, true);
+        assertEquals(0x20, connAck.getByte(0));
+        assertEquals(2, connAck.getByte(1));
+        assertEquals(1, connAck.getByte(2));
+        assertEquals(5, connAck.getByte(3));
+        connAck.readByte();
+        connAck.release();
+
+        // shared frame is not consumed by the reader of another copy
+        assertEquals(4, MqttEncoder.encodeConnAck(MqttConnectReturnCode.CONNECTION_REFUSED_NOT_AUTHORIZED, true).readableBytes());
+
+        ByteBuf pingResp = MqttEncoder.encodeFixedHeaderOnly(MqttMessageType.PINGRESP);
+        assertEquals(0xD0, pingResp.getUnsignedByte(0));
+        assertEquals(0, pingResp.getByte(1));
+
+        ByteBuf pubRel = MqttEncoder.encodePacketId(ALLOCATOR, MqttMessageType.PUBREL, 12345);
+        final List<Object> out = new LinkedList<>();
+        mqttDecoder.decode(ctx, pubRel, out);
+        final MqttMessage decodedMessage = (MqttMessage) out.get(0);
+        assertEquals(MqttMessageType.PUBREL, decodedMessage.fixedHeader().messageType());
+        assertEquals(MqttQoS.AT_LEAST_ONCE, decodedMessage.fixedHeader().qos());
+        assertEquals(12345, ((MqttPacketIdVariableHeader) decodedMessage.variableHeader()).packetId());
+    }
+
+    @Test
+    public void testStreamedPublishMessage() throws Exception {
+        byte[] payload = new byte[10000];
+        for (int i = 0; i < payload.length; i++) payload[i] = (byte) i;
+        MqttPublishMessage message = new MqttPublishMessage(
+                new MqttFixedHeader(MqttMessageType.PUBLISH, false, MqttQoS.AT_MOST_ONCE, false, 0),
+                MqttPublishVariableHeader.from("a/b/c"),
+                Unpooled.wrappedBuffer(payload));
+        ByteBuf byteBuf = MqttEncoder.doEncode(ALLOCATOR, message);
+
+        // header encoded separately is the same as the one of the whole message
+        ByteBuf header = MqttEncoder.encodePublishHeader(ALLOCATOR, message.fixedHeader(), message.variableHeader(), payload.length);
+        assertEquals(header, byteBuf.slice(0, header.readableBytes()));
+
+        // larger than the max message size, but streamed
+        EmbeddedChannel channel = new EmbeddedChannel(new MqttDecoder(1000, 1000));
+        for (int i = 0; i < byteBuf.readableBytes(); i += 1500) {
+            channel.writeInbound(byteBuf.retainedSlice(i, Math.min(1500, byteBuf.readableBytes() - i)));
+        }
+        byteBuf.release();
+
+        ByteBuf received = Unpooled.buffer();
+        MqttPublishChunk chunk;
+        boolean first = true;
+        boolean last = false;
+        while ((chunk = channel.readInbound()) != null) {
+            assertEquals(first, chunk.isFirst());
+            assertEquals("a/b/c", chunk.variableHeader().topicName());
+            assertEquals(payload.length, chunk.payloadLength());
+            received.writeBytes(chunk.content());
+            last = chunk.isLast();
+            chunk.release();
+            first = false;
+        }
+        assert last;
+        assertEquals(Unpooled.wrappedBuffer(payload), received);
+
+        // not streamed message is still limited
+        channel.writeInbound(MqttEncoder.doEncode(ALLOCATOR, new MqttPublishMessage(
+                new MqttFixedHeader(MqttMessageType.PUBLISH, false, MqttQoS.AT_LEAST_ONCE, false, 0),
+                MqttPublishVariableHeader.from("a/b/c", 1),
+                Unpooled.wrappedBuffer(payload))));
+        MqttMessage invalid = channel.readInbound();
+        assert invalid.decoderResult().isFailure();
+        channel.finish();
+    }
+
     private void testMessageWithOnlyFixedHeader(MqttMessageType messageType) throws Exception {
         MqttMessage message = createMessageWithFixedHeader(messageType);
         ByteBuf byteBuf = MqttEncoder.doEncode(ALLOCATOR, message);
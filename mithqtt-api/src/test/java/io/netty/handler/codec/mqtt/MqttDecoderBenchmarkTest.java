@@ -0,0 +1,120 @@
+package io.netty.handler.codec.mqtt;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.util.CharsetUtil;
+import io.netty.util.ReferenceCountUtil;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Supplier;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Compare MqttDecoder with the former ReplayingDecoder based decoder on fragmented input
+ */
+public class MqttDecoderBenchmarkTest {
+
+    private static final Logger logger = LoggerFactory.getLogger(MqttDecoderBenchmarkTest.class);
+
+    private static final ByteBufAllocator ALLOCATOR = new UnpooledByteBufAllocator(false);
+
+    // a mixed stream of frames, as a client would send them
+    private static byte[] stream() {
+        List<MqttMessage> messages = new ArrayList<>();
+        messages.add(new MqttConnectMessage(
+                new MqttFixedHeader(MqttMessageType.CONNECT, false, MqttQoS.AT_MOST_ONCE, false, 0),
+                new MqttConnectVariableHeader(MqttVersion.MQTT_3_1_1.protocolName(), MqttVersion.MQTT_3_1_1.protocolLevel(), true, true, false, MqttQoS.AT_MOST_ONCE, false, true, 60),
+                new MqttConnectPayload("client1", null, null, "user", "password")));
+        messages.add(new MqttSubscribeMessage(
+                new MqttFixedHeader(MqttMessageType.SUBSCRIBE, false, MqttQoS.AT_LEAST_ONCE, false, 0),
+                MqttPacketIdVariableHeader.from(1),
+                new MqttSubscribePayload(Collections.singletonList(new MqttTopicSubscription("a/b/#", MqttQoS.AT_LEAST_ONCE)))));
+        for (int i = 1; i <= 100; i++) {
+            messages.add(new MqttPublishMessage(
+                    new MqttFixedHeader(MqttMessageType.PUBLISH, false, MqttQoS.AT_LEAST_ONCE, false, 0),
+                    MqttPublishVariableHeader.from("a/b/c/" + i, i),
+                    Unpooled.wrappedBuffer(("Hello World " + i + " with some payload").getBytes(CharsetUtil.UTF_8))));
+            messages.add(new MqttMessage(
+                    new MqttFixedHeader(MqttMessageType.PUBACK, false, MqttQoS.AT_MOST_ONCE, false, 0),
+                    MqttPacketIdVariableHeader.from(i)));
+        }
+        messages.add(new MqttMessage(new MqttFixedHeader(MqttMessageType.PINGREQ, false, MqttQoS.AT_MOST_ONCE, false, 0)));
+
+        ByteBuf all = Unpooled.buffer();
+        for (MqttMessage message : messages) {
+            ByteBuf frame = MqttEncoder.doEncode(ALLOCATOR, message);
+            all.writeBytes(frame);
+            frame.release();
+        }
+        byte[] bytes = new byte[all.readableBytes()];
+        all.readBytes(bytes);
+        all.release();
+        return bytes;
+    }
+
+    // feed the stream in chunks, return decoded messages as fixed header, variable header and payload bytes
+    private static List<String> decode(ChannelHandler decoder, byte[] stream, int chunk) {
+        EmbeddedChannel channel = new EmbeddedChannel(decoder);
+        for (int i = 0; i < stream.length; i += chunk) {
+            channel.writeInbound(Unpooled.wrappedBuffer(stream, i, Math.min(chunk, stream.length - i)));
+        }
+        List<String> messages = new ArrayList<>();
+        MqttMessage message;
+        while ((message = channel.readInbound()) != null) {
+            assert message.decoderResult().isSuccess();
+            Object payload = message.payload();
+            messages.add(message.fixedHeader() + " " + message.variableHeader() + " "
+                    + (payload instanceof ByteBuf ? ByteBufUtil.hexDump((ByteBuf) payload) : payload));
+            ReferenceCountUtil.release(message);
+        }
+        channel.finish();
+        return messages;
+    }
+
+    private static long benchmark(Supplier<ChannelHandler> decoder, byte[] stream, int chunk, int rounds) {
+        long start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            decode(decoder.get(), stream, chunk);
+        }
+        return System.nanoTime() - start;
+    }
+
+    @Test
+    public void fragmentedTest() {
+        byte[] stream = stream();
+        List<String> expected = decode(new ReplayingMqttDecoder(), stream, stream.length);
+        assertEquals(203, expected.size());
+        assert expected.get(2).contains("topic=a/b/c/1,");
+        assert expected.get(2).endsWith(ByteBufUtil.hexDump("Hello World 1 with some payload".getBytes(CharsetUtil.UTF_8)));
+        for (int chunk : new int[]{1, 3, 7, 64, 1500}) {
+            assertEquals(expected, decode(new MqttDecoder(), stream, chunk));
+            assertEquals(expected, decode(new ReplayingMqttDecoder(), stream, chunk));
+        }
+    }
+
+    @Test
+    public void benchmarkTest() {
+        byte[] stream = stream();
+        for (int chunk : new int[]{1, 7, 64, 1500}) {
+            // warm up
+            benchmark(MqttDecoder::new, stream, chunk, 200);
+            benchmark(ReplayingMqttDecoder::new, stream, chunk, 200);
+
+            long current = benchmark(MqttDecoder::new, stream, chunk, 1000);
+            long replaying = benchmark(ReplayingMqttDecoder::new, stream, chunk, 1000);
+            logger.info("Decode {} bytes in chunks of {} bytes: MqttDecoder {} us per round, ReplayingMqttDecoder {} us per round",
+                    stream.length, chunk, current / 1000 / 1000, replaying / 1000 / 1000);
+        }
+    }
+}
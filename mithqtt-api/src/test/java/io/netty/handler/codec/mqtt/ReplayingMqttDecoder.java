@@ -0,0 +1,442 @@
+/*
+ * Copyright 2014 The Netty Project
+ *
+ * The Netty Project licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package io.netty.handler.codec.mqtt;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.DecoderException;
+import io.netty.handler.codec.ReplayingDecoder;
+import io.netty.handler.codec.mqtt.ReplayingMqttDecoder.DecoderState;
+import io.netty.util.CharsetUtil;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The former ReplayingDecoder based MqttDecoder, kept as the baseline of {@link MqttDecoderBenchmarkTest}
+ */
+public class ReplayingMqttDecoder extends ReplayingDecoder<DecoderState> {
+
+    private static final int DEFAULT_MAX_BYTES_IN_MESSAGE = 8092;
+    private final int maxBytesInMessage;
+    private MqttFixedHeader mqttFixedHeader;
+    private Object variableHeader;
+    private int bytesRemainingInVariablePart;
+
+    public ReplayingMqttDecoder() {
+        this(DEFAULT_MAX_BYTES_IN_MESSAGE);
+    }
+
+    public ReplayingMqttDecoder(int maxBytesInMessage) {
+        super(DecoderState.READ_FIXED_HEADER);
+        this.maxBytesInMessage = maxBytesInMessage;
+    }
+
+    /**
+     * Decodes the fixed header. It's one byte for the flags and then variable bytes for the remaining length.
+     *
+     * @param buffer the buffer to decode from
+     * @return the fixed header
+     */
+    private static MqttFixedHeader decodeFixedHeader(ByteBuf buffer) {
+        short b1 = buffer.readUnsignedByte();
+
+        MqttMessageType messageType = MqttMessageType.valueOf(b1 >> 4);
+        boolean dupFlag = (b1 & 0x08) == 0x08;
+        int qosLevel = (b1 & 0x06) >> 1;
+        boolean retain = (b1 & 0x01) != 0;
+
+        int remainingLength = 0;
+        int multiplier = 1;
+        short digit;
+        int loops = 0;
+        do {
+            digit = buffer.readUnsignedByte();
+            remainingLength += (digit & 127) * multiplier;
+            multiplier *= 128;
+            loops++;
+        } while ((digit & 128) != 0 && loops < 4);
+
+        // MQTT protocol limits Remaining Length to 4 bytes
+        if (loops == 4 && (digit & 128) != 0) {
+            throw new DecoderException("remaining length exceeds 4 digits (" + messageType + ')');
+        }
+        return new MqttFixedHeader(messageType, dupFlag, MqttQoS.valueOf(qosLevel), retain, remainingLength);
+    }
+
+    /**
+     * Decodes the variable header (if any)
+     *
+     * @param buffer          the buffer to decode from
+     * @param mqttFixedHeader MqttFixedHeader of the same message
+     * @return the variable header
+     */
+    private static Result<?> decodeVariableHeader(ByteBuf buffer, MqttFixedHeader mqttFixedHeader) {
+        switch (mqttFixedHeader.messageType()) {
+            case CONNECT:
+                return decodeConnectionVariableHeader(buffer);
+
+            case CONNACK:
+                return decodeConnAckVariableHeader(buffer);
+
+            case SUBSCRIBE:
+            case UNSUBSCRIBE:
+            case SUBACK:
+            case UNSUBACK:
+            case PUBACK:
+            case PUBREC:
+            case PUBCOMP:
+            case PUBREL:
+                return decodePacketIdVariableHeader(buffer);
+
+            case PUBLISH:
+                return decodePublishVariableHeader(buffer, mqttFixedHeader);
+
+            default:
+                // no variable header , no byte consumed
+                return new Result<>(null, 0);
+        }
+    }
+
+    private static Result<MqttConnectVariableHeader> decodeConnectionVariableHeader(ByteBuf buffer) {
+        final Result<String> protocolName = decodeString(buffer);
+        int numberOfBytesConsumed = protocolName.numberOfBytesConsumed;
+
+        final byte protocolLevel = buffer.readByte();
+        numberOfBytesConsumed += 1;
+
+        final MqttVersion mqttVersion = MqttVersion.fromProtocolNameAndLevel(protocolName.value, protocolLevel);
+
+        final int b1 = buffer.readUnsignedByte();
+        numberOfBytesConsumed += 1;
+
+        final Result<Integer> keepAlive = decodeMsbLsb(buffer);
+        numberOfBytesConsumed += keepAlive.numberOfBytesConsumed;
+
+        final boolean userNameFlag = (b1 & 0x80) == 0x80;
+        final boolean passwordFlag = (b1 & 0x40) == 0x40;
+        final boolean willRetain = (b1 & 0x20) == 0x20;
+        final int willQos = (b1 & 0x18) >> 3;
+        final boolean willFlag = (b1 & 0x04) == 0x04;
+        final boolean cleanSession = (b1 & 0x02) == 0x02;
+
+        final MqttConnectVariableHeader mqttConnectVariableHeader = new MqttConnectVariableHeader(
+                mqttVersion.protocolName(),
+                mqttVersion.protocolLevel(),
+                userNameFlag,
+                passwordFlag,
+                willRetain,
+                MqttQoS.valueOf(willQos),
+                willFlag,
+                cleanSession,
+                keepAlive.value);
+        return new Result<>(mqttConnectVariableHeader, numberOfBytesConsumed);
+    }
+
+    private static Result<MqttConnAckVariableHeader> decodeConnAckVariableHeader(ByteBuf buffer) {
+        final boolean sessionPresent = (buffer.readUnsignedByte() & 0x01) == 0x01;
+        byte returnCode = buffer.readByte();
+        final int numberOfBytesConsumed = 2;
+        final MqttConnAckVariableHeader mqttConnAckVariableHeader =
+                new MqttConnAckVariableHeader(MqttConnectReturnCode.valueOf(returnCode), sessionPresent);
+        return new Result<>(mqttConnAckVariableHeader, numberOfBytesConsumed);
+    }
+
+    private static Result<MqttPacketIdVariableHeader> decodePacketIdVariableHeader(ByteBuf buffer) {
+        final Result<Integer> packetId = decodePacketId(buffer);
+        return new Result<>(
+                MqttPacketIdVariableHeader.from(packetId.value),
+                packetId.numberOfBytesConsumed);
+    }
+
+    private static Result<MqttPublishVariableHeader> decodePublishVariableHeader(
+            ByteBuf buffer,
+            MqttFixedHeader mqttFixedHeader) {
+        final Result<String> decodedTopic = decodeString(buffer);
+        int numberOfBytesConsumed = decodedTopic.numberOfBytesConsumed;
+
+        int packetId = 0;
+        if (mqttFixedHeader.qos().value() > 0) {
+            final Result<Integer> decodedMessageId = decodePacketId(buffer);
+            packetId = decodedMessageId.value;
+            numberOfBytesConsumed += decodedMessageId.numberOfBytesConsumed;
+        }
+        final MqttPublishVariableHeader mqttPublishVariableHeader = (mqttFixedHeader.qos().value() > 0) ?
+                MqttPublishVariableHeader.from(decodedTopic.value, packetId) :
+                MqttPublishVariableHeader.from(decodedTopic.value);
+        return new Result<>(mqttPublishVariableHeader, numberOfBytesConsumed);
+    }
+
+    private static Result<Integer> decodePacketId(ByteBuf buffer) {
+        return decodeMsbLsb(buffer);
+    }
+
+    /**
+     * Decodes the payload.
+     *
+     * @param buffer                       the buffer to decode from
+     * @param messageType                  type of the message being decoded
+     * @param bytesRemainingInVariablePart bytes remaining
+     * @param variableHeader               variable header of the same message
+     * @return the payload
+     */
+    private static Result<?> decodePayload(
+            ByteBuf buffer,
+            MqttMessageType messageType,
+            int bytesRemainingInVariablePart,
+            Object variableHeader) {
+        switch (messageType) {
+            case CONNECT:
+                return decodeConnectionPayload(buffer, (MqttConnectVariableHeader) variableHeader);
+
+            case SUBSCRIBE:
+                return decodeSubscribePayload(buffer, bytesRemainingInVariablePart);
+
+            case SUBACK:
+                return decodeSubAckPayload(buffer, bytesRemainingInVariablePart);
+
+            case UNSUBSCRIBE:
+                return decodeUnsubscribePayload(buffer, bytesRemainingInVariablePart);
+
+            case PUBLISH:
+                return decodePublishPayload(buffer, bytesRemainingInVariablePart);
+
+            default:
+                // no payload , no byte consumed
+                return new Result<>(null, 0);
+        }
+    }
+
+    private static Result<MqttConnectPayload> decodeConnectionPayload(
+            ByteBuf buffer,
+            MqttConnectVariableHeader mqttConnectVariableHeader) {
+        final Result<String> decodedClientId = decodeString(buffer);
+        int numberOfBytesConsumed = decodedClientId.numberOfBytesConsumed;
+
+        Result<String> decodedWillTopic = null;
+        Result<String> decodedWillMessage = null;
+        if (mqttConnectVariableHeader.willFlag()) {
+            decodedWillTopic = decodeString(buffer, 0, 32767);
+            numberOfBytesConsumed += decodedWillTopic.numberOfBytesConsumed;
+            decodedWillMessage = decodeAsciiString(buffer);
+            numberOfBytesConsumed += decodedWillMessage.numberOfBytesConsumed;
+        }
+        Result<String> decodedUserName = null;
+        Result<String> decodedPassword = null;
+        if (mqttConnectVariableHeader.userNameFlag()) {
+            decodedUserName = decodeString(buffer);
+            numberOfBytesConsumed += decodedUserName.numberOfBytesConsumed;
+        }
+        if (mqttConnectVariableHeader.passwordFlag()) {
+            decodedPassword = decodeString(buffer);
+            numberOfBytesConsumed += decodedPassword.numberOfBytesConsumed;
+        }
+
+        final MqttConnectPayload mqttConnectPayload =
+                new MqttConnectPayload(
+                        decodedClientId.value,
+                        decodedWillTopic != null ? decodedWillTopic.value : null,
+                        decodedWillMessage != null ? decodedWillMessage.value : null,
+                        decodedUserName != null ? decodedUserName.value : null,
+                        decodedPassword != null ? decodedPassword.value : null);
+        return new Result<>(mqttConnectPayload, numberOfBytesConsumed);
+    }
+
+    private static Result<MqttSubscribePayload> decodeSubscribePayload(
+            ByteBuf buffer,
+            int bytesRemainingInVariablePart) {
+        final List<MqttTopicSubscription> subscribeTopics = new ArrayList<>();
+        int numberOfBytesConsumed = 0;
+        while (numberOfBytesConsumed < bytesRemainingInVariablePart) {
+            final Result<String> decodedTopic = decodeString(buffer);
+            numberOfBytesConsumed += decodedTopic.numberOfBytesConsumed;
+            int qos = buffer.readUnsignedByte() & 0x03;
+            numberOfBytesConsumed++;
+            subscribeTopics.add(new MqttTopicSubscription(decodedTopic.value, MqttQoS.valueOf(qos)));
+        }
+        return new Result<>(new MqttSubscribePayload(subscribeTopics), numberOfBytesConsumed);
+    }
+
+    private static Result<MqttSubAckPayload> decodeSubAckPayload(
+            ByteBuf buffer,
+            int bytesRemainingInVariablePart) {
+        final List<MqttGrantedQoS> grantedQos = new ArrayList<>();
+        int numberOfBytesConsumed = 0;
+        while (numberOfBytesConsumed < bytesRemainingInVariablePart) {
+            int qos = buffer.readUnsignedByte() & 0x03;
+            numberOfBytesConsumed++;
+            grantedQos.add(MqttGrantedQoS.valueOf(qos));
+        }
+        return new Result<>(new MqttSubAckPayload(grantedQos), numberOfBytesConsumed);
+    }
+
+    private static Result<MqttUnsubscribePayload> decodeUnsubscribePayload(
+            ByteBuf buffer,
+            int bytesRemainingInVariablePart) {
+        final List<String> unsubscribeTopics = new ArrayList<>();
+        int numberOfBytesConsumed = 0;
+        while (numberOfBytesConsumed < bytesRemainingInVariablePart) {
+            final Result<String> decodedTopic = decodeString(buffer);
+            numberOfBytesConsumed += decodedTopic.numberOfBytesConsumed;
+            unsubscribeTopics.add(decodedTopic.value);
+        }
+        return new Result<>(
+                new MqttUnsubscribePayload(unsubscribeTopics),
+                numberOfBytesConsumed);
+    }
+
+    private static Result<ByteBuf> decodePublishPayload(ByteBuf buffer, int bytesRemainingInVariablePart) {
+        ByteBuf b = buffer.readRetainedSlice(bytesRemainingInVariablePart);
+        return new Result<>(b, bytesRemainingInVariablePart);
+    }
+
+    private static Result<String> decodeString(ByteBuf buffer) {
+        return decodeString(buffer, 0, Integer.MAX_VALUE);
+    }
+
+    private static Result<String> decodeAsciiString(ByteBuf buffer) {
+        Result<String> result = decodeString(buffer, 0, Integer.MAX_VALUE);
+        final String s = result.value;
+        for (int i = 0; i < s.length(); i++) {
+            if (s.charAt(i) > 127) {
+                return new Result<>(null, result.numberOfBytesConsumed);
+            }
+        }
+        return new Result<>(s, result.numberOfBytesConsumed);
+    }
+
+    private static Result<String> decodeString(ByteBuf buffer, int minBytes, int maxBytes) {
+        final Result<Integer> decodedSize = decodeMsbLsb(buffer);
+        int size = decodedSize.value;
+        int numberOfBytesConsumed = decodedSize.numberOfBytesConsumed;
+        if (size < minBytes || size > maxBytes) {
+            buffer.skipBytes(size);
+            numberOfBytesConsumed += size;
+            return new Result<>(null, numberOfBytesConsumed);
+        }
+        String s = buffer.toString(buffer.readerIndex(), size, CharsetUtil.UTF_8);
+        buffer.skipBytes(size);
+        numberOfBytesConsumed += size;
+        return new Result<>(s, numberOfBytesConsumed);
+    }
+
+    private static Result<Integer> decodeMsbLsb(ByteBuf buffer) {
+        return decodeMsbLsb(buffer, 0, 65535);
+    }
+
+    private static Result<Integer> decodeMsbLsb(ByteBuf buffer, int min, int max) {
+        short msbSize = buffer.readUnsignedByte();
+        short lsbSize = buffer.readUnsignedByte();
+        final int numberOfBytesConsumed = 2;
+        int result = msbSize << 8 | lsbSize;
+        if (result < min || result > max) {
+            result = -1;
+        }
+        return new Result<>(result, numberOfBytesConsumed);
+    }
+
+    @Override
+    protected void decode(ChannelHandlerContext ctx, ByteBuf buffer, List<Object> out) throws Exception {
+        switch (state()) {
+            case READ_FIXED_HEADER:
+                try {
+                    mqttFixedHeader = decodeFixedHeader(buffer);
+                    bytesRemainingInVariablePart = mqttFixedHeader.remainingLength();
+                    checkpoint(DecoderState.READ_VARIABLE_HEADER);
+                    // fall through
+                } catch (Exception cause) {
+                    out.add(invalidMessage(cause));
+                    return;
+                }
+
+            case READ_VARIABLE_HEADER:
+                try {
+                    if (bytesRemainingInVariablePart > maxBytesInMessage) {
+                        throw new DecoderException("message size exceeds limit: " + bytesRemainingInVariablePart + " bytes");
+                    }
+                    final Result<?> decodedVariableHeader = decodeVariableHeader(buffer, mqttFixedHeader);
+                    variableHeader = decodedVariableHeader.value;
+                    bytesRemainingInVariablePart -= decodedVariableHeader.numberOfBytesConsumed;
+                    checkpoint(DecoderState.READ_PAYLOAD);
+                    // fall through
+                } catch (Exception cause) {
+                    out.add(invalidMessage(cause));
+                    return;
+                }
+
+            case READ_PAYLOAD:
+                try {
+                    final Result<?> decodedPayload =
+                            decodePayload(
+                                    buffer,
+                                    mqttFixedHeader.messageType(),
+                                    bytesRemainingInVariablePart,
+                                    variableHeader);
+                    Object payload = decodedPayload.value;
+                    bytesRemainingInVariablePart -= decodedPayload.numberOfBytesConsumed;
+                    if (bytesRemainingInVariablePart != 0) {
+                        throw new DecoderException(
+                                "non-zero remaining payload bytes: " +
+                                        bytesRemainingInVariablePart + " (" + mqttFixedHeader.messageType() + ')');
+                    }
+                    checkpoint(DecoderState.READ_FIXED_HEADER);
+                    MqttMessage message = MqttMessageFactory.newMessage(mqttFixedHeader, variableHeader, payload);
+                    mqttFixedHeader = null;
+                    variableHeader = null;
+                    Mqtts.sanitize(message);    // sanitize message
+                    out.add(message);
+                    break;
+                } catch (Exception cause) {
+                    out.add(invalidMessage(cause));
+                    return;
+                }
+
+            case BAD_MESSAGE:
+                // Keep discarding until disconnection.
+                buffer.skipBytes(actualReadableBytes());
+                break;
+        }
+    }
+
+    private MqttMessage invalidMessage(Throwable cause) {
+        checkpoint(DecoderState.BAD_MESSAGE);
+        return MqttMessageFactory.newInvalidMessage(cause);
+    }
+
+    /**
+     * States of the decoder.
+     * We start at READ_FIXED_HEADER, followed by
+     * READ_VARIABLE_HEADER and finally READ_PAYLOAD.
+     */
+    enum DecoderState {
+        READ_FIXED_HEADER,
+        READ_VARIABLE_HEADER,
+        READ_PAYLOAD,
+        BAD_MESSAGE,
+    }
+
+    private static final class Result<T> {
+
+        private final T value;
+        private final int numberOfBytesConsumed;
+
+        Result(T value, int numberOfBytesConsumed) {
+            this.value = value;
+            this.numberOfBytesConsumed = numberOfBytesConsumed;
+        }
+    }
+}
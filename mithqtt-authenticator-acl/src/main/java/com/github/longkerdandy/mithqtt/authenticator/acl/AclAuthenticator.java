@@ -0,0 +1,163 @@
+package com.github.longkerdandy.mithqtt.authenticator.acl;
+
+import com.github.longkerdandy.mithqtt.api.auth.AsyncAuthenticator;
+import com.github.longkerdandy.mithqtt.api.auth.AuthorizeResult;
+import com.github.longkerdandy.mithqtt.util.Topics;
+import io.netty.handler.codec.mqtt.MqttGrantedQoS;
+import io.netty.handler.codec.mqtt.MqttTopicSubscription;
+import org.apache.commons.configuration.AbstractConfiguration;
+import org.apache.commons.lang3.StringUtils;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * ACL Authenticator
+ * <p>
+ * Authorizes PUBLISH and SUBSCRIBE by allow / deny rules loaded from a file, compiled into an {@link AclTrie}.
+ * Decisions are made in memory without blocking, so this authenticator is asynchronous and always returns completed
+ * futures. CONNECT is always accepted, this authenticator does not check credentials.
+ * <p>
+ * The rule file is line based, '#' starts a comment:
+ * <pre>
+ * # group name, followed by its members
+ * group admins alice bob
+ * # allow|deny  user:name|group:name|*  publish|subscribe|all  topic filter
+ * allow group:admins all #
+ * allow * all devices/%c/#
+ * deny user:bob publish devices/+/config
+ * </pre>
+ * A topic level '%u' or '%c' matches the user name or client id. A deny rule wins over any allow rule, topics
+ * matching no rule are denied unless 'acl.default' is 'allow'. For SUBSCRIBE, an allow rule matches only if its topic
+ * filter covers the whole requested topic filter, while a deny rule rejects every requested topic filter it overlaps,
+ * so 'devices/#' is rejected by a deny rule on 'devices/secret/#' instead of receiving its messages.
+ */
+@SuppressWarnings("unused")
+public class AclAuthenticator implements AsyncAuthenticator {
+
+    private AclTrie trie;
+    // groups by user name
+    private Map<String, List<String>> groups;
+    // decision if no rule matches
+    private boolean defaultAllow;
+
+    @Override
+    public void init(AbstractConfiguration config) {
+        this.defaultAllow = "allow".equalsIgnoreCase(config.getString("acl.default", "deny"));
+        String file = config.getString("acl.file", "config/acl.conf");
+        try (BufferedReader reader = Files.newBufferedReader(Paths.get(file), StandardCharsets.UTF_8)) {
+            load(reader);
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to load ACL file " + file, e);
+        }
+    }
+
+    /**
+     * Load the rules, replacing the current ones
+     *
+     * @param reader Rules
+     * @throws IOException if failed to read the rules
+     */
+    public void load(Reader reader) throws IOException {
+        AclTrie trie = new AclTrie();
+        Map<String, List<String>> groups = new HashMap<>();
+
+        BufferedReader br = reader instanceof BufferedReader ? (BufferedReader) reader : new BufferedReader(reader);
+        String line;
+        int number = 0;
+        while ((line = br.readLine()) != null) {
+            number++;
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) continue;
+
+            String[] tokens = StringUtils.split(line);
+            if (tokens[0].equals("group") && tokens.length >= 2) {
+                for (int i = 2; i < tokens.length; i++) {
+                    groups.computeIfAbsent(tokens[i], k -> new ArrayList<>()).add(tokens[1]);
+                }
+            } else if ((tokens[0].equals("allow") || tokens[0].equals("deny")) && tokens.length == 4) {
+                boolean allow = tokens[0].equals("allow");
+                int flags;
+                switch (tokens[2]) {
+                    case "publish":
+                        flags = allow ? AclTrie.ALLOW_PUBLISH : AclTrie.DENY_PUBLISH;
+                        break;
+                    case "subscribe":
+                        flags = allow ? AclTrie.ALLOW_SUBSCRIBE : AclTrie.DENY_SUBSCRIBE;
+                        break;
+                    case "all":
+                        flags = allow ? AclTrie.ALLOW_PUBLISH | AclTrie.ALLOW_SUBSCRIBE : AclTrie.DENY_PUBLISH | AclTrie.DENY_SUBSCRIBE;
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Illegal ACL action at line " + number + ": " + line);
+                }
+                String principal;
+                if (tokens[1].equals(AclTrie.ALL)) principal = AclTrie.ALL;
+                else if (tokens[1].startsWith("user:")) principal = AclTrie.user(tokens[1].substring(5));
+                else if (tokens[1].startsWith("group:")) principal = AclTrie.group(tokens[1].substring(6));
+                else throw new IllegalArgumentException("Illegal ACL principal at line " + number + ": " + line);
+                trie.add(principal, flags, tokens[3]);
+            } else {
+                throw new IllegalArgumentException("Illegal ACL rule at line " + number + ": " + line);
+            }
+        }
+
+        this.groups = groups;
+        this.trie = trie;
+    }
+
+    @Override
+    public void destroy() {
+    }
+
+    @Override
+    public CompletableFuture<AuthorizeResult> authConnect(String clientId, String userName, String password) {
+        return CompletableFuture.completedFuture(AuthorizeResult.OK);
+    }
+
+    @Override
+    public CompletableFuture<AuthorizeResult> authPublish(String clientId, String userName, String topicName, int qos, boolean retain) {
+        int flags = this.trie.match(clientId, userName, groups(userName), Topics.sanitizeTopicName(topicName));
+        boolean allowed = allowed(flags, AclTrie.ALLOW_PUBLISH, AclTrie.DENY_PUBLISH);
+        return CompletableFuture.completedFuture(allowed ? AuthorizeResult.OK : AuthorizeResult.FORBIDDEN);
+    }
+
+    @Override
+    public CompletableFuture<List<MqttGrantedQoS>> authSubscribe(String clientId, String userName, List<MqttTopicSubscription> requestSubscriptions) {
+        List<String> groups = groups(userName);
+        List<MqttGrantedQoS> r = new ArrayList<>(requestSubscriptions.size());
+        requestSubscriptions.forEach(subscription -> {
+            List<String> topicLevels = Topics.sanitize(subscription.topic());
+            int flags = this.trie.match(clientId, userName, groups, topicLevels) & ~AclTrie.DENY_SUBSCRIBE
+                    | this.trie.overlap(clientId, userName, groups, topicLevels) & AclTrie.DENY_SUBSCRIBE;
+            if (allowed(flags, AclTrie.ALLOW_SUBSCRIBE, AclTrie.DENY_SUBSCRIBE)) r.add(MqttGrantedQoS.valueOf(subscription.requestedQos().value()));
+            else r.add(MqttGrantedQoS.NOT_GRANTED);
+        });
+        return CompletableFuture.completedFuture(r);
+    }
+
+    @Override
+    public CompletableFuture<String> oauth(String credentials) {
+        return CompletableFuture.completedFuture(null);
+    }
+
+    private List<String> groups(String userName) {
+        if (userName == null) return Collections.emptyList();
+        return this.groups.getOrDefault(userName, Collections.emptyList());
+    }
+
+    private boolean allowed(int flags, int allow, int deny) {
+        if ((flags & deny) != 0) return false;
+        return (flags & allow) != 0 || this.defaultAllow;
+    }
+}
@@ -0,0 +1,230 @@
+package com.github.longkerdandy.mithqtt.authenticator.acl;
+
+import com.github.longkerdandy.mithqtt.util.Topics;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * ACL rules compiled into a trie of sanitized topic levels
+ * <p>
+ * Each rule's topic filter is split into levels by {@link Topics}, and the rule is stored at the node of its last
+ * level, keyed by principal. Authorizing a topic walks the trie once, following the topic's levels, '+' and '#'
+ * wildcards and the '%u' / '%c' substitution levels, and merges the rules of the principals found on the matched
+ * nodes. So the cost depends on the topic's depth and the user's groups, not on the number of rules.
+ * <p>
+ * For topic filters (SUBSCRIBE), {@link #match} finds the rules covering the whole topic filter, while
+ * {@link #overlap} finds the rules whose topic filter shares at least one topic with it, like a deny rule on a
+ * narrower topic filter.
+ * <p>
+ * Not thread safe while adding rules, the trie is read only once built.
+ */
+public class AclTrie {
+
+    // principal of rules applied to everyone
+    public static final String ALL = "*";
+
+    // substitution levels, match the level equals to user name / client id
+    public static final String USER_NAME = "%u";
+    public static final String CLIENT_ID = "%c";
+
+    // rule flags
+    public static final int ALLOW_PUBLISH = 0x01;
+    public static final int ALLOW_SUBSCRIBE = 0x02;
+    public static final int DENY_PUBLISH = 0x04;
+    public static final int DENY_SUBSCRIBE = 0x08;
+
+    private final Node root = new Node();
+    private int size;
+
+    /**
+     * Add rule
+     *
+     * @param principal   Principal, see {@link #user(String)}, {@link #group(String)} and {@link #ALL}
+     * @param flags       Rule flags
+     * @param topicFilter Topic Filter, may contain wildcards and substitution levels
+     */
+    public void add(String principal, int flags, String topicFilter) {
+        List<String> levels = Topics.sanitize(topicFilter);
+        Node node = this.root;
+        // skip END
+        for (int i = 0; i < levels.size() - 1; i++) {
+            node = node.child(levels.get(i), true);
+        }
+        if (node.rules == null) node.rules = new HashMap<>();
+        node.rules.merge(principal, flags, (a, b) -> a | b);
+        this.size++;
+    }
+
+    /**
+     * Number of rules added
+     *
+     * @return Size
+     */
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * Collect the flags of the rules matching the topic
+     * For topic filters (SUBSCRIBE), only the rules whose topic filter covers the whole topic filter match.
+     *
+     * @param clientId    Client Id
+     * @param userName    User Name, may be null
+     * @param groups      Groups of the user, may be null
+     * @param topicLevels Sanitized Topic Levels
+     * @return Rule flags
+     */
+    public int match(String clientId, String userName, List<String> groups, List<String> topicLevels) {
+        Principals principals = new Principals(userName, groups);
+        return match(this.root, 0, clientId, userName, principals, topicLevels, false);
+    }
+
+    /**
+     * Collect the flags of the rules whose topic filter overlaps the topic filter
+     * A rule overlaps if at least one topic matches both its topic filter and the requested topic filter.
+     *
+     * @param clientId    Client Id
+     * @param userName    User Name, may be null
+     * @param groups      Groups of the user, may be null
+     * @param topicLevels Sanitized Topic Filter Levels
+     * @return Rule flags
+     */
+    public int overlap(String clientId, String userName, List<String> groups, List<String> topicLevels) {
+        Principals principals = new Principals(userName, groups);
+        return match(this.root, 0, clientId, userName, principals, topicLevels, true);
+    }
+
+    private int match(Node node, int depth, String clientId, String userName, Principals principals, List<String> topicLevels, boolean overlap) {
+        int flags = 0;
+
+        // Topics starting with '$' are not matched by wildcards at the first level
+        boolean wildcard = depth > 0 || !topicLevels.get(0).startsWith("$");
+
+        // '#' matches the parent level and any number of child levels
+        Node multi = wildcard ? node.child("#", false) : null;
+        if (multi != null) flags |= principals.flags(multi);
+
+        // skip END
+        if (depth == topicLevels.size() - 1) {
+            return flags | principals.flags(node);
+        }
+
+        String level = topicLevels.get(depth);
+
+        // a '#' in the requested topic filter is only covered by '#', but overlaps the node and all its descendants
+        if (level.equals("#")) return overlap ? flags | descendants(node, depth, principals) : flags;
+
+        // a '+' in the requested topic filter is only covered by '+' or '#', but overlaps any child
+        if (level.equals("+") && overlap) {
+            if (node.children != null) {
+                for (Map.Entry<String, Node> child : node.children.entrySet()) {
+                    if (child.getKey().equals("#") || (depth == 0 && child.getKey().startsWith("$"))) continue;
+                    flags |= match(child.getValue(), depth + 1, clientId, userName, principals, topicLevels, true);
+                }
+            }
+            return flags;
+        }
+
+        Node single = wildcard ? node.child("+", false) : null;
+        if (single != null) flags |= match(single, depth + 1, clientId, userName, principals, topicLevels, overlap);
+
+        if (level.equals("+")) return flags;
+
+        Node child = node.child(level, false);
+        if (child != null) flags |= match(child, depth + 1, clientId, userName, principals, topicLevels, overlap);
+        if (userName != null && level.equals(userName)) {
+            child = node.child(USER_NAME, false);
+            if (child != null) flags |= match(child, depth + 1, clientId, userName, principals, topicLevels, overlap);
+        }
+        if (level.equals(clientId)) {
+            child = node.child(CLIENT_ID, false);
+            if (child != null) flags |= match(child, depth + 1, clientId, userName, principals, topicLevels, overlap);
+        }
+        return flags;
+    }
+
+    // flags of the rules at the node and below, topics starting with '$' are not matched by wildcards at the first level
+    private int descendants(Node node, int depth, Principals principals) {
+        int flags = principals.flags(node);
+        if (node.children != null) {
+            for (Map.Entry<String, Node> child : node.children.entrySet()) {
+                if (depth == 0 && child.getKey().startsWith("$")) continue;
+                flags |= descendants(child.getValue(), depth + 1, principals);
+            }
+        }
+        return flags;
+    }
+
+    /**
+     * Principal of rules applied to the user
+     *
+     * @param userName User Name
+     * @return Principal
+     */
+    public static String user(String userName) {
+        return "user:" + userName;
+    }
+
+    /**
+     * Principal of rules applied to the members of the group
+     *
+     * @param group Group Name
+     * @return Principal
+     */
+    public static String group(String group) {
+        return "group:" + group;
+    }
+
+    /**
+     * Principals of the user, computed once per authorization
+     */
+    private static class Principals {
+
+        private final String[] keys;
+
+        Principals(String userName, List<String> groups) {
+            int size = (userName != null ? 1 : 0) + (groups != null ? groups.size() : 0) + 1;
+            this.keys = new String[size];
+            int i = 0;
+            if (userName != null) this.keys[i++] = user(userName);
+            if (groups != null) for (String group : groups) this.keys[i++] = group(group);
+            this.keys[i] = ALL;
+        }
+
+        int flags(Node node) {
+            if (node.rules == null) return 0;
+            int flags = 0;
+            for (String key : this.keys) {
+                Integer f = node.rules.get(key);
+                if (f != null) flags |= f;
+            }
+            return flags;
+        }
+    }
+
+    /**
+     * Trie node, one per topic level
+     */
+    private static class Node {
+
+        // null until the first child added
+        private Map<String, Node> children;
+        // rules ending at this node by principal, null if none
+        private Map<String, Integer> rules;
+
+        Node child(String level, boolean create) {
+            if (this.children == null) {
+                if (!create) return null;
+                this.children = new HashMap<>();
+            }
+            Node child = this.children.get(level);
+            if (child == null && create) {
+                child = new Node();
+                this.children.put(level, child);
+            }
+            return child;
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package com.github.longkerdandy.mithqtt.authenticator.acl;
+
+import com.github.longkerdandy.mithqtt.api.auth.AuthorizeResult;
+import com.github.longkerdandy.mithqtt.util.Topics;
+import io.netty.handler.codec.mqtt.MqttGrantedQoS;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import io.netty.handler.codec.mqtt.MqttTopicSubscription;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * ACL Authenticator Test
+ */
+public class AclAuthenticatorTest {
+
+    private static final String RULES = "# test rules\n" +
+            "group admins alice\n" +
+            "allow group:admins all #\n" +
+            "allow * all devices/%c/#\n" +
+            "allow * subscribe users/%u/+/inbox\n" +
+            "allow user:bob publish sensors/+/temperature\n" +
+            "deny user:bob publish sensors/secret/#\n" +
+            "deny * all devices/%c/config\n";
+
+    private AclAuthenticator authenticator;
+
+    @Before
+    public void init() throws IOException {
+        this.authenticator = new AclAuthenticator();
+        this.authenticator.load(new StringReader(RULES));
+    }
+
+    private boolean publish(String clientId, String userName, String topicName) {
+        return this.authenticator.authPublish(clientId, userName, topicName, 1, false).join() == AuthorizeResult.OK;
+    }
+
+    private boolean subscribe(String clientId, String userName, String topicFilter) {
+        List<MqttGrantedQoS> granted = this.authenticator.authSubscribe(clientId, userName,
+                Arrays.asList(new MqttTopicSubscription(topicFilter, MqttQoS.AT_LEAST_ONCE))).join();
+        return granted.get(0) == MqttGrantedQoS.AT_LEAST_ONCE;
+    }
+
+    @Test
+    public void publishTest() {
+        // group rule with '#'
+        assert publish("client1", "alice", "anything/at/all");
+        assert publish("client1", "alice", "/");
+        // but not '$' topics
+        assert !publish("client1", "alice", "$SYS/broker");
+
+        // '+' wildcard
+        assert publish("client2", "bob", "sensors/room1/temperature");
+        assert !publish("client2", "bob", "sensors/room1/humidity");
+        assert !publish("client2", "bob", "sensors/room1/temperature/extra");
+        // deny wins
+        assert !publish("client2", "bob", "sensors/secret/temperature");
+
+        // '%c' substitution, '#' matches the parent level
+        assert publish("client2", "bob", "devices/client2");
+        assert publish("client2", "bob", "devices/client2/status");
+        assert !publish("client2", "bob", "devices/client3/status");
+        assert !publish("client2", "bob", "devices/client2/config");
+
+        // no rule matches
+        assert !publish("client3", null, "sensors/room1/temperature");
+    }
+
+    @Test
+    public void subscribeTest() {
+        assert subscribe("client1", "alice", "anything/#");
+        assert subscribe("client2", "bob", "devices/client2/status");
+        assert !subscribe("client2", "bob", "devices/+/status");
+        assert !subscribe("client2", "bob", "devices/#");
+
+        // '%u' substitution
+        assert subscribe("client2", "bob", "users/bob/a/inbox");
+        assert subscribe("client2", "bob", "users/bob/+/inbox");
+        assert !subscribe("client2", "bob", "users/alice/a/inbox");
+        assert !subscribe("client2", "bob", "users/bob/#");
+
+        // publish only rule
+        assert !subscribe("client2", "bob", "sensors/room1/temperature");
+
+        // deny wins, also over the topic filters it overlaps
+        assert !subscribe("client2", "bob", "devices/client2/config");
+        assert !subscribe("client2", "bob", "devices/client2/#");
+        assert !subscribe("client2", "bob", "devices/client2/+");
+        assert !subscribe("client1", "alice", "#");
+    }
+
+    @Test
+    public void subscribeOverlapTest() throws IOException {
+        this.authenticator.load(new StringReader("allow * subscribe devices/#\n" +
+                "deny * subscribe devices/secret/#\n" +
+                "deny * subscribe +/private\n"));
+
+        assert subscribe("client1", null, "devices/public/#");
+        assert subscribe("client1", null, "devices/a/b");
+        // a broader topic filter would receive the denied topics
+        assert !subscribe("client1", null, "devices/#");
+        assert !subscribe("client1", null, "devices/+/config");
+        // '#' matches the parent level
+        assert !subscribe("client1", null, "devices/+");
+        assert !subscribe("client1", null, "devices/private");
+        assert !subscribe("client1", null, "+/+");
+
+        AclTrie trie = new AclTrie();
+        trie.add(AclTrie.ALL, AclTrie.DENY_SUBSCRIBE, "#");
+        trie.add(AclTrie.ALL, AclTrie.DENY_PUBLISH, "users/%u/+");
+        // '$' topics are not matched by wildcards at the first level
+        assert trie.overlap("c", "bob", null, Topics.sanitize("$SYS/#")) == 0;
+        assert trie.overlap("c", "bob", null, Topics.sanitize("+/bob/inbox")) == (AclTrie.DENY_SUBSCRIBE | AclTrie.DENY_PUBLISH);
+        assert trie.overlap("c", "bob", null, Topics.sanitize("users/alice/inbox")) == AclTrie.DENY_SUBSCRIBE;
+    }
+
+    @Test
+    public void multipleSubscriptionsTest() {
+        List<MqttGrantedQoS> granted = this.authenticator.authSubscribe("client2", "bob", Arrays.asList(
+                new MqttTopicSubscription("devices/client2/status", MqttQoS.EXACTLY_ONCE),
+                new MqttTopicSubscription("devices/client3/status", MqttQoS.AT_LEAST_ONCE),
+                new MqttTopicSubscription("users/bob/a/inbox", MqttQoS.AT_MOST_ONCE))).join();
+        assert granted.equals(Arrays.asList(MqttGrantedQoS.EXACTLY_ONCE, MqttGrantedQoS.NOT_GRANTED, MqttGrantedQoS.AT_MOST_ONCE));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void illegalRuleTest() throws IOException {
+        this.authenticator.load(new StringReader("allow user:bob read a/b\n"));
+    }
+
+    @Test
+    public void manyRulesTest() {
+        AclTrie trie = new AclTrie();
+        for (int i = 0; i < 50000; i++) {
+            trie.add(AclTrie.user("user" + i), AclTrie.ALLOW_PUBLISH, "tenants/" + (i % 100) + "/users/" + i + "/#");
+        }
+        assert trie.size() == 50000;
+        assert trie.match("c", "user4242", null, Topics.sanitizeTopicName("tenants/42/users/4242/x")) == AclTrie.ALLOW_PUBLISH;
+        assert trie.match("c", "user4242", null, Topics.sanitizeTopicName("tenants/42/users/4243/x")) == 0;
+    }
+}
@@ -1,10 +1,23 @@
 package com.github.longkerdandy.mithqtt.broker;
 
-import com.github.longkerdandy.mithqtt.api.auth.Authenticator;
+import com.github.longkerdandy.mithqtt.api.auth.AsyncAuthenticator;
+import com.github.longkerdandy.mithqtt.api.auth.AsyncAuthenticatorAdapter;
+import com.github.longkerdandy.mithqtt.api.auth.CachingAuthenticator;
 import com.github.longkerdandy.mithqtt.broker.cluster.NATSCluster;
+import com.github.longkerdandy.mithqtt.broker.handler.KeepAliveTracker;
 import com.github.longkerdandy.mithqtt.broker.handler.SyncRedisHandler;
+import com.github.longkerdandy.mithqtt.broker.metrics.HttpExporter;
+import com.github.longkerdandy.mithqtt.broker.metrics.JmxExporter;
+import com.github.longkerdandy.mithqtt.broker.metrics.Metrics;
+import com.github.longkerdandy.mithqtt.broker.metrics.MetricsHandler;
+import com.github.longkerdandy.mithqtt.broker.session.GroupCommitter;
+import com.github.longkerdandy.mithqtt.broker.session.InFlightStore;
+import com.github.longkerdandy.mithqtt.broker.session.Retransmitter;
 import com.github.longkerdandy.mithqtt.broker.session.SessionRegistry;
+import com.github.longkerdandy.mithqtt.broker.session.SharedDelivery;
+import com.github.longkerdandy.mithqtt.broker.session.SubscriptionIndex;
 import com.github.longkerdandy.mithqtt.broker.util.Validator;
+import com.github.longkerdandy.mithqtt.storage.redis.sync.InstrumentedRedisSyncStorage;
 import com.github.longkerdandy.mithqtt.storage.redis.sync.RedisSyncStorage;
 import io.netty.bootstrap.ServerBootstrap;
 import io.netty.channel.*;
@@ -19,13 +32,14 @@ import io.netty.handler.logging.LogLevel;
 import io.netty.handler.logging.LoggingHandler;
 import io.netty.handler.ssl.SslContext;
 import io.netty.handler.ssl.SslContextBuilder;
-import io.netty.handler.timeout.IdleStateHandler;
+import io.netty.handler.stream.ChunkedWriteHandler;
 import io.netty.util.internal.logging.InternalLoggerFactory;
 import io.netty.util.internal.logging.Slf4JLoggerFactory;
 import org.apache.commons.configuration.PropertiesConfiguration;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.management.ObjectName;
 import java.io.File;
 
 /**
@@ -63,32 +77,91 @@ public class MqttBroker {
         logger.debug("Initializing validator ...");
         Validator validator = new Validator(brokerConfig);
 
+        // metrics
+        logger.debug("Initializing metrics ...");
+        Metrics metrics = new Metrics();
+
         // session registry
         logger.debug("Initializing session registry ...");
-        SessionRegistry registry = new SessionRegistry();
+        SessionRegistry registry = new SessionRegistry(metrics);
+
+        // retransmitter, only used when in-session retransmission is enabled
+        logger.debug("Initializing retransmitter ...");
+        final Retransmitter retransmitter = brokerConfig.getLong("mqtt.retransmit.timeout", 0) > 0 ?
+                new Retransmitter(brokerConfig.getLong("mqtt.retransmit.tick", 100), brokerConfig.getLong("mqtt.retransmit.timeout"),
+                        brokerConfig.getLong("mqtt.retransmit.timeout.max", 120000), brokerConfig.getInt("mqtt.retransmit.attempts", 0)) : null;
+
+        // in-flight store
+        logger.debug("Initializing in-flight store ...");
+        InFlightStore inFlight = new InFlightStore(brokerConfig.getLong("mqtt.inflight.memory.max", 256 * 1024 * 1024), retransmitter);
+        metrics.gauge("inflight.memory", inFlight::usedBytes);
+
+        // shared subscription delivery
+        SharedDelivery shared = new SharedDelivery(SharedDelivery.Strategy.valueOf(brokerConfig.getString("mqtt.share.strategy", "ROUND_ROBIN").toUpperCase()), registry, inFlight);
+
+        // subscription index, only used when enabled
+        logger.debug("Initializing subscription index ...");
+        final SubscriptionIndex index = brokerConfig.getBoolean("mqtt.index.enabled", false) ? new SubscriptionIndex() : null;
 
         // storage
         logger.debug("Initializing redis storage ...");
-        RedisSyncStorage redis = (RedisSyncStorage) Class.forName(redisConfig.getString("storage.sync.class")).newInstance();
+        final RedisSyncStorage redis = (RedisSyncStorage) Class.forName(redisConfig.getString("storage.sync.class")).newInstance();
         redis.init(redisConfig);
+        // storage latency by operation, only recorded when the storage is instrumented
+        if (redis instanceof InstrumentedRedisSyncStorage) metrics.register("storage", ((InstrumentedRedisSyncStorage) redis).getHistograms());
+
+        // group committer, only used by durable acknowledgement
+        logger.debug("Initializing group committer ...");
+        final GroupCommitter committer = brokerConfig.getBoolean("mqtt.ack.durable", false) ?
+                new GroupCommitter(redis, brokerConfig.getLong("mqtt.ack.commit.interval", 2), brokerConfig.getInt("mqtt.ack.commit.batch", 1000)) : null;
+        if (committer != null) metrics.gauge("commit.queue", committer::getQueueSize);
 
         // cluster
         logger.debug("Initializing cluster ...");
         NATSCluster cluster = new NATSCluster();
-        cluster.init(clusterConfig, brokerId, registry);
+        cluster.init(clusterConfig, brokerId, registry, inFlight, metrics);
+        if (index != null) cluster.subscribeIndex(clusterConfig.getString("index.topic", "mithqtt.index"), index,
+                clusterConfig.getInt("index.heartbeat.interval", 10), clusterConfig.getInt("index.heartbeat.timeout", 30));
 
         // authenticator
         logger.debug("Initializing authenticator...");
-        Authenticator authenticator = (Authenticator) Class.forName(authenticatorConfig.getString("authenticator.class")).newInstance();
+        AsyncAuthenticator plugin = AsyncAuthenticatorAdapter.load(authenticatorConfig.getString("authenticator.class"));
+        // authorization decision cache, only used when enabled
+        final AsyncAuthenticator authenticator;
+        if (authenticatorConfig.getBoolean("authenticator.cache.enabled", false)) {
+            CachingAuthenticator caching = new CachingAuthenticator(plugin);
+            cluster.subscribeAuthInvalidation(clusterConfig.getString("authenticator.invalidate.topic", "mithqtt.authenticator.invalidate"), caching);
+            authenticator = caching;
+        } else {
+            authenticator = plugin;
+        }
         authenticator.init(authenticatorConfig);
 
         // broker
         final int keepAlive = brokerConfig.getInt("mqtt.keepalive.default");
         final int keepAliveMax = brokerConfig.getInt("mqtt.keepalive.max");
+        final boolean memorySession = brokerConfig.getBoolean("mqtt.session.clean.memory", false);
         final boolean ssl = brokerConfig.getBoolean("mqtt.ssl.enabled");
         final SslContext sslContext = ssl ? SslContextBuilder.forServer(new File(brokerConfig.getString("mqtt.ssl.certPath")), new File(brokerConfig.getString("mqtt.ssl.keyPath")), brokerConfig.getString("mqtt.ssl.keyPassword")).build() : null;
         final String host = brokerConfig.getString("mqtt.host");
         final int port = ssl ? brokerConfig.getInt("mqtt.ssl.port") : brokerConfig.getInt("mqtt.port");
+        final int maxMessageBytes = ssl ? brokerConfig.getInt("mqtt.ssl.message.max", brokerConfig.getInt("mqtt.message.max", 8092)) : brokerConfig.getInt("mqtt.message.max", 8092);
+        final int streamThreshold = brokerConfig.getInt("mqtt.message.stream.threshold", 0);
+
+        // keep alive tracker, shared by all the connections
+        logger.debug("Initializing keep alive tracker ...");
+        final KeepAliveTracker keepAliveTracker = new KeepAliveTracker(brokerConfig.getLong("mqtt.keepalive.tick", 1000), keepAlive * 1000L);
+
+        // logic handler, shared by all the connections
+        final SyncRedisHandler logicHandler = new SyncRedisHandler(authenticator, cluster, redis, registry, inFlight, shared, index, committer, keepAliveTracker, validator, metrics, brokerId, keepAlive, keepAliveMax, memorySession);
+
+        // metrics exporters, only used when enabled
+        logger.debug("Initializing metrics exporters ...");
+        final JmxExporter jmxExporter = brokerConfig.getBoolean("metrics.jmx.enabled", false) ? new JmxExporter(metrics) : null;
+        if (jmxExporter != null) jmxExporter.init("com.github.longkerdandy.mithqtt:type=Broker,id=" + ObjectName.quote(brokerId));
+        final HttpExporter httpExporter = brokerConfig.getInt("metrics.http.port", 0) > 0 ? new HttpExporter(metrics) : null;
+        if (httpExporter != null) httpExporter.init(brokerConfig.getString("metrics.http.host", "127.0.0.1"), brokerConfig.getInt("metrics.http.port"));
+        final MetricsHandler metricsHandler = new MetricsHandler(metrics);
 
         // tcp server
         logger.debug("Initializing tcp server ...");
@@ -104,6 +177,10 @@ public class MqttBroker {
 
                 workerGroup.shutdownGracefully();
                 bossGroup.shutdownGracefully();
+                if (retransmitter != null) retransmitter.destroy();
+                if (committer != null) committer.destroy();
+                if (httpExporter != null) httpExporter.destroy();
+                if (jmxExporter != null) jmxExporter.destroy();
                 cluster.destroy();
                 authenticator.destroy();
                 redis.destroy();
@@ -124,14 +201,20 @@ public class MqttBroker {
                         if (ssl) {
                             p.addLast("ssl", sslContext.newHandler(ch.alloc()));
                         }
-                        // idle
-                        p.addFirst("idleHandler", new IdleStateHandler(0, 0, keepAlive));
+                        // keep alive
+                        p.addFirst("keepAliveTracker", keepAliveTracker);
+                        // connections and bytes
+                        p.addLast("metrics", metricsHandler);
+                        // streamed large messages, only used when streaming is enabled
+                        if (streamThreshold > 0) {
+                            p.addLast("chunkedWriter", new ChunkedWriteHandler());
+                        }
                         // mqtt encoder & decoder
                         p.addLast("encoder", MqttEncoder.INSTANCE);
-                        p.addLast("decoder", new MqttDecoder());
+                        p.addLast("decoder", new MqttDecoder(maxMessageBytes, streamThreshold));
                         // logic handler
-                        // p.addLast(handlerGroup, "logicHandler", new SyncRedisHandler(authenticator, cluster, redis, registry, validator, brokerId, keepAlive, keepAliveMax));
-                        p.addLast("logicHandler", new SyncRedisHandler(authenticator, cluster, redis, registry, validator, brokerId, keepAlive, keepAliveMax));
+                        // p.addLast(handlerGroup, "logicHandler", logicHandler);
+                        p.addLast("logicHandler", logicHandler);
                     }
                 })
                 .option(ChannelOption.SO_BACKLOG, brokerConfig.getInt("netty.soBacklog"))
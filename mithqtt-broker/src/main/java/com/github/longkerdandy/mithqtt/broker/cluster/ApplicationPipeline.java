@@ -0,0 +1,255 @@
+package com.github.longkerdandy.mithqtt.broker.cluster;
+
+import com.github.longkerdandy.mithqtt.api.message.Message;
+import io.netty.handler.codec.mqtt.MqttMessageType;
+import io.netty.handler.codec.mqtt.MqttPublishVariableHeader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Asynchronous pipeline of the messages passed to 3rd party application
+ * <p>
+ * Handlers on any thread submit messages into a bounded queue, a single sender thread drains the queue and passes the
+ * messages to the sink in batches, collected within a short time window. Submitting never waits for the sink, when
+ * the queue is full the message is dropped, unless blocking is enabled. Messages are submitted on the event loops, so
+ * blocking only waits up to a timeout for room in the queue.
+ * <p>
+ * Messages are filtered and sampled before queued: by message type, and for PUBLISH messages also by topic. The rate
+ * is the chance a message is passed, 0 to filter out all of them. The rate of a PUBLISH message is its type's rate
+ * multiplied by the rate of the most specific (most levels) topic filter matching its topic.
+ */
+public class ApplicationPipeline {
+
+    // Logger
+    private static final Logger logger = LoggerFactory.getLogger(ApplicationPipeline.class);
+
+    private final Consumer<List<Message>> sink;
+    // Maximum number of messages in one batch
+    private final int batchSize;
+    // Time window in milliseconds to collect messages into one batch
+    private final long interval;
+    // Time in milliseconds to wait for room when the queue is full before dropping the message, 0 to drop at once
+    private final long blockTimeout;
+    // Rate by message type, types not in the map are filtered out
+    private final Map<MqttMessageType, Double> typeRates;
+    // Rate by topic filter levels
+    private final Map<String[], Double> topicRates = new HashMap<>();
+    private final BlockingQueue<Message> queue;
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    // metrics
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong filtered = new AtomicLong();
+    private final AtomicLong sampled = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong blocked = new AtomicLong();
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    /**
+     * Create and start the pipeline
+     *
+     * @param sink         Sink of the batches, called by the sender thread only
+     * @param capacity     Maximum number of messages queued
+     * @param batchSize    Maximum number of messages in one batch
+     * @param interval     Time window in milliseconds to collect messages, 0 to only batch those already queued
+     * @param blockTimeout Time in milliseconds to wait for room when the queue is full, 0 to drop the message at once
+     * @param typeRates    Rate by message type: Key - Message Type, Value - Rate, types not in the map are filtered out
+     * @param topicRates   Rate of PUBLISH messages by topic: Key - Topic Filter, Value - Rate
+     */
+    public ApplicationPipeline(Consumer<List<Message>> sink, int capacity, int batchSize, long interval, long blockTimeout,
+                               Map<MqttMessageType, Double> typeRates, Map<String, Double> topicRates) {
+        this.sink = sink;
+        this.batchSize = batchSize;
+        this.interval = interval;
+        this.blockTimeout = blockTimeout;
+        this.typeRates = new EnumMap<>(typeRates);
+        topicRates.forEach((filter, rate) -> this.topicRates.put(filter.split("/", -1), rate));
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.thread = new Thread(this::run, "application-pipeline");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Submit the message to be passed to 3rd party application
+     *
+     * @param message Mqtt Message (internal format)
+     */
+    public void submit(Message message) {
+        this.submitted.incrementAndGet();
+
+        double rate = rate(message);
+        if (rate <= 0) {
+            this.filtered.incrementAndGet();
+            return;
+        }
+        if (rate < 1 && ThreadLocalRandom.current().nextDouble() >= rate) {
+            this.sampled.incrementAndGet();
+            return;
+        }
+
+        if (this.running && this.queue.offer(message)) return;
+        if (this.running && this.blockTimeout > 0) {
+            this.blocked.incrementAndGet();
+            try {
+                if (this.queue.offer(message, this.blockTimeout, TimeUnit.MILLISECONDS)) return;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        this.dropped.incrementAndGet();
+        logger.debug("Application pipeline full: Dropped {} message for client {}", message.fixedHeader().messageType(), message.additionalHeader().clientId());
+    }
+
+    /**
+     * Stop the pipeline, queued messages are still passed to the sink
+     */
+    public void destroy() {
+        this.running = false;
+        try {
+            this.thread.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private double rate(Message message) {
+        MqttMessageType type = message.fixedHeader().messageType();
+        double rate = this.typeRates.getOrDefault(type, 0d);
+        if (rate <= 0 || type != MqttMessageType.PUBLISH || this.topicRates.isEmpty()) return rate;
+
+        String[] topic = ((MqttPublishVariableHeader) message.variableHeader()).topicName().split("/", -1);
+        String[] best = null;
+        for (Map.Entry<String[], Double> entry : this.topicRates.entrySet()) {
+            if ((best == null || entry.getKey().length > best.length) && isMatch(entry.getKey(), topic)) {
+                best = entry.getKey();
+                rate = this.typeRates.get(type) * entry.getValue();
+            }
+        }
+        return rate;
+    }
+
+    // Is the topic name matching the topic filter
+    static boolean isMatch(String[] filter, String[] topic) {
+        for (int i = 0; i < filter.length; i++) {
+            if (filter[i].equals("#")) return true;
+            if (i >= topic.length) return false;
+            if (!filter[i].equals("+") && !filter[i].equals(topic[i])) return false;
+        }
+        return filter.length == topic.length;
+    }
+
+    private void run() {
+        List<Message> batch = new ArrayList<>();
+        while (this.running || !this.queue.isEmpty()) {
+            try {
+                Message message = this.queue.poll(100, TimeUnit.MILLISECONDS);
+                if (message == null) continue;
+
+                // collect messages within the time window
+                batch.add(message);
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(this.interval);
+                while (batch.size() < this.batchSize) {
+                    if (this.queue.drainTo(batch, this.batchSize - batch.size()) > 0) continue;
+                    long wait = deadline - System.nanoTime();
+                    if (wait <= 0 || !this.running) break;
+                    message = this.queue.poll(wait, TimeUnit.NANOSECONDS);
+                    if (message != null) batch.add(message);
+                }
+
+                try {
+                    this.sink.accept(batch);
+                    this.sent.addAndGet(batch.size());
+                    this.batches.incrementAndGet();
+                    logger.trace("Passed a batch of {} messages to 3rd party application", batch.size());
+                } catch (Exception e) {
+                    this.failed.addAndGet(batch.size());
+                    logger.warn("Application pipeline error: Failed to pass {} messages to 3rd party application: {}", batch.size(), e.getMessage());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } finally {
+                batch = new ArrayList<>();
+            }
+        }
+    }
+
+    /**
+     * @return Number of messages waiting in the queue
+     */
+    public int getQueueSize() {
+        return this.queue.size();
+    }
+
+    /**
+     * @return Number of messages submitted
+     */
+    public long getSubmitted() {
+        return this.submitted.get();
+    }
+
+    /**
+     * @return Number of messages filtered out by type or topic
+     */
+    public long getFiltered() {
+        return this.filtered.get();
+    }
+
+    /**
+     * @return Number of messages skipped by sampling
+     */
+    public long getSampled() {
+        return this.sampled.get();
+    }
+
+    /**
+     * @return Number of messages dropped because the queue is full
+     */
+    public long getDropped() {
+        return this.dropped.get();
+    }
+
+    /**
+     * @return Number of times submitting waited for room in the queue, dropped messages included if still full
+     */
+    public long getBlocked() {
+        return this.blocked.get();
+    }
+
+    /**
+     * @return Number of messages passed to the sink
+     */
+    public long getSent() {
+        return this.sent.get();
+    }
+
+    /**
+     * @return Number of batches passed to the sink
+     */
+    public long getBatches() {
+        return this.batches.get();
+    }
+
+    /**
+     * @return Number of messages the sink failed to pass
+     */
+    public long getFailed() {
+        return this.failed.get();
+    }
+}
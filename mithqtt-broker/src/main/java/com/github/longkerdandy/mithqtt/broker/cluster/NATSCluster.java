@@ -1,22 +1,39 @@
 package com.github.longkerdandy.mithqtt.broker.cluster;
 
+import com.github.longkerdandy.mithqtt.api.auth.CachingAuthenticator;
 import com.github.longkerdandy.mithqtt.api.message.Message;
+import com.github.longkerdandy.mithqtt.api.message.MqttAdditionalHeader;
 import com.github.longkerdandy.mithqtt.api.message.MqttPublishPayload;
+import com.github.longkerdandy.mithqtt.api.message.MqttSubscribePayloadGranted;
+import com.github.longkerdandy.mithqtt.api.message.MqttTopicSubscriptionGranted;
+import com.github.longkerdandy.mithqtt.broker.metrics.Metrics;
+import com.github.longkerdandy.mithqtt.broker.session.InFlightStore;
 import com.github.longkerdandy.mithqtt.broker.session.SessionRegistry;
+import com.github.longkerdandy.mithqtt.broker.session.SubscriptionIndex;
 import com.github.longkerdandy.mithqtt.util.JSONs;
 import io.nats.client.Connection;
 import io.nats.client.ConnectionFactory;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelHandlerContext;
-import io.netty.handler.codec.mqtt.MqttMessage;
-import io.netty.handler.codec.mqtt.MqttPublishMessage;
-import io.netty.handler.codec.mqtt.MqttPublishVariableHeader;
+import io.netty.handler.codec.mqtt.*;
+import io.netty.util.CharsetUtil;
 import org.apache.commons.configuration.AbstractConfiguration;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
 
 import static io.nats.client.ConnectionFactory.*;
 
@@ -30,6 +47,24 @@ public class NATSCluster {
     // topics
     private String BROKER_TOPIC_PREFIX;
     private String APPLICATION_TOPIC;
+    // null unless the subscription index is enabled
+    private String INDEX_TOPIC;
+
+    protected String brokerId;
+    protected SessionRegistry registry;
+    protected InFlightStore inFlight;
+    // null unless the subscription index is enabled
+    protected SubscriptionIndex index;
+    // advertises the heartbeat and expires the brokers not heard from
+    private ScheduledExecutorService heartbeat;
+    // messages to 3rd party application
+    private ApplicationPipeline application;
+
+    // metrics
+    private LongAdder sent;
+    private LongAdder sentBytes;
+    private LongAdder received;
+    private LongAdder receivedBytes;
 
     // active connection to NATS
     private Connection conn;
@@ -37,16 +72,27 @@ public class NATSCluster {
     /**
      * Initialize
      *
-     * @param config Cluster configuration
+     * @param config   Cluster configuration
+     * @param brokerId Broker Id
+     * @param registry Session Registry
+     * @param inFlight In-Flight message store
+     * @param metrics  Metrics
      * @throws IOException      if the connection with NATS cannot be established for some reason.
      * @throws TimeoutException if the connection with NATS timeout has been exceeded.
      */
-    public void init(AbstractConfiguration config, String brokerId, SessionRegistry registry) throws IOException, TimeoutException {
+    public void init(AbstractConfiguration config, String brokerId, SessionRegistry registry, InFlightStore inFlight, Metrics metrics) throws IOException, TimeoutException {
         logger.trace("Loading cluster configurations ...");
 
         // Topics for broker and application
         BROKER_TOPIC_PREFIX = config.getString("broker.topic");
         APPLICATION_TOPIC = config.getString("application.topic");
+        this.brokerId = brokerId;
+        this.registry = registry;
+        this.inFlight = inFlight;
+        this.sent = metrics.counter("cluster.sent");
+        this.sentBytes = metrics.counter("cluster.sent.bytes");
+        this.received = metrics.counter("cluster.received");
+        this.receivedBytes = metrics.counter("cluster.received.bytes");
 
         // Setup options to include all servers in the cluster
         ConnectionFactory cf = new ConnectionFactory();
@@ -64,6 +110,34 @@ public class NATSCluster {
         // Create connection to the NATS servers
         this.conn = cf.createConnection();
 
+        // Messages to 3rd party application are filtered, sampled and sent in batches by a dedicated thread
+        Map<MqttMessageType, Double> typeRates = new EnumMap<>(MqttMessageType.class);
+        for (String type : config.getStringArray("application.events")) {
+            typeRates.put(MqttMessageType.valueOf(type.trim().toUpperCase()), config.getDouble("application.sample." + type.trim().toUpperCase(), 1));
+        }
+        if (typeRates.isEmpty()) {
+            for (MqttMessageType type : MqttMessageType.values()) typeRates.put(type, config.getDouble("application.sample." + type, 1));
+        }
+        Map<String, Double> topicRates = new HashMap<>();
+        Iterator<String> keys = config.getKeys("application.sample.topic");
+        while (keys.hasNext()) {
+            String key = keys.next();
+            topicRates.put(key.substring("application.sample.topic.".length()), config.getDouble(key));
+        }
+        this.application = new ApplicationPipeline(this::publishToApplication,
+                config.getInt("application.queue.capacity", 65536), config.getInt("application.batch.size", 1),
+                config.getLong("application.batch.interval", 0), config.getLong("application.queue.block.timeout", 0),
+                typeRates, topicRates);
+        metrics.gauge("application.queue", this.application::getQueueSize);
+        metrics.gauge("application.submitted", this.application::getSubmitted);
+        metrics.gauge("application.filtered", this.application::getFiltered);
+        metrics.gauge("application.sampled", this.application::getSampled);
+        metrics.gauge("application.dropped", this.application::getDropped);
+        metrics.gauge("application.blocked", this.application::getBlocked);
+        metrics.gauge("application.sent", this.application::getSent);
+        metrics.gauge("application.batches", this.application::getBatches);
+        metrics.gauge("application.failed", this.application::getFailed);
+
         String brokerTopic = BROKER_TOPIC_PREFIX + "." + brokerId;
 
         logger.trace("Subscribe to topic {} ...", brokerTopic);
@@ -71,42 +145,259 @@ public class NATSCluster {
         this.conn.subscribeAsync(brokerTopic, msg -> {
             try {
                 logger.trace("Received message from NATS topic {}", msg.getSubject());
+                received(msg.getData());
 
                 // decode message
                 Message m = JSONs.decodeMessage(msg.getData());
 
                 // handle message
-                if (m != null) {
-                    logger.debug("Cluster received: Received {} message for client {}", m.fixedHeader().messageType(), m.additionalHeader().clientId());
-                    switch (m.fixedHeader().messageType()) {
-                        // PUBLISH message will be received when subscriber is connected to this node and publisher is connected to another node
-                        case PUBLISH:
-                            MqttPublishVariableHeader variableHeader = (MqttPublishVariableHeader) m.variableHeader();
-                            MqttPublishPayload payload = (MqttPublishPayload) m.payload();
-                            MqttMessage mqtt = new MqttPublishMessage(m.fixedHeader(), variableHeader,
-                                    (payload != null && payload.bytes() != null && payload.bytes().length > 0) ?
-                                            Unpooled.wrappedBuffer(payload.bytes()) : Unpooled.EMPTY_BUFFER);
-                            logger.trace("Send PUBLISH message to client {}", m.additionalHeader().clientId());
-                            registry.sendMessage(mqtt, m.additionalHeader().clientId(), variableHeader.packetId(), true);
-                            break;
-                        // DISCONNECT message will be received when client with the same id connected to another node
-                        case DISCONNECT:
-                            ChannelHandlerContext ctx = registry.removeSession(m.additionalHeader().clientId());
-                            if (ctx != null) {
-                                logger.trace("Try to disconnect connected client {}", m.additionalHeader().clientId());
-                                ctx.close();
-                            } else {
-                                logger.trace("Client {} no longer connected to this node", m.additionalHeader().clientId());
-                            }
-                            break;
-                        default:
-                            logger.warn("Cluster Error: Received message with unknown type {}", m.fixedHeader().messageType());
+                if (m != null) onMessage(m);
+            } catch (IOException e) {
+                logger.warn("Cluster Error: Error when decoding or handling the message", e);
+            }
+        });
+    }
+
+    /**
+     * Handle the message sent to this broker by the other brokers
+     *
+     * @param m Mqtt Message (internal format)
+     */
+    void onMessage(Message m) {
+        logger.debug("Cluster received: Received {} message for client {}", m.fixedHeader().messageType(), m.additionalHeader().clientId());
+        switch (m.fixedHeader().messageType()) {
+            // PUBLISH message will be received when subscriber is connected to this node and publisher is connected to another node
+            case PUBLISH:
+                MqttPublishVariableHeader variableHeader = (MqttPublishVariableHeader) m.variableHeader();
+                MqttPublishPayload payload = (MqttPublishPayload) m.payload();
+                // Sessions not kept in the storage get the packet id from the broker they connected to
+                if (m.fixedHeader().qos() != MqttQoS.AT_MOST_ONCE && variableHeader.packetId() <= 0) {
+                    int pid = this.registry.nextPacketId(m.additionalHeader().clientId(), this.inFlight);
+                    if (pid <= 0) {
+                        logger.trace("Client {} no longer connected to this node, or no packet id available", m.additionalHeader().clientId());
+                        break;
+                    }
+                    variableHeader = MqttPublishVariableHeader.from(variableHeader.topicName(), pid);
+                    m = new Message<>(m.fixedHeader(), m.additionalHeader(), variableHeader, payload);
+                }
+                MqttMessage mqtt = new MqttPublishMessage(m.fixedHeader(), variableHeader,
+                        (payload != null && payload.bytes() != null && payload.bytes().length > 0) ?
+                                Unpooled.wrappedBuffer(payload.bytes()) : Unpooled.EMPTY_BUFFER);
+                if (m.fixedHeader().qos() != MqttQoS.AT_MOST_ONCE) {
+                    this.inFlight.add(m.additionalHeader().clientId(), variableHeader.packetId(), m);
+                }
+                logger.trace("Send PUBLISH message to client {}", m.additionalHeader().clientId());
+                this.registry.sendMessage(mqtt, m.additionalHeader().clientId(), variableHeader.packetId(), true);
+                break;
+            // SUBSCRIBE and UNSUBSCRIBE messages will be received when the subscriptions of the client connected
+            // to this node are changed by the HTTP interface
+            case SUBSCRIBE:
+            case UNSUBSCRIBE:
+                String clientId = m.additionalHeader().clientId();
+                if (this.index == null || this.registry.getSession(clientId) == null) {
+                    logger.trace("Client {} no longer connected to this node", clientId);
+                    break;
+                }
+                if (m.fixedHeader().messageType() == MqttMessageType.SUBSCRIBE) {
+                    for (MqttTopicSubscriptionGranted subscription : ((MqttSubscribePayloadGranted) m.payload()).subscriptions()) {
+                        if (subscription.grantedQos() != MqttGrantedQoS.NOT_GRANTED) {
+                            this.index.subscribe(clientId, this.brokerId, subscription.topic(), MqttQoS.valueOf(subscription.grantedQos().value()));
+                        }
+                    }
+                } else {
+                    ((MqttUnsubscribePayload) m.payload()).topics().forEach(t -> this.index.unsubscribe(clientId, t));
+                }
+                advertise(new Message<>(m.fixedHeader(),
+                        new MqttAdditionalHeader(m.additionalHeader().version(), clientId, m.additionalHeader().userName(), this.brokerId),
+                        m.variableHeader(), m.payload()));
+                break;
+            // PINGREQ message will be received when another node expired this node, but heard from it again
+            case PINGREQ:
+                if (this.index != null) this.index.getBrokerSubscriptions(this.brokerId).forEach(this::advertiseSubscriptions);
+                break;
+            // DISCONNECT message will be received when client with the same id connected to another node
+            case DISCONNECT:
+                ChannelHandlerContext ctx = this.registry.removeSession(m.additionalHeader().clientId());
+                if (ctx != null) {
+                    logger.trace("Try to disconnect connected client {}", m.additionalHeader().clientId());
+                    ctx.close();
+                } else {
+                    logger.trace("Client {} no longer connected to this node", m.additionalHeader().clientId());
+                }
+                break;
+            default:
+                logger.warn("Cluster Error: Received message with unknown type {}", m.fixedHeader().messageType());
+        }
+    }
+
+    /**
+     * Handle the advertisement from another broker to the subscription index
+     *
+     * @param m Mqtt Message (internal format)
+     */
+    void onAdvertisement(Message m) {
+        String clientId = m.additionalHeader().clientId();
+        String brokerId = m.additionalHeader().brokerId();
+        logger.debug("Cluster received: Received {} advertisement for client {} from broker {}", m.fixedHeader().messageType(), clientId, brokerId);
+        if (this.index.heartbeat(brokerId, System.currentTimeMillis())) {
+            logger.info("Cluster: Broker {} heard from again after expired, ask for its subscriptions", brokerId);
+            sendToBroker(brokerId, new Message<>(new MqttFixedHeader(MqttMessageType.PINGREQ, false, MqttQoS.AT_MOST_ONCE, false, 0),
+                    new MqttAdditionalHeader(MqttVersion.MQTT_3_1_1, null, null, this.brokerId), null, null));
+        }
+        switch (m.fixedHeader().messageType()) {
+            case CONNECT:
+                this.index.disconnect(clientId, null);
+                ChannelHandlerContext ctx = this.registry.removeSession(clientId);
+                if (ctx != null) {
+                    logger.trace("Try to disconnect client {} connected to broker {}", clientId, brokerId);
+                    ctx.close();
+                }
+                break;
+            case SUBSCRIBE:
+                for (MqttTopicSubscriptionGranted subscription : ((MqttSubscribePayloadGranted) m.payload()).subscriptions()) {
+                    if (subscription.grantedQos() != MqttGrantedQoS.NOT_GRANTED) {
+                        this.index.subscribe(clientId, brokerId, subscription.topic(), MqttQoS.valueOf(subscription.grantedQos().value()));
                     }
                 }
+                break;
+            case UNSUBSCRIBE:
+                ((MqttUnsubscribePayload) m.payload()).topics().forEach(t -> this.index.unsubscribe(clientId, t));
+                break;
+            case DISCONNECT:
+                if (clientId != null) this.index.disconnect(clientId, brokerId);
+                else this.index.removeBroker(brokerId);
+                break;
+            case PINGREQ:
+                this.index.getBrokerSubscriptions(this.brokerId).forEach(this::advertiseSubscriptions);
+                break;
+            case PINGRESP:
+                break;
+            default:
+                logger.warn("Cluster Error: Received advertisement with unknown type {}", m.fixedHeader().messageType());
+        }
+    }
+
+    /**
+     * Drop cached authorization decisions when requested over the cluster
+     * Message is the user name whose decisions should be dropped, or empty to drop all the decisions
+     *
+     * @param topic         Topic of the invalidation requests
+     * @param authenticator Caching Authenticator
+     */
+    public void subscribeAuthInvalidation(String topic, CachingAuthenticator authenticator) {
+        logger.trace("Subscribe to topic {} ...", topic);
+
+        this.conn.subscribeAsync(topic, msg -> {
+            String userName = msg.getData() != null ? new String(msg.getData(), CharsetUtil.UTF_8) : "";
+            if (userName.isEmpty()) {
+                logger.debug("Cluster received: Invalidate all the cached authorization decisions");
+                authenticator.invalidateAll();
+            } else {
+                logger.debug("Cluster received: Invalidate cached authorization decisions for user {}", userName);
+                authenticator.invalidate(userName);
+            }
+        });
+    }
+
+    /**
+     * Keep the subscription index in sync with the other brokers
+     * Brokers advertise the subscriptions of their connected clients as CONNECT, SUBSCRIBE, UNSUBSCRIBE and DISCONNECT
+     * messages, a DISCONNECT message without client id means the broker is shutting down. CONNECT replaces the client's
+     * subscriptions and disconnects the client from this broker, as sessions not kept in the storage are only known
+     * to the index. A broker advertises PINGREQ when it starts, the other brokers respond by advertising all the
+     * subscriptions of their connected clients.
+     * <p>
+     * A broker crashed can't advertise its shutdown, so brokers advertise PINGRESP as heartbeat. The subscriptions of
+     * a broker not heard from within the timeout are removed from the index. If it is heard from again, it is asked
+     * to advertise its subscriptions by a PINGREQ message sent to it.
+     *
+     * @param topic             Topic of the advertisements
+     * @param index             Subscription Index
+     * @param heartbeatInterval Heartbeat interval in seconds, 0 to disable heartbeat and expiry
+     * @param heartbeatTimeout  Time in seconds a broker not heard from expires
+     */
+    public void subscribeIndex(String topic, SubscriptionIndex index, int heartbeatInterval, int heartbeatTimeout) {
+        INDEX_TOPIC = topic;
+        this.index = index;
+
+        logger.trace("Subscribe to topic {} ...", topic);
+
+        this.conn.subscribeAsync(topic, msg -> {
+            try {
+                received(msg.getData());
+                Message m = JSONs.decodeMessage(msg.getData());
+                // ignore the advertisements from this broker, already in the index
+                if (m == null || this.brokerId.equals(m.additionalHeader().brokerId())) return;
+
+                onAdvertisement(m);
             } catch (IOException e) {
-                logger.warn("Cluster Error: Error when decoding or handling the message", e);
+                logger.warn("Cluster Error: Error when decoding or handling the advertisement", e);
             }
         });
+
+        // ask the other brokers for their subscriptions
+        advertise(new Message<>(new MqttFixedHeader(MqttMessageType.PINGREQ, false, MqttQoS.AT_MOST_ONCE, false, 0),
+                new MqttAdditionalHeader(MqttVersion.MQTT_3_1_1, null, null, this.brokerId), null, null));
+
+        if (heartbeatInterval <= 0) return;
+        this.heartbeat = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "index-heartbeat");
+            t.setDaemon(true);
+            return t;
+        });
+        this.heartbeat.scheduleWithFixedDelay(() -> {
+            try {
+                advertise(new Message<>(new MqttFixedHeader(MqttMessageType.PINGRESP, false, MqttQoS.AT_MOST_ONCE, false, 0),
+                        new MqttAdditionalHeader(MqttVersion.MQTT_3_1_1, null, null, this.brokerId), null, null));
+                index.expire(System.currentTimeMillis() - TimeUnit.SECONDS.toMillis(heartbeatTimeout)).forEach(b ->
+                        logger.warn("Cluster Error: Broker {} not heard from for {} seconds, its subscriptions have been removed from the index", b, heartbeatTimeout));
+            } catch (Exception e) {
+                logger.warn("Cluster Error: Heartbeat failed: {}", e.getMessage());
+            }
+        }, heartbeatInterval, heartbeatInterval, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Advertise the client's subscriptions to the other brokers' subscription index
+     *
+     * @param clientId      Client Id
+     * @param subscriptions Subscriptions: Key - Topic Filter, Value - QoS
+     */
+    public void advertiseSubscriptions(String clientId, Map<String, MqttQoS> subscriptions) {
+        if (subscriptions.isEmpty()) return;
+        List<MqttTopicSubscriptionGranted> granted = new ArrayList<>();
+        subscriptions.forEach((topic, qos) -> granted.add(new MqttTopicSubscriptionGranted(topic, MqttGrantedQoS.valueOf(qos.value()))));
+        // packet id is not used
+        advertise(new Message<>(new MqttFixedHeader(MqttMessageType.SUBSCRIBE, false, MqttQoS.AT_LEAST_ONCE, false, 0),
+                new MqttAdditionalHeader(MqttVersion.MQTT_3_1_1, clientId, null, this.brokerId),
+                MqttPacketIdVariableHeader.from(1), new MqttSubscribePayloadGranted(granted)));
+    }
+
+    /**
+     * Advertise the client disconnected from this broker to the other brokers' subscription index
+     * Only the client's subscriptions advertised by this broker are removed.
+     *
+     * @param clientId Client Id, null if this broker is shutting down
+     */
+    public void advertiseDisconnect(String clientId) {
+        advertise(new Message<>(new MqttFixedHeader(MqttMessageType.DISCONNECT, false, MqttQoS.AT_MOST_ONCE, false, 0),
+                new MqttAdditionalHeader(MqttVersion.MQTT_3_1_1, clientId, null, this.brokerId), null, null));
+    }
+
+    /**
+     * Advertise the message to the other brokers' subscription index
+     * CONNECT, SUBSCRIBE and UNSUBSCRIBE messages from the clients are advertised as they are passed to the 3rd party
+     * application
+     *
+     * @param message Mqtt Message (internal format)
+     */
+    public void advertise(Message message) {
+        if (INDEX_TOPIC == null) return;
+        try {
+            publish(INDEX_TOPIC, JSONs.Mapper.writeValueAsBytes(message));
+        } catch (IOException e) {
+            logger.warn("Cluster Error: Failed to send message {} to topic {}: ", message.fixedHeader().messageType(), INDEX_TOPIC, e);
+        }
     }
 
     /**
@@ -115,6 +406,11 @@ public class NATSCluster {
     public void destroy() {
         logger.trace("Closing connection with NATS servers ...");
 
+        // remove the subscriptions of this broker's clients from the other brokers' subscription index
+        if (this.heartbeat != null) this.heartbeat.shutdownNow();
+        if (this.conn != null) advertiseDisconnect(null);
+        // pass the queued messages to 3rd party application
+        if (this.application != null) this.application.destroy();
         if (this.conn != null) this.conn.close();
     }
 
@@ -127,7 +423,7 @@ public class NATSCluster {
     public void sendToBroker(String brokerId, Message message) {
         String brokerTopic = BROKER_TOPIC_PREFIX + "." + brokerId;
         try {
-            this.conn.publish(brokerTopic, JSONs.Mapper.writeValueAsBytes(message));
+            publish(brokerTopic, JSONs.Mapper.writeValueAsBytes(message));
         } catch (IOException e) {
             logger.warn("Cluster Error: Failed to send message {} to topic {}: ", message.fixedHeader().messageType(), brokerTopic, e);
         }
@@ -135,14 +431,46 @@ public class NATSCluster {
 
     /**
      * Send message to 3rd party application
+     * Message is queued and sent asynchronously, see {@link ApplicationPipeline}
      *
      * @param message Mqtt Message (internal format)
      */
     public void sendToApplication(Message message) {
+        this.application.submit(message);
+    }
+
+    /**
+     * Get the pipeline of the messages to 3rd party application
+     *
+     * @return Application Pipeline
+     */
+    public ApplicationPipeline getApplicationPipeline() {
+        return this.application;
+    }
+
+    /**
+     * Send a batch of messages to 3rd party application as one frame
+     * Single message is sent as it is, multiple messages are sent as a json array, see {@link JSONs#decodeMessages(byte[])}
+     *
+     * @param messages Mqtt Messages (internal format)
+     * @throws UncheckedIOException if the messages cannot be serialized
+     */
+    private void publishToApplication(List<Message> messages) {
         try {
-            this.conn.publish(APPLICATION_TOPIC, JSONs.Mapper.writeValueAsBytes(message));
+            publish(APPLICATION_TOPIC, JSONs.Mapper.writeValueAsBytes(messages.size() == 1 ? messages.get(0) : messages));
         } catch (IOException e) {
-            logger.warn("Cluster Error: Failed to send message {} to topic {}: ", message.fixedHeader().messageType(), APPLICATION_TOPIC, e);
+            throw new UncheckedIOException(e);
         }
     }
+
+    private void publish(String topic, byte[] data) throws IOException {
+        this.conn.publish(topic, data);
+        this.sent.increment();
+        this.sentBytes.add(data.length);
+    }
+
+    private void received(byte[] data) {
+        this.received.increment();
+        if (data != null) this.receivedBytes.add(data.length);
+    }
 }
@@ -0,0 +1,183 @@
+package com.github.longkerdandy.mithqtt.broker.handler;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.EventLoop;
+import io.netty.handler.timeout.IdleStateEvent;
+import io.netty.util.AttributeKey;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keep Alive tracker shared by all the connections
+ * <p>
+ * Each event loop owns a hashed wheel, swept by a single periodic task. Reading from a channel only records the
+ * current tick as its last activity, nothing is rescheduled. When the wheel reaches a channel's deadline, it is either
+ * re-bucketed by its last activity or considered idle, in which case an {@link IdleStateEvent} with
+ * {@link io.netty.handler.timeout.IdleState#ALL_IDLE} state is fired on its pipeline, just like IdleStateHandler.
+ * The wheel is only accessed from its own event loop, so no synchronization is needed.
+ */
+@ChannelHandler.Sharable
+public class KeepAliveTracker extends ChannelInboundHandlerAdapter {
+
+    // Wheel size, must be power of 2
+    private static final int WHEEL_SIZE = 512;
+    private static final AttributeKey<Entry> ENTRY = AttributeKey.valueOf(KeepAliveTracker.class, "ENTRY");
+
+    // Tick duration in milliseconds
+    private final long tick;
+    // Default time in milliseconds the connection is permitted to be idled, before CONNECT
+    private final long timeout;
+    // Wheels by event loop
+    private final Map<EventLoop, Wheel> wheels = new ConcurrentHashMap<>();
+
+    /**
+     * Tracked channel, linked in a wheel bucket
+     */
+    private static class Entry {
+        final Channel channel;
+        final Wheel wheel;
+        // idle timeout and last activity in ticks
+        long timeout;
+        long last;
+        // bucket index, -1 if not linked
+        int bucket = -1;
+        Entry prev;
+        Entry next;
+
+        Entry(Channel channel, Wheel wheel) {
+            this.channel = channel;
+            this.wheel = wheel;
+        }
+    }
+
+    /**
+     * Hashed wheel of an event loop
+     */
+    private static class Wheel implements Runnable {
+        final Entry[] buckets = new Entry[WHEEL_SIZE];
+        // ticks elapsed since the wheel was created
+        long tick;
+
+        void add(Entry e) {
+            long deadline = Math.max(e.last + e.timeout, this.tick + 1);
+            int i = (int) (deadline & (WHEEL_SIZE - 1));
+            e.bucket = i;
+            e.prev = null;
+            e.next = this.buckets[i];
+            if (e.next != null) e.next.prev = e;
+            this.buckets[i] = e;
+        }
+
+        void remove(Entry e) {
+            if (e.bucket < 0) return;
+            if (e.prev != null) e.prev.next = e.next;
+            else this.buckets[e.bucket] = e.next;
+            if (e.next != null) e.next.prev = e.prev;
+            e.bucket = -1;
+            e.prev = null;
+            e.next = null;
+        }
+
+        @Override
+        public void run() {
+            this.tick++;
+            int i = (int) (this.tick & (WHEEL_SIZE - 1));
+            Entry e = this.buckets[i];
+            this.buckets[i] = null;
+            while (e != null) {
+                Entry next = e.next;
+                e.bucket = -1;
+                e.prev = null;
+                e.next = null;
+                if (this.tick - e.last >= e.timeout) {
+                    // fire again after another timeout if the channel is still open
+                    e.last = this.tick;
+                    add(e);
+                    e.channel.pipeline().fireUserEventTriggered(IdleStateEvent.ALL_IDLE_STATE_EVENT);
+                } else {
+                    add(e);
+                }
+                e = next;
+            }
+        }
+    }
+
+    /**
+     * Create the tracker
+     *
+     * @param tick    Tick duration in milliseconds
+     * @param timeout Default time in milliseconds the connection is permitted to be idled, before CONNECT
+     */
+    public KeepAliveTracker(long tick, long timeout) {
+        this.tick = tick;
+        this.timeout = timeout;
+    }
+
+    /**
+     * Track the channel with the specified idle timeout, replace the existing one
+     *
+     * @param channel Channel
+     * @param timeout Time in milliseconds the connection is permitted to be idled, 0 to stop tracking
+     */
+    public void track(Channel channel, long timeout) {
+        if (!channel.eventLoop().inEventLoop()) {
+            channel.eventLoop().execute(() -> track(channel, timeout));
+            return;
+        }
+        if (!channel.isActive()) return;
+
+        Entry e = channel.attr(ENTRY).get();
+        if (e == null) {
+            Wheel wheel = this.wheels.computeIfAbsent(channel.eventLoop(), loop -> {
+                Wheel w = new Wheel();
+                loop.scheduleAtFixedRate(w, this.tick, this.tick, TimeUnit.MILLISECONDS);
+                return w;
+            });
+            e = new Entry(channel, wheel);
+            channel.attr(ENTRY).set(e);
+        } else {
+            e.wheel.remove(e);
+        }
+        if (timeout <= 0) {
+            channel.attr(ENTRY).set(null);
+            return;
+        }
+        e.timeout = Math.max(1, (timeout + this.tick - 1) / this.tick);
+        e.last = e.wheel.tick;
+        e.wheel.add(e);
+    }
+
+    /**
+     * Stop tracking the channel
+     *
+     * @param channel Channel
+     */
+    public void untrack(Channel channel) {
+        Entry e = channel.attr(ENTRY).getAndSet(null);
+        if (e != null) e.wheel.remove(e);
+    }
+
+    @Override
+    public void channelActive(ChannelHandlerContext ctx) throws Exception {
+        track(ctx.channel(), this.timeout);
+        super.channelActive(ctx);
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        Entry e = ctx.channel().attr(ENTRY).get();
+        if (e != null) e.last = e.wheel.tick;
+        super.channelRead(ctx, msg);
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        untrack(ctx.channel());
+        super.channelInactive(ctx);
+    }
+}
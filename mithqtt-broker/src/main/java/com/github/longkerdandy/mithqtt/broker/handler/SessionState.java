@@ -0,0 +1,215 @@
+package com.github.longkerdandy.mithqtt.broker.handler;
+
+import com.github.longkerdandy.mithqtt.broker.session.PublishStream;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.mqtt.*;
+import io.netty.util.AttributeKey;
+import io.netty.util.ReferenceCountUtil;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.List;
+import java.util.function.BiConsumer;
+import java.util.stream.Collectors;
+
+/**
+ * Per connection MQTT session state, kept as a channel attribute
+ * <p>
+ * The logic handler is shared by all the connections, so this is the only heap the handler adds to a connection.
+ * Fields are kept to the minimum, and the optional parts (Will Message, QoS 2 packet ids) are only allocated when
+ * used. Target: the broker keeps less than 1 KB of heap for an idle connected client, counting the pipeline (handler
+ * contexts, decoder), this state and the client's entries in the session registry, in-flight store and keep alive
+ * tracker, excluding the Netty channel itself and socket buffers. The in-flight window only allocates its maps on the
+ * first QoS 1 or 2 delivery.
+ */
+class SessionState {
+
+    static final AttributeKey<SessionState> KEY = AttributeKey.valueOf(SessionState.class, "KEY");
+
+    MqttVersion version;
+    String clientId;
+    String userName;
+    boolean connected;
+    boolean cleanSession;
+    // clean session kept in broker memory only, nothing stored
+    boolean memory;
+    int keepAlive;
+    // last time the client's connected broker node was refreshed, in milliseconds
+    long refreshed;
+    // null if the client has no Will Message
+    Will will;
+    // unacknowledged qos 2 PUBLISH message's packet id from the client, indexed by packet id
+    // kept in memory while connected, only persisted to redis when connection lost
+    // null until the first qos 2 PUBLISH message received
+    // may be handed over to a new connection of the same client on another event loop, so guarded by this
+    private BitSet qos2Ids;
+    // packet ids in redis as far as this connection knows, only the changes since are persisted
+    // null until loaded or persisted
+    private BitSet storedQoS2Ids;
+    // deliveries of the PUBLISH message being streamed from the client
+    // null unless a streamed PUBLISH message is being received
+    List<PublishStream> streams;
+    // waiting for the authenticator, messages received meanwhile are deferred
+    boolean authorizing;
+    // null until the first message deferred
+    private ArrayDeque<MqttMessage> deferred;
+
+    /**
+     * Will Message, kept as received in CONNECT and only turned into a PUBLISH message when published
+     */
+    static class Will {
+        final String topic;
+        final String message;
+        final MqttQoS qos;
+        final boolean retain;
+
+        Will(String topic, String message, MqttQoS qos, boolean retain) {
+            this.topic = topic;
+            this.message = message;
+            this.qos = qos;
+            this.retain = retain;
+        }
+
+        MqttPublishMessage toMqttMessage() {
+            return (MqttPublishMessage) MqttMessageFactory.newMessage(
+                    new MqttFixedHeader(MqttMessageType.PUBLISH, false, this.qos, this.retain, 0),
+                    MqttPublishVariableHeader.from(this.topic),
+                    Unpooled.wrappedBuffer(this.message.getBytes())
+            );
+        }
+    }
+
+    SessionState(int keepAlive) {
+        this.keepAlive = keepAlive;
+    }
+
+    /**
+     * Mark qos 2 PUBLISH message's packet id as unacknowledged
+     *
+     * @param packetId Packet Id
+     * @return True if the packet id was not marked before
+     */
+    synchronized boolean addQoS2Id(int packetId) {
+        if (this.qos2Ids == null) this.qos2Ids = new BitSet();
+        if (this.qos2Ids.get(packetId)) return false;
+        this.qos2Ids.set(packetId);
+        return true;
+    }
+
+    /**
+     * Mark qos 2 PUBLISH message's packet id as acknowledged
+     *
+     * @param packetId Packet Id
+     * @return True if the packet id was marked before
+     */
+    synchronized boolean removeQoS2Id(int packetId) {
+        if (this.qos2Ids == null || !this.qos2Ids.get(packetId)) return false;
+        this.qos2Ids.clear(packetId);
+        return true;
+    }
+
+    /**
+     * Mark qos 2 PUBLISH message's packet id as found in redis, persisted by another connection of the client
+     *
+     * @param packetId Packet Id
+     */
+    synchronized void addStoredQoS2Id(int packetId) {
+        if (this.storedQoS2Ids == null) this.storedQoS2Ids = new BitSet();
+        this.storedQoS2Ids.set(packetId);
+    }
+
+    /**
+     * Get all unacknowledged qos 2 PUBLISH message's packet ids
+     *
+     * @return Packet Ids
+     */
+    synchronized List<Integer> getQoS2Ids() {
+        List<Integer> ids = new ArrayList<>();
+        if (this.qos2Ids != null) this.qos2Ids.stream().forEach(ids::add);
+        return ids;
+    }
+
+    /**
+     * Load the unacknowledged qos 2 PUBLISH message's packet ids when connected
+     * If the former connection of the client is still open on this broker, its packet ids not persisted yet are
+     * handed over, so the former connection is not required to persist them before this one loads.
+     *
+     * @param stored Packet Ids in redis
+     * @param former Session State of the former connection, may be null
+     */
+    void loadQoS2Ids(Collection<Integer> stored, SessionState former) {
+        BitSet s = new BitSet();
+        stored.forEach(s::set);
+        BitSet ids = former != null ? former.handOverQoS2Ids(s) : (BitSet) s.clone();
+        synchronized (this) {
+            this.storedQoS2Ids = s;
+            this.qos2Ids = ids;
+        }
+    }
+
+    /**
+     * Hand over the unacknowledged qos 2 PUBLISH message's packet ids to a new connection of the client
+     * The former connection knows better about the packet ids it has seen, the stored ones it never knew are kept.
+     * Only changes made after are persisted by the former connection.
+     *
+     * @param stored Packet Ids in redis, loaded by the new connection
+     * @return Packet Ids of the new connection
+     */
+    private synchronized BitSet handOverQoS2Ids(BitSet stored) {
+        BitSet ids = (BitSet) stored.clone();
+        if (this.storedQoS2Ids != null) ids.andNot(this.storedQoS2Ids);
+        if (this.qos2Ids != null) ids.or(this.qos2Ids);
+        this.storedQoS2Ids = this.qos2Ids != null ? (BitSet) this.qos2Ids.clone() : new BitSet();
+        return ids;
+    }
+
+    /**
+     * Persist the changes of the unacknowledged qos 2 PUBLISH message's packet ids since loaded or last persisted
+     * Only the changes are written, so they merge with the changes persisted by other connections of the client.
+     * The update is skipped if nothing changed.
+     *
+     * @param update Update the storage with the added and removed packet ids, in a single call
+     */
+    synchronized void persistQoS2Ids(BiConsumer<List<Integer>, List<Integer>> update) {
+        BitSet ids = this.qos2Ids != null ? this.qos2Ids : new BitSet();
+        BitSet stored = this.storedQoS2Ids != null ? this.storedQoS2Ids : new BitSet();
+        BitSet added = (BitSet) ids.clone();
+        added.andNot(stored);
+        BitSet removed = (BitSet) stored.clone();
+        removed.andNot(ids);
+        if (!added.isEmpty() || !removed.isEmpty()) {
+            update.accept(added.stream().boxed().collect(Collectors.toList()), removed.stream().boxed().collect(Collectors.toList()));
+        }
+        this.storedQoS2Ids = (BitSet) ids.clone();
+    }
+
+    /**
+     * Defer the message until the authorization completed
+     *
+     * @param msg MQTT Message, retained
+     */
+    void defer(MqttMessage msg) {
+        if (this.deferred == null) this.deferred = new ArrayDeque<>();
+        this.deferred.add(msg);
+    }
+
+    /**
+     * Get the next deferred message
+     *
+     * @return MQTT Message, null if no more
+     */
+    MqttMessage nextDeferred() {
+        return this.deferred != null ? this.deferred.poll() : null;
+    }
+
+    /**
+     * Release all the deferred messages
+     */
+    void releaseDeferred() {
+        if (this.deferred == null) return;
+        MqttMessage msg;
+        while ((msg = this.deferred.poll()) != null) ReferenceCountUtil.release(msg);
+    }
+}
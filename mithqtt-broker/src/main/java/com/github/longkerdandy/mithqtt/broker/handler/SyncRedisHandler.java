@@ -1,24 +1,36 @@
 package com.github.longkerdandy.mithqtt.broker.handler;
 
-import com.github.longkerdandy.mithqtt.api.auth.Authenticator;
+import com.github.longkerdandy.mithqtt.api.auth.AsyncAuthenticator;
 import com.github.longkerdandy.mithqtt.api.auth.AuthorizeResult;
 import com.github.longkerdandy.mithqtt.api.message.Message;
 import com.github.longkerdandy.mithqtt.api.message.MqttAdditionalHeader;
 import com.github.longkerdandy.mithqtt.api.message.MqttPublishPayload;
 import com.github.longkerdandy.mithqtt.broker.cluster.NATSCluster;
+import com.github.longkerdandy.mithqtt.broker.metrics.Metrics;
+import com.github.longkerdandy.mithqtt.broker.session.GroupCommitter;
+import com.github.longkerdandy.mithqtt.broker.session.InFlightStore;
+import com.github.longkerdandy.mithqtt.broker.session.PublishStream;
+import com.github.longkerdandy.mithqtt.broker.session.ReadPause;
 import com.github.longkerdandy.mithqtt.broker.session.SessionRegistry;
+import com.github.longkerdandy.mithqtt.broker.session.SharedDelivery;
+import com.github.longkerdandy.mithqtt.broker.session.SubscriptionIndex;
 import com.github.longkerdandy.mithqtt.broker.util.Validator;
 import com.github.longkerdandy.mithqtt.storage.redis.ConnectionState;
+import com.github.longkerdandy.mithqtt.storage.redis.sync.InstrumentedRedisSyncStorage;
 import com.github.longkerdandy.mithqtt.storage.redis.sync.RedisSyncStorage;
+import com.github.longkerdandy.mithqtt.util.Histogram;
+import com.github.longkerdandy.mithqtt.util.SharedSubscriptions;
 import com.github.longkerdandy.mithqtt.util.Topics;
 import com.github.longkerdandy.mithqtt.util.UUIDs;
-import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
 import io.netty.handler.codec.mqtt.*;
+import io.netty.handler.stream.ChunkedWriteHandler;
 import io.netty.handler.timeout.IdleState;
 import io.netty.handler.timeout.IdleStateEvent;
-import io.netty.handler.timeout.IdleStateHandler;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.ReferenceCounted;
 import org.apache.commons.lang3.ArrayUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.exception.ExceptionUtils;
@@ -26,44 +38,76 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
 
 /**
  * Synchronous MQTT Handler using Redis
+ * <p>
+ * One instance is shared by all the connections, per connection session state is kept in {@link SessionState}
  */
+@ChannelHandler.Sharable
 public class SyncRedisHandler extends SimpleChannelInboundHandler<MqttMessage> {
 
     private static final Logger logger = LoggerFactory.getLogger(SyncRedisHandler.class);
 
-    private final Authenticator authenticator;
+    private final AsyncAuthenticator authenticator;
     private final NATSCluster cluster;
     private final RedisSyncStorage redis;
     private final SessionRegistry registry;
+    private final InFlightStore inFlight;
+    private final SharedDelivery shared;
+    // null if the subscription index is disabled
+    private final SubscriptionIndex index;
+    // null if durable acknowledgement is disabled
+    private final GroupCommitter committer;
+    private final KeepAliveTracker keepAliveTracker;
     private final Validator validator;
 
-    // session state
-    private MqttVersion version;
-    private String clientId;
-    private String userName;
-    private String brokerId;
-    private boolean connected;
-    private boolean cleanSession;
-    private int keepAlive;
-    private int keepAliveMax;
-    private MqttPublishMessage willMessage;
-
-    public SyncRedisHandler(Authenticator authenticator, NATSCluster cluster, RedisSyncStorage redis, SessionRegistry registry, Validator validator, String brokerId, int keepAlive, int keepAliveMax) {
+    private final String brokerId;
+    // default keep alive, used unless the client provides one in CONNECT
+    private final int keepAlive;
+    private final int keepAliveMax;
+    // keep clean sessions in memory only, requires the subscription index
+    private final boolean memorySession;
+
+    // metrics
+    private final Map<MqttMessageType, LongAdder> packetsIn;
+    private final Map<MqttMessageType, Histogram> handlerLatency;
+    private final Histogram fanout;
+
+    public SyncRedisHandler(AsyncAuthenticator authenticator, NATSCluster cluster, RedisSyncStorage redis, SessionRegistry registry, InFlightStore inFlight, SharedDelivery shared, SubscriptionIndex index, GroupCommitter committer, KeepAliveTracker keepAliveTracker, Validator validator, Metrics metrics, String brokerId, int keepAlive, int keepAliveMax, boolean memorySession) {
         this.authenticator = authenticator;
         this.cluster = cluster;
         this.redis = redis;
         this.registry = registry;
+        this.inFlight = inFlight;
+        this.shared = shared;
+        this.index = index;
+        this.committer = committer;
+        this.keepAliveTracker = keepAliveTracker;
         this.validator = validator;
 
         this.brokerId = brokerId;
         this.keepAlive = keepAlive;
         this.keepAliveMax = keepAliveMax;
+        this.memorySession = memorySession && index != null;
+        if (memorySession && index == null) {
+            logger.warn("Configuration error: mqtt.session.clean.memory requires the subscription index (mqtt.index.enabled), memory only clean sessions are disabled");
+        }
+
+        this.packetsIn = metrics.counters("packets.in", MqttMessageType.class);
+        this.handlerLatency = metrics.histograms("handler", MqttMessageType.class);
+        this.fanout = metrics.histogram("publish.fanout");
     }
 
     @Override
@@ -77,10 +121,8 @@ public class SyncRedisHandler extends SimpleChannelInboundHandler<MqttMessage> {
                 // Send back CONNACK if the protocol version is invalid
                 this.registry.sendMessage(
                         ctx,
-                        MqttMessageFactory.newMessage(
-                                new MqttFixedHeader(MqttMessageType.CONNACK, false, MqttQoS.AT_MOST_ONCE, false, 0),
-                                new MqttConnAckVariableHeader(MqttConnectReturnCode.CONNECTION_REFUSED_UNACCEPTABLE_PROTOCOL_VERSION, false),
-                                null),
+                        MqttEncoder.encodeConnAck(MqttConnectReturnCode.CONNECTION_REFUSED_UNACCEPTABLE_PROTOCOL_VERSION, false),
+                        MqttMessageType.CONNACK,
                         "INVALID",
                         null,
                         true);
@@ -88,10 +130,8 @@ public class SyncRedisHandler extends SimpleChannelInboundHandler<MqttMessage> {
                 // Send back CONNACK if the client id is invalid
                 this.registry.sendMessage(
                         ctx,
-                        MqttMessageFactory.newMessage(
-                                new MqttFixedHeader(MqttMessageType.CONNACK, false, MqttQoS.AT_MOST_ONCE, false, 0),
-                                new MqttConnAckVariableHeader(MqttConnectReturnCode.CONNECTION_REFUSED_IDENTIFIER_REJECTED, false),
-                                null),
+                        MqttEncoder.encodeConnAck(MqttConnectReturnCode.CONNECTION_REFUSED_IDENTIFIER_REJECTED, false),
+                        MqttMessageType.CONNACK,
                         "INVALID",
                         null,
                         true);
@@ -100,48 +140,153 @@ public class SyncRedisHandler extends SimpleChannelInboundHandler<MqttMessage> {
             return;
         }
 
-        switch (msg.fixedHeader().messageType()) {
-            case CONNECT:
-                onConnect(ctx, (MqttConnectMessage) msg);
-                break;
-            case PUBLISH:
-                onPublish(ctx, (MqttPublishMessage) msg);
-                break;
-            case PUBACK:
-                onPubAck(ctx, msg);
-                break;
-            case PUBREC:
-                onPubRec(ctx, msg);
-                break;
-            case PUBREL:
-                onPubRel(ctx, msg);
-                break;
-            case PUBCOMP:
-                onPubComp(ctx, msg);
-                break;
-            case SUBSCRIBE:
-                onSubscribe(ctx, (MqttSubscribeMessage) msg);
-                break;
-            case UNSUBSCRIBE:
-                onUnsubscribe(ctx, (MqttUnsubscribeMessage) msg);
-                break;
-            case PINGREQ:
-                onPingReq(ctx);
-                break;
-            case DISCONNECT:
-                onDisconnect(ctx);
-                break;
+        SessionState state = ctx.channel().attr(SessionState.KEY).get();
+        if (state == null) {
+            state = new SessionState(this.keepAlive);
+            ctx.channel().attr(SessionState.KEY).set(state);
+        }
+
+        // Keep the messages in order while waiting for the authenticator
+        if (state.authorizing) {
+            logger.trace("Defer {} message for client {} until authorization completed", msg.fixedHeader().messageType(), state.clientId);
+            state.defer(ReferenceCountUtil.retain(msg));
+            return;
+        }
+
+        dispatch(ctx, state, msg);
+    }
+
+    /**
+     * Handle MQTT message based on its type
+     *
+     * @param ctx   Session
+     * @param state Session State
+     * @param msg   MQTT Message
+     */
+    private void dispatch(ChannelHandlerContext ctx, SessionState state, MqttMessage msg) {
+        // Large PUBLISH message streamed by the decoder
+        if (msg instanceof MqttPublishChunk) {
+            onPublishChunk(ctx, state, (MqttPublishChunk) msg);
+            return;
+        }
+
+        // Time spent handling the message on the event loop, authorizations completed later are not included
+        // Storage operations invoked meanwhile are recorded under the message type, if the storage is instrumented
+        MqttMessageType type = msg.fixedHeader().messageType();
+        this.packetsIn.get(type).increment();
+        String scope = InstrumentedRedisSyncStorage.scope(type.name());
+        long start = System.nanoTime();
+        try {
+            switch (type) {
+                case CONNECT:
+                    onConnect(ctx, state, (MqttConnectMessage) msg);
+                    break;
+                case PUBLISH:
+                    onPublish(ctx, state, (MqttPublishMessage) msg);
+                    break;
+                case PUBACK:
+                    onPubAck(ctx, state, msg);
+                    break;
+                case PUBREC:
+                    onPubRec(ctx, state, msg);
+                    break;
+                case PUBREL:
+                    onPubRel(ctx, state, msg);
+                    break;
+                case PUBCOMP:
+                    onPubComp(ctx, state, msg);
+                    break;
+                case SUBSCRIBE:
+                    onSubscribe(ctx, state, (MqttSubscribeMessage) msg);
+                    break;
+                case UNSUBSCRIBE:
+                    onUnsubscribe(ctx, state, (MqttUnsubscribeMessage) msg);
+                    break;
+                case PINGREQ:
+                    onPingReq(ctx, state);
+                    break;
+                case DISCONNECT:
+                    onDisconnect(ctx, state);
+                    break;
+            }
+        } finally {
+            this.handlerLatency.get(type).record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+            InstrumentedRedisSyncStorage.scope(scope);
+        }
+    }
+
+    /**
+     * Continue handling the message with the authorization result
+     * <p>
+     * Completed authorizations (synchronous authenticators run inline, cached decisions) are handled immediately.
+     * Otherwise reading from the client is paused, the action runs on the session's event loop once the authenticator
+     * responds, and messages received in the meantime are deferred and handled afterwards, so messages are always
+     * handled in the order received.
+     * If the authenticator failed or rejected the call, it is not a denial: the action is skipped and the client is
+     * disconnected, so it re-sends whatever was not acknowledged after reconnect.
+     *
+     * @param ctx      Session
+     * @param state    Session State
+     * @param retained Message used by the action, retained until the action completed, null if not reference counted
+     * @param future   Authorization Result
+     * @param action   Continuation
+     * @param <T>      Result Type
+     */
+    private <T> void whenAuthorized(ChannelHandlerContext ctx, SessionState state, ReferenceCounted retained, CompletableFuture<T> future, Consumer<T> action) {
+        if (future.isDone()) {
+            authorized(ctx, state, future, action);
+            return;
+        }
+
+        if (retained != null) retained.retain();
+        // Storage operations of the action are still recorded as handling the message type being dispatched
+        String scope = InstrumentedRedisSyncStorage.scope();
+        state.authorizing = true;
+        ReadPause.pause(ctx.channel());
+        future.whenComplete((r, e) -> ctx.executor().execute(() -> {
+            state.authorizing = false;
+            ReadPause.resume(ctx.channel());
+            String former = InstrumentedRedisSyncStorage.scope(scope);
+            try {
+                authorized(ctx, state, future, action);
+            } finally {
+                InstrumentedRedisSyncStorage.scope(former);
+                if (retained != null) retained.release();
+            }
+
+            // Handle deferred messages, until one of them waits for the authenticator again
+            // Messages left when the connection is closed are released when it becomes inactive
+            MqttMessage msg;
+            while (!state.authorizing && ctx.channel().isActive() && (msg = state.nextDeferred()) != null) {
+                try {
+                    dispatch(ctx, state, msg);
+                } finally {
+                    ReferenceCountUtil.release(msg);
+                }
+            }
+        }));
+    }
+
+    private <T> void authorized(ChannelHandlerContext ctx, SessionState state, CompletableFuture<T> future, Consumer<T> action) {
+        T result;
+        try {
+            result = future.join();
+        } catch (CompletionException | CancellationException e) {
+            logger.warn("Authorization error: Authenticator failed for client {}, disconnect the client: {}", state.clientId, ExceptionUtils.getMessage(e.getCause() != null ? e.getCause() : e));
+            ctx.close();
+            return;
         }
+        action.accept(result);
     }
 
-    private void onConnect(ChannelHandlerContext ctx, MqttConnectMessage msg) {
+    private void onConnect(ChannelHandlerContext ctx, SessionState state, MqttConnectMessage msg) {
         logger.trace("Start handling CONNECT message");
 
-        this.version = MqttVersion.fromProtocolNameAndLevel(msg.variableHeader().protocolName(), (byte) msg.variableHeader().protocolLevel());
-        this.clientId = msg.payload().clientId();
-        this.cleanSession = msg.variableHeader().cleanSession();
+        state.version = MqttVersion.fromProtocolNameAndLevel(msg.variableHeader().protocolName(), (byte) msg.variableHeader().protocolLevel());
+        state.clientId = msg.payload().clientId();
+        state.cleanSession = msg.variableHeader().cleanSession();
         if (msg.variableHeader().keepAlive() > 0 && msg.variableHeader().keepAlive() <= this.keepAliveMax) {
-            this.keepAlive = msg.variableHeader().keepAlive();
+            state.keepAlive = msg.variableHeader().keepAlive();
         }
 
         // A Server MAY allow a Client to supply a ClientId that has a length of zero bytes, however if it does so the
@@ -150,35 +295,31 @@ public class SyncRedisHandler extends SimpleChannelInboundHandler<MqttMessage> {
         // If the Client supplies a zero-byte ClientId with CleanSession set to 0, the Server MUST respond to the
         // CONNECT Packet with a CONNACK return code 0x02 (Identifier rejected) and then close the Network
         // Connection
-        if (StringUtils.isBlank(this.clientId)) {
-            if (!this.cleanSession) {
+        if (StringUtils.isBlank(state.clientId)) {
+            if (!state.cleanSession) {
                 logger.debug("Protocol violation: Empty client id with clean session 0, send CONNACK and disconnect the client");
                 this.registry.sendMessage(
                         ctx,
-                        MqttMessageFactory.newMessage(
-                                new MqttFixedHeader(MqttMessageType.CONNACK, false, MqttQoS.AT_MOST_ONCE, false, 0),
-                                new MqttConnAckVariableHeader(MqttConnectReturnCode.CONNECTION_REFUSED_IDENTIFIER_REJECTED, false),
-                                null),
+                        MqttEncoder.encodeConnAck(MqttConnectReturnCode.CONNECTION_REFUSED_IDENTIFIER_REJECTED, false),
+                        MqttMessageType.CONNACK,
                         "INVALID",
                         null,
                         true);
                 ctx.close();
                 return;
             } else {
-                this.clientId = UUIDs.shortUuid();
+                state.clientId = UUIDs.shortUuid();
             }
         }
 
         // Validate clientId based on configuration
-        else if (!this.validator.isClientIdValid(this.clientId)) {
-            logger.debug("Protocol violation: Client id {} not valid based on configuration, send CONNACK and disconnect the client", this.clientId);
+        else if (!this.validator.isClientIdValid(state.clientId)) {
+            logger.debug("Protocol violation: Client id {} not valid based on configuration, send CONNACK and disconnect the client", state.clientId);
             this.registry.sendMessage(
                     ctx,
-                    MqttMessageFactory.newMessage(
-                            new MqttFixedHeader(MqttMessageType.CONNACK, false, MqttQoS.AT_MOST_ONCE, false, 0),
-                            new MqttConnAckVariableHeader(MqttConnectReturnCode.CONNECTION_REFUSED_IDENTIFIER_REJECTED, false),
-                            null),
-                    this.clientId,
+                    MqttEncoder.encodeConnAck(MqttConnectReturnCode.CONNECTION_REFUSED_IDENTIFIER_REJECTED, false),
+                    MqttMessageType.CONNACK,
+                    state.clientId,
                     null,
                     true);
             ctx.close();
@@ -187,15 +328,15 @@ public class SyncRedisHandler extends SimpleChannelInboundHandler<MqttMessage> {
 
         // A Client can only send the CONNECT Packet once over a Network Connection. The Server MUST
         // process a second CONNECT Packet sent from a Client as a protocol violation and disconnect the Client
-        if (this.connected) {
-            logger.debug("Protocol violation: Second CONNECT packet sent from client {}, disconnect the client", this.clientId);
+        if (state.connected) {
+            logger.debug("Protocol violation: Second CONNECT packet sent from client {}, disconnect the client", state.clientId);
             ctx.close();
             return;
         }
 
         boolean userNameFlag = msg.variableHeader().userNameFlag();
         boolean passwordFlag = msg.variableHeader().passwordFlag();
-        this.userName = msg.payload().userName();
+        state.userName = msg.payload().userName();
         String password = msg.payload().password();
         boolean malformed = false;
         // If the User Name Flag is set to 0, a user name MUST NOT be present in the payload
@@ -206,10 +347,10 @@ public class SyncRedisHandler extends SimpleChannelInboundHandler<MqttMessage> {
         // Validate User Name based on configuration
         // Validate Password based on configuration
         if (userNameFlag) {
-            if (StringUtils.isBlank(this.userName) || !this.validator.isUserNameValid(this.userName))
+            if (StringUtils.isBlank(state.userName) || !this.validator.isUserNameValid(state.userName))
                 malformed = true;
         } else {
-            if (StringUtils.isNotBlank(this.userName) || passwordFlag) malformed = true;
+            if (StringUtils.isNotBlank(state.userName) || passwordFlag) malformed = true;
         }
         if (passwordFlag) {
             if (StringUtils.isBlank(password) || !this.validator.isPasswordValid(password)) malformed = true;
@@ -217,194 +358,220 @@ public class SyncRedisHandler extends SimpleChannelInboundHandler<MqttMessage> {
             if (StringUtils.isNotBlank(password)) malformed = true;
         }
         if (malformed) {
-            logger.debug("Protocol violation: Bad user name or password from client {}, send CONNACK and disconnect the client", this.clientId);
+            logger.debug("Protocol violation: Bad user name or password from client {}, send CONNACK and disconnect the client", state.clientId);
             this.registry.sendMessage(
                     ctx,
-                    MqttMessageFactory.newMessage(
-                            new MqttFixedHeader(MqttMessageType.CONNACK, false, MqttQoS.AT_MOST_ONCE, false, 0),
-                            new MqttConnAckVariableHeader(MqttConnectReturnCode.CONNECTION_REFUSED_BAD_USER_NAME_OR_PASSWORD, false),
-                            null),
-                    this.clientId,
+                    MqttEncoder.encodeConnAck(MqttConnectReturnCode.CONNECTION_REFUSED_BAD_USER_NAME_OR_PASSWORD, false),
+                    MqttMessageType.CONNACK,
+                    state.clientId,
                     null,
                     true);
             ctx.close();
             return;
         }
 
-        logger.debug("Message received: Received CONNECT message from client {} user {}", this.clientId, this.userName);
+        logger.debug("Message received: Received CONNECT message from client {} user {}", state.clientId, state.userName);
+
+        whenAuthorized(ctx, state, null, this.authenticator.authConnect(state.clientId, state.userName, password), result -> {
+            // The connection was closed while authorizing
+            if (!ctx.channel().isActive()) return;
+
+            // Authorize successful
+            if (result == AuthorizeResult.OK) {
+                logger.trace("Authorization CONNECT succeeded for client {} user {}", state.clientId, state.userName);
+
+                // Clean session kept in broker memory only, its subscriptions are kept in the subscription index and
+                // nothing about the client is stored, except a previous session being discarded
+                state.memory = state.cleanSession && this.memorySession;
+
+                // Require lock on client connection state
+                if (!state.memory && !this.redis.lock(state.clientId, ConnectionState.CONNECTING)) {
+                    logger.warn("Lock failed: Failed to lock on client {}, send CONNACK and disconnect the client", state.clientId);
+                    this.registry.sendMessage(
+                            ctx,
+                            MqttEncoder.encodeConnAck(MqttConnectReturnCode.CONNECTION_REFUSED_SERVER_UNAVAILABLE, false),
+                            MqttMessageType.CONNACK,
+                            state.clientId,
+                            null,
+                            true);
+                    ctx.close();
+                    return;
+                } else if (!state.memory) {
+                    logger.trace("Successfully lock on client {}", state.clientId);
+                }
 
-        AuthorizeResult result = this.authenticator.authConnect(this.clientId, this.userName, password);
-        // Authorize successful
-        if (result == AuthorizeResult.OK) {
-            logger.trace("Authorization CONNECT succeeded for client {} user {}", this.clientId, this.userName);
+                // Mark client's connected broker node
+                String previous = null;
+                if (!state.memory) {
+                    logger.trace("Mark client {} connected to broker {}", state.clientId, this.brokerId);
+                    previous = this.redis.updateConnectedNode(state.clientId, this.brokerId, Math.round(state.keepAlive * 1.5f));
+                    state.refreshed = System.currentTimeMillis();
+                }
 
-            // Require lock on client connection state
-            if (!this.redis.lock(this.clientId, ConnectionState.CONNECTING)) {
-                logger.warn("Lock failed: Failed to lock on client {}, send CONNACK and disconnect the client", this.clientId);
+                // If the Server accepts a connection with CleanSession set to 1, the Server MUST set Session Present to 0
+                // in the CONNACK packet in addition to setting a zero return code in the CONNACK packet
+                // If the Server accepts a connection with CleanSession set to 0, the value set in Session Present depends
+                // on whether the Server already has stored Session state for the supplied client ID. If the Server has stored
+                // Session state, it MUST set Session Present to 1 in the CONNACK packet. If the Server
+                // does not have stored Session state, it MUST set Session Present to 0 in the CONNACK packet. This is in
+                // addition to setting a zero return code in the CONNACK packet.
+                int exist = this.redis.getSessionExist(state.clientId);
+                boolean sessionPresent = (exist >= 0) && !state.cleanSession;
+
+                // The first packet sent from the Server to the Client MUST be a CONNACK Packet
+                logger.trace("Send CONNACK back to client {}", state.clientId);
                 this.registry.sendMessage(
                         ctx,
-                        MqttMessageFactory.newMessage(
-                                new MqttFixedHeader(MqttMessageType.CONNACK, false, MqttQoS.AT_MOST_ONCE, false, 0),
-                                new MqttConnAckVariableHeader(MqttConnectReturnCode.CONNECTION_REFUSED_SERVER_UNAVAILABLE, false),
-                                null),
-                        this.clientId,
+                        MqttEncoder.encodeConnAck(MqttConnectReturnCode.CONNECTION_ACCEPTED, sessionPresent),
+                        MqttMessageType.CONNACK,
+                        state.clientId,
                         null,
                         true);
-                ctx.close();
-                return;
-            } else {
-                logger.trace("Successfully lock on client {}", this.clientId);
-            }
-
-            // Mark client's connected broker node
-            logger.trace("Mark client {} connected to broker {}", this.clientId, this.brokerId);
-            String previous = this.redis.updateConnectedNode(this.clientId, this.brokerId, Math.round(this.keepAlive * 1.5f));
-
-            // If the Server accepts a connection with CleanSession set to 1, the Server MUST set Session Present to 0
-            // in the CONNACK packet in addition to setting a zero return code in the CONNACK packet
-            // If the Server accepts a connection with CleanSession set to 0, the value set in Session Present depends
-            // on whether the Server already has stored Session state for the supplied client ID. If the Server has stored
-            // Session state, it MUST set Session Present to 1 in the CONNACK packet. If the Server
-            // does not have stored Session state, it MUST set Session Present to 0 in the CONNACK packet. This is in
-            // addition to setting a zero return code in the CONNACK packet.
-            int exist = this.redis.getSessionExist(this.clientId);
-            boolean sessionPresent = (exist >= 0) && !this.cleanSession;
-
-            // The first packet sent from the Server to the Client MUST be a CONNACK Packet
-            logger.trace("Send CONNACK back to client {}", this.clientId);
-            this.registry.sendMessage(
-                    ctx,
-                    MqttMessageFactory.newMessage(
-                            new MqttFixedHeader(MqttMessageType.CONNACK, false, MqttQoS.AT_MOST_ONCE, false, 0),
-                            new MqttConnAckVariableHeader(MqttConnectReturnCode.CONNECTION_ACCEPTED, sessionPresent),
-                            null),
-                    this.clientId,
-                    null,
-                    true);
 
-            // If CleanSession is set to 0, the Server MUST resume communications with the Client based on state from
-            // the current Session (as identified by the Client identifier). If there is no Session associated with the Client
-            // identifier the Server MUST create a new Session. The Client and Server MUST store the Session after
-            // the Client and Server are disconnected. After the disconnection of a Session that had
-            // CleanSession set to 0, the Server MUST store further QoS 1 and QoS 2 messages that match any
-            // subscriptions that the client had at the time of disconnection as part of the Session state.
-            // It MAY also store QoS 0 messages that meet the same criteria.
-            // The Session state in the Server consists of:
-            // The existence of a Session, even if the rest of the Session state is empty.
-            // The Client's subscriptions.
-            // QoS 1 and QoS 2 messages which have been sent to the Client, but have not been completely acknowledged.
-            // QoS 1 and QoS 2 messages pending transmission to the Client.
-            // QoS 2 messages which have been received from the Client, but have not been completely acknowledged.
-            // Optionally, QoS 0 messages pending transmission to the Client.
-            if (!this.cleanSession) {
-                if (exist == 0) {
-                    logger.trace("Resend In-Flight messages to client {}", this.clientId);
-                    for (Message inFlight : this.redis.getAllInFlightMessages(this.clientId)) {
-                        if (inFlight.fixedHeader().messageType() == MqttMessageType.PUBLISH) {
-                            this.registry.sendMessage(ctx, inFlight.toMqttMessage(), this.clientId, ((MqttPublishVariableHeader) inFlight.variableHeader()).packetId(), false);
-                        } else if (inFlight.fixedHeader().messageType() == MqttMessageType.PUBREL) {
-                            this.registry.sendMessage(ctx, inFlight.toMqttMessage(), this.clientId, ((MqttPacketIdVariableHeader) inFlight.variableHeader()).packetId(), false);
+                // Keep in-flight messages in memory while connected
+                logger.trace("Open in-flight window for client {}", state.clientId);
+                this.inFlight.open(state.clientId, ctx);
+
+                // If CleanSession is set to 0, the Server MUST resume communications with the Client based on state from
+                // the current Session (as identified by the Client identifier). If there is no Session associated with the Client
+                // identifier the Server MUST create a new Session. The Client and Server MUST store the Session after
+                // the Client and Server are disconnected. After the disconnection of a Session that had
+                // CleanSession set to 0, the Server MUST store further QoS 1 and QoS 2 messages that match any
+                // subscriptions that the client had at the time of disconnection as part of the Session state.
+                // It MAY also store QoS 0 messages that meet the same criteria.
+                // The Session state in the Server consists of:
+                // The existence of a Session, even if the rest of the Session state is empty.
+                // The Client's subscriptions.
+                // QoS 1 and QoS 2 messages which have been sent to the Client, but have not been completely acknowledged.
+                // QoS 1 and QoS 2 messages pending transmission to the Client.
+                // QoS 2 messages which have been received from the Client, but have not been completely acknowledged.
+                // Optionally, QoS 0 messages pending transmission to the Client.
+                if (!state.cleanSession) {
+                    if (exist == 0) {
+                        // The former connection on this broker hands over its packet ids not persisted yet
+                        logger.trace("Load unacknowledged QoS 2 message ids for client {}", state.clientId);
+                        ChannelHandlerContext former = this.registry.getSession(state.clientId);
+                        SessionState formerState = former != null ? former.channel().attr(SessionState.KEY).get() : null;
+                        state.loadQoS2Ids(this.redis.getAllQoS2MessageIds(state.clientId), formerState != null && !formerState.cleanSession ? formerState : null);
+
+                        logger.trace("Resend In-Flight messages to client {}", state.clientId);
+                        for (Message inFlight : this.redis.getAllInFlightMessages(state.clientId)) {
+                            if (inFlight.fixedHeader().messageType() == MqttMessageType.PUBLISH) {
+                                int pid = ((MqttPublishVariableHeader) inFlight.variableHeader()).packetId();
+                                this.inFlight.add(state.clientId, pid, inFlight);
+                                this.registry.sendMessage(ctx, inFlight.toMqttMessage(), state.clientId, pid, false);
+                            } else if (inFlight.fixedHeader().messageType() == MqttMessageType.PUBREL) {
+                                int pid = ((MqttPacketIdVariableHeader) inFlight.variableHeader()).packetId();
+                                this.inFlight.add(state.clientId, pid, inFlight);
+                                this.registry.sendMessage(ctx, inFlight.toMqttMessage(), state.clientId, pid, false);
+                            }
                         }
+                        ctx.flush();
+                    } else if (exist == 1) {
+                        logger.trace("Clear session state for client {} because former connection is clean session", state.clientId);
+                        this.redis.removeAllSessionState(state.clientId);
                     }
-                    ctx.flush();
-                } else if (exist == 1) {
-                    logger.trace("Clear session state for client {} because former connection is clean session", this.clientId);
-                    this.redis.removeAllSessionState(this.clientId);
                 }
-            }
-            // If CleanSession is set to 1, the Client and Server MUST discard any previous Session and start a new
-            // one. This Session lasts as long as the Network Connection. State data associated with this Session
-            // MUST NOT be reused in any subsequent Session.
-            // When CleanSession is set to 1 the Client and Server need not process the deletion of state atomically.
-            else {
-                if (exist >= 0) {
-                    logger.trace("Clear session state for client {} because current connection is clean session", this.clientId);
-                    this.redis.removeAllSessionState(this.clientId);
+                // If CleanSession is set to 1, the Client and Server MUST discard any previous Session and start a new
+                // one. This Session lasts as long as the Network Connection. State data associated with this Session
+                // MUST NOT be reused in any subsequent Session.
+                // When CleanSession is set to 1 the Client and Server need not process the deletion of state atomically.
+                else {
+                    if (exist >= 0) {
+                        logger.trace("Clear session state for client {} because current connection is clean session", state.clientId);
+                        this.redis.removeAllSessionState(state.clientId);
+                    }
                 }
-            }
 
-            // Mark client's session as existed
-            logger.trace("Update client {} session existence", this.clientId);
-            this.redis.updateSessionExist(this.clientId, this.cleanSession);
+                if (!state.memory) {
+                    // Mark client's session as existed
+                    logger.trace("Update client {} session existence", state.clientId);
+                    this.redis.updateSessionExist(state.clientId, state.cleanSession);
 
-            // Release lock on client connection state
-            logger.trace("Try to release lock on client {}", this.clientId);
-            this.redis.release(this.clientId, ConnectionState.CONNECTED);
-
-            // If the ClientId represents a Client already connected to the Server then the Server MUST
-            // disconnect the existing Client
-            ChannelHandlerContext lastSession = this.registry.removeSession(this.clientId);
-            if (lastSession != null) {
-                logger.trace("Try to disconnect existed client {}", this.clientId);
-                lastSession.close();
-            }
-            if (StringUtils.isNotBlank(previous) && !previous.equals(this.brokerId)) {
-                logger.trace("Send DISCONNECT message to broker {} to disconnect the existed client {}", previous, this.clientId);
-                Message<MqttPacketIdVariableHeader, Void> disconnect = new Message<>(
-                        new MqttFixedHeader(MqttMessageType.DISCONNECT, false, MqttQoS.AT_MOST_ONCE, false, 0),
-                        new MqttAdditionalHeader(this.version, this.clientId, null, null), null, null);
-                this.cluster.sendToBroker(previous, disconnect);
-            }
+                    // Release lock on client connection state
+                    logger.trace("Try to release lock on client {}", state.clientId);
+                    this.redis.release(state.clientId, ConnectionState.CONNECTED);
+                }
 
-            // If the Will Flag is set to 1 this indicates that, if the Connect request is accepted, a Will Message MUST be
-            // stored on the Server and associated with the Network Connection. The Will Message MUST be published
-            // when the Network Connection is subsequently closed unless the Will Message has been deleted by the
-            // Server on receipt of a DISCONNECT Packet.
-            String willTopic = msg.payload().willTopic();
-            String willMessage = msg.payload().willMessage();
-            if (msg.variableHeader().willFlag()
-                    && StringUtils.isNotEmpty(willTopic) && this.validator.isTopicNameValid(willTopic)
-                    && StringUtils.isNotEmpty(willMessage)) {
-                logger.trace("Keep WILL message on topic {} for client {}", willTopic, this.clientId);
-
-                this.willMessage = (MqttPublishMessage) MqttMessageFactory.newMessage(
-                        new MqttFixedHeader(MqttMessageType.PUBLISH, false, msg.variableHeader().willQos(), msg.variableHeader().willRetain(), 0),
-                        MqttPublishVariableHeader.from(willTopic),
-                        Unpooled.wrappedBuffer(willMessage.getBytes())
-                );
-            }
+                // If the ClientId represents a Client already connected to the Server then the Server MUST
+                // disconnect the existing Client
+                ChannelHandlerContext lastSession = this.registry.removeSession(state.clientId);
+                if (lastSession != null) {
+                    logger.trace("Try to disconnect existed client {}", state.clientId);
+                    lastSession.close();
+                }
+                if (StringUtils.isNotBlank(previous) && !previous.equals(this.brokerId)) {
+                    logger.trace("Send DISCONNECT message to broker {} to disconnect the existed client {}", previous, state.clientId);
+                    Message<MqttPacketIdVariableHeader, Void> disconnect = new Message<>(
+                            new MqttFixedHeader(MqttMessageType.DISCONNECT, false, MqttQoS.AT_MOST_ONCE, false, 0),
+                            new MqttAdditionalHeader(state.version, state.clientId, null, null), null, null);
+                    this.cluster.sendToBroker(previous, disconnect);
+                }
 
-            // If the Keep Alive value is non-zero and the Server does not receive a Control Packet from the Client
-            // within one and a half times the Keep Alive time period, it MUST disconnect the Network Connection to the
-            // Client as if the network had failed
-            logger.trace("Update idleHandler for client {}", this.clientId);
-            if (ctx.pipeline().names().contains("idleHandler"))
-                ctx.pipeline().remove("idleHandler");
-            ctx.pipeline().addFirst("idleHandler", new IdleStateHandler(0, 0, Math.round(this.keepAlive * 1.5f)));
+                // If the Will Flag is set to 1 this indicates that, if the Connect request is accepted, a Will Message MUST be
+                // stored on the Server and associated with the Network Connection. The Will Message MUST be published
+                // when the Network Connection is subsequently closed unless the Will Message has been deleted by the
+                // Server on receipt of a DISCONNECT Packet.
+                String willTopic = msg.payload().willTopic();
+                String willMessage = msg.payload().willMessage();
+                if (msg.variableHeader().willFlag()
+                        && StringUtils.isNotEmpty(willTopic) && this.validator.isTopicNameValid(willTopic)
+                        && StringUtils.isNotEmpty(willMessage)) {
+                    logger.trace("Keep WILL message on topic {} for client {}", willTopic, state.clientId);
+
+                    state.will = new SessionState.Will(willTopic, willMessage, msg.variableHeader().willQos(), msg.variableHeader().willRetain());
+                }
 
-            // Save connection state, add to local registry
-            logger.trace("Save client {} connection state in registry", this.clientId);
-            this.connected = true;
-            this.registry.saveSession(this.clientId, ctx);
+                // If the Keep Alive value is non-zero and the Server does not receive a Control Packet from the Client
+                // within one and a half times the Keep Alive time period, it MUST disconnect the Network Connection to the
+                // Client as if the network had failed
+                logger.trace("Update keep alive tracking for client {}", state.clientId);
+                this.keepAliveTracker.track(ctx.channel(), Math.round(state.keepAlive * 1.5f) * 1000L);
+
+                // Save connection state, add to local registry
+                logger.trace("Save client {} connection state in registry", state.clientId);
+                state.connected = true;
+                this.registry.saveSession(state.clientId, ctx);
+
+                // Replace client's subscriptions in the subscription index, and advertise them to the other brokers
+                // The other brokers disconnect the client too, the memory only session may be connected to any of them
+                Message connect = Message.fromMqttMessage(msg, state.version, state.clientId, state.userName, this.brokerId);
+                if (this.index != null) {
+                    logger.trace("Update subscription index for client {}", state.clientId);
+                    Map<String, MqttQoS> subscriptions = (!state.cleanSession && exist == 0) ? this.redis.getClientSubscriptions(state.clientId) : new HashMap<>();
+                    this.index.disconnect(state.clientId, null);
+                    subscriptions.forEach((topic, qos) -> this.index.subscribe(state.clientId, this.brokerId, topic, qos));
+                    this.cluster.advertise(connect);
+                    this.cluster.advertiseSubscriptions(state.clientId, subscriptions);
+                }
 
-            // Pass message to 3rd party application
-            logger.trace("Send a copy of CONNECT message from client {} to 3rd party application", this.clientId);
-            this.cluster.sendToApplication(Message.fromMqttMessage(msg, this.version, this.clientId, this.userName, this.brokerId));
-        }
+                // Pass message to 3rd party application
+                logger.trace("Send a copy of CONNECT message from client {} to 3rd party application", state.clientId);
+                this.cluster.sendToApplication(connect);
+            }
 
-        // Authorize failed
-        else {
-            logger.trace("Authorization CONNECT failed {} for client {}, send CONNACK and disconnect the client", result, this.clientId);
-            this.registry.sendMessage(
-                    ctx,
-                    MqttMessageFactory.newMessage(
-                            new MqttFixedHeader(MqttMessageType.CONNACK, false, MqttQoS.AT_MOST_ONCE, false, 0),
-                            new MqttConnAckVariableHeader(MqttConnectReturnCode.CONNECTION_REFUSED_NOT_AUTHORIZED, false),
-                            null),
-                    this.clientId,
-                    null,
-                    true);
-            ctx.close();
-        }
+            // Authorize failed
+            else {
+                logger.trace("Authorization CONNECT failed {} for client {}, send CONNACK and disconnect the client", result, state.clientId);
+                this.registry.sendMessage(
+                        ctx,
+                        MqttEncoder.encodeConnAck(MqttConnectReturnCode.CONNECTION_REFUSED_NOT_AUTHORIZED, false),
+                        MqttMessageType.CONNACK,
+                        state.clientId,
+                        null,
+                        true);
+                ctx.close();
+            }
 
-        logger.trace("Finish handling CONNECT message for client {}", this.clientId);
+            logger.trace("Finish handling CONNECT message for client {}", state.clientId);
+        });
     }
 
-    private void onPublish(ChannelHandlerContext ctx, MqttPublishMessage msg) {
-        logger.trace("Start handling PUBLISH message for client {}", this.clientId);
+    private void onPublish(ChannelHandlerContext ctx, SessionState state, MqttPublishMessage msg) {
+        logger.trace("Start handling PUBLISH message for client {}", state.clientId);
 
-        if (!this.connected) {
-            logger.debug("Protocol violation: Client {} must first sent a CONNECT message, now received PUBLISH message, disconnect the client", this.clientId);
+        if (!state.connected) {
+            logger.debug("Protocol violation: Client {} must first sent a CONNECT message, now received PUBLISH message, disconnect the client", state.clientId);
             ctx.close();
             return;
         }
@@ -418,26 +585,284 @@ public class SyncRedisHandler extends SimpleChannelInboundHandler<MqttMessage> {
         // The Topic Name in the PUBLISH Packet MUST NOT contain wildcard characters
         // Validate Topic Name based on configuration
         if (!this.validator.isTopicNameValid(topicName)) {
-            logger.debug("Protocol violation: Client {} sent PUBLISH message contains invalid topic name {}, disconnect the client", this.clientId, topicName);
+            logger.debug("Protocol violation: Client {} sent PUBLISH message contains invalid topic name {}, disconnect the client", state.clientId, topicName);
             ctx.close();
             return;
         }
 
         // The Packet Identifier field is only present in PUBLISH Packets where the QoS level is 1 or 2.
         if (packetId <= 0 && (qos == MqttQoS.AT_LEAST_ONCE || qos == MqttQoS.EXACTLY_ONCE)) {
-            logger.debug("Protocol violation: Client {} sent PUBLISH message does not contain packet id, disconnect the client", this.clientId);
+            logger.debug("Protocol violation: Client {} sent PUBLISH message does not contain packet id, disconnect the client", state.clientId);
             ctx.close();
             return;
         }
 
         List<String> topicLevels = Topics.sanitizeTopicName(topicName);
 
-        logger.debug("Message received: Received PUBLISH message from client {} user {} topic {}", this.clientId, this.userName, topicName);
+        logger.debug("Message received: Received PUBLISH message from client {} user {} topic {}", state.clientId, state.userName, topicName);
 
         // If a Server implementation does not authorize a PUBLISH to be performed by a Client; it has no way of
         // informing that Client. It MUST either make a positive acknowledgement, according to the normal QoS
         // rules, or close the Network Connection
 
+        // In durable mode, acknowledge after the in-flight messages of the fan-out have been persisted
+        boolean durable = this.committer != null && qos != MqttQoS.AT_MOST_ONCE;
+        List<Message> pending = durable ? new ArrayList<>() : null;
+        // The stored subscribers only receive the message after its in-flight copy has been persisted, otherwise an
+        // acknowledgement arriving before the commit would be overwritten by it
+        List<Runnable> forwards = durable ? new ArrayList<>() : null;
+
+        whenAuthorized(ctx, state, msg, this.authenticator.authPublish(state.clientId, state.userName, topicName, qos.value(), retain), result -> {
+            // Acknowledge once authorized, if the authenticator failed the client re-sends the message after reconnect
+            if (!durable) {
+                acknowledge(ctx, state, qos, packetId);
+            }
+
+            // Authorize successful
+            if (result == AuthorizeResult.OK) {
+                logger.trace("Authorization PUBLISH succeeded on topic {} for client {}", topicName, state.clientId);
+
+                // If the RETAIN flag is set to 1, in a PUBLISH Packet sent by a Client to a Server, the Server MUST store
+                // the Application Message and its QoS, so that it can be delivered to future subscribers whose
+                // subscriptions match its topic name. When a new subscription is established, the last
+                // retained message, if any, on each matching topic name MUST be sent to the subscriber.
+                if (retain) {
+                    // If the Server receives a QoS 0 message with the RETAIN flag set to 1 it MUST discard any message
+                    // previously retained for that topic. It SHOULD store the new QoS 0 message as the new retained
+                    // message for that topic, but MAY choose to discard it at any time - if this happens there will be no retained
+                    // message for that topic.
+                    if (qos == MqttQoS.AT_MOST_ONCE || msg.payload() == null || msg.payload().readableBytes() == 0) {
+                        logger.trace("Clear retain messages for topic {} by client {}", topicName, state.clientId);
+                        this.redis.removeAllRetainMessage(topicLevels);
+                    }
+
+                    // A PUBLISH Packet with a RETAIN flag set to 1 and a payload containing zero bytes will be processed as
+                    // normal by the Server and sent to Clients with a subscription matching the topic name. Additionally any
+                    // existing retained message with the same topic name MUST be removed and any future subscribers for
+                    // the topic will not receive a retained message. “As normal” means that the RETAIN flag is
+                    // not set in the message received by existing Clients. A zero byte retained message MUST NOT be stored
+                    // as a retained message on the Server
+                    if (msg.payload() != null && msg.payload().readableBytes() > 0) {
+                        logger.trace("Add retain messages for topic {} by client {}", topicName, state.clientId);
+                        this.redis.addRetainMessage(topicLevels, Message.fromMqttMessage(msg, state.version, state.clientId, state.userName, this.brokerId));
+                    }
+                }
+
+                // Prepare Message in advance, since the byte[] payload will be used in multiple location
+                Message<MqttPublishVariableHeader, MqttPublishPayload> m = Message.fromMqttMessage(msg, state.version, state.clientId, state.userName, this.brokerId);
+
+                // In the QoS 0 delivery protocol, the Receiver
+                // Accepts ownership of the message when it receives the PUBLISH packet.
+                if (qos == MqttQoS.AT_MOST_ONCE) {
+                    onwardRecipients(msg, m.payload(), pending, forwards);
+                }
+                // In the QoS 1 delivery protocol, the Receiver
+                // After it has sent a PUBACK Packet the Receiver MUST treat any incoming PUBLISH packet that
+                // contains the same Packet Identifier as being a new publication, irrespective of the setting of its
+                // DUP flag.
+                else if (qos == MqttQoS.AT_LEAST_ONCE) {
+                    onwardRecipients(msg, m.payload(), pending, forwards);
+                }
+                // In the QoS 2 delivery protocol, the Receiver
+                // Until it has received the corresponding PUBREL packet, the Receiver MUST acknowledge any
+                // subsequent PUBLISH packet with the same Packet Identifier by sending a PUBREC. It MUST
+                // NOT cause duplicate messages to be delivered to any onward recipients in this case.
+                else if (qos == MqttQoS.EXACTLY_ONCE) {
+                    // The recipient of a Control Packet that contains the DUP flag set to 1 cannot assume that it has
+                    // seen an earlier copy of this packet.
+                    if (state.addQoS2Id(packetId)) {
+                        // A re-sent message may have been received by a former connection on another broker,
+                        // whose packet ids are persisted when it's closed, after this connection loaded them
+                        if (msg.fixedHeader().dup() && !state.cleanSession && this.redis.getAllQoS2MessageIds(state.clientId).contains(packetId)) {
+                            logger.trace("QoS 2 PUBLISH message {} from client {} was received by a former connection", packetId, state.clientId);
+                            state.addStoredQoS2Id(packetId);
+                        } else {
+                            onwardRecipients(msg, m.payload(), pending, forwards);
+                        }
+                    }
+                }
+
+                // Pass message to 3rd party application
+                logger.trace("Send a copy of PUBLISH message from client {} to 3rd party application", state.clientId);
+                this.cluster.sendToApplication(m);
+
+            } else {
+                logger.trace("Authorization PUBLISH failed on topic {} for client {}", topicName, state.clientId);
+            }
+
+            if (durable) {
+                logger.trace("Commit {} in-flight messages before acknowledge client {}", pending.size(), state.clientId);
+                this.committer.commit(pending).whenComplete((v, e) -> ctx.executor().execute(() -> {
+                    if (e == null) {
+                        forwards.forEach(Runnable::run);
+                        acknowledge(ctx, state, qos, packetId);
+                    } else {
+                        // not acknowledged, the client will re-send the message after reconnect
+                        logger.warn("Commit failed: Failed to persist in-flight messages of PUBLISH {} from client {}, disconnect the client", packetId, state.clientId);
+                        if (qos == MqttQoS.EXACTLY_ONCE) state.removeQoS2Id(packetId);
+                        ctx.close();
+                        // the messages were never forwarded, drop whatever part of the batch was persisted, so the
+                        // subscribers don't receive them again with the re-sent message
+                        discardInFlightMessages(pending);
+                    }
+                }));
+            }
+
+            // Refresh client's connected broker node
+            // QoS 0 messages delivered by the subscription index refresh it at most once per half keep alive
+            // period, well within its expiry, so they don't touch the storage for every message
+            if (this.index == null || qos != MqttQoS.AT_MOST_ONCE || System.currentTimeMillis() - state.refreshed >= state.keepAlive * 500L) {
+                refreshConnectedNode(state);
+            }
+
+            logger.trace("Finish handling PUBLISH message for client {}", state.clientId);
+        });
+    }
+
+    /**
+     * Remove in-flight messages which were never forwarded to the subscribers
+     * Failures are only logged, the messages are then re-sent to the subscribers when they reconnect
+     *
+     * @param msgs In-Flight PUBLISH Messages
+     */
+    private void discardInFlightMessages(List<Message> msgs) {
+        for (Message msg : msgs) {
+            String cid = msg.additionalHeader().clientId();
+            int pid = ((MqttPublishVariableHeader) msg.variableHeader()).packetId();
+            try {
+                this.redis.removeInFlightMessage(cid, pid);
+            } catch (Exception e) {
+                logger.warn("Remove failed: Failed to remove in-flight message {} for client {}: {}", pid, cid, ExceptionUtils.getMessage(e));
+                return;
+            }
+        }
+    }
+
+    /**
+     * Handle part of a streamed QoS 0 PUBLISH message
+     * <p>
+     * The payload is passed to the locally connected subscribers as it is received, without being buffered. Streamed
+     * messages are not forwarded to other brokers, 3rd party applications or the retained store, since all of them
+     * need the whole payload.
+     *
+     * @param ctx   Session
+     * @param state Session State
+     * @param msg   PUBLISH message chunk
+     */
+    private void onPublishChunk(ChannelHandlerContext ctx, SessionState state, MqttPublishChunk msg) {
+        if (msg.isFirst()) {
+            logger.trace("Start handling streamed PUBLISH message for client {}", state.clientId);
+
+            if (!state.connected) {
+                logger.debug("Protocol violation: Client {} must first sent a CONNECT message, now received PUBLISH message, disconnect the client", state.clientId);
+                ctx.close();
+                return;
+            }
+
+            String topicName = msg.variableHeader().topicName();
+
+            // The Topic Name in the PUBLISH Packet MUST NOT contain wildcard characters
+            // Validate Topic Name based on configuration
+            if (!this.validator.isTopicNameValid(topicName)) {
+                logger.debug("Protocol violation: Client {} sent PUBLISH message contains invalid topic name {}, disconnect the client", state.clientId, topicName);
+                ctx.close();
+                return;
+            }
+
+            logger.debug("Message received: Received streamed PUBLISH message from client {} user {} topic {} size {}", state.clientId, state.userName, topicName, msg.payloadLength());
+
+            state.streams = new ArrayList<>();
+
+            whenAuthorized(ctx, state, msg, this.authenticator.authPublish(state.clientId, state.userName, topicName, MqttQoS.AT_MOST_ONCE.value(), false), result -> {
+                // The connection was closed while authorizing, streams already aborted
+                if (!ctx.channel().isActive()) return;
+
+                if (result == AuthorizeResult.OK) {
+                    logger.trace("Authorization PUBLISH succeeded on topic {} for client {}", topicName, state.clientId);
+
+                    Map<String, MqttQoS> subscriptions = new HashMap<>();
+                    if (this.index != null) this.index.getMatchSubscriptions(Topics.sanitizeTopicName(topicName), subscriptions);
+                    else this.redis.getMatchSubscriptions(Topics.sanitizeTopicName(topicName), subscriptions);
+                    // Shared subscriptions, stream to the first member by preference connected to this broker
+                    SharedSubscriptions.split(subscriptions).forEach((share, members) ->
+                            this.shared.candidates(share, members).stream()
+                                    .filter(cid -> this.registry.getSession(cid) != null)
+                                    .findFirst()
+                                    .ifPresent(cid -> subscriptions.merge(cid, members.get(cid), (a, b) -> a.value() >= b.value() ? a : b)));
+                    subscriptions.keySet().forEach(cid -> {
+                        ChannelHandlerContext session = this.registry.getSession(cid);
+                        ChunkedWriteHandler writer = session != null ? session.pipeline().get(ChunkedWriteHandler.class) : null;
+                        if (writer == null) {
+                            logger.trace("Skip streamed PUBLISH message for client {} not connected to this broker", cid);
+                            return;
+                        }
+                        logger.trace("Stream PUBLISH message to client {}", cid);
+                        PublishStream stream = new PublishStream(ctx.channel(), session, writer,
+                                MqttEncoder.encodePublishHeader(session.alloc(),
+                                        new MqttFixedHeader(MqttMessageType.PUBLISH, false, MqttQoS.AT_MOST_ONCE, false, 0),
+                                        MqttPublishVariableHeader.from(topicName), msg.payloadLength()),
+                                msg.payloadLength());
+                        session.writeAndFlush(stream);
+                        state.streams.add(stream);
+                    });
+                } else {
+                    logger.trace("Authorization PUBLISH failed on topic {} for client {}", topicName, state.clientId);
+                }
+
+                streamChunk(ctx, state, msg);
+            });
+            return;
+        }
+
+        streamChunk(ctx, state, msg);
+    }
+
+    /**
+     * Pass part of a streamed PUBLISH message to the subscribers' streams
+     *
+     * @param ctx   Session
+     * @param state Session State
+     * @param msg   PUBLISH message chunk
+     */
+    private void streamChunk(ChannelHandlerContext ctx, SessionState state, MqttPublishChunk msg) {
+        // not connected or invalid, the connection is being closed
+        if (state.streams == null) return;
+
+        state.streams.forEach(stream -> stream.add(msg.content()));
+
+        if (msg.isLast()) {
+            state.streams.forEach(PublishStream::end);
+            state.streams = null;
+
+            // Refresh client's connected broker node
+            refreshConnectedNode(state);
+
+            logger.trace("Finish handling streamed PUBLISH message for client {}", state.clientId);
+        }
+    }
+
+    /**
+     * Refresh client's connected broker node
+     * Memory only sessions have no connected broker node in the storage
+     *
+     * @param state Session State
+     */
+    private void refreshConnectedNode(SessionState state) {
+        if (state.memory) return;
+        logger.trace("Refresh client {} connected to broker {}", state.clientId, this.brokerId);
+        this.redis.refreshConnectedNode(state.clientId, this.brokerId, Math.round(state.keepAlive * 1.5f));
+        state.refreshed = System.currentTimeMillis();
+    }
+
+    /**
+     * Acknowledge MQTT PUBLISH message based on its QoS
+     *
+     * @param ctx      Session
+     * @param state    Session State
+     * @param qos      PUBLISH QoS
+     * @param packetId PUBLISH Packet Id
+     */
+    private void acknowledge(ChannelHandlerContext ctx, SessionState state, MqttQoS qos, int packetId) {
         // In the QoS 1 delivery protocol, the Receiver
         // MUST respond with a PUBACK Packet containing the Packet Identifier from the incoming
         // PUBLISH Packet, having accepted ownership of the Application Message
@@ -445,14 +870,12 @@ public class SyncRedisHandler extends SimpleChannelInboundHandler<MqttMessage> {
         // PUBACK. When its original sender receives the PUBACK packet, ownership of the Application
         // Message is transferred to the receiver.
         if (qos == MqttQoS.AT_LEAST_ONCE) {
-            logger.trace("Send PUBACK back to client {}", this.clientId);
+            logger.trace("Send PUBACK back to client {}", state.clientId);
             this.registry.sendMessage(
                     ctx,
-                    MqttMessageFactory.newMessage(
-                            new MqttFixedHeader(MqttMessageType.PUBACK, false, MqttQoS.AT_MOST_ONCE, false, 0),
-                            MqttPacketIdVariableHeader.from(packetId),
-                            null),
-                    this.clientId,
+                    MqttEncoder.encodePacketId(ctx.alloc(), MqttMessageType.PUBACK, packetId),
+                    MqttMessageType.PUBACK,
+                    state.clientId,
                     packetId,
                     true);
         }
@@ -463,102 +886,37 @@ public class SyncRedisHandler extends SimpleChannelInboundHandler<MqttMessage> {
         // PUBREC or PUBCOMP. When its original sender receives the PUBREC packet, ownership of the
         // Application Message is transferred to the receiver.
         else if (qos == MqttQoS.EXACTLY_ONCE) {
-            logger.trace("Send PUBREC back to client {}", this.clientId);
+            logger.trace("Send PUBREC back to client {}", state.clientId);
             this.registry.sendMessage(
                     ctx,
-                    MqttMessageFactory.newMessage(
-                            new MqttFixedHeader(MqttMessageType.PUBREC, false, MqttQoS.AT_MOST_ONCE, false, 0),
-                            MqttPacketIdVariableHeader.from(packetId),
-                            null),
-                    this.clientId,
+                    MqttEncoder.encodePacketId(ctx.alloc(), MqttMessageType.PUBREC, packetId),
+                    MqttMessageType.PUBREC,
+                    state.clientId,
                     packetId,
                     true);
         }
-
-        AuthorizeResult result = this.authenticator.authPublish(this.clientId, this.userName, topicName, qos.value(), retain);
-        // Authorize successful
-        if (result == AuthorizeResult.OK) {
-            logger.trace("Authorization PUBLISH succeeded on topic {} for client {}", topicName, this.clientId);
-
-            // If the RETAIN flag is set to 1, in a PUBLISH Packet sent by a Client to a Server, the Server MUST store
-            // the Application Message and its QoS, so that it can be delivered to future subscribers whose
-            // subscriptions match its topic name. When a new subscription is established, the last
-            // retained message, if any, on each matching topic name MUST be sent to the subscriber.
-            if (retain) {
-                // If the Server receives a QoS 0 message with the RETAIN flag set to 1 it MUST discard any message
-                // previously retained for that topic. It SHOULD store the new QoS 0 message as the new retained
-                // message for that topic, but MAY choose to discard it at any time - if this happens there will be no retained
-                // message for that topic.
-                if (qos == MqttQoS.AT_MOST_ONCE || msg.payload() == null || msg.payload().readableBytes() == 0) {
-                    logger.trace("Clear retain messages for topic {} by client {}", topicName, this.clientId);
-                    this.redis.removeAllRetainMessage(topicLevels);
-                }
-
-                // A PUBLISH Packet with a RETAIN flag set to 1 and a payload containing zero bytes will be processed as
-                // normal by the Server and sent to Clients with a subscription matching the topic name. Additionally any
-                // existing retained message with the same topic name MUST be removed and any future subscribers for
-                // the topic will not receive a retained message. “As normal” means that the RETAIN flag is
-                // not set in the message received by existing Clients. A zero byte retained message MUST NOT be stored
-                // as a retained message on the Server
-                if (msg.payload() != null && msg.payload().readableBytes() > 0) {
-                    logger.trace("Add retain messages for topic {} by client {}", topicName, this.clientId);
-                    this.redis.addRetainMessage(topicLevels, Message.fromMqttMessage(msg, this.version, this.clientId, this.userName, this.brokerId));
-                }
-            }
-
-            // Prepare Message in advance, since the byte[] payload will be used in multiple location
-            Message<MqttPublishVariableHeader, MqttPublishPayload> m = Message.fromMqttMessage(msg, this.version, this.clientId, this.userName, this.brokerId);
-
-            // In the QoS 0 delivery protocol, the Receiver
-            // Accepts ownership of the message when it receives the PUBLISH packet.
-            if (qos == MqttQoS.AT_MOST_ONCE) {
-                onwardRecipients(msg, m.payload());
-            }
-            // In the QoS 1 delivery protocol, the Receiver
-            // After it has sent a PUBACK Packet the Receiver MUST treat any incoming PUBLISH packet that
-            // contains the same Packet Identifier as being a new publication, irrespective of the setting of its
-            // DUP flag.
-            else if (qos == MqttQoS.AT_LEAST_ONCE) {
-                onwardRecipients(msg, m.payload());
-            }
-            // In the QoS 2 delivery protocol, the Receiver
-            // Until it has received the corresponding PUBREL packet, the Receiver MUST acknowledge any
-            // subsequent PUBLISH packet with the same Packet Identifier by sending a PUBREC. It MUST
-            // NOT cause duplicate messages to be delivered to any onward recipients in this case.
-            else if (qos == MqttQoS.EXACTLY_ONCE) {
-                // The recipient of a Control Packet that contains the DUP flag set to 1 cannot assume that it has
-                // seen an earlier copy of this packet.
-                if (this.redis.addQoS2MessageId(this.clientId, packetId)) {
-                    onwardRecipients(msg, m.payload());
-                }
-            }
-
-            // Pass message to 3rd party application
-            logger.trace("Send a copy of PUBLISH message from client {} to 3rd party application", this.clientId);
-            this.cluster.sendToApplication(m);
-
-        } else {
-            logger.trace("Authorization PUBLISH failed on topic {} for client {}", topicName, this.clientId);
-        }
-
-        // Refresh client's connected broker node
-        logger.trace("Refresh client {} connected to broker {}", this.clientId, this.brokerId);
-        this.redis.refreshConnectedNode(this.clientId, this.brokerId, Math.round(this.keepAlive * 1.5f));
-
-        logger.trace("Finish handling PUBLISH message for client {}", this.clientId);
     }
 
     /**
      * Forward MQTT PUBLISH message to its recipients
      *
-     * @param msg MQTT PUBLISH Message
+     * @param msg     MQTT PUBLISH Message
+     * @param payload PUBLISH Payload
+     * @param pending  RETURN VALUE! In-flight messages to be group committed, null to persist them immediately
+     * @param forwards RETURN VALUE! Forwarding of the in-flight messages to be run after the group commit, null to forward them immediately
      */
-    private void onwardRecipients(MqttPublishMessage msg, MqttPublishPayload payload) {
+    private void onwardRecipients(MqttPublishMessage msg, MqttPublishPayload payload, List<Message> pending, List<Runnable> forwards) {
         String topicName = msg.variableHeader().topicName();
         List<String> topicLevels = Topics.sanitizeTopicName(topicName);
 
         logger.trace("Onward PUBLISH message to recipients for topic {}", topicName);
 
+        // QoS 0 messages are never stored, only the connected subscribers receive them
+        if (this.index != null && msg.fixedHeader().qos() == MqttQoS.AT_MOST_ONCE) {
+            onwardConnectedRecipients(msg, payload, topicLevels);
+            return;
+        }
+
         // When sending a PUBLISH Packet to a Client the Server MUST set the RETAIN flag to 1 if a message is
         // sent as a result of a new subscription being made by a Client. It MUST set the RETAIN
         // flag to 0 when a PUBLISH Packet is sent to a Client because it matches an established subscription
@@ -573,71 +931,173 @@ public class SyncRedisHandler extends SimpleChannelInboundHandler<MqttMessage> {
         // additional matching subscription and respecting the subscription’s QoS in each case.
         Map<String, MqttQoS> subscriptions = new HashMap<>();
         this.redis.getMatchSubscriptions(topicLevels, subscriptions);
-        subscriptions.forEach((cid, qos) -> {
-
-            // Compare publish QoS and subscription QoS
-            MqttQoS fQos = msg.fixedHeader().qos().value() > qos.value() ? qos : msg.fixedHeader().qos();
-
-            // Each time a Client sends a new packet of one of these
-            // types it MUST assign it a currently unused Packet Identifier. If a Client re-sends a
-            // particular Control Packet, then it MUST use the same Packet Identifier in subsequent re-sends of that
-            // packet. The Packet Identifier becomes available for reuse after the Client has processed the
-            // corresponding acknowledgement packet. In the case of a QoS 1 PUBLISH this is the corresponding
-            // PUBACK; in the case of QoS 2 it is PUBCOMP. For SUBSCRIBE or UNSUBSCRIBE it is the
-            // corresponding SUBACK or UNSUBACK. The same conditions apply to a Server when it
-            // sends a PUBLISH with QoS > 0
-            // A PUBLISH Packet MUST NOT contain a Packet Identifier if its QoS value is set to
-            int pid = 0;
-            if (fQos == MqttQoS.AT_LEAST_ONCE || fQos == MqttQoS.EXACTLY_ONCE) {
-                pid = this.redis.getNextPacketId(cid);
+        // Memory only sessions' subscriptions are only in the subscription index
+        Map<String, MqttQoS> memory = new HashMap<>();
+        if (this.memorySession) {
+            this.index.getMatchSubscriptions(topicLevels, memory);
+            memory.keySet().removeAll(subscriptions.keySet());
+        }
+        Map<String, Map<String, MqttQoS>> groups = SharedSubscriptions.split(subscriptions);
+        Map<String, Map<String, MqttQoS>> memoryGroups = SharedSubscriptions.split(memory);
+        subscriptions.forEach((cid, qos) -> deliver(msg, payload, pending, forwards, cid, qos, this.redis.getConnectedNode(cid), false));
+        memory.forEach((cid, qos) -> deliver(msg, payload, pending, forwards, cid, qos, this.index.getBroker(cid), true));
+
+        // Shared subscriptions, each group receives one copy, delivered to the first connected member by preference
+        // If no member is connected, the message is kept for the most preferred one, memory only sessions are gone
+        // once disconnected so the message is kept for a stored one
+        memoryGroups.forEach((share, members) -> groups.merge(share, members, (a, b) -> {
+            a.putAll(b);
+            return a;
+        }));
+        this.fanout.record(subscriptions.size() + memory.size() + groups.size());
+        groups.forEach((share, members) -> {
+            Map<String, MqttQoS> memoryMembers = memoryGroups.getOrDefault(share, Collections.emptyMap());
+            String cid = null;
+            String bid = null;
+            for (String candidate : this.shared.candidates(share, members)) {
+                boolean m = memoryMembers.containsKey(candidate);
+                String node = m ? this.index.getBroker(candidate) : this.redis.getConnectedNode(candidate);
+                if (StringUtils.isNotBlank(node)) {
+                    cid = candidate;
+                    bid = node;
+                    break;
+                }
+                if (cid == null && !m) cid = candidate;
+            }
+            if (cid == null) return;
+            logger.trace("Choose client {} of shared subscription {}", cid, SharedSubscriptions.PREFIX + "/" + share);
+            deliver(msg, payload, pending, forwards, cid, members.get(cid), bid, memoryMembers.containsKey(cid));
+        });
+    }
+
+    /**
+     * Forward QoS 0 MQTT PUBLISH message to its connected recipients
+     * Subscribers and their brokers are found in the subscription index, so the storage is not touched.
+     *
+     * @param msg         MQTT PUBLISH Message
+     * @param payload     PUBLISH Payload
+     * @param topicLevels Sanitized Topic Levels
+     */
+    private void onwardConnectedRecipients(MqttPublishMessage msg, MqttPublishPayload payload, List<String> topicLevels) {
+        Map<String, MqttQoS> subscriptions = new HashMap<>();
+        this.index.getMatchSubscriptions(topicLevels, subscriptions);
+        Map<String, Map<String, MqttQoS>> groups = SharedSubscriptions.split(subscriptions);
+        subscriptions.forEach((cid, qos) -> deliver(msg, payload, null, null, cid, qos, this.index.getBroker(cid), false));
+        this.fanout.record(subscriptions.size() + groups.size());
+
+        // Shared subscriptions, each group receives one copy, members in the index are connected
+        groups.forEach((share, members) -> {
+            for (String cid : this.shared.candidates(share, members)) {
+                String bid = this.index.getBroker(cid);
+                if (bid != null) {
+                    logger.trace("Choose client {} of shared subscription {}", cid, SharedSubscriptions.PREFIX + "/" + share);
+                    deliver(msg, payload, null, null, cid, members.get(cid), bid, false);
+                    break;
+                }
+            }
+        });
+    }
+
+    /**
+     * Deliver MQTT PUBLISH message to the subscriber
+     *
+     * @param msg     MQTT PUBLISH Message
+     * @param payload PUBLISH Payload
+     * @param pending  RETURN VALUE! In-flight messages to be group committed, null to persist them immediately
+     * @param forwards RETURN VALUE! Forwarding of the in-flight messages to be run after the group commit, null to forward them immediately
+     * @param cid      Subscriber's Client Id
+     * @param qos      Subscription QoS
+     * @param bid      Broker Id the subscriber connected to, null if not connected
+     * @param memory   Is the subscriber a memory only session
+     */
+    private void deliver(MqttPublishMessage msg, MqttPublishPayload payload, List<Message> pending, List<Runnable> forwards, String cid, MqttQoS qos, String bid, boolean memory) {
+        String topicName = msg.variableHeader().topicName();
+
+        // Compare publish QoS and subscription QoS
+        MqttQoS fQos = msg.fixedHeader().qos().value() > qos.value() ? qos : msg.fixedHeader().qos();
+
+        // Each time a Client sends a new packet of one of these
+        // types it MUST assign it a currently unused Packet Identifier. If a Client re-sends a
+        // particular Control Packet, then it MUST use the same Packet Identifier in subsequent re-sends of that
+        // packet. The Packet Identifier becomes available for reuse after the Client has processed the
+        // corresponding acknowledgement packet. In the case of a QoS 1 PUBLISH this is the corresponding
+        // PUBACK; in the case of QoS 2 it is PUBCOMP. For SUBSCRIBE or UNSUBSCRIBE it is the
+        // corresponding SUBACK or UNSUBACK. The same conditions apply to a Server when it
+        // sends a PUBLISH with QoS > 0
+        // A PUBLISH Packet MUST NOT contain a Packet Identifier if its QoS value is set to
+        // Memory only sessions get the packet id from the broker they connected to
+        int pid = 0;
+        if (fQos == MqttQoS.AT_LEAST_ONCE || fQos == MqttQoS.EXACTLY_ONCE) {
+            if (!memory) pid = this.redis.getNextPacketId(cid);
+            else if (this.brokerId.equals(bid)) {
+                pid = this.registry.nextPacketId(cid, this.inFlight);
+                if (pid <= 0) {
+                    logger.debug("Delivery failed: Client {} no longer connected, or no packet id available, message dropped", cid);
+                    return;
+                }
             }
+        }
+
+        Message<MqttPublishVariableHeader, MqttPublishPayload> m = new Message<>(
+                new MqttFixedHeader(MqttMessageType.PUBLISH, false, fQos, false, 0),
+                new MqttAdditionalHeader(MqttVersion.MQTT_3_1_1, cid, null, null),
+                pid > 0 ? MqttPublishVariableHeader.from(topicName, pid)
+                        : MqttPublishVariableHeader.from(topicName),
+                payload
+        );
 
-            Message<MqttPublishVariableHeader, MqttPublishPayload> m = new Message<>(
-                    new MqttFixedHeader(MqttMessageType.PUBLISH, false, fQos, false, 0),
-                    new MqttAdditionalHeader(MqttVersion.MQTT_3_1_1, cid, null, null),
-                    pid > 0 ? MqttPublishVariableHeader.from(topicName, pid)
-                            : MqttPublishVariableHeader.from(topicName),
-                    payload
-            );
-
-            // Forward to recipient
-            boolean dup = false;
-            String bid = this.redis.getConnectedNode(cid);
-            if (StringUtils.isNotBlank(bid)) {
-                if (bid.equals(this.brokerId)) {
+        // Forward to recipient
+        // Stored in-flight messages to be group committed are forwarded after the commit
+        // In the QoS 1 delivery protocol, the Sender
+        // MUST treat the PUBLISH Packet as “unacknowledged” until it has received the corresponding
+        // PUBACK packet from the receiver.
+        // In the QoS 2 delivery protocol, the Sender
+        // MUST treat the PUBLISH packet as “unacknowledged” until it has received the corresponding
+        // PUBREC packet from the receiver.
+        // The local copy for retransmission is only kept once the message is sent, never before it is persisted
+        boolean dup = false;
+        if (StringUtils.isNotBlank(bid)) {
+            int id = pid;
+            Runnable forward;
+            if (bid.equals(this.brokerId)) {
+                forward = () -> {
+                    if (id > 0) this.inFlight.add(cid, id, m);
                     logger.trace("Send PUBLISH message to client {}", cid);
-                    dup = true;
-                    this.registry.sendMessage(m.toMqttMessage(), cid, pid, true);
-                } else {
+                    this.registry.sendMessage(m.toMqttMessage(), cid, id, true);
+                };
+            } else {
+                forward = () -> {
                     logger.trace("Send PUBLISH message to broker {} for client {} subscription", bid, cid);
-                    dup = true;
                     this.cluster.sendToBroker(bid, m);
-                }
+                };
             }
+            dup = true;
+            if (forwards != null && pid > 0 && !memory) forwards.add(forward);
+            else forward.run();
+        }
 
-            // In the QoS 1 delivery protocol, the Sender
-            // MUST treat the PUBLISH Packet as “unacknowledged” until it has received the corresponding
-            // PUBACK packet from the receiver.
-            // In the QoS 2 delivery protocol, the Sender
-            // MUST treat the PUBLISH packet as “unacknowledged” until it has received the corresponding
-            // PUBREC packet from the receiver.
-            if (fQos == MqttQoS.AT_LEAST_ONCE || fQos == MqttQoS.EXACTLY_ONCE) {
-                logger.trace("Add in-flight PUBLISH message {} with QoS {} for client {}", pid, fQos, cid);
+        // Memory only sessions' in-flight messages are only kept by the broker they connected to
+        if ((fQos == MqttQoS.AT_LEAST_ONCE || fQos == MqttQoS.EXACTLY_ONCE) && !memory) {
+            logger.trace("Add in-flight PUBLISH message {} with QoS {} for client {}", pid, fQos, cid);
+            if (pending != null) {
+                pending.add(new Message<>(new MqttFixedHeader(MqttMessageType.PUBLISH, dup, fQos, false, 0),
+                        m.additionalHeader(), m.variableHeader(), m.payload()));
+            } else {
                 this.redis.addInFlightMessage(cid, pid, m, dup);
             }
-        });
+        }
     }
 
-    private void onPubAck(ChannelHandlerContext ctx, MqttMessage msg) {
-        logger.trace("Start handling PUBACK message for client {}", this.clientId);
+    private void onPubAck(ChannelHandlerContext ctx, SessionState state, MqttMessage msg) {
+        logger.trace("Start handling PUBACK message for client {}", state.clientId);
 
-        if (!this.connected) {
-            logger.debug("Protocol violation: Client {} must first sent a CONNECT message, now received PUBACK message, disconnect the client", this.clientId);
+        if (!state.connected) {
+            logger.debug("Protocol violation: Client {} must first sent a CONNECT message, now received PUBACK message, disconnect the client", state.clientId);
             ctx.close();
             return;
         }
 
-        logger.debug("Message received: Received PUBACK message from client {} user {}", this.clientId, this.userName);
+        logger.debug("Message received: Received PUBACK message from client {} user {}", state.clientId, state.userName);
 
         MqttPacketIdVariableHeader variable = (MqttPacketIdVariableHeader) msg.variableHeader();
         int packetId = variable.packetId();
@@ -645,26 +1105,26 @@ public class SyncRedisHandler extends SimpleChannelInboundHandler<MqttMessage> {
         // In the QoS 1 delivery protocol, the Sender
         // MUST treat the PUBLISH Packet as “unacknowledged” until it has received the corresponding
         // PUBACK packet from the receiver.
-        logger.trace("Remove in-flight PUBLISH message {} for client {}", packetId, this.clientId);
-        this.redis.removeInFlightMessage(this.clientId, packetId);
+        logger.trace("Remove in-flight PUBLISH message {} for client {}", packetId, state.clientId);
+        if (!state.memory) this.redis.removeInFlightMessage(state.clientId, packetId);
+        this.inFlight.remove(state.clientId, packetId);
 
         // Refresh client's connected broker node
-        logger.trace("Refresh client {} connected to broker {}", this.clientId, this.brokerId);
-        this.redis.refreshConnectedNode(this.clientId, this.brokerId, Math.round(this.keepAlive * 1.5f));
+        refreshConnectedNode(state);
 
-        logger.trace("Finish handling PUBACK message for client {}", this.clientId);
+        logger.trace("Finish handling PUBACK message for client {}", state.clientId);
     }
 
-    private void onPubRec(ChannelHandlerContext ctx, MqttMessage msg) {
-        logger.trace("Start handling PUBREC message for client {}", this.clientId);
+    private void onPubRec(ChannelHandlerContext ctx, SessionState state, MqttMessage msg) {
+        logger.trace("Start handling PUBREC message for client {}", state.clientId);
 
-        if (!this.connected) {
-            logger.debug("Protocol violation: Client {} must first sent a CONNECT message, now received PUBREC message, disconnect the client", this.clientId);
+        if (!state.connected) {
+            logger.debug("Protocol violation: Client {} must first sent a CONNECT message, now received PUBREC message, disconnect the client", state.clientId);
             ctx.close();
             return;
         }
 
-        logger.debug("Message received: Received PUBREC message from client {} user {}", this.clientId, this.userName);
+        logger.debug("Message received: Received PUBREC message from client {} user {}", state.clientId, state.userName);
 
         MqttPacketIdVariableHeader variable = (MqttPacketIdVariableHeader) msg.variableHeader();
         int packetId = variable.packetId();
@@ -675,38 +1135,39 @@ public class SyncRedisHandler extends SimpleChannelInboundHandler<MqttMessage> {
         // MUST send a PUBREL packet when it receives a PUBREC packet from the receiver. This
         // PUBREL packet MUST contain the same Packet Identifier as the original PUBLISH packet.
         // MUST NOT re-send the PUBLISH once it has sent the corresponding PUBREL packet.
-        logger.trace("Remove in-flight PUBLISH message {} for client {}", packetId, this.clientId);
-        this.redis.removeInFlightMessage(this.clientId, packetId);
+        logger.trace("Remove in-flight PUBLISH message {} for client {}", packetId, state.clientId);
+        if (!state.memory) this.redis.removeInFlightMessage(state.clientId, packetId);
 
         // Send back PUBREL
+        logger.trace("Send PUBREL back to client {}", state.clientId);
+        this.registry.sendMessage(ctx, MqttEncoder.encodePacketId(ctx.alloc(), MqttMessageType.PUBREL, packetId), MqttMessageType.PUBREL, state.clientId, packetId, true);
+
+        // Save PUBREL as in-flight message
+        logger.trace("Add In-Flight PUBREL message {} for client {}", packetId, state.clientId);
         MqttMessage pubrel = MqttMessageFactory.newMessage(
                 new MqttFixedHeader(MqttMessageType.PUBREL, false, MqttQoS.AT_LEAST_ONCE, false, 0),
                 MqttPacketIdVariableHeader.from(packetId),
                 null);
-        logger.trace("Send PUBREL back to client {}", this.clientId);
-        this.registry.sendMessage(ctx, pubrel, this.clientId, packetId, true);
-
-        // Save PUBREL as in-flight message
-        logger.trace("Add In-Flight PUBREL message {} for client {}", packetId, this.clientId);
-        this.redis.addInFlightMessage(this.clientId, packetId, Message.fromMqttMessage(pubrel, this.version, this.clientId, this.userName, this.brokerId), true);
+        Message m = Message.fromMqttMessage(pubrel, state.version, state.clientId, state.userName, this.brokerId);
+        if (!state.memory) this.redis.addInFlightMessage(state.clientId, packetId, m, true);
+        this.inFlight.add(state.clientId, packetId, m);
 
         // Refresh client's connected broker node
-        logger.trace("Refresh client {} connected to broker {}", this.clientId, this.brokerId);
-        this.redis.refreshConnectedNode(this.clientId, this.brokerId, Math.round(this.keepAlive * 1.5f));
+        refreshConnectedNode(state);
 
-        logger.trace("Finish handling PUBREC message for client {}", this.clientId);
+        logger.trace("Finish handling PUBREC message for client {}", state.clientId);
     }
 
-    private void onPubRel(ChannelHandlerContext ctx, MqttMessage msg) {
-        logger.trace("Start handling PUBREL message for client {}", this.clientId);
+    private void onPubRel(ChannelHandlerContext ctx, SessionState state, MqttMessage msg) {
+        logger.trace("Start handling PUBREL message for client {}", state.clientId);
 
-        if (!this.connected) {
-            logger.debug("Protocol violation: Client {} must first sent a CONNECT message, now received PUBREL message, disconnect the client", this.clientId);
+        if (!state.connected) {
+            logger.debug("Protocol violation: Client {} must first sent a CONNECT message, now received PUBREL message, disconnect the client", state.clientId);
             ctx.close();
             return;
         }
 
-        logger.debug("Message received: Received PUBREL message from client {} user {}", this.clientId, this.userName);
+        logger.debug("Message received: Received PUBREL message from client {} user {}", state.clientId, state.userName);
 
         MqttPacketIdVariableHeader variable = (MqttPacketIdVariableHeader) msg.variableHeader();
         int packetId = variable.packetId();
@@ -716,31 +1177,29 @@ public class SyncRedisHandler extends SimpleChannelInboundHandler<MqttMessage> {
         // Packet Identifier as the PUBREL.
         // After it has sent a PUBCOMP, the receiver MUST treat any subsequent PUBLISH packet that
         // contains that Packet Identifier as being a new publication.
-        this.redis.removeQoS2MessageId(this.clientId, packetId);
-        MqttMessage comp = MqttMessageFactory.newMessage(
-                new MqttFixedHeader(MqttMessageType.PUBCOMP, false, MqttQoS.AT_MOST_ONCE, false, 0),
-                MqttPacketIdVariableHeader.from(packetId),
-                null);
-        logger.trace("Send PUBCOMP back to client {}", this.clientId);
-        this.registry.sendMessage(ctx, comp, this.clientId, packetId, true);
+        // Packet id unknown to this connection was received by a former connection, and may have been persisted by it
+        if (!state.removeQoS2Id(packetId) && !state.cleanSession) {
+            this.redis.removeQoS2MessageId(state.clientId, packetId);
+        }
+        logger.trace("Send PUBCOMP back to client {}", state.clientId);
+        this.registry.sendMessage(ctx, MqttEncoder.encodePacketId(ctx.alloc(), MqttMessageType.PUBCOMP, packetId), MqttMessageType.PUBCOMP, state.clientId, packetId, true);
 
         // Refresh client's connected broker node
-        logger.trace("Refresh client {} connected to broker {}", this.clientId, this.brokerId);
-        this.redis.refreshConnectedNode(this.clientId, this.brokerId, Math.round(this.keepAlive * 1.5f));
+        refreshConnectedNode(state);
 
-        logger.trace("Finish handling PUBREL message for client {}", this.clientId);
+        logger.trace("Finish handling PUBREL message for client {}", state.clientId);
     }
 
-    private void onPubComp(ChannelHandlerContext ctx, MqttMessage msg) {
-        logger.trace("Start handling PUBCOMP message for client {}", this.clientId);
+    private void onPubComp(ChannelHandlerContext ctx, SessionState state, MqttMessage msg) {
+        logger.trace("Start handling PUBCOMP message for client {}", state.clientId);
 
-        if (!this.connected) {
-            logger.debug("Protocol violation: Client {} must first sent a CONNECT message, now received PUBCOMP message, disconnect the client", this.clientId);
+        if (!state.connected) {
+            logger.debug("Protocol violation: Client {} must first sent a CONNECT message, now received PUBCOMP message, disconnect the client", state.clientId);
             ctx.close();
             return;
         }
 
-        logger.debug("Message received: Received PUBCOMP message from client {} user {}", this.clientId, this.userName);
+        logger.debug("Message received: Received PUBCOMP message from client {} user {}", state.clientId, state.userName);
 
         MqttPacketIdVariableHeader variable = (MqttPacketIdVariableHeader) msg.variableHeader();
         int packetId = variable.packetId();
@@ -748,21 +1207,21 @@ public class SyncRedisHandler extends SimpleChannelInboundHandler<MqttMessage> {
         // In the QoS 2 delivery protocol, the Sender
         // MUST treat the PUBREL packet as “unacknowledged” until it has received the corresponding
         // PUBCOMP packet from the receiver.
-        logger.trace("Remove in-flight PUBREL message {} for client {}", packetId, this.clientId);
-        this.redis.removeInFlightMessage(this.clientId, packetId);
+        logger.trace("Remove in-flight PUBREL message {} for client {}", packetId, state.clientId);
+        if (!state.memory) this.redis.removeInFlightMessage(state.clientId, packetId);
+        this.inFlight.remove(state.clientId, packetId);
 
         // Refresh client's connected broker node
-        logger.trace("Refresh client {} connected to broker {}", this.clientId, this.brokerId);
-        this.redis.refreshConnectedNode(this.clientId, this.brokerId, Math.round(this.keepAlive * 1.5f));
+        refreshConnectedNode(state);
 
-        logger.trace("Finish handling PUBCOMP message for client {}", this.clientId);
+        logger.trace("Finish handling PUBCOMP message for client {}", state.clientId);
     }
 
-    private void onSubscribe(ChannelHandlerContext ctx, MqttSubscribeMessage msg) {
-        logger.trace("Start handling SUBSCRIBE message for client {}", this.clientId);
+    private void onSubscribe(ChannelHandlerContext ctx, SessionState state, MqttSubscribeMessage msg) {
+        logger.trace("Start handling SUBSCRIBE message for client {}", state.clientId);
 
-        if (!this.connected) {
-            logger.debug("Protocol violation: Client {} must first sent a CONNECT message, now received SUBSCRIBE message, disconnect the client", this.clientId);
+        if (!state.connected) {
+            logger.debug("Protocol violation: Client {} must first sent a CONNECT message, now received SUBSCRIBE message, disconnect the client", state.clientId);
             ctx.close();
             return;
         }
@@ -773,111 +1232,119 @@ public class SyncRedisHandler extends SimpleChannelInboundHandler<MqttMessage> {
         // Validate Topic Filter based on configuration
         for (MqttTopicSubscription subscription : requestSubscriptions) {
             if (!this.validator.isTopicFilterValid(subscription.topic())) {
-                logger.debug("Protocol violation: Client {} subscription {} is not valid based on configuration, disconnect the client", this.clientId, subscription.topic());
+                logger.debug("Protocol violation: Client {} subscription {} is not valid based on configuration, disconnect the client", state.clientId, subscription.topic());
                 ctx.close();
                 return;
             }
         }
 
-        logger.debug("Message received: Received SUBSCRIBE message from client {} user {}", this.clientId, this.userName);
-
-        // Authorize client subscribe using provided Authenticator
-        List<MqttGrantedQoS> grantedQosLevels = this.authenticator.authSubscribe(this.clientId, this.userName, requestSubscriptions);
-        if (requestSubscriptions.size() != grantedQosLevels.size()) {
-            logger.warn("Authorization error: SUBSCRIBE message's subscriptions count not equal to granted QoS count, disconnect the client");
-            ctx.close();
-            return;
-        }
-        logger.trace("Authorization granted on topic {} as {} for client {}", ArrayUtils.toString(msg.payload().subscriptions()), ArrayUtils.toString(grantedQosLevels), this.clientId);
-
-        // If a Server receives a SUBSCRIBE packet that contains multiple Topic Filters it MUST handle that packet
-        // as if it had received a sequence of multiple SUBSCRIBE packets, except that it combines their responses
-        // into a single SUBACK response.
-        // When the Server receives a SUBSCRIBE Packet from a Client, the Server MUST respond with a
-        // SUBACK Packet. The SUBACK Packet MUST have the same Packet Identifier as the
-        // SUBSCRIBE Packet that it is acknowledging.
-        logger.trace("Send SUBACK back to client {}", this.clientId);
-        this.registry.sendMessage(
-                ctx,
-                MqttMessageFactory.newMessage(
-                        new MqttFixedHeader(MqttMessageType.SUBACK, false, MqttQoS.AT_MOST_ONCE, false, 0),
-                        MqttPacketIdVariableHeader.from(packetId),
-                        new MqttSubAckPayload(grantedQosLevels)),
-                this.clientId,
-                packetId,
-                true);
-
-        for (int i = 0; i < requestSubscriptions.size(); i++) {
-
-            MqttGrantedQoS grantedQoS = grantedQosLevels.get(i);
-            String topic = requestSubscriptions.get(i).topic();
-            List<String> topicLevels = Topics.sanitize(topic);
-
-            // Granted only
-            if (grantedQoS != MqttGrantedQoS.NOT_GRANTED) {
-
-                // If a Server receives a SUBSCRIBE Packet containing a Topic Filter that is identical to an existing
-                // Subscription’s Topic Filter then it MUST completely replace that existing Subscription with a new
-                // Subscription. The Topic Filter in the new Subscription will be identical to that in the previous Subscription,
-                // although its maximum QoS value could be different. Any existing retained messages matching the Topic
-                // Filter MUST be re-sent, but the flow of publications MUST NOT be interrupted.
-                // Where the Topic Filter is not identical to any existing Subscription’s filter, a new Subscription is created
-                // and all matching retained messages are sent.
-                logger.trace("Update client {} subscription with topic {} QoS {}", this.clientId, topic, grantedQoS);
-                this.redis.updateSubscription(this.clientId, topicLevels, MqttQoS.valueOf(grantedQoS.value()));
-
-                // The Server is permitted to start sending PUBLISH packets matching the Subscription before the Server
-                // sends the SUBACK Packet.
-                for (Message<MqttPublishVariableHeader, MqttPublishPayload> retain : this.redis.getMatchRetainMessages(topicLevels)) {
+        logger.debug("Message received: Received SUBSCRIBE message from client {} user {}", state.clientId, state.userName);
 
-                    // Compare publish QoS and subscription QoS
-                    MqttQoS fQos = retain.fixedHeader().qos().value() > grantedQoS.value() ? MqttQoS.valueOf(grantedQoS.value()) : retain.fixedHeader().qos();
+        // Authorize client subscribe using provided Authenticator, shared subscriptions by their topic filters
+        whenAuthorized(ctx, state, null, this.authenticator.authSubscribe(state.clientId, state.userName, SharedSubscriptions.authorizable(requestSubscriptions)), grantedQosLevels -> {
+            if (grantedQosLevels == null || requestSubscriptions.size() != grantedQosLevels.size()) {
+                logger.warn("Authorization error: SUBSCRIBE message's subscriptions count not equal to granted QoS count, disconnect the client");
+                ctx.close();
+                return;
+            }
+            logger.trace("Authorization granted on topic {} as {} for client {}", ArrayUtils.toString(msg.payload().subscriptions()), ArrayUtils.toString(grantedQosLevels), state.clientId);
+
+            // If a Server receives a SUBSCRIBE packet that contains multiple Topic Filters it MUST handle that packet
+            // as if it had received a sequence of multiple SUBSCRIBE packets, except that it combines their responses
+            // into a single SUBACK response.
+            // When the Server receives a SUBSCRIBE Packet from a Client, the Server MUST respond with a
+            // SUBACK Packet. The SUBACK Packet MUST have the same Packet Identifier as the
+            // SUBSCRIBE Packet that it is acknowledging.
+            logger.trace("Send SUBACK back to client {}", state.clientId);
+            this.registry.sendMessage(
+                    ctx,
+                    MqttMessageFactory.newMessage(
+                            new MqttFixedHeader(MqttMessageType.SUBACK, false, MqttQoS.AT_MOST_ONCE, false, 0),
+                            MqttPacketIdVariableHeader.from(packetId),
+                            new MqttSubAckPayload(grantedQosLevels)),
+                    state.clientId,
+                    packetId,
+                    true);
 
-                    // Set packet id
-                    int pid = 0;
-                    if (fQos == MqttQoS.AT_LEAST_ONCE || fQos == MqttQoS.EXACTLY_ONCE) {
-                        pid = this.redis.getNextPacketId(this.clientId);
-                    }
+            for (int i = 0; i < requestSubscriptions.size(); i++) {
+
+                MqttGrantedQoS grantedQoS = grantedQosLevels.get(i);
+                String topic = requestSubscriptions.get(i).topic();
+                List<String> topicLevels = Topics.sanitize(topic);
+
+                // Granted only
+                if (grantedQoS != MqttGrantedQoS.NOT_GRANTED) {
+
+                    // If a Server receives a SUBSCRIBE Packet containing a Topic Filter that is identical to an existing
+                    // Subscription’s Topic Filter then it MUST completely replace that existing Subscription with a new
+                    // Subscription. The Topic Filter in the new Subscription will be identical to that in the previous Subscription,
+                    // although its maximum QoS value could be different. Any existing retained messages matching the Topic
+                    // Filter MUST be re-sent, but the flow of publications MUST NOT be interrupted.
+                    // Where the Topic Filter is not identical to any existing Subscription’s filter, a new Subscription is created
+                    // and all matching retained messages are sent.
+                    logger.trace("Update client {} subscription with topic {} QoS {}", state.clientId, topic, grantedQoS);
+                    if (!state.memory) this.redis.updateSubscription(state.clientId, topicLevels, MqttQoS.valueOf(grantedQoS.value()));
+                    if (this.index != null) this.index.subscribe(state.clientId, this.brokerId, topic, MqttQoS.valueOf(grantedQoS.value()));
+
+                    // The Server is permitted to start sending PUBLISH packets matching the Subscription before the Server
+                    // sends the SUBACK Packet.
+                    for (Message<MqttPublishVariableHeader, MqttPublishPayload> retain : this.redis.getMatchRetainMessages(topicLevels)) {
+
+                        // Compare publish QoS and subscription QoS
+                        MqttQoS fQos = retain.fixedHeader().qos().value() > grantedQoS.value() ? MqttQoS.valueOf(grantedQoS.value()) : retain.fixedHeader().qos();
+
+                        // Set packet id
+                        int pid = 0;
+                        if (fQos == MqttQoS.AT_LEAST_ONCE || fQos == MqttQoS.EXACTLY_ONCE) {
+                            pid = state.memory ? this.registry.nextPacketId(state.clientId, this.inFlight) : this.redis.getNextPacketId(state.clientId);
+                            if (pid <= 0) {
+                                logger.debug("Delivery failed: No packet id available for client {}, retained message dropped", state.clientId);
+                                continue;
+                            }
+                        }
 
-                    // Forward to recipient
-                    logger.trace("Send retained PUBLISH message to client {} subscription with topic {}", this.clientId, topic);
-                    Message m = new Message<>(new MqttFixedHeader(MqttMessageType.PUBLISH, false, fQos, false, 0),
-                            new MqttAdditionalHeader(MqttVersion.MQTT_3_1_1, this.clientId, null, null),
-                            pid > 0 ? MqttPublishVariableHeader.from(retain.variableHeader().topicName(), pid)
-                                    : MqttPublishVariableHeader.from(retain.variableHeader().topicName()),
-                            retain.payload());
-                    this.registry.sendMessage(ctx, m.toMqttMessage(), this.clientId, pid, true);
-
-                    // In the QoS 1 delivery protocol, the Sender
-                    // MUST treat the PUBLISH Packet as “unacknowledged” until it has received the corresponding
-                    // PUBACK packet from the receiver.
-                    // In the QoS 2 delivery protocol, the Sender
-                    // MUST treat the PUBLISH packet as “unacknowledged” until it has received the corresponding
-                    // PUBREC packet from the receiver.
-                    if (fQos == MqttQoS.AT_LEAST_ONCE || fQos == MqttQoS.EXACTLY_ONCE) {
-                        logger.trace("Add in-flight PUBLISH message {} with QoS {} for client {}", pid, fQos, this.clientId);
-                        this.redis.addInFlightMessage(this.clientId, pid, m, true);
+                        // Forward to recipient
+                        logger.trace("Send retained PUBLISH message to client {} subscription with topic {}", state.clientId, topic);
+                        Message m = new Message<>(new MqttFixedHeader(MqttMessageType.PUBLISH, false, fQos, false, 0),
+                                new MqttAdditionalHeader(MqttVersion.MQTT_3_1_1, state.clientId, null, null),
+                                pid > 0 ? MqttPublishVariableHeader.from(retain.variableHeader().topicName(), pid)
+                                        : MqttPublishVariableHeader.from(retain.variableHeader().topicName()),
+                                retain.payload());
+                        this.registry.sendMessage(ctx, m.toMqttMessage(), state.clientId, pid, true);
+
+                        // In the QoS 1 delivery protocol, the Sender
+                        // MUST treat the PUBLISH Packet as “unacknowledged” until it has received the corresponding
+                        // PUBACK packet from the receiver.
+                        // In the QoS 2 delivery protocol, the Sender
+                        // MUST treat the PUBLISH packet as “unacknowledged” until it has received the corresponding
+                        // PUBREC packet from the receiver.
+                        if (fQos == MqttQoS.AT_LEAST_ONCE || fQos == MqttQoS.EXACTLY_ONCE) {
+                            logger.trace("Add in-flight PUBLISH message {} with QoS {} for client {}", pid, fQos, state.clientId);
+                            if (!state.memory) this.redis.addInFlightMessage(state.clientId, pid, m, true);
+                            this.inFlight.add(state.clientId, pid, m);
+                        }
                     }
                 }
             }
-        }
 
-        // Pass message to 3rd party application
-        logger.trace("Send a copy of SUBSCRIBE message from client {} to 3rd party application", this.clientId);
-        this.cluster.sendToApplication(Message.fromMqttMessage(msg, grantedQosLevels, this.version, this.clientId, this.userName, this.brokerId));
+            // Pass message to 3rd party application, and advertise to the other brokers' subscription index
+            logger.trace("Send a copy of SUBSCRIBE message from client {} to 3rd party application", state.clientId);
+            Message m = Message.fromMqttMessage(msg, grantedQosLevels, state.version, state.clientId, state.userName, this.brokerId);
+            this.cluster.sendToApplication(m);
+            if (this.index != null) this.cluster.advertise(m);
 
-        // Refresh client's connected broker node
-        logger.trace("Refresh client {} connected to broker {}", this.clientId, this.brokerId);
-        this.redis.refreshConnectedNode(this.clientId, this.brokerId, Math.round(this.keepAlive * 1.5f));
+            // Refresh client's connected broker node
+            refreshConnectedNode(state);
 
-        logger.trace("Finish handling SUBSCRIBE message for client {}", this.clientId);
+            logger.trace("Finish handling SUBSCRIBE message for client {}", state.clientId);
+        });
     }
 
-    private void onUnsubscribe(ChannelHandlerContext ctx, MqttUnsubscribeMessage msg) {
-        logger.trace("Start handling UNSUBSCRIBE message for client {}", this.clientId);
+    private void onUnsubscribe(ChannelHandlerContext ctx, SessionState state, MqttUnsubscribeMessage msg) {
+        logger.trace("Start handling UNSUBSCRIBE message for client {}", state.clientId);
 
-        if (!this.connected) {
-            logger.debug("Protocol violation: Client {} must first sent a CONNECT message, now received UNSUBSCRIBE message, disconnect the client", this.clientId);
+        if (!state.connected) {
+            logger.debug("Protocol violation: Client {} must first sent a CONNECT message, now received UNSUBSCRIBE message, disconnect the client", state.clientId);
             ctx.close();
             return;
         }
@@ -885,13 +1352,13 @@ public class SyncRedisHandler extends SimpleChannelInboundHandler<MqttMessage> {
         // Validate Topic Filter based on configuration
         for (String topic : msg.payload().topics()) {
             if (!this.validator.isTopicFilterValid(topic)) {
-                logger.debug("Protocol violation: Client {} un-subscription {} is not valid based on configuration, disconnect the client", this.clientId, topic);
+                logger.debug("Protocol violation: Client {} un-subscription {} is not valid based on configuration, disconnect the client", state.clientId, topic);
                 ctx.close();
                 return;
             }
         }
 
-        logger.debug("Message received: Received UNSUBSCRIBE message from client {} user {} topics {}", this.clientId, this.userName, ArrayUtils.toString(msg.payload().topics()));
+        logger.debug("Message received: Received UNSUBSCRIBE message from client {} user {} topics {}", state.clientId, state.userName, ArrayUtils.toString(msg.payload().topics()));
 
         int packetId = msg.variableHeader().packetId();
 
@@ -902,14 +1369,12 @@ public class SyncRedisHandler extends SimpleChannelInboundHandler<MqttMessage> {
         // If a Server receives an UNSUBSCRIBE packet that contains multiple Topic Filters it MUST handle that
         // packet as if it had received a sequence of multiple UNSUBSCRIBE packets, except that it sends just one
         // UNSUBACK response.
-        logger.debug("Send UNSUBACK back to client {}", this.clientId);
+        logger.debug("Send UNSUBACK back to client {}", state.clientId);
         this.registry.sendMessage(
                 ctx,
-                MqttMessageFactory.newMessage(
-                        new MqttFixedHeader(MqttMessageType.UNSUBACK, false, MqttQoS.AT_MOST_ONCE, false, 0),
-                        MqttPacketIdVariableHeader.from(packetId),
-                        null),
-                this.clientId,
+                MqttEncoder.encodePacketId(ctx.alloc(), MqttMessageType.UNSUBACK, packetId),
+                MqttMessageType.UNSUBACK,
+                state.clientId,
                 packetId,
                 true);
 
@@ -923,103 +1388,115 @@ public class SyncRedisHandler extends SimpleChannelInboundHandler<MqttMessage> {
         // the Client.
         // It MAY continue to deliver any existing messages buffered for delivery to the Client.
         msg.payload().topics().forEach(topic -> {
-            logger.trace("Remove client {} subscription with topic {}", this.clientId, topic);
-            this.redis.removeSubscription(this.clientId, Topics.sanitize(topic));
+            logger.trace("Remove client {} subscription with topic {}", state.clientId, topic);
+            if (!state.memory) this.redis.removeSubscription(state.clientId, Topics.sanitize(topic));
+            if (this.index != null) this.index.unsubscribe(state.clientId, topic);
         });
 
-        // Pass message to 3rd party application
-        logger.trace("Send a copy of UNSUBSCRIBE message from client {} to 3rd party application", this.clientId);
-        this.cluster.sendToApplication(Message.fromMqttMessage(msg, this.version, this.clientId, this.userName, this.brokerId));
+        // Pass message to 3rd party application, and advertise to the other brokers' subscription index
+        logger.trace("Send a copy of UNSUBSCRIBE message from client {} to 3rd party application", state.clientId);
+        Message m = Message.fromMqttMessage(msg, state.version, state.clientId, state.userName, this.brokerId);
+        this.cluster.sendToApplication(m);
+        if (this.index != null) this.cluster.advertise(m);
 
         // Refresh client's connected broker node
-        logger.trace("Refresh client {} connected to broker {}", this.clientId, this.brokerId);
-        this.redis.refreshConnectedNode(this.clientId, this.brokerId, Math.round(this.keepAlive * 1.5f));
+        refreshConnectedNode(state);
 
-        logger.trace("Finish handling UNSUBSCRIBE message for client {}", this.clientId);
+        logger.trace("Finish handling UNSUBSCRIBE message for client {}", state.clientId);
     }
 
-    private void onPingReq(ChannelHandlerContext ctx) {
-        logger.trace("Start handling PINGREQ message for client {}", this.clientId);
+    private void onPingReq(ChannelHandlerContext ctx, SessionState state) {
+        logger.trace("Start handling PINGREQ message for client {}", state.clientId);
 
-        if (!this.connected) {
-            logger.debug("Protocol violation: Client {} must first sent a CONNECT message, now received PINGREQ message, disconnect the client", this.clientId);
+        if (!state.connected) {
+            logger.debug("Protocol violation: Client {} must first sent a CONNECT message, now received PINGREQ message, disconnect the client", state.clientId);
             ctx.close();
             return;
         }
 
-        logger.debug("Message received: Received PINGREQ message from client {} user {}", this.clientId, this.userName);
+        logger.debug("Message received: Received PINGREQ message from client {} user {}", state.clientId, state.userName);
 
-        logger.debug("Response: Send PINGRESP back to client {}", this.clientId);
+        logger.debug("Response: Send PINGRESP back to client {}", state.clientId);
         this.registry.sendMessage(
                 ctx,
-                MqttMessageFactory.newMessage(
-                        new MqttFixedHeader(MqttMessageType.PINGRESP, false, MqttQoS.AT_MOST_ONCE, false, 0),
-                        null,
-                        null),
-                this.clientId,
+                MqttEncoder.encodeFixedHeaderOnly(MqttMessageType.PINGRESP),
+                MqttMessageType.PINGRESP,
+                state.clientId,
                 null,
                 true);
 
         // Refresh client's connected broker node
-        logger.trace("Refresh client {} connected to broker {}", this.clientId, this.brokerId);
-        this.redis.refreshConnectedNode(this.clientId, this.brokerId, Math.round(this.keepAlive * 1.5f));
+        refreshConnectedNode(state);
 
-        logger.trace("Finish handling PINGREQ message for client {}", this.clientId);
+        logger.trace("Finish handling PINGREQ message for client {}", state.clientId);
     }
 
-    private void onDisconnect(ChannelHandlerContext ctx) {
-        logger.trace("Start handling DISCONNECT message for client {}", this.clientId);
+    private void onDisconnect(ChannelHandlerContext ctx, SessionState state) {
+        logger.trace("Start handling DISCONNECT message for client {}", state.clientId);
 
-        if (!this.connected) {
-            logger.debug("Protocol violation: Client {} must first sent a CONNECT message, now received DISCONNECT message, disconnect the client", this.clientId);
+        if (!state.connected) {
+            logger.debug("Protocol violation: Client {} must first sent a CONNECT message, now received DISCONNECT message, disconnect the client", state.clientId);
             ctx.close();
             return;
         }
 
-        logger.debug("Message received: Received DISCONNECT message from client {} user {}", this.clientId, this.userName);
+        logger.debug("Message received: Received DISCONNECT message from client {} user {}", state.clientId, state.userName);
 
-        boolean redirect = handleConnectLost(ctx);
+        boolean redirect = handleConnectLost(ctx, state);
 
         // Pass message to 3rd party application
         if (redirect)
-            logger.trace("Send a copy of DISCONNECT message from client {} to 3rd party application", this.clientId);
+            logger.trace("Send a copy of DISCONNECT message from client {} to 3rd party application", state.clientId);
         this.cluster.sendToApplication(new Message<>(
                 new MqttFixedHeader(MqttMessageType.DISCONNECT, false, MqttQoS.AT_MOST_ONCE, false, 0),
-                new MqttAdditionalHeader(this.version, this.clientId, this.userName, this.brokerId), null, null));
+                new MqttAdditionalHeader(state.version, state.clientId, state.userName, this.brokerId), null, null));
 
         // If the Will Flag is set to 1 this indicates that, if the Connect request is accepted, a Will Message MUST be
         // stored on the Server and associated with the Network Connection. The Will Message MUST be published
         // when the Network Connection is subsequently closed unless the Will Message has been deleted by the
         // Server on receipt of a DISCONNECT Packet.
-        this.willMessage = null;
+        state.will = null;
 
         // On receipt of DISCONNECT the Server:
         // MUST discard any Will Message associated with the current connection without publishing it.
         // SHOULD close the Network Connection if the Client has not already done so.
-        this.connected = false;
+        state.connected = false;
 
         // Make sure connection is closed
         ctx.close();
 
-        logger.trace("Finish handling PINGREQ message for client {}", this.clientId);
+        logger.trace("Finish handling PINGREQ message for client {}", state.clientId);
     }
 
     @Override
     public void channelInactive(ChannelHandlerContext ctx) throws Exception {
-        logger.trace("Start handling inactive event for client {}", this.clientId);
+        SessionState state = ctx.channel().attr(SessionState.KEY).get();
+        if (state == null) return;
+
+        logger.trace("Start handling inactive event for client {}", state.clientId);
+
+        // Messages received while waiting for the authenticator will not be handled
+        state.releaseDeferred();
+
+        // Connection lost in the middle of a streamed PUBLISH message, subscribers have received part of it
+        if (state.streams != null) {
+            logger.debug("Connection closed: Streamed PUBLISH message from client {} is incomplete, disconnect {} subscribers", state.clientId, state.streams.size());
+            state.streams.forEach(PublishStream::abort);
+            state.streams = null;
+        }
 
-        if (this.connected) {
+        if (state.connected) {
 
-            logger.debug("Connection closed: Connection lost from client {} user {}", this.clientId, this.userName);
+            logger.debug("Connection closed: Connection lost from client {} user {}", state.clientId, state.userName);
 
-            boolean redirect = handleConnectLost(ctx);
+            boolean redirect = handleConnectLost(ctx, state);
 
             // Pass message to 3rd party application
             if (redirect)
-                logger.trace("Send a copy of DISCONNECT message from client {} to 3rd party application", this.clientId);
+                logger.trace("Send a copy of DISCONNECT message from client {} to 3rd party application", state.clientId);
             this.cluster.sendToApplication(new Message<>(
                     new MqttFixedHeader(MqttMessageType.DISCONNECT, false, MqttQoS.AT_MOST_ONCE, false, 0),
-                    new MqttAdditionalHeader(this.version, this.clientId, this.userName, this.brokerId), null, null));
+                    new MqttAdditionalHeader(state.version, state.clientId, state.userName, this.brokerId), null, null));
 
             // If the Will Flag is set to 1 this indicates that, if the Connect request is accepted, a Will Message MUST be
             // stored on the Server and associated with the Network Connection. The Will Message MUST be published
@@ -1030,72 +1507,103 @@ public class SyncRedisHandler extends SimpleChannelInboundHandler<MqttMessage> {
             // The Client fails to communicate within the Keep Alive time.
             // The Client closes the Network Connection without first sending a DISCONNECT Packet.
             // The Server closes the Network Connection because of a protocol error.
-            if (this.willMessage != null) {
+            if (state.will != null) {
 
-                MqttQoS willQos = this.willMessage.fixedHeader().qos();
-                String willTopic = this.willMessage.variableHeader().topicName();
-                boolean willRetain = this.willMessage.fixedHeader().retain();
+                MqttQoS willQos = state.will.qos;
+                String willTopic = state.will.topic;
+                boolean willRetain = state.will.retain;
 
-                AuthorizeResult result = this.authenticator.authPublish(this.clientId, this.userName, willTopic, willQos.value(), willRetain);
-                // Authorize successful
-                if (result == AuthorizeResult.OK) {
-                    logger.trace("Authorization WILL message succeeded on topic {} for client {}", willTopic, this.clientId);
+                this.authenticator.authPublish(state.clientId, state.userName, willTopic, willQos.value(), willRetain).whenComplete((result, e) -> ctx.executor().execute(() -> {
+                    // Authorize successful
+                    if (e == null && result == AuthorizeResult.OK) {
+                        logger.trace("Authorization WILL message succeeded on topic {} for client {}", willTopic, state.clientId);
 
-                    // Onward to recipients
-                    onwardRecipients(this.willMessage, Message.fromMqttMessage(this.willMessage, this.version, this.clientId, this.userName, this.brokerId).payload());
-                }
-                // Authorize failed
-                else {
-                    logger.trace("Authorization WILL message failed on topic {} for client {}", willTopic, this.clientId);
-                }
+                        // Onward to recipients
+                        MqttPublishMessage willMessage = state.will.toMqttMessage();
+                        onwardRecipients(willMessage, Message.fromMqttMessage(willMessage, state.version, state.clientId, state.userName, this.brokerId).payload(), null, null);
+                    }
+                    // Authorize failed
+                    else {
+                        logger.trace("Authorization WILL message failed on topic {} for client {}", willTopic, state.clientId);
+                    }
+                }));
             }
         }
 
-        logger.trace("Finish handling inactive event for client {}", this.clientId);
+        logger.trace("Finish handling inactive event for client {}", state.clientId);
     }
 
     /**
      * Handle connection lost condition
      * Both when received DISCONNECT message or not
      *
-     * @param ctx Session
+     * @param ctx   Session
+     * @param state Session State
      * @return True client is marked as disconnected, False client already re-connected
      */
-    private boolean handleConnectLost(ChannelHandlerContext ctx) {
+    private boolean handleConnectLost(ChannelHandlerContext ctx, SessionState state) {
         boolean redirect = false;
 
+        // Free in-flight window, unless already taken over by a new connection
+        logger.trace("Close in-flight window for client {}", state.clientId);
+        this.inFlight.close(state.clientId, ctx);
+
+        // Memory only session, nothing stored, unless already taken over by a new connection
+        if (state.memory) {
+            if (!this.registry.removeSession(state.clientId, ctx)) return false;
+            logger.trace("Remove client {} from subscription index", state.clientId);
+            this.index.disconnect(state.clientId, this.brokerId);
+            this.cluster.advertiseDisconnect(state.clientId);
+            return true;
+        }
+
+        // Persist unacknowledged qos 2 message ids, both when disconnected and when taken over by a new connection
+        // Only the changes made by this connection are written, they merge with the other connections' changes, so
+        // they are persisted even if the lock can't be acquired
+        if (!state.cleanSession) {
+            logger.trace("Save unacknowledged QoS 2 message ids for client {}", state.clientId);
+            state.persistQoS2Ids((added, removed) -> this.redis.updateQoS2MessageIds(state.clientId, added, removed));
+        }
+
         // Require lock on client connection state
-        if (!this.redis.lock(this.clientId, ConnectionState.DISCONNECTING)) {
-            logger.warn("Lock failed: Failed to lock on client {}", this.clientId);
+        if (!this.redis.lock(state.clientId, ConnectionState.DISCONNECTING)) {
+            logger.warn("Lock failed: Failed to lock on client {}", state.clientId);
         } else {
-            logger.trace("Successful lock on client {}", this.clientId);
+            logger.trace("Successful lock on client {}", state.clientId);
 
-            logger.trace("Test if client {} already reconnected to some broker", this.clientId);
+            logger.trace("Test if client {} already reconnected to some broker", state.clientId);
             // Test if client already reconnected to this broker
-            if (this.registry.removeSession(this.clientId, ctx)) {
+            if (this.registry.removeSession(state.clientId, ctx)) {
+
+                // Remove client's subscriptions from the subscription index, here and on the other brokers
+                if (this.index != null) {
+                    logger.trace("Remove client {} from subscription index", state.clientId);
+                    this.index.disconnect(state.clientId, this.brokerId);
+                    this.cluster.advertiseDisconnect(state.clientId);
+                }
 
                 // Test if client already reconnected to another broker
-                if (this.redis.removeConnectedNode(this.clientId, this.brokerId)) {
+                if (this.redis.removeConnectedNode(state.clientId, this.brokerId)) {
 
                     redirect = true;
 
                     // Remove connected node
-                    logger.trace("Mark client {} disconnected from broker {}", this.clientId, this.brokerId);
+                    logger.trace("Mark client {} disconnected from broker {}", state.clientId, this.brokerId);
 
                     // If CleanSession is set to 1, the Client and Server MUST discard any previous Session and start a new
                     // one. This Session lasts as long as the Network Connection. State data associated with this Session
                     // MUST NOT be reused in any subsequent Session.
                     // When CleanSession is set to 1 the Client and Server need not process the deletion of state atomically.
-                    if (this.cleanSession) {
-                        logger.trace("Clear session state for client {} because current connection is clean session", this.clientId);
-                        this.redis.removeAllSessionState(this.clientId);
+                    if (state.cleanSession) {
+                        logger.trace("Clear session state for client {} because current connection is clean session", state.clientId);
+                        this.redis.removeAllSessionState(state.clientId);
                     }
                 }
             }
 
             // Release lock on client connection state
-            logger.trace("Try to release lock on client {}", this.clientId);
-            this.redis.release(this.clientId, ConnectionState.DISCONNECTED);
+            logger.trace("Try to release lock on client {}", state.clientId);
+            this.redis.release(state.clientId, ConnectionState.DISCONNECTED);
         }
 
         return redirect;
@@ -1106,7 +1614,8 @@ public class SyncRedisHandler extends SimpleChannelInboundHandler<MqttMessage> {
         if (evt instanceof IdleStateEvent) {
             IdleStateEvent e = (IdleStateEvent) evt;
             if (e.state() == IdleState.ALL_IDLE) {
-                logger.debug("Protocol violation: Client {} has been idle beyond keep alive time, disconnect the client", this.clientId);
+                SessionState state = ctx.channel().attr(SessionState.KEY).get();
+                logger.debug("Protocol violation: Client {} has been idle beyond keep alive time, disconnect the client", state != null ? state.clientId : null);
                 ctx.close();
             }
         }
@@ -1114,11 +1623,12 @@ public class SyncRedisHandler extends SimpleChannelInboundHandler<MqttMessage> {
 
     @Override
     public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
-        if (this.connected) {
+        SessionState state = ctx.channel().attr(SessionState.KEY).get();
+        if (state != null && state.connected) {
             if (cause instanceof IOException) {
-                logger.debug("Exception caught: Exception caught from client {} user {}: ", this.clientId, this.userName, ExceptionUtils.getMessage(cause));
+                logger.debug("Exception caught: Exception caught from client {} user {}: ", state.clientId, state.userName, ExceptionUtils.getMessage(cause));
             } else {
-                logger.debug("Exception caught: Exception caught from client {} user {}: ", this.clientId, this.userName, cause);
+                logger.debug("Exception caught: Exception caught from client {} user {}: ", state.clientId, state.userName, cause);
             }
         }
         ctx.close();
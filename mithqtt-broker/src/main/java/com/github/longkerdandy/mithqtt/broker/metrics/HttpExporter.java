@@ -0,0 +1,79 @@
+package com.github.longkerdandy.mithqtt.broker.metrics;
+
+import com.sun.net.httpserver.HttpServer;
+import io.netty.util.CharsetUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.Executors;
+
+/**
+ * Export the metrics over HTTP
+ * GET /metrics responds the metrics as plain text, one "{name} {value}" per line ordered by name.
+ */
+public class HttpExporter {
+
+    private static final Logger logger = LoggerFactory.getLogger(HttpExporter.class);
+
+    private final Metrics metrics;
+    private HttpServer server;
+
+    public HttpExporter(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Start the HTTP server, served by a single daemon thread
+     *
+     * @param host Host to bind to
+     * @param port Port to bind to
+     * @throws IOException if the server cannot be bound
+     */
+    public void init(String host, int port) throws IOException {
+        this.server = HttpServer.create(new InetSocketAddress(host, port), 0);
+        this.server.createContext("/metrics", exchange -> {
+            try {
+                if (!"GET".equals(exchange.getRequestMethod())) {
+                    exchange.sendResponseHeaders(405, -1);
+                    return;
+                }
+                byte[] body = render().getBytes(CharsetUtil.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            } finally {
+                exchange.close();
+            }
+        });
+        this.server.setExecutor(Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "metrics-http");
+            thread.setDaemon(true);
+            return thread;
+        }));
+        this.server.start();
+        logger.debug("Metrics exported on http://{}:{}/metrics", host, port);
+    }
+
+    /**
+     * Stop the HTTP server
+     */
+    public void destroy() {
+        if (this.server != null) this.server.stop(0);
+    }
+
+    /**
+     * Render the metrics as plain text
+     *
+     * @return One "{name} {value}" per line
+     */
+    public String render() {
+        StringBuilder sb = new StringBuilder();
+        this.metrics.snapshot().forEach((name, value) -> sb.append(name).append(' ').append(value).append('\n'));
+        return sb.toString();
+    }
+}
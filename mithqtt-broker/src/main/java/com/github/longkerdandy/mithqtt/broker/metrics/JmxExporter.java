@@ -0,0 +1,91 @@
+package com.github.longkerdandy.mithqtt.broker.metrics;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.*;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SortedMap;
+
+/**
+ * Export the metrics as the read only attributes of an MBean
+ * Attributes are the metric names, collected when read, so metrics registered later show up as well.
+ */
+public class JmxExporter implements DynamicMBean {
+
+    private static final Logger logger = LoggerFactory.getLogger(JmxExporter.class);
+
+    private final Metrics metrics;
+    private ObjectName name;
+
+    public JmxExporter(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Register to the platform MBean server
+     *
+     * @param name MBean Object Name
+     * @throws JMException if the MBean cannot be registered
+     */
+    public void init(String name) throws JMException {
+        this.name = new ObjectName(name);
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, this.name);
+        logger.debug("Metrics exported as MBean {}", name);
+    }
+
+    /**
+     * Unregister from the platform MBean server
+     */
+    public void destroy() {
+        if (this.name == null) return;
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(this.name);
+        } catch (JMException e) {
+            logger.warn("Metrics error: Failed to unregister MBean {}: {}", this.name, e.getMessage());
+        }
+    }
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        Number value = this.metrics.snapshot().get(attribute);
+        if (value == null) throw new AttributeNotFoundException(attribute);
+        return value;
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+        SortedMap<String, Number> snapshot = this.metrics.snapshot();
+        AttributeList list = new AttributeList();
+        for (String attribute : attributes) {
+            Number value = snapshot.get(attribute);
+            if (value != null) list.add(new Attribute(attribute, value));
+        }
+        return list;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("Metric " + attribute.getName() + " is read only");
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+        throw new ReflectionException(new NoSuchMethodException(actionName));
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        List<MBeanAttributeInfo> attributes = new ArrayList<>();
+        this.metrics.snapshot().forEach((name, value) ->
+                attributes.add(new MBeanAttributeInfo(name, value.getClass().getName(), name, true, false, false)));
+        return new MBeanInfo(getClass().getName(), "MQTT broker metrics", attributes.toArray(new MBeanAttributeInfo[attributes.size()]), null, null, null);
+    }
+}
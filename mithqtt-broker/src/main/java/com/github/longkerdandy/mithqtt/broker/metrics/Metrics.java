@@ -0,0 +1,127 @@
+package com.github.longkerdandy.mithqtt.broker.metrics;
+
+import com.github.longkerdandy.mithqtt.util.Histogram;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Metrics registry of the broker
+ * <p>
+ * Counters only grow, rates are derived by whoever collects them. Gauges are read when collected. Histograms are
+ * exported as count, mean, max and percentiles. Components look up their metrics once and keep them, recording a value
+ * is lock free.
+ */
+public class Metrics {
+
+    private final Map<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private final Map<String, Histogram> histograms = new ConcurrentHashMap<>();
+    private final Map<String, Supplier<Number>> gauges = new ConcurrentHashMap<>();
+    private final Map<String, Map<String, Histogram>> registered = new ConcurrentHashMap<>();
+
+    /**
+     * Get or create the counter
+     *
+     * @param name Metric Name
+     * @return Counter
+     */
+    public LongAdder counter(String name) {
+        return this.counters.computeIfAbsent(name, n -> new LongAdder());
+    }
+
+    /**
+     * Get or create a counter for each constant of the enum, named as {prefix}.{constant}
+     *
+     * @param prefix Metric Name Prefix
+     * @param type   Enum Type
+     * @param <E>    Enum Type
+     * @return Counters by constant
+     */
+    public <E extends Enum<E>> Map<E, LongAdder> counters(String prefix, Class<E> type) {
+        Map<E, LongAdder> map = new EnumMap<>(type);
+        for (E e : type.getEnumConstants()) map.put(e, counter(prefix + "." + e.name()));
+        return map;
+    }
+
+    /**
+     * Get or create the histogram
+     *
+     * @param name Metric Name
+     * @return Histogram
+     */
+    public Histogram histogram(String name) {
+        return this.histograms.computeIfAbsent(name, n -> new Histogram());
+    }
+
+    /**
+     * Get or create a histogram for each constant of the enum, named as {prefix}.{constant}
+     *
+     * @param prefix Metric Name Prefix
+     * @param type   Enum Type
+     * @param <E>    Enum Type
+     * @return Histograms by constant
+     */
+    public <E extends Enum<E>> Map<E, Histogram> histograms(String prefix, Class<E> type) {
+        Map<E, Histogram> map = new EnumMap<>(type);
+        for (E e : type.getEnumConstants()) map.put(e, histogram(prefix + "." + e.name()));
+        return map;
+    }
+
+    /**
+     * Register the gauge, replacing the former one with the same name
+     *
+     * @param name  Metric Name
+     * @param gauge Gauge, read when collected
+     */
+    public void gauge(String name, Supplier<Number> gauge) {
+        this.gauges.put(name, gauge);
+    }
+
+    /**
+     * Register the histograms created by another component, named as {prefix}.{key}
+     * The map is read when collected, so histograms added to it later show up as well.
+     *
+     * @param prefix     Metric Name Prefix
+     * @param histograms Histograms: Key - Name, Value - Histogram
+     */
+    public void register(String prefix, Map<String, Histogram> histograms) {
+        this.registered.put(prefix, histograms);
+    }
+
+    /**
+     * Collect the current values of all the metrics
+     * Histogram is collected as {name}.count, {name}.mean, {name}.max, {name}.p50, {name}.p90, {name}.p99 and
+     * {name}.p999, histograms never recorded are skipped.
+     *
+     * @return Values: Key - Metric Name, Value - Value, ordered by name
+     */
+    public SortedMap<String, Number> snapshot() {
+        SortedMap<String, Number> map = new TreeMap<>();
+        this.counters.forEach((name, counter) -> map.put(name, counter.sum()));
+        this.gauges.forEach((name, gauge) -> {
+            Number value = gauge.get();
+            if (value != null) map.put(name, value);
+        });
+        this.histograms.forEach((name, histogram) -> collect(map, name, histogram));
+        this.registered.forEach((prefix, histograms) ->
+                histograms.forEach((name, histogram) -> collect(map, prefix + "." + name, histogram)));
+        return map;
+    }
+
+    private static void collect(Map<String, Number> map, String name, Histogram histogram) {
+        long count = histogram.count();
+        if (count == 0) return;
+        map.put(name + ".count", count);
+        map.put(name + ".mean", histogram.mean());
+        map.put(name + ".max", histogram.max());
+        map.put(name + ".p50", histogram.percentile(50));
+        map.put(name + ".p90", histogram.percentile(90));
+        map.put(name + ".p99", histogram.percentile(99));
+        map.put(name + ".p999", histogram.percentile(99.9));
+    }
+}
@@ -0,0 +1,53 @@
+package com.github.longkerdandy.mithqtt.broker.metrics;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Count the connections and the bytes received from and sent to the clients
+ * Placed after the ssl handler, so the bytes are the MQTT bytes.
+ */
+@ChannelHandler.Sharable
+public class MetricsHandler extends ChannelDuplexHandler {
+
+    private final LongAdder opened;
+    private final LongAdder closed;
+    private final LongAdder bytesIn;
+    private final LongAdder bytesOut;
+
+    public MetricsHandler(Metrics metrics) {
+        this.opened = metrics.counter("connections.opened");
+        this.closed = metrics.counter("connections.closed");
+        this.bytesIn = metrics.counter("bytes.in");
+        this.bytesOut = metrics.counter("bytes.out");
+    }
+
+    @Override
+    public void channelActive(ChannelHandlerContext ctx) throws Exception {
+        this.opened.increment();
+        super.channelActive(ctx);
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        this.closed.increment();
+        super.channelInactive(ctx);
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (msg instanceof ByteBuf) this.bytesIn.add(((ByteBuf) msg).readableBytes());
+        super.channelRead(ctx, msg);
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+        if (msg instanceof ByteBuf) this.bytesOut.add(((ByteBuf) msg).readableBytes());
+        super.write(ctx, msg, promise);
+    }
+}
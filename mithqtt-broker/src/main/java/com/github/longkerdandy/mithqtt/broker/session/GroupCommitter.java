@@ -0,0 +1,145 @@
+package com.github.longkerdandy.mithqtt.broker.session;
+
+import com.github.longkerdandy.mithqtt.api.message.Message;
+import com.github.longkerdandy.mithqtt.storage.redis.sync.RedisSyncStorage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Group commit of in-flight messages for durable acknowledgement
+ * <p>
+ * Publishers on this node submit the in-flight messages of their fan-out, a single committer thread collects the
+ * submissions within a short time window and persists them as one batch, then completes every submission in the
+ * order they were submitted. Acknowledgement sent after the completion survives a broker crash, without paying one
+ * synchronous storage round trip per message.
+ */
+public class GroupCommitter {
+
+    // Logger
+    private static final Logger logger = LoggerFactory.getLogger(GroupCommitter.class);
+
+    private final RedisSyncStorage redis;
+    // Time window in milliseconds to collect submissions into one batch
+    private final long interval;
+    // Maximum number of messages in one batch
+    private final int batchSize;
+    // Pending submissions
+    private final BlockingQueue<Commit> queue = new LinkedBlockingQueue<>();
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    /**
+     * Submitted in-flight messages
+     */
+    private static class Commit {
+        final Collection<Message> msgs;
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        Commit(Collection<Message> msgs) {
+            this.msgs = msgs;
+        }
+    }
+
+    /**
+     * Create and start the committer
+     *
+     * @param redis     Storage
+     * @param interval  Time window in milliseconds to collect submissions, 0 to only batch those already pending
+     * @param batchSize Maximum number of messages in one batch
+     */
+    public GroupCommitter(RedisSyncStorage redis, long interval, int batchSize) {
+        this.redis = redis;
+        this.interval = interval;
+        this.batchSize = batchSize;
+        this.thread = new Thread(this::run, "group-committer");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Submit in-flight messages to be persisted
+     * Empty submission is completed in order as well, so acknowledgements are never reordered
+     *
+     * @param msgs In-Flight Messages
+     * @return Future completed when the messages are persisted
+     */
+    public CompletableFuture<Void> commit(Collection<Message> msgs) {
+        Commit commit = new Commit(msgs);
+        this.queue.add(commit);
+        // stopped meanwhile, the committer may have drained the queue already
+        if (!this.running && this.queue.remove(commit)) stopped(commit);
+        return commit.future;
+    }
+
+    /**
+     * @return Number of submissions waiting to be persisted
+     */
+    public int getQueueSize() {
+        return this.queue.size();
+    }
+
+    /**
+     * Stop the committer, pending submissions are still persisted
+     * Submissions left when the committer could not finish in time are failed
+     */
+    public void destroy() {
+        this.running = false;
+        try {
+            this.thread.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        Commit commit;
+        while ((commit = this.queue.poll()) != null) stopped(commit);
+    }
+
+    private static void stopped(Commit commit) {
+        commit.future.completeExceptionally(new IllegalStateException("Group committer has been stopped"));
+    }
+
+    private void run() {
+        List<Commit> commits = new ArrayList<>();
+        List<Message> msgs = new ArrayList<>();
+        while (this.running || !this.queue.isEmpty()) {
+            try {
+                Commit commit = this.queue.poll(100, TimeUnit.MILLISECONDS);
+                if (commit == null) continue;
+
+                // collect submissions within the time window
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(this.interval);
+                int count = 0;
+                while (commit != null) {
+                    commits.add(commit);
+                    msgs.addAll(commit.msgs);
+                    count += commit.msgs.size();
+                    if (count >= this.batchSize) break;
+                    long wait = deadline - System.nanoTime();
+                    commit = wait > 0 ? this.queue.poll(wait, TimeUnit.NANOSECONDS) : this.queue.poll();
+                }
+
+                try {
+                    if (!msgs.isEmpty()) this.redis.addInFlightMessages(msgs);
+                    logger.trace("Group committed {} in-flight messages from {} submissions", msgs.size(), commits.size());
+                    commits.forEach(c -> c.future.complete(null));
+                } catch (Exception e) {
+                    logger.warn("Commit failed: Failed to persist {} in-flight messages: {}", msgs.size(), e.getMessage());
+                    commits.forEach(c -> c.future.completeExceptionally(e));
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } finally {
+                commits.clear();
+                msgs.clear();
+            }
+        }
+    }
+}
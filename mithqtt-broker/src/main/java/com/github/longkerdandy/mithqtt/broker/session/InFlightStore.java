@@ -0,0 +1,279 @@
+package com.github.longkerdandy.mithqtt.broker.session;
+
+import com.github.longkerdandy.mithqtt.api.message.Message;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.mqtt.*;
+import io.netty.util.Timeout;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Off-heap In-Flight message store for local connections
+ * <p>
+ * Unacknowledged PUBLISH and PUBREL messages of the locally connected clients are kept encoded in pooled direct
+ * memory, ready to be re-sent without loading them from storage or inflating the heap. The storage still holds the
+ * complete session state, messages beyond the memory cap are simply not kept here.
+ * <p>
+ * If a retransmitter is provided, messages kept here are also re-sent to the client while connected, until they are
+ * acknowledged or the window is closed.
+ */
+public class InFlightStore {
+
+    // Logger
+    private static final Logger logger = LoggerFactory.getLogger(InFlightStore.class);
+    // Pooled direct memory allocator dedicated to the store
+    private final ByteBufAllocator allocator = new PooledByteBufAllocator(true);
+    // Maximum bytes held by the store
+    private final long capacity;
+    // Retransmission scheduler, null if disabled
+    private final Retransmitter retransmitter;
+    // Bytes currently held by the store
+    private final AtomicLong used = new AtomicLong();
+    // Thread safe HashMap as Repository (Client Id : In-Flight window)
+    private final Map<String, Window> repo = new ConcurrentHashMap<>();
+
+    /**
+     * In-Flight window of a connected client
+     * Most clients never receive a QoS 1 or 2 message, so the maps are only allocated when first used
+     */
+    private static class Window {
+        // ChannelHandlerContext as Session, which opened the window
+        final ChannelHandlerContext session;
+        // Encoded messages by packet id, in the order they were added
+        // null until the first message added
+        Map<Integer, ByteBuf> frames;
+        // Pending retransmissions by packet id
+        // null until the first retransmission scheduled
+        Map<Integer, Timeout> timeouts;
+        boolean closed;
+
+        Window(ChannelHandlerContext session) {
+            this.session = session;
+        }
+    }
+
+    /**
+     * Create the store
+     *
+     * @param capacity Maximum bytes held by the store, 0 to disable
+     */
+    public InFlightStore(long capacity) {
+        this(capacity, null);
+    }
+
+    /**
+     * Create the store with retransmission
+     *
+     * @param capacity      Maximum bytes held by the store, 0 to disable
+     * @param retransmitter Retransmission scheduler, null to disable
+     */
+    public InFlightStore(long capacity, Retransmitter retransmitter) {
+        this.capacity = capacity;
+        this.retransmitter = retransmitter;
+    }
+
+    /**
+     * Open In-Flight window for the client, replace the existing one
+     *
+     * @param clientId Client Id
+     * @param session  ChannelHandlerContext as Session
+     */
+    public void open(String clientId, ChannelHandlerContext session) {
+        if (this.capacity <= 0) return;
+        Window old = this.repo.put(clientId, new Window(session));
+        if (old != null) release(old);
+    }
+
+    /**
+     * Close In-Flight window for the client, free all its messages
+     * Only if the window was opened by the specified session
+     *
+     * @param clientId Client Id
+     * @param session  ChannelHandlerContext as Session
+     */
+    public void close(String clientId, ChannelHandlerContext session) {
+        Window window = this.repo.get(clientId);
+        if (window != null && window.session == session && this.repo.remove(clientId, window)) release(window);
+    }
+
+    /**
+     * Add In-Flight message for the client, replace the existing one with the same packet id
+     * PUBLISH message is stored with DUP flag set, as it will only be used for re-delivery
+     * Retransmission is scheduled from now, so the message should be added when it is sent
+     *
+     * @param clientId Client Id
+     * @param packetId Packet Id
+     * @param msg      In-Flight PUBLISH or PUBREL Message
+     * @return True if the message is stored, False if client has no window or memory cap is reached
+     */
+    public boolean add(String clientId, int packetId, Message msg) {
+        Window window = this.repo.get(clientId);
+        if (window == null) return false;
+
+        MqttMessage mqtt = msg.toMqttMessage();
+        if (msg.fixedHeader().messageType() == MqttMessageType.PUBLISH) {
+            mqtt = new MqttPublishMessage(
+                    new MqttFixedHeader(MqttMessageType.PUBLISH, true, msg.fixedHeader().qos(), false, 0),
+                    (MqttPublishVariableHeader) mqtt.variableHeader(),
+                    ((MqttPublishMessage) mqtt).payload());
+        }
+        ByteBuf frame = MqttEncoder.encode(this.allocator, mqtt);
+
+        // the old message is freed anyway, so it won't be re-sent after a newer one is dropped
+        if (this.used.addAndGet(frame.capacity()) > this.capacity) {
+            free(frame);
+            remove(clientId, packetId);
+            logger.debug("In-Flight failed: Message {} for client {} not stored: Memory cap {} bytes reached", packetId, clientId, this.capacity);
+            return false;
+        }
+
+        synchronized (window) {
+            if (window.closed) {
+                free(frame);
+                return false;
+            }
+            if (window.frames == null) window.frames = new LinkedHashMap<>();
+            ByteBuf old = window.frames.put(packetId, frame);
+            if (old != null) free(old);
+            cancel(window, packetId);
+            schedule(clientId, window, packetId, frame, 0);
+        }
+        return true;
+    }
+
+    /**
+     * Remove In-Flight message for the client
+     *
+     * @param clientId Client Id
+     * @param packetId Packet Id
+     */
+    public void remove(String clientId, int packetId) {
+        Window window = this.repo.get(clientId);
+        if (window == null) return;
+        synchronized (window) {
+            if (window.frames == null) return;
+            ByteBuf old = window.frames.remove(packetId);
+            if (old != null) free(old);
+            cancel(window, packetId);
+        }
+    }
+
+    /**
+     * Get all In-Flight messages for the client, in the order they were added
+     * Returned buffers are retained, they must be released by the caller, usually by writing them to the channel
+     *
+     * @param clientId Client Id
+     * @return Encoded messages
+     */
+    public List<ByteBuf> get(String clientId) {
+        List<ByteBuf> r = new ArrayList<>();
+        Window window = this.repo.get(clientId);
+        if (window == null) return r;
+        synchronized (window) {
+            if (window.frames != null) window.frames.values().forEach(frame -> r.add(frame.retainedDuplicate()));
+        }
+        return r;
+    }
+
+    /**
+     * Is the In-Flight message held for the client
+     *
+     * @param clientId Client Id
+     * @param packetId Packet Id
+     * @return True if a message with the packet id is held
+     */
+    public boolean contains(String clientId, int packetId) {
+        Window window = this.repo.get(clientId);
+        if (window == null) return false;
+        synchronized (window) {
+            return window.frames != null && window.frames.containsKey(packetId);
+        }
+    }
+
+    /**
+     * Get the number of In-Flight messages held for the client
+     *
+     * @param clientId Client Id
+     * @return Number of messages, -1 if the client has no window
+     */
+    public int size(String clientId) {
+        Window window = this.repo.get(clientId);
+        if (window == null) return -1;
+        synchronized (window) {
+            return window.frames != null ? window.frames.size() : 0;
+        }
+    }
+
+    /**
+     * Get bytes currently held by the store
+     *
+     * @return Bytes
+     */
+    public long usedBytes() {
+        return this.used.get();
+    }
+
+    private void release(Window window) {
+        synchronized (window) {
+            window.closed = true;
+            if (window.frames != null) {
+                window.frames.values().forEach(this::free);
+                window.frames.clear();
+            }
+            if (window.timeouts != null) {
+                window.timeouts.values().forEach(Timeout::cancel);
+                window.timeouts.clear();
+            }
+        }
+    }
+
+    // must be called while holding the window lock
+    private void schedule(String clientId, Window window, int packetId, ByteBuf frame, int attempt) {
+        if (this.retransmitter == null || window.session == null) return;
+        Timeout timeout = this.retransmitter.schedule(t -> retransmit(clientId, window, packetId, frame, attempt), attempt);
+        if (timeout != null) {
+            if (window.timeouts == null) window.timeouts = new HashMap<>();
+            window.timeouts.put(packetId, timeout);
+        } else if (window.timeouts != null) {
+            window.timeouts.remove(packetId);
+        }
+    }
+
+    // must be called while holding the window lock
+    private void cancel(Window window, int packetId) {
+        if (window.timeouts == null) return;
+        Timeout timeout = window.timeouts.remove(packetId);
+        if (timeout != null) timeout.cancel();
+    }
+
+    private void retransmit(String clientId, Window window, int packetId, ByteBuf frame, int attempt) {
+        ByteBuf dup;
+        synchronized (window) {
+            // acknowledged or replaced in the meantime
+            if (window.closed || window.frames.get(packetId) != frame) return;
+            // don't pile up more data on a congested connection, try again later without counting the attempt
+            dup = window.session.channel().isWritable() ? frame.retainedDuplicate() : null;
+            schedule(clientId, window, packetId, frame, dup != null ? attempt + 1 : attempt);
+        }
+        if (dup != null) {
+            logger.debug("In-Flight retransmit: Re-send message {} to client {}, attempt {}", packetId, clientId, attempt + 1);
+            window.session.writeAndFlush(dup);
+        }
+    }
+
+    private void free(ByteBuf frame) {
+        this.used.addAndGet(-frame.capacity());
+        frame.release();
+    }
+}
@@ -0,0 +1,146 @@
+package com.github.longkerdandy.mithqtt.broker.session;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.stream.ChunkedInput;
+import io.netty.handler.stream.ChunkedWriteHandler;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+/**
+ * Delivery of a streamed PUBLISH message to one locally connected subscriber
+ * <p>
+ * Written to the subscriber's channel as a {@link ChunkedInput}, the encoded PUBLISH header first and then the
+ * payload chunks as they are received from the publisher. Chunks are added on the publisher's event loop and read on
+ * the subscriber's event loop. When the subscriber falls behind by more than its write buffer high water mark, reading
+ * from the publisher is paused until the subscriber has caught up by half of it. The publisher only resumes once all
+ * of its paused streams have caught up, see {@link ReadPause}.
+ */
+public class PublishStream implements ChunkedInput<ByteBuf> {
+
+    private final Channel publisher;
+    private final ChannelHandlerContext subscriber;
+    private final ChunkedWriteHandler writer;
+    private final long length;
+    private final long highWaterMark;
+
+    // guarded by this
+    private final Queue<ByteBuf> chunks = new ArrayDeque<>();
+    private long queued;
+    private long progress;
+    private boolean ended;
+    private boolean closed;
+    private boolean paused;
+
+    /**
+     * Create the stream, the caller must write it to the subscriber
+     *
+     * @param publisher     Publisher's Channel
+     * @param subscriber    Subscriber's Session
+     * @param writer        Subscriber's ChunkedWriteHandler
+     * @param header        Encoded PUBLISH fixed header and variable header
+     * @param payloadLength Length of the whole payload
+     */
+    public PublishStream(Channel publisher, ChannelHandlerContext subscriber, ChunkedWriteHandler writer, ByteBuf header, int payloadLength) {
+        this.publisher = publisher;
+        this.subscriber = subscriber;
+        this.writer = writer;
+        this.length = header.readableBytes() + payloadLength;
+        this.highWaterMark = subscriber.channel().config().getWriteBufferHighWaterMark();
+        this.chunks.add(header);
+        this.queued = header.readableBytes();
+    }
+
+    /**
+     * Add part of the payload, pause the publisher if the subscriber falls behind
+     *
+     * @param chunk Payload chunk, retained by the stream
+     */
+    public void add(ByteBuf chunk) {
+        boolean pause = false;
+        synchronized (this) {
+            if (this.closed || !chunk.isReadable()) return;
+            this.chunks.add(chunk.retainedDuplicate());
+            this.queued += chunk.readableBytes();
+            if (!this.paused && this.queued > this.highWaterMark) {
+                this.paused = pause = true;
+            }
+        }
+        if (pause) ReadPause.pause(this.publisher);
+        this.writer.resumeTransfer();
+    }
+
+    /**
+     * Mark the whole payload as added
+     */
+    public void end() {
+        synchronized (this) {
+            this.ended = true;
+        }
+        this.writer.resumeTransfer();
+    }
+
+    /**
+     * Abort the stream before the whole payload has been added
+     * The subscriber has received part of the message, so its connection is closed
+     */
+    public void abort() {
+        this.subscriber.close();
+    }
+
+    @Override
+    public synchronized boolean isEndOfInput() throws Exception {
+        return this.ended && this.chunks.isEmpty();
+    }
+
+    @Override
+    public void close() throws Exception {
+        boolean resume;
+        synchronized (this) {
+            this.closed = true;
+            ByteBuf chunk;
+            while ((chunk = this.chunks.poll()) != null) chunk.release();
+            this.queued = 0;
+            resume = this.paused;
+            this.paused = false;
+        }
+        if (resume) ReadPause.resume(this.publisher);
+    }
+
+    @Deprecated
+    @Override
+    public ByteBuf readChunk(ChannelHandlerContext ctx) throws Exception {
+        return readChunk(ctx.alloc());
+    }
+
+    @Override
+    public ByteBuf readChunk(ByteBufAllocator allocator) throws Exception {
+        ByteBuf chunk;
+        boolean resume = false;
+        synchronized (this) {
+            chunk = this.chunks.poll();
+            if (chunk == null) return null;
+            this.queued -= chunk.readableBytes();
+            this.progress += chunk.readableBytes();
+            if (this.paused && this.queued <= this.highWaterMark / 2) {
+                this.paused = false;
+                resume = true;
+            }
+        }
+        if (resume) ReadPause.resume(this.publisher);
+        return chunk;
+    }
+
+    @Override
+    public long length() {
+        return this.length;
+    }
+
+    @Override
+    public synchronized long progress() {
+        return this.progress;
+    }
+}
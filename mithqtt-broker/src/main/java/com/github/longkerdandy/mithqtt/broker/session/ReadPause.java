@@ -0,0 +1,73 @@
+package com.github.longkerdandy.mithqtt.broker.session;
+
+import io.netty.channel.Channel;
+import io.netty.util.Attribute;
+import io.netty.util.AttributeKey;
+
+/**
+ * Pause count of reading from a channel
+ * <p>
+ * Reading from a client may be paused for several reasons at once, like each stream to a slow subscriber and a
+ * pending authorization. Every pause must be matched by one resume, reading is only resumed when none is left.
+ * The count is only allocated when the channel is first paused.
+ */
+public final class ReadPause {
+
+    private static final AttributeKey<ReadPause> KEY = AttributeKey.valueOf(ReadPause.class, "KEY");
+
+    // guarded by this, together with the channel's auto read, so concurrent pause and resume are applied in order
+    private int count;
+
+    private ReadPause() {
+    }
+
+    private static ReadPause of(Channel channel) {
+        Attribute<ReadPause> attr = channel.attr(KEY);
+        ReadPause pause = attr.get();
+        if (pause == null) {
+            ReadPause created = new ReadPause();
+            pause = attr.setIfAbsent(created);
+            if (pause == null) pause = created;
+        }
+        return pause;
+    }
+
+    /**
+     * Pause reading from the channel
+     *
+     * @param channel Channel
+     */
+    public static void pause(Channel channel) {
+        ReadPause pause = of(channel);
+        synchronized (pause) {
+            if (pause.count++ == 0) channel.config().setAutoRead(false);
+        }
+    }
+
+    /**
+     * Resume reading from the channel, if no other pause is left
+     *
+     * @param channel Channel
+     */
+    public static void resume(Channel channel) {
+        ReadPause pause = of(channel);
+        synchronized (pause) {
+            if (pause.count == 0) return;
+            if (--pause.count == 0) channel.config().setAutoRead(true);
+        }
+    }
+
+    /**
+     * Get the number of pauses left
+     *
+     * @param channel Channel
+     * @return Pause Count
+     */
+    public static int count(Channel channel) {
+        ReadPause pause = channel.attr(KEY).get();
+        if (pause == null) return 0;
+        synchronized (pause) {
+            return pause.count;
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package com.github.longkerdandy.mithqtt.broker.session;
+
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.Timeout;
+import io.netty.util.TimerTask;
+import io.netty.util.concurrent.DefaultThreadFactory;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Retransmission scheduler of unacknowledged In-Flight messages
+ * <p>
+ * One hashed wheel timer is shared by all the local connections, scheduling and cancelling a retransmission is O(1)
+ * regardless of how many deliveries are outstanding. The delay doubles after each attempt until the maximum is reached.
+ */
+public class Retransmitter {
+
+    private final HashedWheelTimer timer;
+    // Delay in milliseconds before the first retransmission
+    private final long timeout;
+    // Maximum delay in milliseconds between retransmissions
+    private final long timeoutMax;
+    // Maximum number of retransmissions per message, 0 for no limit
+    private final int attempts;
+
+    /**
+     * Create and start the scheduler
+     *
+     * @param tick       Timer tick duration in milliseconds
+     * @param timeout    Delay in milliseconds before the first retransmission
+     * @param timeoutMax Maximum delay in milliseconds between retransmissions
+     * @param attempts   Maximum number of retransmissions per message, 0 for no limit
+     */
+    public Retransmitter(long tick, long timeout, long timeoutMax, int attempts) {
+        this.timer = new HashedWheelTimer(new DefaultThreadFactory("retransmitter", true), tick, TimeUnit.MILLISECONDS);
+        this.timeout = timeout;
+        this.timeoutMax = Math.max(timeout, timeoutMax);
+        this.attempts = attempts;
+    }
+
+    /**
+     * Schedule the retransmission
+     *
+     * @param task    Retransmission task
+     * @param attempt Number of retransmissions already made
+     * @return Timeout, or null if no more attempt is allowed
+     */
+    public Timeout schedule(TimerTask task, int attempt) {
+        if (this.attempts > 0 && attempt >= this.attempts) return null;
+        return this.timer.newTimeout(task, delay(attempt), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Get the delay before the next retransmission, with exponential backoff
+     *
+     * @param attempt Number of retransmissions already made
+     * @return Delay in milliseconds
+     */
+    public long delay(int attempt) {
+        long delay = this.timeout;
+        for (int i = 0; i < attempt && delay < this.timeoutMax; i++) {
+            delay <<= 1;
+        }
+        return Math.min(delay, this.timeoutMax);
+    }
+
+    /**
+     * Stop the scheduler, pending retransmissions are discarded
+     */
+    public void destroy() {
+        this.timer.stop();
+    }
+}
@@ -1,13 +1,19 @@
 package com.github.longkerdandy.mithqtt.broker.session;
 
+import com.github.longkerdandy.mithqtt.broker.metrics.Metrics;
+import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.mqtt.MqttMessage;
+import io.netty.handler.codec.mqtt.MqttMessageType;
+import io.netty.util.AttributeKey;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * MQTT Session Registry for local connections
@@ -16,8 +22,17 @@ public class SessionRegistry {
 
     // Logger
     private static final Logger logger = LoggerFactory.getLogger(SessionRegistry.class);
+    // Packet id counter of the sessions not kept in the storage, lasts as long as the connection
+    private static final AttributeKey<AtomicInteger> PACKET_ID = AttributeKey.valueOf(SessionRegistry.class, "PACKET_ID");
     // Thread safe HashMap as Repository (Client Id : ChannelHandlerContext)
     private final Map<String, ChannelHandlerContext> repo = new ConcurrentHashMap<>();
+    // Messages sent by type
+    private final Map<MqttMessageType, LongAdder> packetsOut;
+
+    public SessionRegistry(Metrics metrics) {
+        this.packetsOut = metrics.counters("packets.out", MqttMessageType.class);
+        metrics.gauge("connections.active", this.repo::size);
+    }
 
     /**
      * Save MQTT session for the client
@@ -61,6 +76,30 @@ public class SessionRegistry {
         return this.repo.remove(clientId, session);
     }
 
+    /**
+     * Get the next packet id for the client's session, kept in memory
+     * Used by the sessions not kept in the storage
+     * Ids of the messages still in flight are skipped, so the counter wrapping around never reuses an unacknowledged one
+     *
+     * @param clientId Client Id
+     * @param inFlight In-Flight message store holding the client's unacknowledged messages
+     * @return Packet Id 1 ~ 65535, 0 if the client is not connected to this broker or all the ids are in use
+     */
+    public int nextPacketId(String clientId, InFlightStore inFlight) {
+        ChannelHandlerContext ctx = getSession(clientId);
+        if (ctx == null) return 0;
+        AtomicInteger counter = ctx.channel().attr(PACKET_ID).get();
+        if (counter == null) {
+            AtomicInteger old = ctx.channel().attr(PACKET_ID).setIfAbsent(counter = new AtomicInteger());
+            if (old != null) counter = old;
+        }
+        for (int i = 0; i < 0xffff; i++) {
+            int packetId = (counter.getAndIncrement() & Integer.MAX_VALUE) % 0xffff + 1;
+            if (!inFlight.contains(clientId, packetId)) return packetId;
+        }
+        return 0;
+    }
+
     /**
      * Send MQTT message to specific client
      *
@@ -90,6 +129,7 @@ public class SessionRegistry {
      */
     public void sendMessage(ChannelHandlerContext ctx, MqttMessage msg, String clientId, Integer packetId, boolean flush) {
         String pid = packetId == null || packetId <= 0 ? "" : String.valueOf(packetId);
+        this.packetsOut.get(msg.fixedHeader().messageType()).increment();
         ChannelFuture future = flush ? ctx.writeAndFlush(msg) : ctx.write(msg);
         future.addListener(f -> {
             if (f.isSuccess()) {
@@ -99,4 +139,27 @@ public class SessionRegistry {
             }
         });
     }
+
+    /**
+     * Send encoded MQTT message to specific session
+     *
+     * @param ctx      ChannelHandlerContext as Session
+     * @param frame    Encoded MQTT Message to be sent
+     * @param type     MQTT Message Type
+     * @param clientId Client Id
+     * @param packetId Packet Id
+     * @param flush    Flush?
+     */
+    public void sendMessage(ChannelHandlerContext ctx, ByteBuf frame, MqttMessageType type, String clientId, Integer packetId, boolean flush) {
+        String pid = packetId == null || packetId <= 0 ? "" : String.valueOf(packetId);
+        this.packetsOut.get(type).increment();
+        ChannelFuture future = flush ? ctx.writeAndFlush(frame) : ctx.write(frame);
+        future.addListener(f -> {
+            if (f.isSuccess()) {
+                logger.debug("Message succeed: Message {} {} has been sent to client {} successfully", type, pid, clientId);
+            } else {
+                logger.debug("Message failed: Message {} {} failed to send to client {}: ", type, pid, clientId, f.cause());
+            }
+        });
+    }
 }
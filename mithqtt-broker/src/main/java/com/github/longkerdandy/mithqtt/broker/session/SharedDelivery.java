@@ -0,0 +1,76 @@
+package com.github.longkerdandy.mithqtt.broker.session;
+
+import com.github.longkerdandy.mithqtt.util.SharedSubscriptions;
+import io.netty.handler.codec.mqtt.MqttQoS;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Chooses the member of a shared subscription group a message is delivered to
+ * <p>
+ * Members are rotated per share, that is per group and topic filter, so consecutive messages start from a different
+ * member. Depending on the strategy the rotated members are then ordered by preference:
+ * ROUND_ROBIN keeps the rotation order.
+ * LOCAL_FIRST puts the members connected to this broker first.
+ * LEAST_IN_FLIGHT puts the members with the fewest unacknowledged messages first, counts are only known for members
+ * connected to this broker, so the others come after them.
+ * The caller delivers to the first candidate which is connected.
+ */
+public class SharedDelivery {
+
+    /**
+     * Member selection strategy
+     */
+    public enum Strategy {
+        ROUND_ROBIN, LEAST_IN_FLIGHT, LOCAL_FIRST
+    }
+
+    private final Strategy strategy;
+    private final SessionRegistry registry;
+    private final InFlightStore inFlight;
+    // rotation counter by share
+    private final Map<String, AtomicInteger> counters = new ConcurrentHashMap<>();
+
+    public SharedDelivery(Strategy strategy, SessionRegistry registry, InFlightStore inFlight) {
+        this.strategy = strategy;
+        this.registry = registry;
+        this.inFlight = inFlight;
+    }
+
+    /**
+     * Order the group members by preference for the next message
+     *
+     * @param share   Share: '{group}/{filter}' as split by {@link SharedSubscriptions#split(Map)}
+     * @param members Members: Key - Client Id, Value - QoS
+     * @return Client Ids, most preferred first
+     */
+    public List<String> candidates(String share, Map<String, MqttQoS> members) {
+        List<String> clientIds = new ArrayList<>(members.keySet());
+        int n = clientIds.size();
+        int start = Math.floorMod(this.counters.computeIfAbsent(share, k -> new AtomicInteger()).getAndIncrement(), n);
+        List<String> rotated = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            rotated.add(clientIds.get((start + i) % n));
+        }
+        if (n == 1 || this.strategy == Strategy.ROUND_ROBIN) return rotated;
+
+        // stable sort, members with the same rank stay in rotation order
+        Map<String, Integer> ranks = new HashMap<>();
+        for (String clientId : rotated) {
+            if (this.strategy == Strategy.LOCAL_FIRST) {
+                ranks.put(clientId, this.registry.getSession(clientId) != null ? 0 : 1);
+            } else {
+                int size = this.inFlight.size(clientId);
+                ranks.put(clientId, size >= 0 ? size : Integer.MAX_VALUE);
+            }
+        }
+        rotated.sort(Comparator.comparing(ranks::get));
+        return rotated;
+    }
+}
@@ -0,0 +1,310 @@
+package com.github.longkerdandy.mithqtt.broker.session;
+
+import com.github.longkerdandy.mithqtt.util.SharedSubscriptions;
+import com.github.longkerdandy.mithqtt.util.TopicLevels;
+import com.github.longkerdandy.mithqtt.util.Topics;
+import io.netty.handler.codec.mqtt.MqttQoS;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import static com.github.longkerdandy.mithqtt.util.Topics.END;
+
+/**
+ * Subscriptions of the clients connected to the cluster, kept in memory
+ * <p>
+ * Each broker adds the subscriptions of its own connected clients and advertises them to the other brokers, so every
+ * broker knows the subscriptions of all the connected clients and which broker each client is connected to.
+ * Matching a topic against the index needs no storage access. Subscriptions of disconnected clients are not held,
+ * messages for them are handled by the storage.
+ * <p>
+ * Topic filters are kept in a trie of sanitized topic levels like the storage does, shared subscriptions are kept
+ * under their topic filter by the group member, see {@link SharedSubscriptions}.
+ * <p>
+ * The other brokers' heartbeats are tracked, so the subscriptions of a broker which stopped without advertising its
+ * shutdown are removed by {@link #expire(long)}.
+ */
+public class SubscriptionIndex {
+
+    private final Node root = new Node();
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    // Connected clients: Key - Client Id
+    private final Map<String, Client> clients = new ConcurrentHashMap<>();
+    // Other brokers: Key - Broker Id, Value - Time in milliseconds last heard from
+    private final Map<String, Long> brokers = new ConcurrentHashMap<>();
+    // Other brokers expired, but may still be alive
+    private final Set<String> expired = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Add or replace the client's subscription
+     * If the client was connected to another broker, its former subscriptions are removed.
+     *
+     * @param clientId Client Id
+     * @param brokerId Broker Id the client connected to
+     * @param topic    Topic Filter, original or sanitized
+     * @param qos      Subscription QoS
+     */
+    public void subscribe(String clientId, String brokerId, String topic, MqttQoS qos) {
+        this.lock.writeLock().lock();
+        try {
+            Client client = this.clients.get(clientId);
+            if (client != null && !client.brokerId.equals(brokerId)) {
+                remove(clientId, client);
+                client = null;
+            }
+            if (client == null) {
+                client = new Client(brokerId);
+                this.clients.put(clientId, client);
+            }
+            List<String> topicLevels = Topics.sanitize(topic);
+            client.subscriptions.put(TopicLevels.join(topicLevels), qos);
+            node(filterLevels(topicLevels), true).subscriptions.put(subscriber(clientId, topicLevels), qos);
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Remove the client's subscription
+     *
+     * @param clientId Client Id
+     * @param topic    Topic Filter, original or sanitized
+     */
+    public void unsubscribe(String clientId, String topic) {
+        this.lock.writeLock().lock();
+        try {
+            Client client = this.clients.get(clientId);
+            List<String> topicLevels = Topics.sanitize(topic);
+            if (client == null || client.subscriptions.remove(TopicLevels.join(topicLevels)) == null) return;
+            if (client.subscriptions.isEmpty()) this.clients.remove(clientId);
+            unlink(clientId, topicLevels);
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Remove all the subscriptions of the client
+     *
+     * @param clientId Client Id
+     * @param brokerId Only if the client is connected to this broker, null for any broker
+     */
+    public void disconnect(String clientId, String brokerId) {
+        this.lock.writeLock().lock();
+        try {
+            Client client = this.clients.get(clientId);
+            if (client != null && (brokerId == null || client.brokerId.equals(brokerId))) remove(clientId, client);
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Remove all the subscriptions of the clients connected to the broker
+     *
+     * @param brokerId Broker Id
+     */
+    public void removeBroker(String brokerId) {
+        this.lock.writeLock().lock();
+        try {
+            this.brokers.remove(brokerId);
+            this.expired.remove(brokerId);
+            new HashMap<>(this.clients).forEach((clientId, client) -> {
+                if (client.brokerId.equals(brokerId)) remove(clientId, client);
+            });
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Record the broker is alive
+     *
+     * @param brokerId Broker Id
+     * @param time     Time in milliseconds heard from
+     * @return True if the broker had expired, its subscriptions should be advertised again
+     */
+    public boolean heartbeat(String brokerId, long time) {
+        this.brokers.merge(brokerId, time, Math::max);
+        return this.expired.remove(brokerId);
+    }
+
+    /**
+     * Remove all the subscriptions of the brokers not heard from since the time
+     * Only the brokers whose heartbeats have been recorded can expire.
+     *
+     * @param before Time in milliseconds
+     * @return Broker Ids removed
+     */
+    public List<String> expire(long before) {
+        List<String> removed = new ArrayList<>();
+        this.brokers.forEach((brokerId, time) -> {
+            if (time < before && this.brokers.remove(brokerId, time)) {
+                removeBroker(brokerId);
+                this.expired.add(brokerId);
+                removed.add(brokerId);
+            }
+        });
+        return removed;
+    }
+
+    /**
+     * Get the broker the client is connected to
+     *
+     * @param clientId Client Id
+     * @return Broker Id, null if the client has no subscription in the index
+     */
+    public String getBroker(String clientId) {
+        Client client = this.clients.get(clientId);
+        return client != null ? client.brokerId : null;
+    }
+
+    /**
+     * Get the subscriptions of the clients connected to the broker
+     *
+     * @param brokerId Broker Id
+     * @return Subscriptions: Key - Client Id, Value - (Key - Sanitized Topic Filter, Value - QoS)
+     */
+    public Map<String, Map<String, MqttQoS>> getBrokerSubscriptions(String brokerId) {
+        Map<String, Map<String, MqttQoS>> map = new HashMap<>();
+        this.lock.readLock().lock();
+        try {
+            this.clients.forEach((clientId, client) -> {
+                if (client.brokerId.equals(brokerId)) map.put(clientId, new HashMap<>(client.subscriptions));
+            });
+        } finally {
+            this.lock.readLock().unlock();
+        }
+        return map;
+    }
+
+    /**
+     * Get all topic filter subscriptions matching the topic
+     * Same as {@link com.github.longkerdandy.mithqtt.storage.redis.sync.RedisSyncStorage#getMatchSubscriptions(List, Map)},
+     * keeps the higher QoS for each client.
+     *
+     * @param topicLevels Sanitized Topic Levels of the topic name
+     * @param map         RETURN VALUE! Subscriptions: Key - Client Id or shared subscription group member, Value - QoS
+     */
+    public void getMatchSubscriptions(List<String> topicLevels, Map<String, MqttQoS> map) {
+        this.lock.readLock().lock();
+        try {
+            getMatchSubscriptions(this.root, topicLevels, 0, map);
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * This is a recursion method
+     *
+     * @param node        Current tree node
+     * @param topicLevels List of topic levels
+     * @param index       Current match level
+     * @param map         RETURN VALUE! Subscriptions: Key - Client Id, Value - QoS
+     */
+    private void getMatchSubscriptions(Node node, List<String> topicLevels, int index, Map<String, MqttQoS> map) {
+        // '#' matches current level and all the child levels
+        Node s = node.child("#");
+        if (s != null) merge(s.child(END), map);
+
+        // last one
+        if (index == topicLevels.size() - 1) {
+            merge(node.child(END), map);
+        }
+        // not last one
+        else {
+            Node c = node.child(topicLevels.get(index));
+            if (c != null) getMatchSubscriptions(c, topicLevels, index + 1, map);
+            Node p = node.child("+");
+            if (p != null) getMatchSubscriptions(p, topicLevels, index + 1, map);
+        }
+    }
+
+    private void merge(Node node, Map<String, MqttQoS> map) {
+        if (node == null) return;
+        node.subscriptions.forEach((subscriber, qos) -> {
+            if (qos.value() >= map.getOrDefault(subscriber, MqttQoS.AT_MOST_ONCE).value()) map.put(subscriber, qos);
+        });
+    }
+
+    private void remove(String clientId, Client client) {
+        this.clients.remove(clientId);
+        client.subscriptions.keySet().forEach(topic -> unlink(clientId, Topics.sanitize(topic)));
+    }
+
+    private void unlink(String clientId, List<String> topicLevels) {
+        List<String> filterLevels = filterLevels(topicLevels);
+        Node node = node(filterLevels, false);
+        if (node != null && node.subscriptions.remove(subscriber(clientId, topicLevels)) != null) {
+            this.root.prune(filterLevels, 0);
+        }
+    }
+
+    private Node node(List<String> filterLevels, boolean create) {
+        Node node = this.root;
+        for (String level : filterLevels) {
+            Node child = node.child(level);
+            if (child == null) {
+                if (!create) return null;
+                child = new Node();
+                node.children.put(level, child);
+            }
+            node = child;
+        }
+        return node;
+    }
+
+    // shared subscription is kept in the tree under its topic filter
+    private static List<String> filterLevels(List<String> topicLevels) {
+        return SharedSubscriptions.isShared(topicLevels) ? SharedSubscriptions.filter(topicLevels) : topicLevels;
+    }
+
+    // shared subscription is kept in the tree by the group member
+    private static String subscriber(String clientId, List<String> topicLevels) {
+        return SharedSubscriptions.isShared(topicLevels) ? SharedSubscriptions.member(topicLevels, clientId) : clientId;
+    }
+
+    /**
+     * Connected client
+     */
+    private static class Client {
+
+        private final String brokerId;
+        // Subscriptions: Key - Topic Filter levels joined like the storage does, Value - QoS
+        private final Map<String, MqttQoS> subscriptions = new HashMap<>();
+
+        Client(String brokerId) {
+            this.brokerId = brokerId;
+        }
+    }
+
+    /**
+     * Trie node, one per topic level
+     */
+    private static class Node {
+
+        // Children: Key - Topic Level
+        private final Map<String, Node> children = new HashMap<>();
+        // Subscriptions on this node's topic: Key - Client Id or Member, Value - QoS
+        private final Map<String, MqttQoS> subscriptions = new HashMap<>();
+
+        Node child(String level) {
+            return this.children.get(level);
+        }
+
+        void prune(List<String> topicLevels, int index) {
+            if (index >= topicLevels.size()) return;
+            Node child = this.children.get(topicLevels.get(index));
+            if (child == null) return;
+            child.prune(topicLevels, index + 1);
+            if (child.children.isEmpty() && child.subscriptions.isEmpty()) this.children.remove(topicLevels.get(index));
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package com.github.longkerdandy.mithqtt.broker.util;
+
+import java.util.regex.Pattern;
+
+/**
+ * Matches a String against a validator regex pattern
+ * <p>
+ * Validator patterns are usually a single character class repeated, like the default {@code ^[ -~]+$}. Such patterns
+ * are compiled to a lookup table of the ASCII characters, and a String is matched by scanning its characters once.
+ * Any other pattern falls back to the regex.
+ */
+final class CharClassMatcher {
+
+    // regex pattern, used if the pattern is not a simple character class
+    private final Pattern fallback;
+    // allowed ASCII characters
+    private final boolean[] table;
+    // whether characters outside ASCII are allowed (negated character class)
+    private final boolean nonAscii;
+    // whether empty String is allowed ('*' quantifier)
+    private final boolean empty;
+
+    private CharClassMatcher(Pattern fallback, boolean[] table, boolean nonAscii, boolean empty) {
+        this.fallback = fallback;
+        this.table = table;
+        this.nonAscii = nonAscii;
+        this.empty = empty;
+    }
+
+    /**
+     * Compile the regex pattern
+     *
+     * @param pattern Regex Pattern
+     * @return CharClassMatcher
+     */
+    static CharClassMatcher compile(Pattern pattern) {
+        CharClassMatcher matcher = pattern.flags() == 0 ? parse(pattern.pattern()) : null;
+        return matcher != null ? matcher : new CharClassMatcher(pattern, null, false, false);
+    }
+
+    /**
+     * Is this matcher using the lookup table
+     *
+     * @return True if the regex is not used
+     */
+    boolean isFast() {
+        return this.fallback == null;
+    }
+
+    /**
+     * Does the whole String match the pattern
+     *
+     * @param s String
+     * @return True if matches
+     */
+    boolean matches(String s) {
+        if (this.fallback != null) return this.fallback.matcher(s).matches();
+        int length = s.length();
+        if (length == 0) return this.empty;
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            if (c < 128 ? !this.table[c] : !this.nonAscii) return false;
+        }
+        return true;
+    }
+
+    // parse [class]+ or [class]*, optionally anchored by ^ and $
+    // return null if the regex is anything else
+    private static CharClassMatcher parse(String regex) {
+        int start = regex.startsWith("^") ? 1 : 0;
+        int end = regex.endsWith("$") && !regex.endsWith("\\$") ? regex.length() - 1 : regex.length();
+        if (end - start < 4 || regex.charAt(start) != '[') return null;
+
+        char quantifier = regex.charAt(end - 1);
+        if ((quantifier != '+' && quantifier != '*') || regex.charAt(end - 2) != ']') return null;
+
+        int i = start + 1;
+        int close = end - 2;
+        boolean negated = false;
+        if (regex.charAt(i) == '^') {
+            negated = true;
+            i++;
+        }
+        if (i >= close) return null;
+
+        boolean[] table = new boolean[128];
+        while (i < close) {
+            char c = regex.charAt(i);
+            int low;
+            if (c == '[' || c == ']' || (c == '&' && i + 1 < close && regex.charAt(i + 1) == '&')) {
+                // nested class, intersection or unescaped bracket
+                return null;
+            } else if (c == '\\') {
+                if (i + 1 >= close) return null;
+                char e = regex.charAt(i + 1);
+                i += 2;
+                if (e == 'w') {
+                    set(table, 'a', 'z');
+                    set(table, 'A', 'Z');
+                    set(table, '0', '9');
+                    table['_'] = true;
+                    continue;
+                } else if (e == 'd') {
+                    set(table, '0', '9');
+                    continue;
+                } else if (e == 's') {
+                    for (char s : new char[]{' ', '\t', '\n', '\u000B', '\f', '\r'}) table[s] = true;
+                    continue;
+                } else if (Character.isLetterOrDigit(e) || e >= 128) {
+                    // other escapes (unicode, hex, property ...) are not supported
+                    return null;
+                }
+                low = e;
+            } else {
+                if (c >= 128) return null;
+                low = c;
+                i++;
+            }
+
+            // range
+            if (i + 1 < close && regex.charAt(i) == '-') {
+                char h = regex.charAt(i + 1);
+                int high;
+                if (h == '\\') {
+                    if (i + 2 >= close) return null;
+                    h = regex.charAt(i + 2);
+                    if (Character.isLetterOrDigit(h)) return null;
+                    i += 3;
+                } else if (h == '[' || h == ']') {
+                    return null;
+                } else {
+                    i += 2;
+                }
+                high = h;
+                if (high >= 128 || high < low) return null;
+                set(table, low, high);
+            } else {
+                table[low] = true;
+            }
+        }
+
+        if (negated) {
+            for (int c = 0; c < table.length; c++) table[c] = !table[c];
+        }
+        return new CharClassMatcher(null, table, negated, regex.charAt(end - 1) == '*');
+    }
+
+    private static void set(boolean[] table, int low, int high) {
+        for (int c = low; c <= high; c++) table[c] = true;
+    }
+}
@@ -1,16 +1,24 @@
 package com.github.longkerdandy.mithqtt.broker.util;
 
+import com.github.longkerdandy.mithqtt.util.SharedSubscriptions;
 import org.apache.commons.configuration.AbstractConfiguration;
 import org.apache.commons.lang3.StringUtils;
 
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.regex.Pattern;
 
 /**
  * Validator
+ * <p>
+ * Simple character class patterns like {@code ^[ -~]+$} are matched by a lookup table instead of the regex, see
+ * {@link CharClassMatcher}. Valid topic names are memoized, so a topic name published repeatedly is only checked once.
  */
 @SuppressWarnings("unused")
 public class Validator {
 
+    private static final int TOPIC_NAME_CACHE_SIZE = 1 << 12;
+
     // MQTT client id validate regex pattern
     protected Pattern clientIdPattern;
     // MQTT user name validate regex pattern
@@ -22,6 +30,11 @@ public class Validator {
     // MQTT topic filter validate regex pattern
     protected Pattern topicFilterPattern;
 
+    // compiled matchers, keyed by pattern identity
+    private final ConcurrentMap<Pattern, CharClassMatcher> matchers = new ConcurrentHashMap<>();
+    // recently validated topic names, direct mapped by hash code
+    private final String[] validTopicNames = new String[TOPIC_NAME_CACHE_SIZE];
+
     public Validator(AbstractConfiguration config) {
         if (StringUtils.isNotBlank(config.getString("mqtt.clientId.validator")))
             this.clientIdPattern = Pattern.compile(config.getString("mqtt.clientId.validator"));
@@ -42,31 +55,40 @@ public class Validator {
      * @return True if valid
      */
     public boolean isTopicNameValid(String topicName) {
-        return !StringUtils.isEmpty(topicName) &&
-                !topicName.contains("+") &&
-                !topicName.contains("#") &&
-                (this.topicNamePattern == null || this.topicNamePattern.matcher(topicName).matches());
+        if (StringUtils.isEmpty(topicName)) return false;
+
+        int slot = topicName.hashCode() & (TOPIC_NAME_CACHE_SIZE - 1);
+        if (topicName.equals(this.validTopicNames[slot])) return true;
+
+        boolean valid = topicName.indexOf('+') < 0 &&
+                topicName.indexOf('#') < 0 &&
+                matches(this.topicNamePattern, topicName);
+        if (valid) this.validTopicNames[slot] = topicName;
+        return valid;
     }
 
     /**
      * Is MQTT topic filter (may contain wildcards) valid
+     * Shared subscription '$share/{group}/{filter}' must have a group and a topic filter
      *
      * @param topicFilter Topic Filter
      * @return True if valid
      */
     public boolean isTopicFilterValid(String topicFilter) {
         return !StringUtils.isEmpty(topicFilter) &&
-                (this.topicFilterPattern == null || this.topicFilterPattern.matcher(topicFilter).matches());
+                SharedSubscriptions.isValid(topicFilter) &&
+                matches(this.topicFilterPattern, topicFilter);
     }
 
     /**
      * Is MQTT client id valid
+     * U+0000 is never valid, it's reserved to escape client ids in storage keys
      *
      * @param clientId Client Id
      * @return True if valid
      */
     public boolean isClientIdValid(String clientId) {
-        return this.clientIdPattern == null || this.clientIdPattern.matcher(clientId).matches();
+        return clientId.indexOf('\0') < 0 && matches(this.clientIdPattern, clientId);
     }
 
     /**
@@ -76,7 +98,7 @@ public class Validator {
      * @return True if valid
      */
     public boolean isUserNameValid(String userName) {
-        return this.userNamePattern == null || this.userNamePattern.matcher(userName).matches();
+        return matches(this.userNamePattern, userName);
     }
 
     /**
@@ -86,6 +108,17 @@ public class Validator {
      * @return True if valid
      */
     public boolean isPasswordValid(String password) {
-        return this.passwordPattern == null || this.passwordPattern.matcher(password).matches();
+        return matches(this.passwordPattern, password);
+    }
+
+    /**
+     * Does the value match the pattern
+     *
+     * @param pattern Pattern, null to skip the validation
+     * @param value   Value
+     * @return True if matches
+     */
+    private boolean matches(Pattern pattern, String value) {
+        return pattern == null || this.matchers.computeIfAbsent(pattern, CharClassMatcher::compile).matches(value);
     }
 }
@@ -0,0 +1,174 @@
+package com.github.longkerdandy.mithqtt.broker.cluster;
+
+import com.github.longkerdandy.mithqtt.api.message.Message;
+import com.github.longkerdandy.mithqtt.api.message.MqttAdditionalHeader;
+import com.github.longkerdandy.mithqtt.api.message.MqttPublishPayload;
+import io.netty.handler.codec.mqtt.*;
+import org.junit.Test;
+
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ApplicationPipeline Test
+ */
+public class ApplicationPipelineTest {
+
+    private Message<MqttPublishVariableHeader, MqttPublishPayload> publish(String topic) {
+        return new Message<>(
+                new MqttFixedHeader(MqttMessageType.PUBLISH, false, MqttQoS.AT_MOST_ONCE, false, 0),
+                new MqttAdditionalHeader(MqttVersion.MQTT_3_1_1, "client1", null, null),
+                MqttPublishVariableHeader.from(topic),
+                new MqttPublishPayload("Hello".getBytes()));
+    }
+
+    private Message<MqttPacketIdVariableHeader, Void> disconnect() {
+        return new Message<>(
+                new MqttFixedHeader(MqttMessageType.DISCONNECT, false, MqttQoS.AT_MOST_ONCE, false, 0),
+                new MqttAdditionalHeader(MqttVersion.MQTT_3_1_1, "client1", null, null),
+                null, null);
+    }
+
+    private Map<MqttMessageType, Double> all() {
+        Map<MqttMessageType, Double> rates = new EnumMap<>(MqttMessageType.class);
+        for (MqttMessageType type : MqttMessageType.values()) rates.put(type, 1d);
+        return rates;
+    }
+
+    @Test
+    public void batchTest() throws InterruptedException {
+        List<List<Message>> batches = Collections.synchronizedList(new ArrayList<>());
+        ApplicationPipeline pipeline = new ApplicationPipeline(b -> batches.add(new ArrayList<>(b)), 100, 4, 50, 0, all(), new HashMap<>());
+        for (int i = 0; i < 10; i++) pipeline.submit(publish("a/b/c"));
+        pipeline.destroy();
+
+        assert pipeline.getSent() == 10;
+        assert pipeline.getBatches() == batches.size();
+        assert batches.stream().mapToInt(List::size).sum() == 10;
+        assert batches.stream().allMatch(b -> b.size() <= 4);
+        // collected within the time window
+        assert batches.size() < 10;
+    }
+
+    @Test
+    public void filterTest() throws InterruptedException {
+        List<Message> messages = Collections.synchronizedList(new ArrayList<>());
+        Map<MqttMessageType, Double> types = new EnumMap<>(MqttMessageType.class);
+        types.put(MqttMessageType.PUBLISH, 1d);
+        Map<String, Double> topics = new HashMap<>();
+        topics.put("#", 0d);
+        topics.put("a/+/c", 1d);
+        ApplicationPipeline pipeline = new ApplicationPipeline(messages::addAll, 100, 100, 0, 0, types, topics);
+
+        // type not enabled
+        pipeline.submit(disconnect());
+        // most specific topic filter wins
+        pipeline.submit(publish("a/b/c"));
+        pipeline.submit(publish("a/b"));
+        pipeline.submit(publish("x"));
+        pipeline.destroy();
+
+        assert pipeline.getSubmitted() == 4;
+        assert pipeline.getFiltered() == 3;
+        assert messages.size() == 1;
+        assert ((MqttPublishVariableHeader) messages.get(0).variableHeader()).topicName().equals("a/b/c");
+    }
+
+    @Test
+    public void sampleTest() throws InterruptedException {
+        Map<MqttMessageType, Double> types = all();
+        types.put(MqttMessageType.PUBLISH, 0.5);
+        ApplicationPipeline pipeline = new ApplicationPipeline(b -> {
+        }, 10000, 100, 0, 0, types, new HashMap<>());
+        for (int i = 0; i < 1000; i++) pipeline.submit(publish("a/b/c"));
+        pipeline.destroy();
+
+        assert pipeline.getSampled() > 300 && pipeline.getSampled() < 700;
+        assert pipeline.getSent() + pipeline.getSampled() == 1000;
+    }
+
+    @Test
+    public void dropTest() throws InterruptedException {
+        CountDownLatch latch = new CountDownLatch(1);
+        ApplicationPipeline pipeline = new ApplicationPipeline(b -> {
+            try {
+                latch.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, 2, 1, 0, 0, all(), new HashMap<>());
+
+        // sink is stuck on the first one, the queue holds 2
+        pipeline.submit(publish("a/b/c"));
+        Thread.sleep(200);
+        for (int i = 0; i < 5; i++) pipeline.submit(publish("a/b/c"));
+        assert pipeline.getDropped() == 3;
+        assert pipeline.getQueueSize() == 2;
+
+        latch.countDown();
+        pipeline.destroy();
+        assert pipeline.getSent() == 3;
+    }
+
+    @Test
+    public void blockTest() throws InterruptedException {
+        CountDownLatch latch = new CountDownLatch(1);
+        ApplicationPipeline pipeline = new ApplicationPipeline(b -> {
+            try {
+                latch.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, 1, 1, 0, 100, all(), new HashMap<>());
+
+        // sink is stuck on the first one, the queue holds 1
+        pipeline.submit(publish("a/b/c"));
+        Thread.sleep(200);
+        pipeline.submit(publish("a/b/c"));
+
+        // waits no longer than the timeout for room in the queue
+        long start = System.nanoTime();
+        pipeline.submit(publish("a/b/c"));
+        assert System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(100);
+        assert pipeline.getBlocked() == 1;
+        assert pipeline.getDropped() == 1;
+
+        // room made within the timeout
+        new Thread(() -> {
+            try {
+                Thread.sleep(20);
+            } catch (InterruptedException ignored) {
+            }
+            latch.countDown();
+        }).start();
+        pipeline.submit(publish("a/b/c"));
+        assert pipeline.getBlocked() == 2;
+        assert pipeline.getDropped() == 1;
+
+        pipeline.destroy();
+        assert pipeline.getSent() == 3;
+    }
+
+    @Test
+    public void failTest() throws InterruptedException {
+        ApplicationPipeline pipeline = new ApplicationPipeline(b -> {
+            throw new IllegalStateException("NATS down");
+        }, 100, 100, 0, 0, all(), new HashMap<>());
+        pipeline.submit(publish("a/b/c"));
+        pipeline.destroy();
+
+        assert pipeline.getFailed() == 1;
+        assert pipeline.getSent() == 0;
+    }
+
+    @Test
+    public void matchTest() {
+        assert ApplicationPipeline.isMatch("a/+/c".split("/", -1), "a/b/c".split("/", -1));
+        assert ApplicationPipeline.isMatch("a/#".split("/", -1), "a".split("/", -1));
+        assert ApplicationPipeline.isMatch("a/#".split("/", -1), "a/b/c".split("/", -1));
+        assert !ApplicationPipeline.isMatch("a/+".split("/", -1), "a/b/c".split("/", -1));
+        assert !ApplicationPipeline.isMatch("a/b/c".split("/", -1), "a/b".split("/", -1));
+        assert ApplicationPipeline.isMatch("+/a".split("/", -1), "/a".split("/", -1));
+    }
+}
@@ -0,0 +1,97 @@
+package com.github.longkerdandy.mithqtt.broker.cluster;
+
+import com.github.longkerdandy.mithqtt.api.message.Message;
+import com.github.longkerdandy.mithqtt.api.message.MqttAdditionalHeader;
+import com.github.longkerdandy.mithqtt.api.message.MqttPublishPayload;
+import com.github.longkerdandy.mithqtt.broker.metrics.Metrics;
+import com.github.longkerdandy.mithqtt.broker.session.InFlightStore;
+import com.github.longkerdandy.mithqtt.broker.session.SessionRegistry;
+import com.github.longkerdandy.mithqtt.broker.session.SubscriptionIndex;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.mqtt.*;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * NATSCluster Test
+ */
+public class NATSClusterTest {
+
+    private NATSCluster cluster;
+    private EmbeddedChannel channel;
+    private ChannelHandlerContext ctx;
+
+    // cluster not connected to NATS, client1 connected to this broker broker1
+    @Before
+    public void init() {
+        this.cluster = new NATSCluster();
+        this.cluster.brokerId = "broker1";
+        this.cluster.registry = new SessionRegistry(new Metrics());
+        this.cluster.inFlight = new InFlightStore(1024 * 1024);
+        this.cluster.index = new SubscriptionIndex();
+
+        this.channel = new EmbeddedChannel(new ChannelInboundHandlerAdapter());
+        this.ctx = this.channel.pipeline().firstContext();
+        this.cluster.registry.saveSession("client1", this.ctx);
+        this.cluster.inFlight.open("client1", this.ctx);
+    }
+
+    private Message<MqttPublishVariableHeader, MqttPublishPayload> publish(String clientId, MqttQoS qos, int packetId) {
+        return new Message<>(
+                new MqttFixedHeader(MqttMessageType.PUBLISH, false, qos, false, 0),
+                new MqttAdditionalHeader(MqttVersion.MQTT_3_1_1, clientId, null, null),
+                packetId > 0 ? MqttPublishVariableHeader.from("a/b/c", packetId) : MqttPublishVariableHeader.from("a/b/c"),
+                new MqttPublishPayload("Hello".getBytes()));
+    }
+
+    private int received() {
+        MqttPublishMessage msg = this.channel.readOutbound();
+        int packetId = msg.variableHeader().packetId();
+        msg.release();
+        return packetId;
+    }
+
+    @Test
+    public void publishTest() {
+        // memory only session, numbered on arrival and kept in flight
+        this.cluster.onMessage(publish("client1", MqttQoS.AT_LEAST_ONCE, 0));
+        this.cluster.onMessage(publish("client1", MqttQoS.EXACTLY_ONCE, 0));
+        assert received() == 1;
+        assert received() == 2;
+        assert this.cluster.inFlight.contains("client1", 1);
+        assert this.cluster.inFlight.contains("client1", 2);
+
+        // numbered by the storage
+        this.cluster.onMessage(publish("client1", MqttQoS.AT_LEAST_ONCE, 100));
+        assert received() == 100;
+        assert this.cluster.inFlight.size("client1") == 3;
+
+        // qos 0, no packet id
+        this.cluster.onMessage(publish("client1", MqttQoS.AT_MOST_ONCE, 0));
+        assert received() == 0;
+        assert this.cluster.inFlight.size("client1") == 3;
+
+        // no longer connected
+        this.cluster.onMessage(publish("client2", MqttQoS.AT_LEAST_ONCE, 0));
+        assert this.channel.readOutbound() == null;
+        assert this.cluster.inFlight.size("client2") == -1;
+
+        this.cluster.inFlight.close("client1", this.ctx);
+    }
+
+    @Test
+    public void connectAdvertisementTest() {
+        this.cluster.index.subscribe("client1", "broker1", "a/b/c", MqttQoS.AT_LEAST_ONCE);
+        this.cluster.index.subscribe("client2", "broker2", "a/b/c", MqttQoS.AT_LEAST_ONCE);
+
+        // client1 connected to broker2, the session here is closed
+        this.cluster.onAdvertisement(new Message<>(new MqttFixedHeader(MqttMessageType.CONNECT, false, MqttQoS.AT_MOST_ONCE, false, 0),
+                new MqttAdditionalHeader(MqttVersion.MQTT_3_1_1, "client1", null, "broker2"), null, null));
+        assert !this.channel.isOpen();
+        assert this.cluster.registry.getSession("client1") == null;
+        assert this.cluster.index.getBroker("client1") == null;
+        assert this.cluster.index.getBroker("client2").equals("broker2");
+    }
+}
@@ -0,0 +1,71 @@
+package com.github.longkerdandy.mithqtt.broker.handler;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.timeout.IdleState;
+import io.netty.handler.timeout.IdleStateEvent;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * KeepAliveTracker Test
+ */
+public class KeepAliveTrackerTest {
+
+    private static class EventRecorder extends ChannelInboundHandlerAdapter {
+        final List<Object> events = new ArrayList<>();
+
+        @Override
+        public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+            this.events.add(evt);
+        }
+    }
+
+    @Test
+    public void idleTest() throws InterruptedException {
+        KeepAliveTracker tracker = new KeepAliveTracker(10, 100);
+        EventRecorder recorder = new EventRecorder();
+        EmbeddedChannel channel = new EmbeddedChannel(tracker, recorder);
+
+        // activity keeps the channel alive
+        for (int i = 0; i < 4; i++) {
+            Thread.sleep(50);
+            channel.runScheduledPendingTasks();
+            channel.writeInbound("ping");
+        }
+        assert recorder.events.isEmpty();
+
+        // idle beyond timeout, but not twice as long, it would fire again
+        Thread.sleep(150);
+        channel.runScheduledPendingTasks();
+        assert recorder.events.size() == 1;
+        assert ((IdleStateEvent) recorder.events.get(0)).state() == IdleState.ALL_IDLE;
+
+        channel.finish();
+    }
+
+    @Test
+    public void trackTest() throws InterruptedException {
+        KeepAliveTracker tracker = new KeepAliveTracker(10, 100);
+        EventRecorder recorder = new EventRecorder();
+        EmbeddedChannel channel = new EmbeddedChannel(tracker, recorder);
+
+        // negotiated keep alive replaces the default
+        tracker.track(channel, 1000);
+        Thread.sleep(200);
+        channel.runScheduledPendingTasks();
+        assert recorder.events.isEmpty();
+
+        // stop tracking
+        tracker.track(channel, 100);
+        tracker.untrack(channel);
+        Thread.sleep(200);
+        channel.runScheduledPendingTasks();
+        assert recorder.events.isEmpty();
+
+        channel.finish();
+    }
+}
@@ -0,0 +1,73 @@
+package com.github.longkerdandy.mithqtt.broker.handler;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.BiConsumer;
+
+/**
+ * SessionState Test
+ */
+public class SessionStateTest {
+
+    @Test
+    public void qos2IdsTest() {
+        SessionState state = new SessionState(60);
+        assert state.getQoS2Ids().isEmpty();
+        state.removeQoS2Id(1);
+
+        assert state.addQoS2Id(1);
+        assert state.addQoS2Id(3);
+        assert !state.addQoS2Id(1);
+        state.removeQoS2Id(1);
+        assert state.getQoS2Ids().size() == 1;
+        assert state.getQoS2Ids().get(0) == 3;
+    }
+
+    @Test
+    public void qos2IdsPersistTest() {
+        // stored 1 and 2, then received 3 and released 1
+        SessionState former = new SessionState(60);
+        former.loadQoS2Ids(Arrays.asList(1, 2), null);
+        assert former.addQoS2Id(3);
+        assert former.removeQoS2Id(1);
+        assert !former.removeQoS2Id(1);
+
+        // new connection takes over before the former one persisted, 4 was persisted by another broker meanwhile
+        SessionState state = new SessionState(60);
+        state.loadQoS2Ids(Arrays.asList(1, 2, 4), former);
+        assert state.getQoS2Ids().equals(Arrays.asList(2, 3, 4));
+
+        // the former connection only persists the changes made after hand over
+        List<Integer> added = new ArrayList<>();
+        List<Integer> removed = new ArrayList<>();
+        int[] calls = new int[1];
+        BiConsumer<List<Integer>, List<Integer>> update = (a, r) -> {
+            calls[0]++;
+            added.addAll(a);
+            removed.addAll(r);
+        };
+        assert former.addQoS2Id(5);
+        former.persistQoS2Ids(update);
+        assert added.equals(Collections.singletonList(5));
+        assert removed.isEmpty();
+
+        // the new connection persists the changes against what it loaded
+        added.clear();
+        assert state.removeQoS2Id(2);
+        state.persistQoS2Ids(update);
+        assert added.equals(Collections.singletonList(3));
+        assert removed.equals(Arrays.asList(1, 2));
+
+        // nothing changed since
+        added.clear();
+        removed.clear();
+        state.persistQoS2Ids(update);
+        assert added.isEmpty() && removed.isEmpty();
+        // one storage call per connection with changes, none without
+        assert calls[0] == 2;
+    }
+}
@@ -0,0 +1,319 @@
+package com.github.longkerdandy.mithqtt.broker.handler;
+
+import com.github.longkerdandy.mithqtt.api.auth.AsyncAuthenticator;
+import com.github.longkerdandy.mithqtt.api.auth.AuthorizeResult;
+import com.github.longkerdandy.mithqtt.api.message.Message;
+import com.github.longkerdandy.mithqtt.broker.cluster.NATSCluster;
+import com.github.longkerdandy.mithqtt.broker.metrics.Metrics;
+import com.github.longkerdandy.mithqtt.broker.metrics.MetricsHandler;
+import com.github.longkerdandy.mithqtt.broker.session.InFlightStore;
+import com.github.longkerdandy.mithqtt.broker.session.SessionRegistry;
+import com.github.longkerdandy.mithqtt.broker.session.SharedDelivery;
+import com.github.longkerdandy.mithqtt.broker.session.SubscriptionIndex;
+import com.github.longkerdandy.mithqtt.broker.util.Validator;
+import com.github.longkerdandy.mithqtt.storage.redis.sync.RedisSyncStorage;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.DefaultEventLoopGroup;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.channel.local.LocalAddress;
+import io.netty.channel.local.LocalChannel;
+import io.netty.channel.local.LocalServerChannel;
+import io.netty.handler.codec.mqtt.*;
+import io.netty.util.ReferenceCountUtil;
+import org.apache.commons.configuration.MapConfiguration;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * SyncRedisHandler Test
+ */
+public class SyncRedisHandlerTest {
+
+    /**
+     * Cluster not connected to NATS, messages to the other brokers are recorded
+     */
+    private static class Cluster extends NATSCluster {
+        final List<Message> advertised = new ArrayList<>();
+        final List<Message> toBrokers = new ArrayList<>();
+
+        @Override
+        public void advertise(Message message) {
+            this.advertised.add(message);
+        }
+
+        @Override
+        public void sendToBroker(String brokerId, Message message) {
+            this.toBrokers.add(message);
+        }
+
+        @Override
+        public void sendToApplication(Message message) {
+        }
+    }
+
+    /**
+     * Broker with all the shared parts, storage and authenticator accept everything
+     */
+    private static class Broker {
+        final List<String> storageCalls = new ArrayList<>();
+        final Metrics metrics = new Metrics();
+        final Cluster cluster = new Cluster();
+        final SessionRegistry registry = new SessionRegistry(this.metrics);
+        final InFlightStore inFlight = new InFlightStore(1024 * 1024);
+        final SubscriptionIndex index;
+        final KeepAliveTracker keepAliveTracker = new KeepAliveTracker(1000, 60000);
+        final MetricsHandler metricsHandler = new MetricsHandler(this.metrics);
+        final SyncRedisHandler handler;
+
+        Broker(boolean index, boolean memorySession) {
+            this.index = index ? new SubscriptionIndex() : null;
+            this.handler = new SyncRedisHandler(authenticator(), this.cluster, storage(this.storageCalls), this.registry, this.inFlight,
+                    new SharedDelivery(SharedDelivery.Strategy.ROUND_ROBIN, this.registry, this.inFlight), this.index, null,
+                    this.keepAliveTracker, new Validator(new MapConfiguration(new HashMap<>())), this.metrics, "broker1", 60, 65535, memorySession);
+        }
+
+        // same pipeline as the broker's, without ssl and streaming
+        void initChannel(Channel ch) {
+            ChannelPipeline p = ch.pipeline();
+            p.addFirst("keepAliveTracker", this.keepAliveTracker);
+            p.addLast("metrics", this.metricsHandler);
+            p.addLast("encoder", MqttEncoder.INSTANCE);
+            p.addLast("decoder", new MqttDecoder(8092, 0));
+            p.addLast("logicHandler", this.handler);
+        }
+
+        // connected client
+        EmbeddedChannel connect(String clientId, boolean cleanSession) {
+            EmbeddedChannel channel = new EmbeddedChannel(new ChannelInitializer<Channel>() {
+                @Override
+                protected void initChannel(Channel ch) throws Exception {
+                    Broker.this.initChannel(ch);
+                }
+            });
+            channel.writeInbound(SyncRedisHandlerTest.connect(clientId, cleanSession));
+            channel.runPendingTasks();
+            return channel;
+        }
+    }
+
+    // encoded CONNECT message
+    private static ByteBuf connect(String clientId, boolean cleanSession) {
+        return MqttEncoder.encode(ByteBufAllocator.DEFAULT, MqttMessageFactory.newMessage(
+                new MqttFixedHeader(MqttMessageType.CONNECT, false, MqttQoS.AT_MOST_ONCE, false, 0),
+                new MqttConnectVariableHeader("MQTT", 4, false, false, false, MqttQoS.AT_MOST_ONCE, false, cleanSession, 60),
+                new MqttConnectPayload(clientId, null, null, null, null)));
+    }
+
+    // authorizes everything
+    private static AsyncAuthenticator authenticator() {
+        return (AsyncAuthenticator) Proxy.newProxyInstance(SyncRedisHandlerTest.class.getClassLoader(), new Class[]{AsyncAuthenticator.class}, (proxy, method, args) -> {
+            if (method.getName().equals("authConnect") || method.getName().equals("authPublish")) {
+                return CompletableFuture.completedFuture(AuthorizeResult.OK);
+            } else if (method.getName().equals("authSubscribe")) {
+                @SuppressWarnings("unchecked") List<MqttTopicSubscription> subscriptions = (List<MqttTopicSubscription>) args[2];
+                List<MqttGrantedQoS> granted = new ArrayList<>();
+                subscriptions.forEach(s -> granted.add(MqttGrantedQoS.valueOf(s.requestedQos().value())));
+                return CompletableFuture.completedFuture(granted);
+            }
+            return null;
+        });
+    }
+
+    // holds nothing, every call succeeds and is recorded
+    private static RedisSyncStorage storage(List<String> calls) {
+        return (RedisSyncStorage) Proxy.newProxyInstance(SyncRedisHandlerTest.class.getClassLoader(), new Class[]{RedisSyncStorage.class}, (proxy, method, args) -> {
+            calls.add(method.getName());
+            Class<?> type = method.getReturnType();
+            if (type == boolean.class) return true;
+            if (type == int.class) return method.getName().equals("getSessionExist") ? -1 : 1;
+            if (type == List.class) return new ArrayList<>();
+            if (type == Map.class) return new HashMap<>();
+            return null;
+        });
+    }
+
+    // encoded message from the client
+    private static void send(EmbeddedChannel channel, MqttMessageType type, MqttQoS qos, Object variableHeader, Object payload) {
+        channel.writeInbound(MqttEncoder.encode(ByteBufAllocator.DEFAULT,
+                MqttMessageFactory.newMessage(new MqttFixedHeader(type, false, qos, false, 0), variableHeader, payload)));
+        channel.runPendingTasks();
+    }
+
+    // messages sent to the client, decoded
+    private static List<MqttMessage> received(EmbeddedChannel channel) {
+        EmbeddedChannel decoder = new EmbeddedChannel(new MqttDecoder());
+        Object o;
+        while ((o = channel.readOutbound()) != null) decoder.writeInbound(o);
+        List<MqttMessage> messages = new ArrayList<>();
+        while ((o = decoder.readInbound()) != null) {
+            messages.add((MqttMessage) o);
+            ReferenceCountUtil.release(o);
+        }
+        return messages;
+    }
+
+    private static MqttSubscribePayload subscription(String topic) {
+        return new MqttSubscribePayload(Collections.singletonList(new MqttTopicSubscription(topic, MqttQoS.AT_LEAST_ONCE)));
+    }
+
+    // the storage is only read, nothing about the session is written
+    private static boolean readOnly(List<String> calls) {
+        return calls.stream().allMatch(call -> call.startsWith("get") && !call.equals("getNextPacketId"));
+    }
+
+    @Test
+    public void memorySessionTest() {
+        Broker broker = new Broker(true, true);
+        EmbeddedChannel subscriber = broker.connect("client1", true);
+        assert received(subscriber).get(0).fixedHeader().messageType() == MqttMessageType.CONNACK;
+        // the other brokers disconnect the client too
+        assert broker.cluster.advertised.get(0).fixedHeader().messageType() == MqttMessageType.CONNECT;
+
+        send(subscriber, MqttMessageType.SUBSCRIBE, MqttQoS.AT_LEAST_ONCE, MqttPacketIdVariableHeader.from(1), subscription("a/+"));
+        assert received(subscriber).get(0).fixedHeader().messageType() == MqttMessageType.SUBACK;
+        assert broker.index.getBroker("client1").equals("broker1");
+        // memory only session connected to another broker
+        broker.index.subscribe("client2", "broker2", "a/b", MqttQoS.AT_LEAST_ONCE);
+
+        EmbeddedChannel publisher = broker.connect("client3", true);
+        received(publisher);
+        send(publisher, MqttMessageType.PUBLISH, MqttQoS.AT_LEAST_ONCE, MqttPublishVariableHeader.from("a/b", 7), Unpooled.wrappedBuffer("Hello".getBytes()));
+        List<MqttMessage> messages = received(publisher);
+        assert messages.get(0).fixedHeader().messageType() == MqttMessageType.PUBACK;
+        assert ((MqttPacketIdVariableHeader) messages.get(0).variableHeader()).packetId() == 7;
+
+        // numbered by this broker, kept in flight until acknowledged
+        messages = received(subscriber);
+        assert messages.size() == 1;
+        assert messages.get(0).fixedHeader().qos() == MqttQoS.AT_LEAST_ONCE;
+        assert ((MqttPublishVariableHeader) messages.get(0).variableHeader()).packetId() == 1;
+        assert broker.inFlight.contains("client1", 1);
+        send(subscriber, MqttMessageType.PUBACK, MqttQoS.AT_MOST_ONCE, MqttPacketIdVariableHeader.from(1), null);
+        assert !broker.inFlight.contains("client1", 1);
+
+        // numbered by the other broker on arrival
+        assert broker.cluster.toBrokers.size() == 1;
+        assert broker.cluster.toBrokers.get(0).additionalHeader().clientId().equals("client2");
+        assert ((MqttPublishVariableHeader) broker.cluster.toBrokers.get(0).variableHeader()).packetId() == 0;
+
+        assert readOnly(broker.storageCalls) : broker.storageCalls;
+        subscriber.finish();
+        publisher.finish();
+    }
+
+    @Test
+    public void memorySessionDisconnectTest() {
+        Broker broker = new Broker(true, true);
+        EmbeddedChannel subscriber = broker.connect("client1", true);
+        send(subscriber, MqttMessageType.SUBSCRIBE, MqttQoS.AT_LEAST_ONCE, MqttPacketIdVariableHeader.from(1), subscription("a/+"));
+        received(subscriber);
+        broker.storageCalls.clear();
+        broker.cluster.advertised.clear();
+
+        // removed from the index here and on the other brokers, nothing stored
+        send(subscriber, MqttMessageType.DISCONNECT, MqttQoS.AT_MOST_ONCE, null, null);
+        assert !subscriber.isOpen();
+        assert broker.registry.getSession("client1") == null;
+        assert broker.inFlight.size("client1") == -1;
+        assert broker.index.getBroker("client1") == null;
+        assert broker.cluster.advertised.size() == 1;
+        assert broker.cluster.advertised.get(0).fixedHeader().messageType() == MqttMessageType.DISCONNECT;
+        assert broker.cluster.advertised.get(0).additionalHeader().clientId().equals("client1");
+        assert broker.storageCalls.isEmpty() : broker.storageCalls;
+    }
+
+    @Test
+    public void memorySessionWithoutIndexTest() {
+        // ignored without the subscription index, the clean session is stored as usual
+        Broker broker = new Broker(false, true);
+        EmbeddedChannel channel = broker.connect("client1", true);
+        assert received(channel).get(0).fixedHeader().messageType() == MqttMessageType.CONNACK;
+        assert broker.storageCalls.contains("lock");
+        assert !readOnly(broker.storageCalls);
+        channel.finish();
+    }
+
+    @Test
+    public void idleConnectionFootprintTest() throws Exception {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        Broker broker = new Broker(false, false);
+        // connections share the event loop, and the keep alive wheel, as they do in the broker
+        DefaultEventLoopGroup group = new DefaultEventLoopGroup(1);
+        long loop = group.submit(() -> Thread.currentThread().getId()).get();
+        long main = Thread.currentThread().getId();
+        LocalAddress address = new LocalAddress("footprint");
+        boolean[] pipeline = new boolean[1];
+        new ServerBootstrap().group(group).channel(LocalServerChannel.class).childHandler(new ChannelInitializer<Channel>() {
+            @Override
+            protected void initChannel(Channel ch) throws Exception {
+                if (pipeline[0]) broker.initChannel(ch);
+            }
+        }).bind(address).sync();
+        Bootstrap client = new Bootstrap().group(group).channel(LocalChannel.class).handler(new ChannelInitializer<Channel>() {
+            @Override
+            protected void initChannel(Channel ch) throws Exception {
+            }
+        });
+
+        // bytes allocated on both sides per connection, garbage included
+        int n = 1000;
+        long[] allocated = new long[3];
+        List<Channel> clients = new ArrayList<>();
+        for (int round = 0; round < 2; round++) {
+            // the first round warms up, classes and shared parts are initialized
+            for (int step = 0; step < allocated.length; step++) {
+                pipeline[0] = step > 0;
+                List<ByteBuf> frames = new ArrayList<>();
+                for (int i = 0; i < n && step == 2; i++) frames.add(connect("client" + round + "-" + i, true));
+                long start = threads.getThreadAllocatedBytes(main) + threads.getThreadAllocatedBytes(loop);
+                for (int i = 0; i < n; i++) {
+                    Channel channel = client.connect(address).sync().channel();
+                    if (step == 2) channel.writeAndFlush(frames.get(i)).sync();
+                    clients.add(channel);
+                }
+                group.submit(() -> null).sync();
+                allocated[step] = (threads.getThreadAllocatedBytes(main) + threads.getThreadAllocatedBytes(loop) - start) / n;
+            }
+        }
+
+        // the Netty channel itself is not counted, the pipeline (handler contexts, decoder, keep alive entry) is kept
+        // as long as the connection
+        assert allocated[1] - allocated[0] < 1024 : "pipeline allocated " + (allocated[1] - allocated[0]) + " bytes";
+        // CONNECT handling is mostly garbage (decoded CONNECT, CONNACK, copy to 3rd party application), what is kept
+        // (session state, registry entry, in-flight window) is part of it
+        assert allocated[2] - allocated[1] < 3072 : "CONNECT allocated " + (allocated[2] - allocated[1]) + " bytes";
+        assert broker.registry.getSession("client1-0") != null;
+        assert broker.inFlight.size("client1-0") == 0;
+
+        // an idle connected session only references its identity, the optional parts are not allocated
+        SessionState state = broker.registry.getSession("client1-0").channel().attr(SessionState.KEY).get();
+        assert state.connected;
+        for (Field field : SessionState.class.getDeclaredFields()) {
+            if (Modifier.isStatic(field.getModifiers()) || field.getType().isPrimitive()) continue;
+            field.setAccessible(true);
+            Object value = field.get(state);
+            assert value == null || value == state.version || value == state.clientId || value == state.userName : field.getName() + " is allocated for an idle connection";
+        }
+
+        clients.forEach(Channel::close);
+        group.shutdownGracefully(0, 0, TimeUnit.SECONDS).sync();
+    }
+}
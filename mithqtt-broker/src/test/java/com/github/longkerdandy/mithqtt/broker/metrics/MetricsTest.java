@@ -0,0 +1,76 @@
+package com.github.longkerdandy.mithqtt.broker.metrics;
+
+import com.github.longkerdandy.mithqtt.util.Histogram;
+import io.netty.handler.codec.mqtt.MqttMessageType;
+import org.junit.Test;
+
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Metrics Test
+ */
+public class MetricsTest {
+
+    @Test
+    public void snapshotTest() {
+        Metrics metrics = new Metrics();
+        Map<MqttMessageType, LongAdder> packets = metrics.counters("packets.in", MqttMessageType.class);
+        packets.get(MqttMessageType.PUBLISH).add(3);
+        // same counter by name
+        metrics.counter("packets.in.PUBLISH").increment();
+        metrics.gauge("connections.active", () -> 5);
+        metrics.histogram("publish.fanout").record(10);
+        metrics.histogram("never.recorded");
+
+        SortedMap<String, Number> snapshot = metrics.snapshot();
+        assert snapshot.get("packets.in.PUBLISH").longValue() == 4;
+        assert snapshot.get("packets.in.CONNECT").longValue() == 0;
+        assert snapshot.get("connections.active").intValue() == 5;
+        assert snapshot.get("publish.fanout.count").longValue() == 1;
+        assert snapshot.get("publish.fanout.p99").longValue() == 10;
+        assert !snapshot.containsKey("never.recorded.count");
+
+        String text = new HttpExporter(metrics).render();
+        assert text.contains("packets.in.PUBLISH 4\n");
+        assert text.contains("connections.active 5\n");
+    }
+
+    @Test
+    public void registerTest() {
+        Metrics metrics = new Metrics();
+        Map<String, Histogram> histograms = new ConcurrentHashMap<>();
+        metrics.register("storage", histograms);
+        assert !metrics.snapshot().containsKey("storage.lock.count");
+
+        // histograms added later show up as well
+        Histogram lock = new Histogram();
+        lock.record(100);
+        lock.record(200);
+        histograms.put("lock", lock);
+        histograms.put("PUBLISH.lock", new Histogram());
+
+        SortedMap<String, Number> snapshot = metrics.snapshot();
+        assert snapshot.get("storage.lock.count").longValue() == 2;
+        assert snapshot.get("storage.lock.max").longValue() == 200;
+        assert !snapshot.containsKey("storage.PUBLISH.lock.count");
+    }
+
+    @Test
+    public void jmxTest() throws Exception {
+        Metrics metrics = new Metrics();
+        metrics.counter("packets.in.PUBLISH").add(2);
+        JmxExporter exporter = new JmxExporter(metrics);
+        exporter.init("com.github.longkerdandy.mithqtt:type=Broker,id=test");
+        try {
+            Object value = ManagementFactory.getPlatformMBeanServer().getAttribute(new ObjectName("com.github.longkerdandy.mithqtt:type=Broker,id=test"), "packets.in.PUBLISH");
+            assert ((Number) value).longValue() == 2;
+        } finally {
+            exporter.destroy();
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package com.github.longkerdandy.mithqtt.broker.session;
+
+import com.github.longkerdandy.mithqtt.api.message.Message;
+import com.github.longkerdandy.mithqtt.api.message.MqttAdditionalHeader;
+import com.github.longkerdandy.mithqtt.api.message.MqttPublishPayload;
+import com.github.longkerdandy.mithqtt.storage.redis.sync.RedisSyncStorage;
+import io.netty.handler.codec.mqtt.*;
+import org.junit.Test;
+
+import java.lang.reflect.Proxy;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * GroupCommitter Test
+ */
+public class GroupCommitterTest {
+
+    // Storage only records the batches
+    private RedisSyncStorage storage(List<List<Message>> batches, boolean fail) {
+        return (RedisSyncStorage) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[]{RedisSyncStorage.class}, (proxy, method, args) -> {
+            if (method.getName().equals("addInFlightMessages")) {
+                if (fail) throw new IllegalStateException("Storage down");
+                @SuppressWarnings("unchecked") Collection<Message> msgs = (Collection<Message>) args[0];
+                synchronized (batches) {
+                    batches.add(new ArrayList<>(msgs));
+                }
+            }
+            return null;
+        });
+    }
+
+    private Message<MqttPublishVariableHeader, MqttPublishPayload> publish(String clientId, int packetId) {
+        return new Message<>(
+                new MqttFixedHeader(MqttMessageType.PUBLISH, false, MqttQoS.AT_LEAST_ONCE, false, 0),
+                new MqttAdditionalHeader(MqttVersion.MQTT_3_1_1, clientId, null, null),
+                MqttPublishVariableHeader.from("a/b/c", packetId),
+                new MqttPublishPayload("Hello".getBytes()));
+    }
+
+    @Test
+    public void commitTest() throws Exception {
+        List<List<Message>> batches = new ArrayList<>();
+        GroupCommitter committer = new GroupCommitter(storage(batches, false), 50, 1000);
+
+        // 10 publishers submit at the same time
+        CountDownLatch latch = new CountDownLatch(10);
+        List<CompletableFuture<Void>> futures = Collections.synchronizedList(new ArrayList<>());
+        for (int i = 1; i <= 10; i++) {
+            String clientId = "client" + i;
+            new Thread(() -> {
+                futures.add(committer.commit(Arrays.asList(publish(clientId, 1), publish(clientId, 2))));
+                latch.countDown();
+            }).start();
+        }
+        latch.await();
+        for (CompletableFuture<Void> f : futures) f.get();
+
+        int count = 0;
+        for (List<Message> batch : batches) count += batch.size();
+        assert count == 20;
+        assert batches.size() < 10;
+
+        // empty submission completes in order
+        CompletableFuture<Void> f1 = committer.commit(Collections.singletonList(publish("client1", 3)));
+        CompletableFuture<Void> f2 = committer.commit(Collections.emptyList());
+        f2.get();
+        assert f1.isDone();
+
+        committer.destroy();
+    }
+
+    @Test
+    public void failTest() throws Exception {
+        GroupCommitter committer = new GroupCommitter(storage(new ArrayList<>(), true), 0, 1000);
+        try {
+            committer.commit(Collections.singletonList(publish("client1", 1))).get();
+            assert false;
+        } catch (ExecutionException e) {
+            assert e.getCause() instanceof IllegalStateException;
+        }
+        committer.destroy();
+
+        // stopped
+        assert committer.commit(Collections.emptyList()).isCompletedExceptionally();
+    }
+
+    @Test
+    public void stopTest() throws Exception {
+        GroupCommitter committer = new GroupCommitter(storage(new ArrayList<>(), false), 0, 1000);
+
+        // submissions racing with destroy are either persisted or failed, none is left waiting
+        List<CompletableFuture<Void>> futures = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch latch = new CountDownLatch(4);
+        for (int i = 1; i <= 4; i++) {
+            String clientId = "client" + i;
+            new Thread(() -> {
+                for (int j = 1; j <= 1000; j++) futures.add(committer.commit(Collections.singletonList(publish(clientId, j))));
+                latch.countDown();
+            }).start();
+        }
+        committer.destroy();
+        latch.await();
+
+        for (CompletableFuture<Void> f : futures) {
+            try {
+                f.get(1, TimeUnit.SECONDS);
+            } catch (ExecutionException e) {
+                assert e.getCause() instanceof IllegalStateException;
+            }
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package com.github.longkerdandy.mithqtt.broker.session;
+
+import com.github.longkerdandy.mithqtt.api.message.Message;
+import com.github.longkerdandy.mithqtt.api.message.MqttAdditionalHeader;
+import com.github.longkerdandy.mithqtt.api.message.MqttPublishPayload;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.mqtt.*;
+import org.junit.Test;
+
+import java.util.List;
+
+/**
+ * InFlightStore Test
+ */
+public class InFlightStoreTest {
+
+    private Message<MqttPublishVariableHeader, MqttPublishPayload> publish(int packetId, String payload) {
+        return new Message<>(
+                new MqttFixedHeader(MqttMessageType.PUBLISH, false, MqttQoS.AT_LEAST_ONCE, false, 0),
+                new MqttAdditionalHeader(MqttVersion.MQTT_3_1_1, "client1", null, null),
+                MqttPublishVariableHeader.from("a/b/c", packetId),
+                new MqttPublishPayload(payload.getBytes()));
+    }
+
+    private Message<MqttPacketIdVariableHeader, Void> pubrel(int packetId) {
+        return new Message<>(
+                new MqttFixedHeader(MqttMessageType.PUBREL, false, MqttQoS.AT_LEAST_ONCE, false, 0),
+                new MqttAdditionalHeader(MqttVersion.MQTT_3_1_1, "client1", null, null),
+                MqttPacketIdVariableHeader.from(packetId),
+                null);
+    }
+
+    @Test
+    public void windowTest() {
+        InFlightStore store = new InFlightStore(1024 * 1024);
+
+        // no window, client not connected
+        assert !store.add("client1", 1, publish(1, "Hello 1"));
+        assert store.usedBytes() == 0;
+
+        store.open("client1", null);
+        assert store.add("client1", 1, publish(1, "Hello 1"));
+        assert store.add("client1", 2, publish(2, "Hello 2"));
+        assert store.add("client1", 1, pubrel(1));
+        // 18 bytes PUBLISH, 4 bytes PUBREL
+        assert store.usedBytes() == 22;
+
+        List<ByteBuf> frames = store.get("client1");
+        assert frames.size() == 2;
+        assert frames.get(0).getByte(0) == 0x62;
+        assert frames.get(0).getUnsignedShort(2) == 1;
+        // PUBLISH with DUP
+        assert frames.get(1).getByte(0) == 0x3A;
+        assert frames.get(1).getUnsignedShort(9) == 2;
+        frames.forEach(ByteBuf::release);
+
+        store.remove("client1", 2);
+        assert store.usedBytes() == 4;
+
+        // only the owner can close the window
+        store.close("client1", new EmbeddedChannel(new ChannelInboundHandlerAdapter()).pipeline().firstContext());
+        assert store.get("client1").size() == 1;
+        store.close("client1", null);
+        assert store.get("client1").isEmpty();
+        assert store.usedBytes() == 0;
+    }
+
+    @Test
+    public void capacityTest() {
+        InFlightStore store = new InFlightStore(40);
+        store.open("client1", null);
+
+        assert store.add("client1", 1, publish(1, "Hello 1"));
+        assert store.add("client1", 2, publish(2, "Hello 2"));
+        assert !store.add("client1", 3, publish(3, "Hello 3"));
+        assert store.usedBytes() == 36;
+
+        // replaced message is dropped when the new one doesn't fit
+        assert !store.add("client1", 2, publish(2, "Hello Hello 2"));
+        assert store.usedBytes() == 18;
+        assert store.get("client1").size() == 1;
+
+        // disabled
+        store = new InFlightStore(0);
+        store.open("client1", null);
+        assert !store.add("client1", 1, publish(1, "Hello 1"));
+    }
+}
@@ -0,0 +1,83 @@
+package com.github.longkerdandy.mithqtt.broker.session;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.WriteBufferWaterMark;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.stream.ChunkedWriteHandler;
+import org.junit.Test;
+
+/**
+ * PublishStream Test
+ */
+public class PublishStreamTest {
+
+    // subscriber falls behind by more than 64 bytes
+    private EmbeddedChannel subscriber() {
+        EmbeddedChannel channel = new EmbeddedChannel(new ChunkedWriteHandler());
+        channel.config().setWriteBufferWaterMark(new WriteBufferWaterMark(32, 64));
+        return channel;
+    }
+
+    // not written to the subscriber, its chunks are read by the test
+    private PublishStream stream(EmbeddedChannel publisher, EmbeddedChannel subscriber) {
+        ChannelHandlerContext ctx = subscriber.pipeline().context(ChunkedWriteHandler.class);
+        return new PublishStream(publisher, ctx, (ChunkedWriteHandler) ctx.handler(), Unpooled.buffer(4).writeZero(4), 1000);
+    }
+
+    // subscriber catches up
+    private void drain(PublishStream stream) throws Exception {
+        ByteBuf chunk;
+        while ((chunk = stream.readChunk(ByteBufAllocator.DEFAULT)) != null) chunk.release();
+    }
+
+    @Test
+    public void pauseTest() throws Exception {
+        EmbeddedChannel publisher = new EmbeddedChannel();
+        PublishStream fast = stream(publisher, subscriber());
+        PublishStream slow = stream(publisher, subscriber());
+        ByteBuf chunk = Unpooled.wrappedBuffer(new byte[50]);
+
+        fast.add(chunk);
+        slow.add(chunk);
+        assert publisher.config().isAutoRead();
+
+        // both fall behind
+        fast.add(chunk);
+        slow.add(chunk);
+        assert !publisher.config().isAutoRead();
+        assert ReadPause.count(publisher) == 2;
+
+        // the fast one catching up doesn't resume the publisher while the slow one is still behind
+        drain(fast);
+        assert ReadPause.count(publisher) == 1;
+        assert !publisher.config().isAutoRead();
+
+        slow.add(chunk);
+        assert ReadPause.count(publisher) == 1;
+        drain(slow);
+        assert ReadPause.count(publisher) == 0;
+        assert publisher.config().isAutoRead();
+
+        // paused by an authorization as well, closing the stream leaves it paused
+        slow.add(chunk);
+        slow.add(chunk);
+        ReadPause.pause(publisher);
+        assert ReadPause.count(publisher) == 2;
+        slow.close();
+        assert !publisher.config().isAutoRead();
+        ReadPause.resume(publisher);
+        assert publisher.config().isAutoRead();
+
+        // unmatched resume is ignored
+        fast.close();
+        ReadPause.resume(publisher);
+        assert ReadPause.count(publisher) == 0;
+        assert publisher.config().isAutoRead();
+
+        chunk.release();
+        assert chunk.refCnt() == 0;
+    }
+}
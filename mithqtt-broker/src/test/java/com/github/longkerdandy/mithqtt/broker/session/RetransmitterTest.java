@@ -0,0 +1,47 @@
+package com.github.longkerdandy.mithqtt.broker.session;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Retransmitter Test
+ */
+public class RetransmitterTest {
+
+    @Test
+    public void backoffTest() {
+        Retransmitter retransmitter = new Retransmitter(10, 1000, 5000, 3);
+        try {
+            assert retransmitter.delay(0) == 1000;
+            assert retransmitter.delay(1) == 2000;
+            assert retransmitter.delay(2) == 4000;
+            assert retransmitter.delay(3) == 5000;
+            assert retransmitter.delay(100) == 5000;
+
+            // attempts exhausted
+            assert retransmitter.schedule(t -> {
+            }, 3) == null;
+        } finally {
+            retransmitter.destroy();
+        }
+    }
+
+    @Test
+    public void scheduleTest() throws InterruptedException {
+        Retransmitter retransmitter = new Retransmitter(10, 50, 50, 0);
+        try {
+            CountDownLatch latch = new CountDownLatch(1);
+            assert retransmitter.schedule(t -> latch.countDown(), 100) != null;
+            assert latch.await(5, TimeUnit.SECONDS);
+
+            // cancelled retransmission never runs
+            CountDownLatch cancelled = new CountDownLatch(1);
+            retransmitter.schedule(t -> cancelled.countDown(), 0).cancel();
+            assert !cancelled.await(200, TimeUnit.MILLISECONDS);
+        } finally {
+            retransmitter.destroy();
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package com.github.longkerdandy.mithqtt.broker.session;
+
+import com.github.longkerdandy.mithqtt.api.message.Message;
+import com.github.longkerdandy.mithqtt.api.message.MqttAdditionalHeader;
+import com.github.longkerdandy.mithqtt.api.message.MqttPublishPayload;
+import com.github.longkerdandy.mithqtt.broker.metrics.Metrics;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.mqtt.*;
+import org.junit.Test;
+
+/**
+ * SessionRegistry Test
+ */
+public class SessionRegistryTest {
+
+    private Message<MqttPublishVariableHeader, MqttPublishPayload> publish(int packetId) {
+        return new Message<>(
+                new MqttFixedHeader(MqttMessageType.PUBLISH, false, MqttQoS.AT_LEAST_ONCE, false, 0),
+                new MqttAdditionalHeader(MqttVersion.MQTT_3_1_1, "client1", null, null),
+                MqttPublishVariableHeader.from("a/b/c", packetId),
+                new MqttPublishPayload("Hello".getBytes()));
+    }
+
+    @Test
+    public void nextPacketIdTest() {
+        SessionRegistry registry = new SessionRegistry(new Metrics());
+        InFlightStore inFlight = new InFlightStore(1024 * 1024);
+        EmbeddedChannel channel = new EmbeddedChannel(new ChannelInboundHandlerAdapter());
+        ChannelHandlerContext ctx = channel.pipeline().firstContext();
+
+        // not connected
+        assert registry.nextPacketId("client1", inFlight) == 0;
+
+        registry.saveSession("client1", ctx);
+        inFlight.open("client1", ctx);
+        assert registry.nextPacketId("client1", inFlight) == 1;
+        assert inFlight.add("client1", 1, publish(1));
+        for (int i = 2; i <= 0xffff; i++) assert registry.nextPacketId("client1", inFlight) == i;
+
+        // wrapped around, unacknowledged ids are skipped
+        assert inFlight.add("client1", 3, publish(3));
+        assert registry.nextPacketId("client1", inFlight) == 2;
+        assert registry.nextPacketId("client1", inFlight) == 4;
+
+        // acknowledged ids are available again
+        inFlight.remove("client1", 1);
+        for (int i = 5; i <= 0xffff; i++) registry.nextPacketId("client1", inFlight);
+        assert registry.nextPacketId("client1", inFlight) == 1;
+        assert registry.nextPacketId("client1", inFlight) == 2;
+
+        inFlight.close("client1", ctx);
+        channel.finish();
+    }
+}
@@ -0,0 +1,74 @@
+package com.github.longkerdandy.mithqtt.broker.session;
+
+import com.github.longkerdandy.mithqtt.broker.metrics.Metrics;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * SharedDelivery Test
+ */
+public class SharedDeliveryTest {
+
+    private Map<String, MqttQoS> members(String... clientIds) {
+        Map<String, MqttQoS> members = new TreeMap<>();
+        for (String clientId : clientIds) members.put(clientId, MqttQoS.AT_LEAST_ONCE);
+        return members;
+    }
+
+    @Test
+    public void roundRobinTest() {
+        SharedDelivery shared = new SharedDelivery(SharedDelivery.Strategy.ROUND_ROBIN, new SessionRegistry(new Metrics()), new InFlightStore(0));
+        Map<String, MqttQoS> members = members("client1", "client2", "client3");
+
+        assert shared.candidates("g1/a/+", members).equals(Arrays.asList("client1", "client2", "client3"));
+        assert shared.candidates("g1/a/+", members).equals(Arrays.asList("client2", "client3", "client1"));
+        assert shared.candidates("g1/a/+", members).equals(Arrays.asList("client3", "client1", "client2"));
+        assert shared.candidates("g1/a/+", members).get(0).equals("client1");
+
+        // rotation is per share, groups of the same name with different topic filters are rotated apart
+        assert shared.candidates("g2/a/+", members).get(0).equals("client1");
+        assert shared.candidates("g1/a/#", members).get(0).equals("client1");
+    }
+
+    @Test
+    public void localFirstTest() {
+        SessionRegistry registry = new SessionRegistry(new Metrics());
+        EmbeddedChannel channel = new EmbeddedChannel(new ChannelInboundHandlerAdapter());
+        ChannelHandlerContext ctx = channel.pipeline().firstContext();
+        registry.saveSession("client3", ctx);
+
+        SharedDelivery shared = new SharedDelivery(SharedDelivery.Strategy.LOCAL_FIRST, registry, new InFlightStore(0));
+        Map<String, MqttQoS> members = members("client1", "client2", "client3");
+        for (int i = 0; i < 3; i++) {
+            List<String> candidates = shared.candidates("g1/a/+", members);
+            assert candidates.get(0).equals("client3");
+            assert candidates.size() == 3;
+        }
+    }
+
+    @Test
+    public void leastInFlightTest() {
+        EmbeddedChannel channel = new EmbeddedChannel(new ChannelInboundHandlerAdapter());
+        ChannelHandlerContext ctx = channel.pipeline().firstContext();
+        InFlightStore inFlight = new InFlightStore(1024 * 1024);
+        inFlight.open("client1", ctx);
+        inFlight.open("client2", ctx);
+        assert inFlight.size("client1") == 0;
+        assert inFlight.size("client3") == -1;
+
+        SharedDelivery shared = new SharedDelivery(SharedDelivery.Strategy.LEAST_IN_FLIGHT, new SessionRegistry(new Metrics()), inFlight);
+        Map<String, MqttQoS> members = members("client1", "client2", "client3");
+
+        // equal counts rotate, members not connected to this broker come last
+        assert shared.candidates("g1/a/+", members).equals(Arrays.asList("client1", "client2", "client3"));
+        assert shared.candidates("g1/a/+", members).equals(Arrays.asList("client2", "client1", "client3"));
+    }
+}
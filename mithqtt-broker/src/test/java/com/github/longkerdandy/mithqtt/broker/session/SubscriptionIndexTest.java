@@ -0,0 +1,122 @@
+package com.github.longkerdandy.mithqtt.broker.session;
+
+import com.github.longkerdandy.mithqtt.util.SharedSubscriptions;
+import com.github.longkerdandy.mithqtt.util.Topics;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+/**
+ * SubscriptionIndex Test
+ */
+public class SubscriptionIndexTest {
+
+    private Map<String, MqttQoS> match(SubscriptionIndex index, String topicName) {
+        Map<String, MqttQoS> map = new HashMap<>();
+        index.getMatchSubscriptions(Topics.sanitizeTopicName(topicName), map);
+        return map;
+    }
+
+    @Test
+    public void matchTest() {
+        SubscriptionIndex index = new SubscriptionIndex();
+        index.subscribe("client1", "broker1", "a/+/c", MqttQoS.AT_LEAST_ONCE);
+        index.subscribe("client1", "broker1", "a/#", MqttQoS.AT_MOST_ONCE);
+        index.subscribe("client2", "broker2", "a/b/c", MqttQoS.EXACTLY_ONCE);
+        index.subscribe("client3", "broker2", "/a/b", MqttQoS.AT_MOST_ONCE);
+        index.subscribe("client4", "broker1", SharedSubscriptions.PREFIX + "/g1/a/b/+", MqttQoS.AT_LEAST_ONCE);
+
+        Map<String, MqttQoS> map = match(index, "a/b/c");
+        assert map.size() == 3;
+        // keeps the higher QoS
+        assert map.get("client1") == MqttQoS.AT_LEAST_ONCE;
+        assert map.get("client2") == MqttQoS.EXACTLY_ONCE;
+        assert map.get(SharedSubscriptions.member(Topics.sanitize(SharedSubscriptions.PREFIX + "/g1/a/b/+"), "client4")) == MqttQoS.AT_LEAST_ONCE;
+
+        // '#' matches the parent level
+        map = match(index, "a");
+        assert map.size() == 1 && map.containsKey("client1");
+
+        map = match(index, "/a/b");
+        assert map.size() == 1 && map.containsKey("client3");
+
+        assert index.getBroker("client2").equals("broker2");
+        assert index.getBroker("client5") == null;
+    }
+
+    @Test
+    public void unsubscribeTest() {
+        SubscriptionIndex index = new SubscriptionIndex();
+        index.subscribe("client1", "broker1", "a/+/c", MqttQoS.AT_LEAST_ONCE);
+        index.subscribe("client1", "broker1", "a/b/c", MqttQoS.AT_LEAST_ONCE);
+
+        // sanitized topic filter as kept by the storage
+        index.unsubscribe("client1", String.join("/", Topics.sanitize("a/+/c")));
+        assert match(index, "a/x/c").isEmpty();
+        assert match(index, "a/b/c").size() == 1;
+
+        index.unsubscribe("client1", "a/b/c");
+        assert match(index, "a/b/c").isEmpty();
+        assert index.getBroker("client1") == null;
+    }
+
+    @Test
+    public void disconnectTest() {
+        SubscriptionIndex index = new SubscriptionIndex();
+        index.subscribe("client1", "broker1", "a/b", MqttQoS.AT_LEAST_ONCE);
+        index.subscribe("client2", "broker1", "a/b", MqttQoS.AT_LEAST_ONCE);
+        index.subscribe("client3", "broker2", "a/b", MqttQoS.AT_LEAST_ONCE);
+
+        // client moved to another broker, former subscriptions removed
+        index.subscribe("client1", "broker2", "c/d", MqttQoS.AT_MOST_ONCE);
+        assert index.getBroker("client1").equals("broker2");
+        assert !match(index, "a/b").containsKey("client1");
+        assert match(index, "c/d").containsKey("client1");
+
+        // disconnected from the former broker, ignored
+        index.disconnect("client1", "broker1");
+        assert match(index, "c/d").containsKey("client1");
+
+        assert index.getBrokerSubscriptions("broker2").keySet().size() == 2;
+        index.removeBroker("broker2");
+        assert match(index, "c/d").isEmpty();
+        assert match(index, "a/b").keySet().size() == 1;
+
+        index.disconnect("client2", null);
+        assert match(index, "a/b").isEmpty();
+        assert index.getBrokerSubscriptions("broker1").isEmpty();
+    }
+
+    @Test
+    public void expireTest() {
+        SubscriptionIndex index = new SubscriptionIndex();
+        index.subscribe("client1", "broker1", "a/b", MqttQoS.AT_LEAST_ONCE);
+        index.subscribe("client2", "broker2", "a/b", MqttQoS.AT_LEAST_ONCE);
+        index.subscribe("client3", "broker3", "a/b", MqttQoS.AT_LEAST_ONCE);
+        assert !index.heartbeat("broker2", 1000);
+        assert !index.heartbeat("broker3", 1000);
+        assert !index.heartbeat("broker3", 3000);
+        // late heartbeat does not go back in time
+        assert !index.heartbeat("broker3", 2000);
+
+        // broker without heartbeat, like this broker itself, never expires
+        assert index.expire(2500).equals(Collections.singletonList("broker2"));
+        assert index.getBroker("client2") == null;
+        assert match(index, "a/b").keySet().equals(new HashSet<>(Arrays.asList("client1", "client3")));
+
+        // expired broker heard from again, asked for its subscriptions once
+        assert index.heartbeat("broker2", 4000);
+        assert !index.heartbeat("broker2", 4000);
+
+        // removed broker no longer expires
+        index.removeBroker("broker3");
+        assert index.expire(3500).isEmpty();
+        assert index.expire(5000).equals(Collections.singletonList("broker2"));
+        assert index.getBroker("client1").equals("broker1");
+    }
+}
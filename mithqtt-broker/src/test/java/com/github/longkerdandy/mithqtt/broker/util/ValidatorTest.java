@@ -28,6 +28,7 @@ public class ValidatorTest {
         assert validator.isClientIdValid("client_id");
         assert validator.isClientIdValid("Client Id");
         assert !validator.isClientIdValid("\u041e client id");
+        assert !validator.isClientIdValid("client\0id");
     }
 
     @Test
@@ -44,4 +45,41 @@ public class ValidatorTest {
         assert validator.isTopicFilterValid("foo/+/woo");
         assert validator.isTopicFilterValid("foo/+/woo/#");
     }
+
+    @Test
+    public void charClassMatcherTest() {
+        String[] regexes = {"^[ -~]+$", "^[\\w_ /]*$", "^[\\w_ +#/]*$", "[a-z0-9-]+", "^[^/#+]+$", "^[\\d\\s\\-\\]]+$"};
+        String[] values = {"", "clientId", "client_id", "Client Id", "\u041e client id", "foo/bar", "foo/+/woo/#",
+                "a-b-c", "ABC", "12 34", "-]", "\t", "emoji\ud83d\ude00", "~!@#$%^&*()"};
+        for (String regex : regexes) {
+            Pattern pattern = Pattern.compile(regex);
+            CharClassMatcher matcher = CharClassMatcher.compile(pattern);
+            assert matcher.isFast() : regex;
+            for (String value : values) {
+                assert matcher.matches(value) == pattern.matcher(value).matches() : regex + " " + value;
+            }
+        }
+
+        // not simple character class, use the regex
+        for (String regex : new String[]{"^[a-z]+/[a-z]+$", "^[\\p{L}]+$", "^[a-z&&[^c]]+$", "[a-z]{1,8}", "^[\u00e9]+$"}) {
+            Pattern pattern = Pattern.compile(regex);
+            CharClassMatcher matcher = CharClassMatcher.compile(pattern);
+            assert !matcher.isFast() : regex;
+            for (String value : values) {
+                assert matcher.matches(value) == pattern.matcher(value).matches() : regex + " " + value;
+            }
+        }
+        assert !CharClassMatcher.compile(Pattern.compile("^[a-z]+$", Pattern.CASE_INSENSITIVE)).isFast();
+    }
+
+    @Test
+    public void topicNameMemoizedTest() {
+        Validator validator = new Validator(new MapConfiguration(new HashMap<>()));
+        validator.topicNamePattern = Pattern.compile("^[ -~]+$");
+        assert validator.isTopicNameValid("foo/bar");
+        assert validator.isTopicNameValid(new String("foo/bar"));
+        assert !validator.isTopicNameValid("foo/\u041e");
+        assert !validator.isTopicNameValid("foo/\u041e");
+        assert !validator.isTopicNameValid("foo/#");
+    }
 }
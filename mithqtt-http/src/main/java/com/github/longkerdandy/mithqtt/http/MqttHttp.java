@@ -3,7 +3,8 @@ package com.github.longkerdandy.mithqtt.http;
 import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.SerializationFeature;
-import com.github.longkerdandy.mithqtt.api.auth.Authenticator;
+import com.github.longkerdandy.mithqtt.api.auth.AsyncAuthenticator;
+import com.github.longkerdandy.mithqtt.api.auth.AsyncAuthenticatorAdapter;
 import com.github.longkerdandy.mithqtt.http.cluster.NATSCluster;
 import com.github.longkerdandy.mithqtt.http.oauth.OAuthAuthenticator;
 import com.github.longkerdandy.mithqtt.http.resources.MqttPublishResource;
@@ -99,7 +100,7 @@ public class MqttHttp extends Application<MqttHttpConfiguration> {
         });
 
         // authenticator
-        Authenticator authenticator = (Authenticator) Class.forName(authenticatorConfig.getString("authenticator.class")).newInstance();
+        AsyncAuthenticator authenticator = AsyncAuthenticatorAdapter.load(authenticatorConfig.getString("authenticator.class"));
         environment.lifecycle().manage(new Managed() {
             @Override
             public void start() throws Exception {
@@ -1,6 +1,6 @@
 package com.github.longkerdandy.mithqtt.http.oauth;
 
-import com.github.longkerdandy.mithqtt.api.auth.Authenticator;
+import com.github.longkerdandy.mithqtt.api.auth.AsyncAuthenticator;
 import com.google.common.base.Optional;
 import com.sun.security.auth.UserPrincipal;
 import io.dropwizard.auth.AuthenticationException;
@@ -11,9 +11,9 @@ import org.apache.commons.lang3.StringUtils;
  */
 public class OAuthAuthenticator implements io.dropwizard.auth.Authenticator<String, UserPrincipal> {
 
-    private final Authenticator authenticator;
+    private final AsyncAuthenticator authenticator;
 
-    public OAuthAuthenticator(Authenticator authenticator) {
+    public OAuthAuthenticator(AsyncAuthenticator authenticator) {
         this.authenticator = authenticator;
     }
 
@@ -33,7 +33,7 @@ public class OAuthAuthenticator implements io.dropwizard.auth.Authenticator<Stri
             return Optional.absent();
         }
         // validate token
-        String u = this.authenticator.oauth(credentials);
+        String u = this.authenticator.oauth(credentials).join();
         return StringUtils.isBlank(u) ? Optional.absent() : Optional.of(new UserPrincipal(u));
     }
 }
\ No newline at end of file
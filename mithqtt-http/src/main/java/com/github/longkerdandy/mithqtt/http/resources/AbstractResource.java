@@ -1,6 +1,6 @@
 package com.github.longkerdandy.mithqtt.http.resources;
 
-import com.github.longkerdandy.mithqtt.api.auth.Authenticator;
+import com.github.longkerdandy.mithqtt.api.auth.AsyncAuthenticator;
 import com.github.longkerdandy.mithqtt.http.cluster.NATSCluster;
 import com.github.longkerdandy.mithqtt.http.util.Validator;
 import com.github.longkerdandy.mithqtt.storage.redis.sync.RedisSyncStorage;
@@ -14,9 +14,9 @@ public abstract class AbstractResource {
     protected final Validator validator;
     protected final RedisSyncStorage redis;
     protected final NATSCluster cluster;
-    protected final Authenticator authenticator;
+    protected final AsyncAuthenticator authenticator;
 
-    public AbstractResource(String serverId, Validator validator, RedisSyncStorage redis, NATSCluster cluster, Authenticator authenticator) {
+    public AbstractResource(String serverId, Validator validator, RedisSyncStorage redis, NATSCluster cluster, AsyncAuthenticator authenticator) {
         this.serverId = serverId;
         this.validator = validator;
         this.redis = redis;
@@ -1,6 +1,6 @@
 package com.github.longkerdandy.mithqtt.http.resources;
 
-import com.github.longkerdandy.mithqtt.api.auth.Authenticator;
+import com.github.longkerdandy.mithqtt.api.auth.AsyncAuthenticator;
 import com.github.longkerdandy.mithqtt.api.auth.AuthorizeResult;
 import com.github.longkerdandy.mithqtt.api.message.Message;
 import com.github.longkerdandy.mithqtt.api.message.MqttAdditionalHeader;
@@ -13,6 +13,7 @@ import com.github.longkerdandy.mithqtt.http.exception.AuthorizeException;
 import com.github.longkerdandy.mithqtt.http.exception.ValidateException;
 import com.github.longkerdandy.mithqtt.http.util.Validator;
 import com.github.longkerdandy.mithqtt.storage.redis.sync.RedisSyncStorage;
+import com.github.longkerdandy.mithqtt.util.SharedSubscriptions;
 import com.github.longkerdandy.mithqtt.util.Topics;
 import com.sun.security.auth.UserPrincipal;
 import io.dropwizard.auth.Auth;
@@ -25,9 +26,11 @@ import javax.annotation.security.PermitAll;
 import javax.ws.rs.*;
 import javax.ws.rs.core.MediaType;
 import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
 
 /**
  * MQTT Publish related resource
@@ -39,7 +42,7 @@ public class MqttPublishResource extends AbstractResource {
 
     private static final Logger logger = LoggerFactory.getLogger(MqttPublishResource.class);
 
-    public MqttPublishResource(String serverId, Validator validator, RedisSyncStorage redis, NATSCluster cluster, Authenticator authenticator) {
+    public MqttPublishResource(String serverId, Validator validator, RedisSyncStorage redis, NATSCluster cluster, AsyncAuthenticator authenticator) {
         super(serverId, validator, redis, cluster, authenticator);
     }
 
@@ -76,7 +79,7 @@ public class MqttPublishResource extends AbstractResource {
 
         logger.debug("Message received: Received PUBLISH message from client {} user {} topic {}", clientId, user.getName(), topicName);
 
-        AuthorizeResult result = this.authenticator.authPublish(clientId, userName, topicName, qos, false);
+        AuthorizeResult result = this.authenticator.authPublish(clientId, userName, topicName, qos, false).join();
         // Authorize successful
         if (result == AuthorizeResult.OK) {
             logger.trace("Authorization PUBLISH succeeded on topic {} for client {}", topicName, clientId);
@@ -103,6 +106,20 @@ public class MqttPublishResource extends AbstractResource {
             // additional matching subscription and respecting the subscription’s QoS in each case.
             Map<String, MqttQoS> subscriptions = new HashMap<>();
             this.redis.getMatchSubscriptions(topicLevels, subscriptions);
+            // Shared subscriptions, each group receives one copy, delivered to a connected member chosen at random
+            SharedSubscriptions.split(subscriptions).forEach((share, members) -> {
+                List<String> clientIds = new ArrayList<>(members.keySet());
+                int start = ThreadLocalRandom.current().nextInt(clientIds.size());
+                String member = clientIds.get(start);
+                for (int i = 0; i < clientIds.size(); i++) {
+                    String candidate = clientIds.get((start + i) % clientIds.size());
+                    if (StringUtils.isNotBlank(this.redis.getConnectedNode(candidate))) {
+                        member = candidate;
+                        break;
+                    }
+                }
+                subscriptions.merge(member, members.get(member), (a, b) -> a.value() >= b.value() ? a : b);
+            });
             subscriptions.forEach((cid, q) -> {
 
                 // Compare publish QoS and subscription QoS
@@ -1,6 +1,6 @@
 package com.github.longkerdandy.mithqtt.http.resources;
 
-import com.github.longkerdandy.mithqtt.api.auth.Authenticator;
+import com.github.longkerdandy.mithqtt.api.auth.AsyncAuthenticator;
 import com.github.longkerdandy.mithqtt.api.message.Message;
 import com.github.longkerdandy.mithqtt.api.message.MqttAdditionalHeader;
 import com.github.longkerdandy.mithqtt.api.message.MqttSubscribePayloadGranted;
@@ -14,11 +14,13 @@ import com.github.longkerdandy.mithqtt.http.exception.AuthorizeException;
 import com.github.longkerdandy.mithqtt.http.exception.ValidateException;
 import com.github.longkerdandy.mithqtt.http.util.Validator;
 import com.github.longkerdandy.mithqtt.storage.redis.sync.RedisSyncStorage;
+import com.github.longkerdandy.mithqtt.util.SharedSubscriptions;
 import com.github.longkerdandy.mithqtt.util.Topics;
 import com.sun.security.auth.UserPrincipal;
 import io.dropwizard.auth.Auth;
 import io.netty.handler.codec.mqtt.*;
 import org.apache.commons.lang3.ArrayUtils;
+import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -39,7 +41,7 @@ public class MqttSubscribeResource extends AbstractResource {
 
     private static final Logger logger = LoggerFactory.getLogger(MqttSubscribeResource.class);
 
-    public MqttSubscribeResource(String serverId, Validator validator, RedisSyncStorage redis, NATSCluster cluster, Authenticator authenticator) {
+    public MqttSubscribeResource(String serverId, Validator validator, RedisSyncStorage redis, NATSCluster cluster, AsyncAuthenticator authenticator) {
         super(serverId, validator, redis, cluster, authenticator);
     }
 
@@ -82,8 +84,8 @@ public class MqttSubscribeResource extends AbstractResource {
 
         logger.debug("Message received: Received SUBSCRIBE message from client {} user {}", clientId, userName);
 
-        // Authorize client subscribe using provided Authenticator
-        List<MqttGrantedQoS> grantedQosLevels = this.authenticator.authSubscribe(clientId, userName, requestSubscriptions);
+        // Authorize client subscribe using provided Authenticator, shared subscriptions by their topic filters
+        List<MqttGrantedQoS> grantedQosLevels = this.authenticator.authSubscribe(clientId, userName, SharedSubscriptions.authorizable(requestSubscriptions)).join();
         if (subscriptions.size() != grantedQosLevels.size()) {
             logger.warn("Authorization error: SUBSCRIBE message's subscriptions count not equal to granted QoS count");
             throw new AuthorizeException(new ErrorEntity(ErrorCode.UNAUTHORIZED));
@@ -117,6 +119,13 @@ public class MqttSubscribeResource extends AbstractResource {
                 new MqttSubscribePayloadGranted(grantedSubscriptions));
         this.cluster.sendToApplication(msg);
 
+        // Pass message to the broker the client connected to, which updates its subscription index
+        String brokerId = this.redis.getConnectedNode(clientId);
+        if (StringUtils.isNotBlank(brokerId)) {
+            logger.trace("Send SUBSCRIBE message of client {} to broker {}", clientId, brokerId);
+            this.cluster.sendToBroker(brokerId, msg);
+        }
+
         return new ResultEntity<>(grantedQosLevels);
     }
 
@@ -1,6 +1,6 @@
 package com.github.longkerdandy.mithqtt.http.resources;
 
-import com.github.longkerdandy.mithqtt.api.auth.Authenticator;
+import com.github.longkerdandy.mithqtt.api.auth.AsyncAuthenticator;
 import com.github.longkerdandy.mithqtt.api.message.Message;
 import com.github.longkerdandy.mithqtt.api.message.MqttAdditionalHeader;
 import com.github.longkerdandy.mithqtt.http.cluster.NATSCluster;
@@ -15,6 +15,7 @@ import com.sun.security.auth.UserPrincipal;
 import io.dropwizard.auth.Auth;
 import io.netty.handler.codec.mqtt.*;
 import org.apache.commons.lang3.ArrayUtils;
+import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -33,7 +34,7 @@ public class MqttUnsubscribeResource extends AbstractResource {
 
     private static final Logger logger = LoggerFactory.getLogger(MqttSubscribeResource.class);
 
-    public MqttUnsubscribeResource(String serverId, Validator validator, RedisSyncStorage redis, NATSCluster cluster, Authenticator authenticator) {
+    public MqttUnsubscribeResource(String serverId, Validator validator, RedisSyncStorage redis, NATSCluster cluster, AsyncAuthenticator authenticator) {
         super(serverId, validator, redis, cluster, authenticator);
     }
 
@@ -86,6 +87,13 @@ public class MqttUnsubscribeResource extends AbstractResource {
                 new MqttUnsubscribePayload(topics));
         this.cluster.sendToApplication(msg);
 
+        // Pass message to the broker the client connected to, which updates its subscription index
+        String brokerId = this.redis.getConnectedNode(clientId);
+        if (StringUtils.isNotBlank(brokerId)) {
+            logger.trace("Send UNSUBSCRIBE message of client {} to broker {}", clientId, brokerId);
+            this.cluster.sendToBroker(brokerId, msg);
+        }
+
         return new ResultEntity<>(true);
     }
 }
@@ -1,6 +1,7 @@
 package com.github.longkerdandy.mithqtt.http.util;
 
 import com.github.longkerdandy.mithqtt.http.MqttHttpConfiguration;
+import com.github.longkerdandy.mithqtt.util.SharedSubscriptions;
 import org.apache.commons.lang3.StringUtils;
 
 import java.util.regex.Pattern;
@@ -48,6 +49,7 @@ public class Validator {
      */
     public boolean isTopicFilterValid(String topicFilter) {
         return !StringUtils.isEmpty(topicFilter) &&
+                SharedSubscriptions.isValid(topicFilter) &&
                 (this.topicFilterPattern == null || this.topicFilterPattern.matcher(topicFilter).matches());
     }
 
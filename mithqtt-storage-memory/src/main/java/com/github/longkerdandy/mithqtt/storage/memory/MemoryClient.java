@@ -0,0 +1,69 @@
+package com.github.longkerdandy.mithqtt.storage.memory;
+
+import com.github.longkerdandy.mithqtt.api.message.Message;
+import com.github.longkerdandy.mithqtt.storage.redis.ConnectionState;
+import io.netty.handler.codec.mqtt.MqttQoS;
+
+import java.util.ArrayDeque;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Client state held by the memory storage
+ * Not thread safe, access must be guarded by the storage
+ */
+class MemoryClient {
+
+    // Connection state, null means DISCONNECTED
+    ConnectionState state;
+    // Connected broker node
+    String node;
+    // Connection expire time in milliseconds, 0 means never
+    long connectionExpire;
+
+    // Session existence (1 clean session, 0 normal session, < 0 not exist)
+    int session = -1;
+
+    // Last packet id
+    int packetId;
+
+    // In-flight messages in order, Key - Packet Id
+    final Map<Integer, Message> inFlight = new LinkedHashMap<>();
+    // In-flight messages expire time in milliseconds, Key - Packet Id
+    final Map<Integer, Long> inFlightExpire = new HashMap<>();
+
+    // Unacknowledged qos 2 message ids, indexed by packet id
+    final BitSet qos2 = new BitSet();
+    // Unacknowledged qos 2 message ids in order, only tracked when queue size is limited
+    final Deque<Integer> qos2Order = new ArrayDeque<>();
+
+    // Subscriptions: Key - Topic, Value - QoS
+    final Map<String, MqttQoS> subscriptions = new HashMap<>();
+
+    /**
+     * Clear the connection state if expired
+     *
+     * @param now Current time in milliseconds
+     */
+    void expire(long now) {
+        if (this.connectionExpire > 0 && this.connectionExpire <= now) {
+            this.state = null;
+            this.node = null;
+            this.connectionExpire = 0;
+        }
+    }
+
+    /**
+     * Is the client holding nothing
+     * Empty client will be removed from the storage
+     *
+     * @return True if empty
+     */
+    boolean isEmpty() {
+        return this.state == null && this.node == null && this.session < 0 && this.packetId == 0
+                && this.inFlight.isEmpty() && this.qos2.isEmpty() && this.subscriptions.isEmpty();
+    }
+}
@@ -0,0 +1,704 @@
+package com.github.longkerdandy.mithqtt.storage.memory;
+
+import com.github.longkerdandy.mithqtt.api.message.Message;
+import com.github.longkerdandy.mithqtt.api.message.MqttPublishPayload;
+import com.github.longkerdandy.mithqtt.storage.redis.ConnectionState;
+import com.github.longkerdandy.mithqtt.storage.redis.sync.RedisSyncStorage;
+import com.github.longkerdandy.mithqtt.util.SharedSubscriptions;
+import com.github.longkerdandy.mithqtt.util.TopicLevels;
+import com.github.longkerdandy.mithqtt.util.Topics;
+import io.netty.handler.codec.mqtt.MqttFixedHeader;
+import io.netty.handler.codec.mqtt.MqttMessageType;
+import io.netty.handler.codec.mqtt.MqttPacketIdVariableHeader;
+import io.netty.handler.codec.mqtt.MqttPublishVariableHeader;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import org.apache.commons.configuration.AbstractConfiguration;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Function;
+
+import static com.github.longkerdandy.mithqtt.util.Topics.END;
+
+/**
+ * Synchronized Storage held in process memory
+ * State is not shared between processes and lost when the process exits,
+ * so it should only be used by a single broker node deployment (without the http interface)
+ */
+public class MemorySyncStorage implements RedisSyncStorage {
+
+    // Max in-flight queue size per client
+    private int inFlightQueueSize;
+    // Max QoS 2 ids queue size per client
+    private int qos2QueueSize;
+    // Max retain queue size per topic
+    private int retainQueueSize;
+
+    // Client state, each client is only accessed inside the map's atomic compute
+    private final Map<String, MemoryClient> clients = new ConcurrentHashMap<>();
+
+    // Topic subscription trie tree
+    private final MemoryTopicNode subscriptionTree = new MemoryTopicNode();
+    private final ReadWriteLock subscriptionLock = new ReentrantReadWriteLock();
+
+    // Topic retain trie tree
+    private final MemoryTopicNode retainTree = new MemoryTopicNode();
+    private final ReadWriteLock retainLock = new ReentrantReadWriteLock();
+
+    @Override
+    public void init(AbstractConfiguration config) {
+        this.inFlightQueueSize = config.getInt("mqtt.inflight.queue.size", 0);
+        this.qos2QueueSize = config.getInt("mqtt.qos2.queue.size", 0);
+        this.retainQueueSize = config.getInt("mqtt.retain.queue.size", 0);
+    }
+
+    @Override
+    public void destroy() {
+        this.clients.clear();
+    }
+
+    /**
+     * Access the client state atomically
+     * Client will be removed from the storage if it is empty afterwards
+     *
+     * @param clientId Client Id
+     * @param function Function applied to the client state
+     * @param <T>      Result Type
+     * @return Result of the function
+     */
+    @SuppressWarnings("unchecked")
+    <T> T client(String clientId, Function<MemoryClient, T> function) {
+        Object[] r = new Object[1];
+        this.clients.compute(clientId, (id, c) -> {
+            if (c == null) c = new MemoryClient();
+            c.expire(System.currentTimeMillis());
+            r[0] = function.apply(c);
+            return c.isEmpty() ? null : c;
+        });
+        return (T) r[0];
+    }
+
+    @Override
+    public boolean lock(String clientId, ConnectionState state) {
+        return client(clientId, c -> {
+            if ((c.state == null || c.state == ConnectionState.CONNECTED) && state == ConnectionState.CONNECTING) {
+                c.state = state;
+                return true;
+            }
+            if (c.state == ConnectionState.CONNECTED && state == ConnectionState.DISCONNECTING) {
+                c.state = state;
+                return true;
+            }
+            return false;
+        });
+    }
+
+    @Override
+    public boolean release(String clientId, ConnectionState state) {
+        return client(clientId, c -> {
+            if (c.state == ConnectionState.CONNECTING && state == ConnectionState.CONNECTED) {
+                c.state = state;
+                return true;
+            }
+            if (c.state == ConnectionState.DISCONNECTING && state == ConnectionState.DISCONNECTED) {
+                c.state = null;
+                return true;
+            }
+            return false;
+        });
+    }
+
+    @Override
+    public String getConnectedNode(String clientId) {
+        return client(clientId, c -> c.node);
+    }
+
+    @Override
+    public String updateConnectedNode(String clientId, String node, int seconds) {
+        return client(clientId, c -> {
+            String old = c.node;
+            c.node = node;
+            c.connectionExpire = System.currentTimeMillis() + seconds * 1000L;
+            return old;
+        });
+    }
+
+    @Override
+    public boolean refreshConnectedNode(String clientId, String node, int seconds) {
+        return client(clientId, c -> {
+            if (node.equals(c.node)) {
+                c.connectionExpire = System.currentTimeMillis() + seconds * 1000L;
+                return true;
+            }
+            return false;
+        });
+    }
+
+    @Override
+    public boolean removeConnectedNode(String clientId, String node) {
+        return client(clientId, c -> {
+            if (node.equals(c.node)) {
+                c.state = null;
+                c.node = null;
+                c.connectionExpire = 0;
+                return true;
+            }
+            return false;
+        });
+    }
+
+    /**
+     * Invoked when the session existence of the client changed
+     * Invoked while holding the client state, must not access the storage
+     *
+     * @param clientId Client Id
+     * @param session  Session Existence (1 clean session, 0 normal session, < 0 not exist)
+     */
+    protected void onSessionExist(String clientId, int session) {
+    }
+
+    /**
+     * Invoked when the in-flight message of the client added or removed
+     * Invoked while holding the client state, must not access the storage
+     *
+     * @param clientId Client Id
+     * @param packetId Packet Id
+     * @param msg      In-Flight Message, null if removed
+     * @param expire   Expire time in milliseconds, 0 means never
+     */
+    protected void onInFlightMessage(String clientId, int packetId, Message msg, long expire) {
+    }
+
+    /**
+     * Invoked when the unacknowledged qos 2 message id of the client added or removed
+     * Invoked while holding the client state, must not access the storage
+     *
+     * @param clientId Client Id
+     * @param packetId Packet Id
+     * @param exist    True if added, False if removed
+     */
+    protected void onQoS2MessageId(String clientId, int packetId, boolean exist) {
+    }
+
+    /**
+     * Invoked when the subscription of the client updated or removed
+     * Invoked while holding the client state, must not access the storage
+     *
+     * @param clientId Client Id
+     * @param topic    Sanitized Topic
+     * @param qos      Subscription QoS, null if removed
+     */
+    protected void onSubscription(String clientId, String topic, MqttQoS qos) {
+    }
+
+    /**
+     * Invoked when the retain message of the topic added or removed
+     * Invoked while holding the retain tree, must not access the storage
+     *
+     * @param topicLevels Topic Levels
+     * @param retainId    Retain Id
+     * @param msg         Retain Message, null if removed
+     */
+    protected void onRetainMessage(List<String> topicLevels, int retainId, Message<MqttPublishVariableHeader, MqttPublishPayload> msg) {
+    }
+
+    @Override
+    public int getSessionExist(String clientId) {
+        return client(clientId, c -> c.session);
+    }
+
+    @Override
+    public void updateSessionExist(String clientId, boolean cleanSession) {
+        client(clientId, c -> {
+            c.session = cleanSession ? 1 : 0;
+            onSessionExist(clientId, c.session);
+            return null;
+        });
+    }
+
+    @Override
+    public boolean removeSessionExist(String clientId) {
+        return client(clientId, c -> {
+            boolean exist = c.session >= 0;
+            c.session = -1;
+            if (exist) onSessionExist(clientId, -1);
+            return exist;
+        });
+    }
+
+    @Override
+    public void removeAllSessionState(String clientId) {
+        removeAllSubscriptions(clientId);
+        client(clientId, c -> {
+            // packet id can restart when nothing is in flight, so the client can be released from memory
+            if (c.session >= 0) onSessionExist(clientId, -1);
+            c.session = -1;
+            c.packetId = 0;
+            clearQoS2MessageIds(clientId, c);
+            clearInFlightMessages(clientId, c);
+            return null;
+        });
+    }
+
+    @Override
+    public int getNextPacketId(String clientId) {
+        return client(clientId, c -> {
+            int r = ++c.packetId;
+            if (c.packetId >= 65535) c.packetId = 0;
+            return r;
+        });
+    }
+
+    /**
+     * Remove the in-flight message if expired
+     *
+     * @param clientId Client Id
+     * @param c        Client State
+     * @param packetId Packet Id
+     * @param now      Current time in milliseconds
+     * @return True if expired
+     */
+    private boolean expireInFlightMessage(String clientId, MemoryClient c, int packetId, long now) {
+        Long expire = c.inFlightExpire.get(packetId);
+        if (expire != null && expire <= now) {
+            c.inFlight.remove(packetId);
+            c.inFlightExpire.remove(packetId);
+            onInFlightMessage(clientId, packetId, null, 0);
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public Message getInFlightMessage(String clientId, int packetId) {
+        return client(clientId, c -> {
+            if (expireInFlightMessage(clientId, c, packetId, System.currentTimeMillis())) return null;
+            return c.inFlight.get(packetId);
+        });
+    }
+
+    /**
+     * Add in-flight message for the client
+     *
+     * @param clientId Client Id
+     * @param packetId Packet Id
+     * @param msg      In-Flight Message
+     * @param dup      Duplicated
+     * @param expire   Expire time in milliseconds, 0 means never
+     */
+    @SuppressWarnings("unchecked")
+    void putInFlightMessage(String clientId, int packetId, Message msg, boolean dup, long expire) {
+        // only PUBLISH message carries the dup flag
+        Message m = msg;
+        if (msg.fixedHeader().messageType() == MqttMessageType.PUBLISH && msg.fixedHeader().dup() != dup) {
+            m = new Message<>(
+                    new MqttFixedHeader(MqttMessageType.PUBLISH, dup, msg.fixedHeader().qos(), msg.fixedHeader().retain(), 0),
+                    msg.additionalHeader(), msg.variableHeader(), msg.payload());
+        }
+        Message inFlight = m;
+        client(clientId, c -> {
+            c.inFlight.remove(packetId);
+            c.inFlightExpire.remove(packetId);
+            c.inFlight.put(packetId, inFlight);
+            if (expire > 0) c.inFlightExpire.put(packetId, expire);
+            onInFlightMessage(clientId, packetId, inFlight, expire);
+            if (this.inFlightQueueSize > 0 && c.inFlight.size() > this.inFlightQueueSize) {
+                Integer oldest = c.inFlight.keySet().iterator().next();
+                c.inFlight.remove(oldest);
+                c.inFlightExpire.remove(oldest);
+                onInFlightMessage(clientId, oldest, null, 0);
+            }
+            return null;
+        });
+    }
+
+    @Override
+    public void addInFlightMessage(String clientId, int packetId, Message msg, boolean dup) {
+        putInFlightMessage(clientId, packetId, msg, dup, 0);
+    }
+
+    @Override
+    public void addInFlightMessage(String clientId, int packetId, Message msg, boolean dup, long ttl) {
+        putInFlightMessage(clientId, packetId, msg, dup, System.currentTimeMillis() + ttl * 1000L);
+    }
+
+    @Override
+    public void addInFlightMessages(Collection<Message> msgs) {
+        msgs.forEach(msg -> {
+            int packetId = msg.variableHeader() instanceof MqttPublishVariableHeader ?
+                    ((MqttPublishVariableHeader) msg.variableHeader()).packetId() :
+                    ((MqttPacketIdVariableHeader) msg.variableHeader()).packetId();
+            putInFlightMessage(msg.additionalHeader().clientId(), packetId, msg, msg.fixedHeader().dup(), 0);
+        });
+    }
+
+    @Override
+    public void removeInFlightMessage(String clientId, int packetId) {
+        client(clientId, c -> {
+            c.inFlightExpire.remove(packetId);
+            if (c.inFlight.remove(packetId) != null) onInFlightMessage(clientId, packetId, null, 0);
+            return null;
+        });
+    }
+
+    /**
+     * Remove all in-flight message for the client
+     *
+     * @param clientId Client Id
+     * @param c        Client State
+     */
+    private void clearInFlightMessages(String clientId, MemoryClient c) {
+        c.inFlight.keySet().forEach(packetId -> onInFlightMessage(clientId, packetId, null, 0));
+        c.inFlight.clear();
+        c.inFlightExpire.clear();
+    }
+
+    @Override
+    public List<Message> getAllInFlightMessages(String clientId) {
+        return client(clientId, c -> {
+            long now = System.currentTimeMillis();
+            new ArrayList<>(c.inFlightExpire.keySet()).forEach(packetId -> expireInFlightMessage(clientId, c, packetId, now));
+            return new ArrayList<>(c.inFlight.values());
+        });
+    }
+
+    @Override
+    public void removeAllInFlightMessage(String clientId) {
+        client(clientId, c -> {
+            clearInFlightMessages(clientId, c);
+            return null;
+        });
+    }
+
+    @Override
+    public boolean addQoS2MessageId(String clientId, int packetId) {
+        return client(clientId, c -> addQoS2MessageId(clientId, c, packetId));
+    }
+
+    /**
+     * Add unacknowledged qos 2 PUBLISH message's packet id from the client
+     * The oldest packet id is dropped when the queue size exceeded
+     *
+     * @param clientId Client Id
+     * @param c        Client State
+     * @param packetId Packet Id
+     * @return Packet Id added? (Not exist)
+     */
+    private boolean addQoS2MessageId(String clientId, MemoryClient c, int packetId) {
+        if (c.qos2.get(packetId)) return false;
+        c.qos2.set(packetId);
+        onQoS2MessageId(clientId, packetId, true);
+        if (this.qos2QueueSize > 0) {
+            c.qos2Order.addLast(packetId);
+            if (c.qos2Order.size() > this.qos2QueueSize) {
+                int oldest = c.qos2Order.pollFirst();
+                c.qos2.clear(oldest);
+                onQoS2MessageId(clientId, oldest, false);
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public boolean removeQoS2MessageId(String clientId, int packetId) {
+        return client(clientId, c -> removeQoS2MessageId(clientId, c, packetId));
+    }
+
+    /**
+     * Remove unacknowledged qos 2 PUBLISH message's packet id from the client
+     *
+     * @param clientId Client Id
+     * @param c        Client State
+     * @param packetId Packet Id
+     * @return Packet Id removed? (Exist)
+     */
+    private boolean removeQoS2MessageId(String clientId, MemoryClient c, int packetId) {
+        if (!c.qos2.get(packetId)) return false;
+        c.qos2.clear(packetId);
+        if (this.qos2QueueSize > 0) c.qos2Order.remove(packetId);
+        onQoS2MessageId(clientId, packetId, false);
+        return true;
+    }
+
+    @Override
+    public void removeAllQoS2MessageId(String clientId) {
+        client(clientId, c -> {
+            clearQoS2MessageIds(clientId, c);
+            return null;
+        });
+    }
+
+    /**
+     * Remove all unacknowledged qos 2 PUBLISH message's packet id from the client
+     *
+     * @param clientId Client Id
+     * @param c        Client State
+     */
+    private void clearQoS2MessageIds(String clientId, MemoryClient c) {
+        c.qos2.stream().forEach(packetId -> onQoS2MessageId(clientId, packetId, false));
+        c.qos2.clear();
+        c.qos2Order.clear();
+    }
+
+    @Override
+    public List<Integer> getAllQoS2MessageIds(String clientId) {
+        return client(clientId, c -> {
+            List<Integer> r = new ArrayList<>();
+            c.qos2.stream().forEach(r::add);
+            return r;
+        });
+    }
+
+    @Override
+    public void updateQoS2MessageIds(String clientId, Collection<Integer> added, Collection<Integer> removed) {
+        client(clientId, c -> {
+            added.forEach(packetId -> addQoS2MessageId(clientId, c, packetId));
+            removed.forEach(packetId -> removeQoS2MessageId(clientId, c, packetId));
+            return null;
+        });
+    }
+
+    @Override
+    public Map<String, MqttQoS> getTopicSubscriptions(List<String> topicLevels) {
+        this.subscriptionLock.readLock().lock();
+        try {
+            MemoryTopicNode node = this.subscriptionTree.get(topicLevels);
+            return node == null ? new HashMap<>() : new HashMap<>(node.subscriptions);
+        } finally {
+            this.subscriptionLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Map<String, MqttQoS> getClientSubscriptions(String clientId) {
+        return client(clientId, c -> new HashMap<>(c.subscriptions));
+    }
+
+    @Override
+    public void updateSubscription(String clientId, List<String> topicLevels, MqttQoS qos) {
+        String topic = TopicLevels.join(topicLevels);
+        client(clientId, c -> {
+            c.subscriptions.put(topic, qos);
+            onSubscription(clientId, topic, qos);
+            return null;
+        });
+        // shared subscription is kept in the tree under its topic filter, by the group member
+        String subscriber = clientId;
+        List<String> filterLevels = topicLevels;
+        if (SharedSubscriptions.isShared(topicLevels)) {
+            subscriber = SharedSubscriptions.member(topicLevels, clientId);
+            filterLevels = SharedSubscriptions.filter(topicLevels);
+        }
+        this.subscriptionLock.writeLock().lock();
+        try {
+            this.subscriptionTree.getOrCreate(filterLevels).subscriptions.put(subscriber, qos);
+        } finally {
+            this.subscriptionLock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void removeSubscription(String clientId, List<String> topicLevels) {
+        String topic = TopicLevels.join(topicLevels);
+        client(clientId, c -> {
+            if (c.subscriptions.remove(topic) != null) onSubscription(clientId, topic, null);
+            return null;
+        });
+        String subscriber = clientId;
+        List<String> filterLevels = topicLevels;
+        if (SharedSubscriptions.isShared(topicLevels)) {
+            subscriber = SharedSubscriptions.member(topicLevels, clientId);
+            filterLevels = SharedSubscriptions.filter(topicLevels);
+        }
+        this.subscriptionLock.writeLock().lock();
+        try {
+            MemoryTopicNode node = this.subscriptionTree.get(filterLevels);
+            if (node != null && node.subscriptions.remove(subscriber) != null) {
+                this.subscriptionTree.prune(filterLevels, 0);
+            }
+        } finally {
+            this.subscriptionLock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void removeAllSubscriptions(String clientId) {
+        getClientSubscriptions(clientId).forEach((topic, qos) ->
+                removeSubscription(clientId, Topics.sanitize(topic)));
+    }
+
+    /**
+     * Merge subscriptions into the result, keep the higher QoS for each client
+     *
+     * @param subscriptions Subscriptions: Key - Client Id, Value - QoS
+     * @param map           RETURN VALUE! Subscriptions: Key - Client Id, Value - QoS
+     */
+    private void mergeSubscriptions(Map<String, MqttQoS> subscriptions, Map<String, MqttQoS> map) {
+        subscriptions.forEach((clientId, qos) -> {
+            if (qos.value() >= map.getOrDefault(clientId, MqttQoS.AT_MOST_ONCE).value()) {
+                map.put(clientId, qos);
+            }
+        });
+    }
+
+    /**
+     * Get and handle all topic filter subscriptions matching the topic
+     * This is a recursion method
+     * Topic Levels must been sanitized
+     *
+     * @param node        Current tree node
+     * @param topicLevels List of topic levels
+     * @param index       Current match level (use 0 if you have doubt)
+     * @param map         RETURN VALUE! Subscriptions: Key - Client Id, Value - QoS
+     */
+    private void getMatchSubscriptions(MemoryTopicNode node, List<String> topicLevels, int index, Map<String, MqttQoS> map) {
+        String level = topicLevels.get(index);
+
+        // '#' matches current level and all the child levels
+        MemoryTopicNode s = node.children.get("#");
+        if (s != null) {
+            MemoryTopicNode end = s.children.get(END);
+            if (end != null) mergeSubscriptions(end.subscriptions, map);
+        }
+
+        // last one
+        if (index == topicLevels.size() - 1) {
+            MemoryTopicNode end = node.children.get(END);
+            if (end != null) mergeSubscriptions(end.subscriptions, map);
+        }
+        // not last one
+        else {
+            MemoryTopicNode c = node.children.get(level);
+            if (c != null) getMatchSubscriptions(c, topicLevels, index + 1, map);
+            MemoryTopicNode p = node.children.get("+");
+            if (p != null) {
+                List<String> newTopicLevels = new ArrayList<>(topicLevels);
+                newTopicLevels.set(index, "+");
+                getMatchSubscriptions(p, newTopicLevels, index + 1, map);
+            }
+        }
+    }
+
+    @Override
+    public void getMatchSubscriptions(List<String> topicLevels, Map<String, MqttQoS> map) {
+        if (Topics.isTopicFilter(topicLevels)) {
+            throw new IllegalArgumentException("it must be topic name not topic filter");
+        }
+
+        this.subscriptionLock.readLock().lock();
+        try {
+            // topic name
+            MemoryTopicNode node = this.subscriptionTree.get(topicLevels);
+            if (node != null) map.putAll(node.subscriptions);
+
+            // topic filter
+            getMatchSubscriptions(this.subscriptionTree, topicLevels, 0, map);
+        } finally {
+            this.subscriptionLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public int addRetainMessage(List<String> topicLevels, Message<MqttPublishVariableHeader, MqttPublishPayload> msg) {
+        this.retainLock.writeLock().lock();
+        try {
+            MemoryTopicNode node = this.retainTree.getOrCreate(topicLevels);
+            int retainId = ++node.retainId;
+            if (node.retainId >= 65535) node.retainId = 0;
+            node.retains.put(retainId, msg);
+            onRetainMessage(topicLevels, retainId, msg);
+            if (this.retainQueueSize > 0 && node.retains.size() > this.retainQueueSize) {
+                Integer oldest = node.retains.keySet().iterator().next();
+                node.retains.remove(oldest);
+                onRetainMessage(topicLevels, oldest, null);
+            }
+            return retainId;
+        } finally {
+            this.retainLock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void removeAllRetainMessage(List<String> topicLevels) {
+        this.retainLock.writeLock().lock();
+        try {
+            MemoryTopicNode node = this.retainTree.get(topicLevels);
+            if (node != null) {
+                node.retains.keySet().forEach(retainId -> onRetainMessage(topicLevels, retainId, null));
+                node.retains.clear();
+                this.retainTree.prune(topicLevels, 0);
+            }
+        } finally {
+            this.retainLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Get all retain messages under the tree node
+     * This used to match topic wildcard '#'
+     * This is a recursion method
+     *
+     * @param node Current tree node
+     * @param list RETURN VALUE! List of retain messages
+     */
+    private void getMatchRetainPrefix(MemoryTopicNode node, List<Message<MqttPublishVariableHeader, MqttPublishPayload>> list) {
+        node.children.forEach((level, child) -> {
+            if (level.equals(END)) list.addAll(child.retains.values());
+            else getMatchRetainPrefix(child, list);
+        });
+    }
+
+    /**
+     * Get all retain messages matching the topic filter
+     * This is a recursion method
+     * Topic Levels must been sanitized
+     *
+     * @param node        Current tree node
+     * @param topicLevels Topic Filter
+     * @param index       Current match level (use 0 if you have doubt)
+     * @param list        RETURN VALUE! List of retain messages
+     */
+    private void getMatchRetainMessages(MemoryTopicNode node, List<String> topicLevels, int index, List<Message<MqttPublishVariableHeader, MqttPublishPayload>> list) {
+        String level = topicLevels.get(index);
+
+        switch (level) {
+            case "#":
+                getMatchRetainPrefix(node, list);
+                break;
+            case "+":
+                node.children.forEach((l, child) -> {
+                    if (!l.equals(END)) getMatchRetainMessages(child, topicLevels, index + 1, list);
+                });
+                break;
+            default:
+                MemoryTopicNode child = node.children.get(level);
+                if (child != null) {
+                    if (level.equals(END) && index == topicLevels.size() - 1) {
+                        list.addAll(child.retains.values());
+                    } else {
+                        getMatchRetainMessages(child, topicLevels, index + 1, list);
+                    }
+                }
+                break;
+        }
+    }
+
+    @Override
+    public List<Message<MqttPublishVariableHeader, MqttPublishPayload>> getMatchRetainMessages(List<String> topicLevels) {
+        List<Message<MqttPublishVariableHeader, MqttPublishPayload>> r = new ArrayList<>();
+        this.retainLock.readLock().lock();
+        try {
+            if (Topics.isTopicFilter(topicLevels)) {
+                getMatchRetainMessages(this.retainTree, topicLevels, 0, r);
+            } else {
+                MemoryTopicNode node = this.retainTree.get(topicLevels);
+                if (node != null) r.addAll(node.retains.values());
+            }
+        } finally {
+            this.retainLock.readLock().unlock();
+        }
+        return r;
+    }
+}
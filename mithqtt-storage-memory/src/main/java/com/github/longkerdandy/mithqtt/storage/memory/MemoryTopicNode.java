@@ -0,0 +1,80 @@
+package com.github.longkerdandy.mithqtt.storage.memory;
+
+import com.github.longkerdandy.mithqtt.api.message.Message;
+import com.github.longkerdandy.mithqtt.api.message.MqttPublishPayload;
+import io.netty.handler.codec.mqtt.MqttPublishVariableHeader;
+import io.netty.handler.codec.mqtt.MqttQoS;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Topic trie tree node held by the memory storage
+ * Not thread safe, access must be guarded by the storage
+ */
+class MemoryTopicNode {
+
+    // Children: Key - Topic Level
+    final Map<String, MemoryTopicNode> children = new HashMap<>();
+    // Subscriptions on this node's topic: Key - Client Id, Value - QoS
+    final Map<String, MqttQoS> subscriptions = new HashMap<>();
+    // Retain messages on this node's topic in order: Key - Retain Id
+    final Map<Integer, Message<MqttPublishVariableHeader, MqttPublishPayload>> retains = new LinkedHashMap<>();
+    // Last retain id
+    int retainId;
+
+    /**
+     * Get the descendant node along the topic levels
+     *
+     * @param topicLevels List of topic levels
+     * @return Descendant node, null if not exist
+     */
+    MemoryTopicNode get(List<String> topicLevels) {
+        MemoryTopicNode node = this;
+        for (String level : topicLevels) {
+            node = node.children.get(level);
+            if (node == null) return null;
+        }
+        return node;
+    }
+
+    /**
+     * Get the descendant node along the topic levels, create the missing nodes
+     *
+     * @param topicLevels List of topic levels
+     * @return Descendant node
+     */
+    MemoryTopicNode getOrCreate(List<String> topicLevels) {
+        MemoryTopicNode node = this;
+        for (String level : topicLevels) {
+            node = node.children.computeIfAbsent(level, l -> new MemoryTopicNode());
+        }
+        return node;
+    }
+
+    /**
+     * Remove empty descendant nodes along the topic levels
+     * This is a recursion method
+     *
+     * @param topicLevels List of topic levels
+     * @param index       Current level (use 0 if you have doubt)
+     */
+    void prune(List<String> topicLevels, int index) {
+        if (index >= topicLevels.size()) return;
+        MemoryTopicNode child = this.children.get(topicLevels.get(index));
+        if (child == null) return;
+        child.prune(topicLevels, index + 1);
+        if (child.isEmpty()) this.children.remove(topicLevels.get(index));
+    }
+
+    /**
+     * Is the node holding nothing
+     *
+     * @return True if empty
+     */
+    boolean isEmpty() {
+        return this.children.isEmpty() && this.subscriptions.isEmpty() && this.retains.isEmpty();
+    }
+}
@@ -0,0 +1,516 @@
+package com.github.longkerdandy.mithqtt.storage.memory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only key value log on segmented memory-mapped files
+ * <p>
+ * Each record is [length][seq][op][key length][key][value][crc], the record with the highest seq wins for a key.
+ * Records are written into the page cache and flushed by a background thread every interval (batched fsync),
+ * callers wait for the flush in sync mode, so all records appended in the same interval share one fsync (group commit).
+ * <p>
+ * An index keyed by the record key tracks the live PUT records. When a sealed segment holds less than half live
+ * bytes, its live records are copied to the tail segment and the segment file is deleted (compaction).
+ * A DEL record is copied along until no older segment may still hold a PUT record of the key.
+ */
+class SessionLog {
+
+    private static final Logger logger = LoggerFactory.getLogger(SessionLog.class);
+
+    private static final byte PUT = 1;
+    private static final byte DEL = 2;
+    // length + seq + op + key length + crc
+    private static final int OVERHEAD = 4 + 8 + 1 + 4 + 4;
+
+    private final File dir;
+    private final int segmentSize;
+    private final long flushInterval;
+    private final boolean sync;
+
+    // Segments by id in order
+    private final TreeMap<Long, Segment> segments = new TreeMap<>();
+    // Segments replayed from previous run, deleted when checkpoint
+    private final List<File> replayed = new ArrayList<>();
+    // Live PUT record location by key
+    private final Map<String, Location> index = new HashMap<>();
+    // Latest DEL record by key, until compaction drops it
+    private final Map<String, Tombstone> tombstones = new HashMap<>();
+    private Segment tail;
+    private long nextSegmentId;
+    // Seq of the last appended record
+    private long seq;
+    // Seq of the last flushed record
+    private long flushed;
+
+    private ScheduledExecutorService flusher;
+
+    /**
+     * Live record
+     */
+    static class Record {
+        final long seq;
+        final String key;
+        final byte[] value;
+
+        Record(long seq, String key, byte[] value) {
+            this.seq = seq;
+            this.key = key;
+            this.value = value;
+        }
+    }
+
+    /**
+     * Live PUT record location
+     */
+    private static class Location {
+        final long segment;
+        final int offset;
+        final int length;
+        // Oldest segment which may hold a dead PUT record of the key
+        long first;
+
+        Location(long segment, int offset, int length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    /**
+     * Latest DEL record of a key
+     */
+    private static class Tombstone {
+        final long seq;
+        // PUT records of the key are in the segments between first and last (the segment of the PUT record deleted)
+        final long first;
+        final long last;
+
+        Tombstone(long seq, long first, long last) {
+            this.seq = seq;
+            this.first = first;
+            this.last = last;
+        }
+    }
+
+    /**
+     * Memory mapped segment file
+     */
+    private static class Segment {
+        final long id;
+        final File file;
+        final MappedByteBuffer buffer;
+        int position;
+        long live;
+        boolean dirty;
+        // unmapped, guarded by the segment itself
+        boolean closed;
+
+        Segment(long id, File file, int size) throws IOException {
+            this.id = id;
+            this.file = file;
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.setLength(size);
+                // the mapping stays valid after the channel is closed
+                this.buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            }
+        }
+
+        synchronized void force() {
+            if (!this.closed) this.buffer.force();
+        }
+
+        synchronized void close() {
+            if (this.closed) return;
+            this.closed = true;
+            unmap(this.buffer);
+        }
+    }
+
+    /**
+     * Release the mapping of the buffer right away instead of waiting for GC
+     * Files still mapped can't be deleted on Windows. The buffer must not be accessed afterwards.
+     *
+     * @param buffer Mapped Buffer
+     */
+    static void unmap(ByteBuffer buffer) {
+        if (!buffer.isDirect()) return;
+        try {
+            try {
+                // Java 9+
+                Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+                Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+                Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+                theUnsafe.setAccessible(true);
+                invokeCleaner.invoke(theUnsafe.get(null), buffer);
+            } catch (NoSuchMethodException e) {
+                // Java 8
+                Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+                cleanerMethod.setAccessible(true);
+                Object cleaner = cleanerMethod.invoke(buffer);
+                if (cleaner != null) cleaner.getClass().getMethod("clean").invoke(cleaner);
+            }
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            logger.debug("Session log failed: Buffer can't be unmapped, left to GC: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Create the log
+     *
+     * @param dir           Directory of the segment files
+     * @param segmentSize   Segment file size in bytes
+     * @param flushInterval Flush interval in milliseconds
+     * @param sync          Wait for flush when commit
+     */
+    SessionLog(File dir, int segmentSize, long flushInterval, boolean sync) {
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        this.flushInterval = flushInterval;
+        this.sync = sync;
+    }
+
+    /**
+     * Open the log, replay the segment files from previous run
+     * New records are written to new segment files
+     *
+     * @return Live records in seq order
+     * @throws IOException If segment files can't be read or created
+     */
+    synchronized List<Record> open() throws IOException {
+        if (!this.dir.isDirectory() && !this.dir.mkdirs()) {
+            throw new IOException("Can't create session log directory " + this.dir);
+        }
+
+        // replay
+        File[] files = this.dir.listFiles((d, name) -> name.endsWith(".log"));
+        if (files == null) files = new File[0];
+        Arrays.sort(files, Comparator.comparing(File::getName));
+        Map<String, Record> latest = new HashMap<>();
+        for (File file : files) {
+            this.replayed.add(file);
+            this.nextSegmentId = Math.max(this.nextSegmentId, Long.parseLong(file.getName().substring(0, file.getName().length() - 4)) + 1);
+            replay(file, latest);
+        }
+        this.flushed = this.seq;
+
+        List<Record> records = new ArrayList<>();
+        latest.values().forEach(r -> {
+            if (r.value != null) records.add(r);
+        });
+        records.sort(Comparator.comparingLong(r -> r.seq));
+        logger.debug("Session log replayed {} live records from {} segments", records.size(), files.length);
+
+        // new segment
+        roll(this.segmentSize);
+
+        // flusher
+        this.flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "session-log-flusher");
+            t.setDaemon(true);
+            return t;
+        });
+        this.flusher.scheduleWithFixedDelay(() -> {
+            try {
+                flush();
+                compact();
+            } catch (Exception e) {
+                logger.warn("Session log failed: Flush or compaction failed: {}", e.getMessage());
+            }
+        }, this.flushInterval, this.flushInterval, TimeUnit.MILLISECONDS);
+
+        return records;
+    }
+
+    /**
+     * Read the records from segment file, stop at the first torn or corrupted record
+     *
+     * @param file   Segment file
+     * @param latest RETURN VALUE! Latest record by key, value is null for DEL
+     * @throws IOException If segment file can't be read
+     */
+    private void replay(File file, Map<String, Record> latest) throws IOException {
+        ByteBuffer buf;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            buf = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+        }
+        try {
+            replay(buf, latest);
+        } finally {
+            // the file is deleted when checkpoint
+            unmap(buf);
+        }
+    }
+
+    private void replay(ByteBuffer buf, Map<String, Record> latest) {
+        CRC32 crc = new CRC32();
+        while (buf.remaining() >= OVERHEAD) {
+            int start = buf.position();
+            int length = buf.getInt(start);
+            if (length < OVERHEAD - 4 || length > buf.remaining() - 4) break;
+            byte[] body = new byte[length - 4];
+            buf.position(start + 4);
+            buf.get(body);
+            crc.reset();
+            crc.update(body);
+            if ((int) crc.getValue() != buf.getInt()) break;
+
+            ByteBuffer b = ByteBuffer.wrap(body);
+            long s = b.getLong();
+            byte op = b.get();
+            byte[] key = new byte[b.getInt()];
+            b.get(key);
+            byte[] value = new byte[b.remaining()];
+            b.get(value);
+            String k = new String(key, StandardCharsets.UTF_8);
+            Record old = latest.get(k);
+            if (old == null || old.seq < s) latest.put(k, new Record(s, k, op == PUT ? value : null));
+            this.seq = Math.max(this.seq, s);
+        }
+    }
+
+    /**
+     * Delete the segment files replayed from previous run
+     * Should be invoked after all the live records have been appended again
+     *
+     * @throws IOException If segment files can't be flushed
+     */
+    void checkpoint() throws IOException {
+        flush();
+        synchronized (this) {
+            for (File file : this.replayed) {
+                if (!file.delete()) logger.warn("Session log failed: Segment {} can't be deleted", file);
+            }
+            this.replayed.clear();
+        }
+    }
+
+    /**
+     * Close the log, flush all the records and unmap the segments
+     */
+    void close() {
+        if (this.flusher != null) {
+            this.flusher.shutdown();
+            try {
+                this.flusher.awaitTermination(this.flushInterval * 10, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        try {
+            flush();
+        } catch (IOException e) {
+            logger.warn("Session log failed: Flush failed: {}", e.getMessage());
+        }
+        synchronized (this) {
+            this.segments.values().forEach(Segment::close);
+        }
+    }
+
+    /**
+     * Append PUT record
+     *
+     * @param key   Key
+     * @param value Value
+     */
+    synchronized void put(String key, byte[] value) {
+        append(PUT, key, value);
+    }
+
+    /**
+     * Append DEL record
+     *
+     * @param key Key
+     */
+    synchronized void remove(String key) {
+        // nothing to delete
+        if (!this.index.containsKey(key)) return;
+        append(DEL, key, new byte[0]);
+    }
+
+    /**
+     * Wait until all the records appended so far have been flushed
+     * Only wait in sync mode
+     */
+    void commit() {
+        if (!this.sync) return;
+        synchronized (this) {
+            long target = this.seq;
+            while (this.flushed < target) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    private void append(byte op, String key, byte[] value) {
+        byte[] k = key.getBytes(StandardCharsets.UTF_8);
+        int length = OVERHEAD + k.length + value.length;
+        ByteBuffer record = ByteBuffer.allocate(length);
+        record.putInt(length - 4);
+        record.putLong(++this.seq);
+        record.put(op);
+        record.putInt(k.length);
+        record.put(k);
+        record.put(value);
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), 4, length - 8);
+        record.putInt((int) crc.getValue());
+
+        Location location = write(record.array());
+        Location old = op == PUT ? this.index.put(key, location) : this.index.remove(key);
+        if (old != null) {
+            Segment s = this.segments.get(old.segment);
+            if (s != null) s.live -= old.length;
+        }
+        if (op == PUT) {
+            this.tail.live += location.length;
+            Tombstone tombstone = this.tombstones.remove(key);
+            location.first = old != null ? old.first : tombstone != null ? tombstone.first : location.segment;
+        } else if (old != null) {
+            this.tombstones.put(key, new Tombstone(this.seq, old.first, old.segment));
+        }
+    }
+
+    /**
+     * Write the record bytes to the tail segment, roll a new segment if tail is full
+     *
+     * @param bytes Record bytes
+     * @return Record location
+     */
+    private Location write(byte[] bytes) {
+        if (this.tail.buffer.capacity() - this.tail.position < bytes.length) {
+            try {
+                roll(Math.max(this.segmentSize, bytes.length));
+            } catch (IOException e) {
+                throw new IllegalStateException("Can't create session log segment", e);
+            }
+        }
+        ByteBuffer buf = this.tail.buffer.duplicate();
+        buf.position(this.tail.position);
+        buf.put(bytes);
+        Location location = new Location(this.tail.id, this.tail.position, bytes.length);
+        this.tail.position += bytes.length;
+        this.tail.dirty = true;
+        return location;
+    }
+
+    private void roll(int size) throws IOException {
+        long id = this.nextSegmentId++;
+        Segment s = new Segment(id, new File(this.dir, String.format("%020d.log", id)), size);
+        this.segments.put(id, s);
+        this.tail = s;
+    }
+
+    /**
+     * Force dirty segments to the disk, wake up the committers
+     *
+     * @throws IOException If segment can't be flushed
+     */
+    void flush() throws IOException {
+        long target;
+        List<Segment> dirty = new ArrayList<>();
+        synchronized (this) {
+            target = this.seq;
+            this.segments.values().forEach(s -> {
+                if (s.dirty) {
+                    dirty.add(s);
+                    s.dirty = false;
+                }
+            });
+            if (dirty.isEmpty() && this.flushed >= target) return;
+        }
+        // fsync outside the lock, appends can continue meanwhile
+        dirty.forEach(Segment::force);
+        synchronized (this) {
+            this.flushed = Math.max(this.flushed, target);
+            notifyAll();
+        }
+    }
+
+    /**
+     * Compact the oldest sealed segment which has less than half of its bytes live
+     * Live PUT records are copied to the tail segment, then the segment file is unmapped and deleted.
+     * The latest DEL record of a key is copied as well while another segment may still hold a PUT record of the key,
+     * other DEL records shadow nothing and are dropped.
+     *
+     * @throws IOException If segment can't be flushed
+     */
+    void compact() throws IOException {
+        Segment segment = null;
+        synchronized (this) {
+            for (Segment s : this.segments.values()) {
+                if (s == this.tail) break;
+                if (s.live * 2 <= s.position) {
+                    segment = s;
+                    break;
+                }
+            }
+            if (segment == null) return;
+
+            ByteBuffer buf = segment.buffer.duplicate();
+            int offset = 0;
+            while (offset < segment.position) {
+                int length = buf.getInt(offset) + 4;
+                long seq = buf.getLong(offset + 4);
+                byte op = buf.get(offset + 4 + 8);
+                byte[] k = new byte[buf.getInt(offset + 4 + 8 + 1)];
+                buf.position(offset + OVERHEAD - 4);
+                buf.get(k);
+                String key = new String(k, StandardCharsets.UTF_8);
+                Location location = this.index.get(key);
+                boolean live = op == PUT && location != null && location.segment == segment.id && location.offset == offset;
+                boolean shadowing = false;
+                if (op == DEL) {
+                    Tombstone tombstone = this.tombstones.get(key);
+                    if (tombstone != null && tombstone.seq == seq) {
+                        // replayed segments may hold any key
+                        shadowing = !this.replayed.isEmpty();
+                        for (long id : this.segments.subMap(tombstone.first, true, tombstone.last, true).keySet()) {
+                            if (id != segment.id) shadowing = true;
+                        }
+                        if (!shadowing) this.tombstones.remove(key);
+                    }
+                }
+                if (live || shadowing) {
+                    // copy the record as it is, seq and crc are kept
+                    byte[] bytes = new byte[length];
+                    buf.position(offset);
+                    buf.get(bytes);
+                    Location moved = write(bytes);
+                    if (live) {
+                        moved.first = location.first;
+                        this.index.put(key, moved);
+                        this.tail.live += moved.length;
+                    }
+                }
+                offset += length;
+            }
+            this.segments.remove(segment.id);
+        }
+        // copied records must be durable before the segment is gone
+        flush();
+        segment.close();
+        if (!segment.file.delete()) logger.warn("Session log failed: Segment {} can't be deleted", segment.file);
+        logger.debug("Session log compacted segment {}", segment.file.getName());
+    }
+}
@@ -0,0 +1,286 @@
+package com.github.longkerdandy.mithqtt.storage.memory;
+
+import com.github.longkerdandy.mithqtt.api.message.Message;
+import com.github.longkerdandy.mithqtt.api.message.MqttPublishPayload;
+import com.github.longkerdandy.mithqtt.util.TopicLevels;
+import com.github.longkerdandy.mithqtt.util.Topics;
+import io.netty.handler.codec.mqtt.MqttPublishVariableHeader;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import org.apache.commons.configuration.AbstractConfiguration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.github.longkerdandy.mithqtt.storage.redis.util.Converter.mapToMessage;
+import static com.github.longkerdandy.mithqtt.storage.redis.util.Converter.messageToMap;
+
+/**
+ * Synchronized Storage held in process memory and persisted to local session log
+ * Session existence, subscriptions, in-flight messages, qos 2 message ids and retain messages survive restart,
+ * connection state does not. Like the memory storage it should only be used by a single broker node deployment.
+ */
+public class SessionLogSyncStorage extends MemorySyncStorage {
+
+    private static final Logger logger = LoggerFactory.getLogger(SessionLogSyncStorage.class);
+
+    // Key separator, not allowed in client id and topic
+    private static final String SEP = "\u0000";
+
+    private SessionLog log;
+
+    @Override
+    public void init(AbstractConfiguration config) {
+        super.init(config);
+
+        this.log = new SessionLog(
+                new File(config.getString("storage.log.path", "data/session")),
+                config.getInt("storage.log.segment.size", 64 * 1024 * 1024),
+                config.getLong("storage.log.flush.interval", 10),
+                config.getBoolean("storage.log.sync", false));
+        try {
+            List<SessionLog.Record> records = this.log.open();
+            // live records are appended to the new segments again, then the old segments can be dropped
+            records.forEach(this::restore);
+            this.log.checkpoint();
+            logger.info("Session log restored {} records", records.size());
+        } catch (IOException e) {
+            throw new IllegalStateException("Can't open session log", e);
+        }
+    }
+
+    @Override
+    public void destroy() {
+        if (this.log != null) this.log.close();
+        super.destroy();
+    }
+
+    /**
+     * Restore the state from the session log record
+     *
+     * @param record Session Log Record
+     */
+    @SuppressWarnings("unchecked")
+    private void restore(SessionLog.Record record) {
+        String[] key = record.key.split(SEP);
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(record.value));
+            switch (key[0]) {
+                case "s":
+                    super.updateSessionExist(key[1], in.readInt() == 1);
+                    break;
+                case "u":
+                    super.updateSubscription(key[1], Topics.sanitize(key[2]), MqttQoS.valueOf(in.readInt()));
+                    break;
+                case "f":
+                    int packetId = Integer.parseInt(key[2]);
+                    long expire = in.readLong();
+                    Message msg = mapToMessage(readMap(in));
+                    if (msg != null && (expire == 0 || expire > System.currentTimeMillis())) {
+                        putInFlightMessage(key[1], packetId, msg, msg.fixedHeader().dup(), expire);
+                        // keep next packet id away from the in-flight ones
+                        client(key[1], c -> c.packetId = Math.max(c.packetId, packetId));
+                    }
+                    break;
+                case "q":
+                    super.addQoS2MessageId(key[1], Integer.parseInt(key[2]));
+                    break;
+                case "r":
+                    super.addRetainMessage(Topics.sanitize(key[1]), mapToMessage(readMap(in)));
+                    break;
+                default:
+                    logger.warn("Session log failed: Unknown record {}", record.key);
+            }
+        } catch (IOException | RuntimeException e) {
+            logger.warn("Session log failed: Record {} can't be restored: {}", record.key, e.getMessage());
+        }
+    }
+
+    private static byte[] writeMap(long expire, Map<String, String> map) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            if (expire >= 0) out.writeLong(expire);
+            out.writeInt(map.size());
+            for (Map.Entry<String, String> e : map.entrySet()) {
+                writeString(out, e.getKey());
+                writeString(out, e.getValue());
+            }
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static Map<String, String> readMap(DataInputStream in) throws IOException {
+        Map<String, String> map = new HashMap<>();
+        int size = in.readInt();
+        for (int i = 0; i < size; i++) {
+            map.put(readString(in), readString(in));
+        }
+        return map;
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+        } else {
+            byte[] b = s.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(b.length);
+            out.write(b);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) return null;
+        byte[] b = new byte[length];
+        in.readFully(b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+
+    private static byte[] writeInt(int i) {
+        return new byte[]{(byte) (i >>> 24), (byte) (i >>> 16), (byte) (i >>> 8), (byte) i};
+    }
+
+    @Override
+    protected void onSessionExist(String clientId, int session) {
+        String key = "s" + SEP + clientId;
+        if (session >= 0) this.log.put(key, writeInt(session));
+        else this.log.remove(key);
+    }
+
+    @Override
+    protected void onInFlightMessage(String clientId, int packetId, Message msg, long expire) {
+        String key = "f" + SEP + clientId + SEP + packetId;
+        if (msg != null) this.log.put(key, writeMap(expire, messageToMap(msg)));
+        else this.log.remove(key);
+    }
+
+    @Override
+    protected void onQoS2MessageId(String clientId, int packetId, boolean exist) {
+        String key = "q" + SEP + clientId + SEP + packetId;
+        if (exist) this.log.put(key, new byte[0]);
+        else this.log.remove(key);
+    }
+
+    @Override
+    protected void onSubscription(String clientId, String topic, MqttQoS qos) {
+        String key = "u" + SEP + clientId + SEP + topic;
+        if (qos != null) this.log.put(key, writeInt(qos.value()));
+        else this.log.remove(key);
+    }
+
+    @Override
+    protected void onRetainMessage(List<String> topicLevels, int retainId, Message<MqttPublishVariableHeader, MqttPublishPayload> msg) {
+        String key = "r" + SEP + TopicLevels.join(topicLevels) + SEP + retainId;
+        if (msg != null) this.log.put(key, writeMap(-1, messageToMap(msg)));
+        else this.log.remove(key);
+    }
+
+    @Override
+    public void updateSessionExist(String clientId, boolean cleanSession) {
+        super.updateSessionExist(clientId, cleanSession);
+        this.log.commit();
+    }
+
+    @Override
+    public boolean removeSessionExist(String clientId) {
+        boolean r = super.removeSessionExist(clientId);
+        this.log.commit();
+        return r;
+    }
+
+    @Override
+    public void removeAllSessionState(String clientId) {
+        super.removeAllSessionState(clientId);
+        this.log.commit();
+    }
+
+    @Override
+    public void addInFlightMessage(String clientId, int packetId, Message msg, boolean dup) {
+        super.addInFlightMessage(clientId, packetId, msg, dup);
+        this.log.commit();
+    }
+
+    @Override
+    public void addInFlightMessage(String clientId, int packetId, Message msg, boolean dup, long ttl) {
+        super.addInFlightMessage(clientId, packetId, msg, dup, ttl);
+        this.log.commit();
+    }
+
+    @Override
+    public void addInFlightMessages(Collection<Message> msgs) {
+        // the whole batch shares one commit
+        super.addInFlightMessages(msgs);
+        this.log.commit();
+    }
+
+    @Override
+    public void removeInFlightMessage(String clientId, int packetId) {
+        super.removeInFlightMessage(clientId, packetId);
+        this.log.commit();
+    }
+
+    @Override
+    public void removeAllInFlightMessage(String clientId) {
+        super.removeAllInFlightMessage(clientId);
+        this.log.commit();
+    }
+
+    @Override
+    public boolean addQoS2MessageId(String clientId, int packetId) {
+        boolean r = super.addQoS2MessageId(clientId, packetId);
+        this.log.commit();
+        return r;
+    }
+
+    @Override
+    public boolean removeQoS2MessageId(String clientId, int packetId) {
+        boolean r = super.removeQoS2MessageId(clientId, packetId);
+        this.log.commit();
+        return r;
+    }
+
+    @Override
+    public void removeAllQoS2MessageId(String clientId) {
+        super.removeAllQoS2MessageId(clientId);
+        this.log.commit();
+    }
+
+    @Override
+    public void updateQoS2MessageIds(String clientId, Collection<Integer> added, Collection<Integer> removed) {
+        super.updateQoS2MessageIds(clientId, added, removed);
+        this.log.commit();
+    }
+
+    @Override
+    public void updateSubscription(String clientId, List<String> topicLevels, MqttQoS qos) {
+        super.updateSubscription(clientId, topicLevels, qos);
+        this.log.commit();
+    }
+
+    @Override
+    public void removeSubscription(String clientId, List<String> topicLevels) {
+        super.removeSubscription(clientId, topicLevels);
+        this.log.commit();
+    }
+
+    @Override
+    public int addRetainMessage(List<String> topicLevels, Message<MqttPublishVariableHeader, MqttPublishPayload> msg) {
+        int r = super.addRetainMessage(topicLevels, msg);
+        this.log.commit();
+        return r;
+    }
+
+    @Override
+    public void removeAllRetainMessage(List<String> topicLevels) {
+        super.removeAllRetainMessage(topicLevels);
+        this.log.commit();
+    }
+}
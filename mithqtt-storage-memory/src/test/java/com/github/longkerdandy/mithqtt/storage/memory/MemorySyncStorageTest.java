@@ -0,0 +1,420 @@
+package com.github.longkerdandy.mithqtt.storage.memory;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.github.longkerdandy.mithqtt.api.message.Message;
+import com.github.longkerdandy.mithqtt.api.message.MqttAdditionalHeader;
+import com.github.longkerdandy.mithqtt.api.message.MqttPublishPayload;
+import com.github.longkerdandy.mithqtt.storage.redis.ConnectionState;
+import com.github.longkerdandy.mithqtt.util.Topics;
+import io.netty.handler.codec.mqtt.*;
+import org.apache.commons.configuration.MapConfiguration;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.github.longkerdandy.mithqtt.util.JSONs.Mapper;
+
+/**
+ * MemorySyncStorage Test
+ */
+public class MemorySyncStorageTest {
+
+    private MemorySyncStorage storage;
+
+    @Before
+    public void init() {
+        Map<String, Object> map = new HashMap<>();
+        map.put("mqtt.inflight.queue.size", 3);
+        map.put("mqtt.qos2.queue.size", 3);
+        map.put("mqtt.retain.queue.size", 3);
+        MapConfiguration config = new MapConfiguration(map);
+
+        storage = new MemorySyncStorage();
+        storage.init(config);
+    }
+
+    @Test
+    public void connectionTest() {
+
+        assert storage.lock("client2", ConnectionState.CONNECTING);
+        assert storage.lock("client4", ConnectionState.CONNECTING);
+        assert !storage.lock("client3", ConnectionState.DISCONNECTING);
+        assert !storage.lock("client5", ConnectionState.DISCONNECTING);
+        assert !storage.release("client3", ConnectionState.DISCONNECTED);
+        assert !storage.release("client5", ConnectionState.DISCONNECTED);
+
+        assert storage.updateConnectedNode("client1", "node1", 30) == null;
+        assert storage.updateConnectedNode("client2", "node1", 30) == null;
+        assert storage.updateConnectedNode("client3", "node1", 30) == null;
+        assert storage.updateConnectedNode("client4", "node1", 30) == null;
+        assert storage.updateConnectedNode("client4", "node2", 30).equals("node1");   // overwrite
+        assert storage.updateConnectedNode("client5", "node2", 30) == null;
+        assert storage.updateConnectedNode("client5", "node2", 30).equals("node2");   // overwrite
+
+        assert !storage.lock("client2", ConnectionState.CONNECTING);
+        assert !storage.lock("client4", ConnectionState.CONNECTING);
+        assert !storage.release("client2", ConnectionState.DISCONNECTED);
+        assert !storage.release("client4", ConnectionState.DISCONNECTED);
+        assert storage.release("client2", ConnectionState.CONNECTED);
+        assert storage.release("client4", ConnectionState.CONNECTED);
+
+        assert storage.getConnectedNode("client1").equals("node1");
+        assert storage.getConnectedNode("client2").equals("node1");
+        assert storage.getConnectedNode("client3").equals("node1");
+        assert storage.getConnectedNode("client4").equals("node2");
+        assert storage.getConnectedNode("client5").equals("node2");
+
+        assert storage.lock("client2", ConnectionState.DISCONNECTING);
+        assert storage.lock("client4", ConnectionState.DISCONNECTING);
+
+        assert storage.removeConnectedNode("client2", "node1");
+        assert !storage.removeConnectedNode("client4", "node1");   // not exist
+
+        assert !storage.release("client2", ConnectionState.DISCONNECTED);   // removed
+        assert storage.release("client4", ConnectionState.DISCONNECTED);
+
+        assert storage.getConnectedNode("client2") == null;
+        assert storage.getConnectedNode("client4").equals("node2");
+    }
+
+    @Test
+    public void sessionExistTest() {
+        assert storage.getSessionExist("client1") == -1;
+        storage.updateSessionExist("client1", false);
+        assert storage.getSessionExist("client1") == 0;
+        storage.updateSessionExist("client1", true);
+        assert storage.getSessionExist("client1") == 1;
+        storage.removeSessionExist("client1");
+        assert storage.getSessionExist("client1") == -1;
+    }
+
+    @Test
+    public void packetIdTest() {
+        assert storage.getNextPacketId("client1") == 1;
+        assert storage.getNextPacketId("client1") == 2;
+        assert storage.getNextPacketId("client1") == 3;
+
+        for (int i = 4; i < 65534; i++) storage.getNextPacketId("client1");
+
+        assert storage.getNextPacketId("client1") == 65534;
+        assert storage.getNextPacketId("client1") == 65535;
+        assert storage.getNextPacketId("client1") == 1;
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void inFlightTest() throws IOException {
+        String json = "{\"menu\": {\n" +
+                "  \"id\": \"file\",\n" +
+                "  \"value\": \"File\",\n" +
+                "  \"popup\": {\n" +
+                "    \"menuItem\": [\n" +
+                "      {\"value\": \"New\", \"onclick\": \"CreateNewDoc()\"},\n" +
+                "      {\"value\": \"Open\", \"onclick\": \"OpenDoc()\"},\n" +
+                "      {\"value\": \"Close\", \"onclick\": \"CloseDoc()\"}\n" +
+                "    ]\n" +
+                "  }\n" +
+                "}}";
+        JsonNode jn = Mapper.readTree(json);
+        Message<MqttPublishVariableHeader, MqttPublishPayload> publish = new Message<>(
+                new MqttFixedHeader(MqttMessageType.PUBLISH, false, MqttQoS.AT_LEAST_ONCE, false, 0),
+                new MqttAdditionalHeader(MqttVersion.MQTT_3_1_1, "client1", "user1", "broker1"),
+                MqttPublishVariableHeader.from("menuTopic", 12345),
+                new MqttPublishPayload(Mapper.writeValueAsBytes(jn)));
+
+        storage.addInFlightMessage("client1", 12345, publish, false);
+        publish = storage.getInFlightMessage("client1", 12345);
+
+        assert publish.fixedHeader().messageType() == MqttMessageType.PUBLISH;
+        assert !publish.fixedHeader().dup();
+        assert publish.fixedHeader().qos() == MqttQoS.AT_LEAST_ONCE;
+        assert !publish.fixedHeader().retain();
+        assert publish.additionalHeader().version() == MqttVersion.MQTT_3_1_1;
+        assert publish.additionalHeader().clientId().equals("client1");
+        assert publish.additionalHeader().userName().equals("user1");
+        assert publish.variableHeader().topicName().equals("menuTopic");
+        assert publish.variableHeader().packetId() == 12345;
+        jn = Mapper.readTree(publish.payload().bytes());
+        assert jn.get("menu").get("id").textValue().endsWith("file");
+        assert jn.get("menu").get("value").textValue().endsWith("File");
+        assert jn.get("menu").get("popup").get("menuItem").get(0).get("value").textValue().equals("New");
+        assert jn.get("menu").get("popup").get("menuItem").get(0).get("onclick").textValue().equals("CreateNewDoc()");
+        assert jn.get("menu").get("popup").get("menuItem").get(1).get("value").textValue().equals("Open");
+        assert jn.get("menu").get("popup").get("menuItem").get(1).get("onclick").textValue().equals("OpenDoc()");
+        assert jn.get("menu").get("popup").get("menuItem").get(2).get("value").textValue().equals("Close");
+        assert jn.get("menu").get("popup").get("menuItem").get(2).get("onclick").textValue().equals("CloseDoc()");
+
+        publish = storage.getAllInFlightMessages("client1").get(0);
+        assert publish.variableHeader().packetId() == 12345;
+
+        storage.removeInFlightMessage("client1", 12345);
+
+        assert storage.getInFlightMessage("client1", 12345) == null;
+        assert storage.getAllInFlightMessages("client1").size() == 0;
+
+        Message<MqttPacketIdVariableHeader, Void> pubrel = new Message<>(
+                new MqttFixedHeader(MqttMessageType.PUBREL, false, MqttQoS.AT_LEAST_ONCE, false, 0),
+                new MqttAdditionalHeader(MqttVersion.MQTT_3_1_1, "client1", "user1", "broker1"),
+                MqttPacketIdVariableHeader.from(10000),
+                null
+        );
+        storage.addInFlightMessage("client1", 10000, pubrel, false);
+
+        pubrel = new Message<>(
+                new MqttFixedHeader(MqttMessageType.PUBREL, false, MqttQoS.AT_LEAST_ONCE, false, 0),
+                new MqttAdditionalHeader(MqttVersion.MQTT_3_1_1, "client1", "user1", "broker1"),
+                MqttPacketIdVariableHeader.from(10001),
+                null
+        );
+        storage.addInFlightMessage("client1", 10001, pubrel, false);
+
+        pubrel = new Message<>(
+                new MqttFixedHeader(MqttMessageType.PUBREL, false, MqttQoS.AT_LEAST_ONCE, false, 0),
+                new MqttAdditionalHeader(MqttVersion.MQTT_3_1_1, "client1", "user1", "broker1"),
+                MqttPacketIdVariableHeader.from(10002),
+                null
+        );
+        storage.addInFlightMessage("client1", 10002, pubrel, false);
+
+        assert storage.getAllInFlightMessages("client1").size() == 3;
+        pubrel = storage.getAllInFlightMessages("client1").get(1);
+
+        assert pubrel.fixedHeader().messageType() == MqttMessageType.PUBREL;
+        assert !pubrel.fixedHeader().dup();
+        assert pubrel.fixedHeader().qos() == MqttQoS.AT_LEAST_ONCE;
+        assert !pubrel.fixedHeader().retain();
+        assert pubrel.additionalHeader().version() == MqttVersion.MQTT_3_1_1;
+        assert pubrel.additionalHeader().clientId().equals("client1");
+        assert pubrel.additionalHeader().userName().equals("user1");
+        assert pubrel.variableHeader().packetId() == 10001;
+
+        pubrel = new Message<>(
+                new MqttFixedHeader(MqttMessageType.PUBREL, false, MqttQoS.AT_LEAST_ONCE, false, 0),
+                new MqttAdditionalHeader(MqttVersion.MQTT_3_1_1, "client1", "user1", "broker1"),
+                MqttPacketIdVariableHeader.from(10003),
+                null
+        );
+        storage.addInFlightMessage("client1", 10003, pubrel, false);
+
+        assert storage.getAllInFlightMessages("client1").size() == 3;
+        assert storage.getInFlightMessage("client1", 10000) == null;
+
+        storage.removeAllInFlightMessage("client1");
+
+        assert storage.getInFlightMessage("client1", 10001) == null;
+        assert storage.getInFlightMessage("client1", 10002) == null;
+        assert storage.getInFlightMessage("client1", 10003) == null;
+        assert storage.getAllInFlightMessages("client1").size() == 0;
+    }
+
+    @Test
+    public void qos2Test() {
+        assert storage.addQoS2MessageId("client1", 10000);
+        assert storage.addQoS2MessageId("client1", 10001);
+        assert storage.addQoS2MessageId("client1", 10002);
+        assert !storage.addQoS2MessageId("client1", 10000);
+
+        assert storage.removeQoS2MessageId("client1", 10000);
+        assert storage.removeQoS2MessageId("client1", 10001);
+        assert storage.removeQoS2MessageId("client1", 10002);
+        assert !storage.removeQoS2MessageId("client1", 10001);
+
+        assert storage.addQoS2MessageId("client1", 10003);
+        assert storage.addQoS2MessageId("client1", 10004);
+        assert storage.addQoS2MessageId("client1", 10005);
+        assert storage.addQoS2MessageId("client1", 10006);
+
+        assert !storage.removeQoS2MessageId("client1", 10003);
+
+        storage.removeAllQoS2MessageId("client1");
+
+        assert !storage.removeQoS2MessageId("client1", 10004);
+        assert !storage.removeQoS2MessageId("client1", 10005);
+        assert !storage.removeQoS2MessageId("client1", 10006);
+
+        storage.updateQoS2MessageIds("client1", Arrays.asList(10007, 10008), Collections.emptyList());
+        List<Integer> ids = storage.getAllQoS2MessageIds("client1");
+        assert ids.size() == 2;
+        assert ids.contains(10007) && ids.contains(10008);
+
+        // ids in neither collection are kept
+        storage.updateQoS2MessageIds("client1", Arrays.asList(10009), Arrays.asList(10007, 10010));
+        ids = storage.getAllQoS2MessageIds("client1");
+        assert ids.size() == 2;
+        assert ids.contains(10008) && ids.contains(10009);
+
+        storage.updateQoS2MessageIds("client1", Collections.emptyList(), Arrays.asList(10008, 10009));
+        assert storage.getAllQoS2MessageIds("client1").isEmpty();
+
+        // the oldest ids beyond the queue size are dropped
+        storage.updateQoS2MessageIds("client1", Arrays.asList(10001, 10002, 10003, 10004), Collections.emptyList());
+        ids = storage.getAllQoS2MessageIds("client1");
+        assert ids.size() == 3;
+        assert !ids.contains(10001);
+    }
+
+    @Test
+    public void subscriptionTest() {
+        storage.updateSubscription("client1", Topics.sanitizeTopicFilter("a/+/e"), MqttQoS.AT_MOST_ONCE);
+        storage.updateSubscription("client1", Topics.sanitizeTopicFilter("a/+"), MqttQoS.AT_LEAST_ONCE);
+        storage.updateSubscription("client1", Topics.sanitizeTopicName("a/c/e"), MqttQoS.EXACTLY_ONCE);
+        storage.updateSubscription("client2", Topics.sanitizeTopicFilter("a/#"), MqttQoS.AT_MOST_ONCE);
+        storage.updateSubscription("client2", Topics.sanitizeTopicFilter("a/+"), MqttQoS.AT_LEAST_ONCE);
+        storage.updateSubscription("client2", Topics.sanitizeTopicName("a/c/e"), MqttQoS.EXACTLY_ONCE);
+
+        assert storage.getClientSubscriptions("client1").get("a/+/e/" + Topics.END) == MqttQoS.AT_MOST_ONCE;
+        assert storage.getClientSubscriptions("client1").get("a/+/" + Topics.END) == MqttQoS.AT_LEAST_ONCE;
+        assert storage.getClientSubscriptions("client1").get("a/c/e/" + Topics.END) == MqttQoS.EXACTLY_ONCE;
+        assert storage.getClientSubscriptions("client2").get("a/#/" + Topics.END) == MqttQoS.AT_MOST_ONCE;
+        assert storage.getClientSubscriptions("client2").get("a/+/" + Topics.END) == MqttQoS.AT_LEAST_ONCE;
+        assert storage.getClientSubscriptions("client2").get("a/c/e/" + Topics.END) == MqttQoS.EXACTLY_ONCE;
+
+        assert storage.getTopicSubscriptions(Topics.sanitizeTopicFilter("a/+/e")).get("client1") == MqttQoS.AT_MOST_ONCE;
+        assert storage.getTopicSubscriptions(Topics.sanitizeTopicFilter("a/+")).get("client1") == MqttQoS.AT_LEAST_ONCE;
+        assert storage.getTopicSubscriptions(Topics.sanitizeTopicFilter("a/+")).get("client2") == MqttQoS.AT_LEAST_ONCE;
+        assert storage.getTopicSubscriptions(Topics.sanitizeTopicName("a/c/e")).get("client1") == MqttQoS.EXACTLY_ONCE;
+        assert storage.getTopicSubscriptions(Topics.sanitizeTopicName("a/c/e")).get("client2") == MqttQoS.EXACTLY_ONCE;
+        assert storage.getTopicSubscriptions(Topics.sanitizeTopicFilter("a/#")).get("client2") == MqttQoS.AT_MOST_ONCE;
+
+        storage.removeSubscription("client1", Topics.sanitizeTopicFilter("a/+"));
+
+        assert !storage.getTopicSubscriptions(Topics.sanitizeTopicFilter("a/+")).containsKey("client1");
+        assert !storage.getClientSubscriptions("client1").containsKey("a/+/" + Topics.END);
+    }
+
+    @Test
+    public void matchTopicFilterTest() {
+        storage.updateSubscription("client1", Topics.sanitizeTopicFilter("a/+/e"), MqttQoS.AT_MOST_ONCE);
+        storage.updateSubscription("client1", Topics.sanitizeTopicFilter("a/+"), MqttQoS.AT_LEAST_ONCE);
+        storage.updateSubscription("client1", Topics.sanitizeTopicFilter("a/c/f/#"), MqttQoS.EXACTLY_ONCE);
+        storage.updateSubscription("client2", Topics.sanitizeTopicFilter("a/#"), MqttQoS.AT_MOST_ONCE);
+        storage.updateSubscription("client2", Topics.sanitizeTopicFilter("a/c/+/+"), MqttQoS.AT_LEAST_ONCE);
+        storage.updateSubscription("client2", Topics.sanitizeTopicFilter("a/d/#"), MqttQoS.EXACTLY_ONCE);
+        storage.updateSubscription("client3", Topics.sanitizeTopicName("a/b/c/d"), MqttQoS.AT_LEAST_ONCE);
+
+        Map<String, MqttQoS> result = new HashMap<>();
+        storage.getMatchSubscriptions(Topics.sanitizeTopicName("a/c/f"), result);
+        assert result.get("client1") == MqttQoS.EXACTLY_ONCE;
+        assert result.get("client2") == MqttQoS.AT_MOST_ONCE;
+        assert !result.containsKey("client3");
+
+        result.clear();
+        storage.getMatchSubscriptions(Topics.sanitizeTopicName("a/d/e"), result);
+        assert result.get("client1") == MqttQoS.AT_MOST_ONCE;
+        assert result.get("client2") == MqttQoS.EXACTLY_ONCE;
+        assert !result.containsKey("client3");
+
+        result.clear();
+        storage.getMatchSubscriptions(Topics.sanitizeTopicName("a/b/c/d"), result);
+        assert !result.containsKey("client1");
+        assert result.get("client2") == MqttQoS.AT_MOST_ONCE;
+        assert result.get("client3") == MqttQoS.AT_LEAST_ONCE;
+    }
+
+    @Test
+    public void retainTest() throws IOException {
+        String json = "{\"menu\": {\n" +
+                "  \"id\": \"file\",\n" +
+                "  \"value\": \"File\",\n" +
+                "  \"popup\": {\n" +
+                "    \"menuItem\": [\n" +
+                "      {\"value\": \"New\", \"onclick\": \"CreateNewDoc()\"},\n" +
+                "      {\"value\": \"Open\", \"onclick\": \"OpenDoc()\"},\n" +
+                "      {\"value\": \"Close\", \"onclick\": \"CloseDoc()\"}\n" +
+                "    ]\n" +
+                "  }\n" +
+                "}}";
+        JsonNode jn = Mapper.readTree(json);
+        Message<MqttPublishVariableHeader, MqttPublishPayload> publish = new Message<>(
+                new MqttFixedHeader(MqttMessageType.PUBLISH, false, MqttQoS.AT_LEAST_ONCE, false, 0),
+                new MqttAdditionalHeader(MqttVersion.MQTT_3_1_1, "client1", "user1", "broker1"),
+                MqttPublishVariableHeader.from("menuTopic", 12345),
+                new MqttPublishPayload(Mapper.writeValueAsBytes(jn)));
+
+        storage.addRetainMessage(Topics.sanitize("a/b/c/d"), publish);
+        publish = storage.getMatchRetainMessages(Topics.sanitize("a/b/c/d")).get(0);
+
+        assert publish.fixedHeader().messageType() == MqttMessageType.PUBLISH;
+        assert !publish.fixedHeader().dup();
+        assert publish.fixedHeader().qos() == MqttQoS.AT_LEAST_ONCE;
+        assert !publish.fixedHeader().retain();
+        assert publish.additionalHeader().version() == MqttVersion.MQTT_3_1_1;
+        assert publish.additionalHeader().userName().equals("user1");
+        assert publish.variableHeader().topicName().equals("menuTopic");
+        jn = Mapper.readTree(publish.payload().bytes());
+        assert jn.get("menu").get("id").textValue().endsWith("file");
+        assert jn.get("menu").get("value").textValue().endsWith("File");
+        assert jn.get("menu").get("popup").get("menuItem").get(0).get("value").textValue().equals("New");
+        assert jn.get("menu").get("popup").get("menuItem").get(0).get("onclick").textValue().equals("CreateNewDoc()");
+        assert jn.get("menu").get("popup").get("menuItem").get(1).get("value").textValue().equals("Open");
+        assert jn.get("menu").get("popup").get("menuItem").get(1).get("onclick").textValue().equals("OpenDoc()");
+        assert jn.get("menu").get("popup").get("menuItem").get(2).get("value").textValue().equals("Close");
+        assert jn.get("menu").get("popup").get("menuItem").get(2).get("onclick").textValue().equals("CloseDoc()");
+
+        storage.removeAllRetainMessage(Topics.sanitize("a/b/c/d"));
+        assert storage.getMatchRetainMessages(Topics.sanitize("a/b/c/d")).size() == 0;
+
+        storage.addRetainMessage(Topics.sanitize("a/b/c/d"), publish);
+        storage.addRetainMessage(Topics.sanitize("a/b/c/d"), publish);
+
+        assert storage.getMatchRetainMessages(Topics.sanitize("a/b/c/d")).size() == 2;
+
+        storage.addRetainMessage(Topics.sanitize("a/b/c/d"), publish);
+        storage.addRetainMessage(Topics.sanitize("a/b/c/d"), publish);
+
+        assert storage.getMatchRetainMessages(Topics.sanitize("a/b/c/d")).size() == 3;
+    }
+
+    @Test
+    public void matchRetainTest() {
+        Message<MqttPublishVariableHeader, MqttPublishPayload> p1 = new Message<>(
+                new MqttFixedHeader(MqttMessageType.PUBLISH, false, MqttQoS.AT_LEAST_ONCE, false, 0),
+                new MqttAdditionalHeader(MqttVersion.MQTT_3_1_1, "client1", "user1", "broker1"),
+                MqttPublishVariableHeader.from("foo/bar", 100),
+                new MqttPublishPayload("Hello Retain 1".getBytes()));
+        Message<MqttPublishVariableHeader, MqttPublishPayload> p2 = new Message<>(
+                new MqttFixedHeader(MqttMessageType.PUBLISH, false, MqttQoS.AT_LEAST_ONCE, false, 0),
+                new MqttAdditionalHeader(MqttVersion.MQTT_3_1_1, "client2", "user2", "broker2"),
+                MqttPublishVariableHeader.from("foo/bar/zoo", 200),
+                new MqttPublishPayload("Hello Retain 2".getBytes()));
+        Message<MqttPublishVariableHeader, MqttPublishPayload> p3 = new Message<>(
+                new MqttFixedHeader(MqttMessageType.PUBLISH, false, MqttQoS.AT_LEAST_ONCE, false, 0),
+                new MqttAdditionalHeader(MqttVersion.MQTT_3_1_1, "client3", "user3", "broker3"),
+                MqttPublishVariableHeader.from("foo/bar/zoo/rar", 300),
+                new MqttPublishPayload("Hello Retain 3".getBytes()));
+        Message<MqttPublishVariableHeader, MqttPublishPayload> p4 = new Message<>(
+                new MqttFixedHeader(MqttMessageType.PUBLISH, false, MqttQoS.AT_LEAST_ONCE, false, 0),
+                new MqttAdditionalHeader(MqttVersion.MQTT_3_1_1, "client4", "user4", "broker4"),
+                MqttPublishVariableHeader.from("foo/moo", 400),
+                new MqttPublishPayload("Hello Retain 4".getBytes()));
+        Message<MqttPublishVariableHeader, MqttPublishPayload> p5 = new Message<>(
+                new MqttFixedHeader(MqttMessageType.PUBLISH, false, MqttQoS.AT_LEAST_ONCE, false, 0),
+                new MqttAdditionalHeader(MqttVersion.MQTT_3_1_1, "client5", "user5", "broker5"),
+                MqttPublishVariableHeader.from("foo/moo/zoo", 500),
+                new MqttPublishPayload("Hello Retain 5".getBytes()));
+
+        storage.addRetainMessage(Topics.sanitize("foo/bar"), p1);
+        storage.addRetainMessage(Topics.sanitize("foo/bar/zoo"), p2);
+        storage.addRetainMessage(Topics.sanitize("foo/bar/zoo/rar"), p3);
+        storage.addRetainMessage(Topics.sanitize("foo/moo"), p4);
+        storage.addRetainMessage(Topics.sanitize("foo/moo/zoo"), p5);
+
+        assert storage.getMatchRetainMessages(Topics.sanitize("foo/+")).size() == 2;
+        assert storage.getMatchRetainMessages(Topics.sanitize("foo/bar/+")).size() == 1;
+        assert storage.getMatchRetainMessages(Topics.sanitize("foo/#")).size() == 5;
+        assert storage.getMatchRetainMessages(Topics.sanitize("foo/bar/#")).size() == 3;
+        assert storage.getMatchRetainMessages(Topics.sanitize("foo/bar/zoo/#")).size() == 2;
+        assert storage.getMatchRetainMessages(Topics.sanitize("foo/bar/zoo/rar/#")).size() == 1;
+        assert storage.getMatchRetainMessages(Topics.sanitize("foo/bar/zoo/+")).size() == 1;
+        assert storage.getMatchRetainMessages(Topics.sanitize("foo/zoo/#")).size() == 0;
+        assert storage.getMatchRetainMessages(Topics.sanitize("foo/+/#")).size() == 5;
+        assert storage.getMatchRetainMessages(Topics.sanitize("foo/+/zoo/#")).size() == 3;
+        assert storage.getMatchRetainMessages(Topics.sanitize("#")).size() == 5;
+    }
+}
@@ -0,0 +1,117 @@
+package com.github.longkerdandy.mithqtt.storage.memory;
+
+import com.github.longkerdandy.mithqtt.api.message.Message;
+import com.github.longkerdandy.mithqtt.api.message.MqttAdditionalHeader;
+import com.github.longkerdandy.mithqtt.api.message.MqttPublishPayload;
+import com.github.longkerdandy.mithqtt.util.Topics;
+import io.netty.handler.codec.mqtt.*;
+import org.apache.commons.configuration.MapConfiguration;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * SessionLogSyncStorage Test
+ */
+public class SessionLogSyncStorageTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private SessionLogSyncStorage open(File dir, int segmentSize) {
+        Map<String, Object> map = new HashMap<>();
+        map.put("mqtt.inflight.queue.size", 3);
+        map.put("storage.log.path", dir.getAbsolutePath());
+        map.put("storage.log.segment.size", segmentSize);
+        map.put("storage.log.flush.interval", 1);
+        map.put("storage.log.sync", true);
+        SessionLogSyncStorage storage = new SessionLogSyncStorage();
+        storage.init(new MapConfiguration(map));
+        return storage;
+    }
+
+    private Message<MqttPublishVariableHeader, MqttPublishPayload> publish(String topic, int packetId, String payload) {
+        return new Message<>(
+                new MqttFixedHeader(MqttMessageType.PUBLISH, false, MqttQoS.AT_LEAST_ONCE, false, 0),
+                new MqttAdditionalHeader(MqttVersion.MQTT_3_1_1, "client1", "user1", "broker1"),
+                MqttPublishVariableHeader.from(topic, packetId),
+                new MqttPublishPayload(payload.getBytes()));
+    }
+
+    @Test
+    public void restoreTest() throws Exception {
+        File dir = folder.newFolder();
+        SessionLogSyncStorage storage = open(dir, 1024 * 1024);
+
+        storage.updateSessionExist("client1", false);
+        storage.updateSubscription("client1", Topics.sanitize("a/+/c"), MqttQoS.AT_LEAST_ONCE);
+        storage.updateSubscription("client1", Topics.sanitize("a/b"), MqttQoS.EXACTLY_ONCE);
+        storage.removeSubscription("client1", Topics.sanitize("a/b"));
+        for (int i = 1; i <= 4; i++) {
+            storage.addInFlightMessage("client1", storage.getNextPacketId("client1"), publish("a/b/c", i, "Hello " + i), false);
+        }
+        storage.addInFlightMessage("client1", 3, publish("a/b/c", 3, "Hello 3"), true);
+        storage.addQoS2MessageId("client1", 100);
+        storage.addQoS2MessageId("client1", 101);
+        storage.removeQoS2MessageId("client1", 100);
+        storage.addRetainMessage(Topics.sanitize("a/b/c"), publish("a/b/c", 1, "Retain"));
+        storage.updateSessionExist("client2", true);
+        storage.removeAllSessionState("client2");
+        storage.destroy();
+
+        storage = open(dir, 1024 * 1024);
+        assert storage.getSessionExist("client1") == 0;
+        assert storage.getSessionExist("client2") == -1;
+        assert storage.getClientSubscriptions("client1").size() == 1;
+        Map<String, MqttQoS> result = new HashMap<>();
+        storage.getMatchSubscriptions(Topics.sanitize("a/b/c"), result);
+        assert result.get("client1") == MqttQoS.AT_LEAST_ONCE;
+
+        List<Message> inFlight = storage.getAllInFlightMessages("client1");
+        assert inFlight.size() == 3;
+        assert ((MqttPublishVariableHeader) inFlight.get(0).variableHeader()).packetId() == 2;
+        assert ((MqttPublishVariableHeader) inFlight.get(1).variableHeader()).packetId() == 4;
+        assert ((MqttPublishVariableHeader) inFlight.get(2).variableHeader()).packetId() == 3;
+        assert inFlight.get(2).fixedHeader().dup();
+        assert new String(((MqttPublishPayload) inFlight.get(2).payload()).bytes()).equals("Hello 3");
+        assert storage.getNextPacketId("client1") == 5;
+
+        assert storage.getAllQoS2MessageIds("client1").size() == 1;
+        assert storage.getAllQoS2MessageIds("client1").contains(101);
+
+        assert storage.getMatchRetainMessages(Topics.sanitize("a/#")).size() == 1;
+        assert new String(storage.getMatchRetainMessages(Topics.sanitize("a/b/c")).get(0).payload().bytes()).equals("Retain");
+
+        storage.destroy();
+        assert dir.listFiles().length == 1;
+    }
+
+    @Test
+    public void compactTest() throws Exception {
+        File dir = folder.newFolder();
+        SessionLogSyncStorage storage = open(dir, 4096);
+
+        storage.updateSessionExist("client1", false);
+        for (int i = 1; i <= 1000; i++) {
+            storage.addInFlightMessage("client1", i, publish("a/b/c", i, "Hello " + i), false);
+            storage.removeInFlightMessage("client1", i);
+        }
+        storage.addInFlightMessage("client1", 1001, publish("a/b/c", 1001, "Hello 1001"), false);
+
+        // wait for the flusher to compact the sealed segments
+        for (int i = 0; i < 100 && dir.listFiles().length > 3; i++) Thread.sleep(10);
+        assert dir.listFiles().length <= 3;
+        storage.destroy();
+
+        storage = open(dir, 4096);
+        assert storage.getSessionExist("client1") == 0;
+        assert storage.getAllInFlightMessages("client1").size() == 1;
+        assert storage.getInFlightMessage("client1", 1001) != null;
+        storage.destroy();
+    }
+}
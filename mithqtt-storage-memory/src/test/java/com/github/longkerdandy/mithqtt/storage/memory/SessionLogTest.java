@@ -0,0 +1,44 @@
+package com.github.longkerdandy.mithqtt.storage.memory;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.List;
+
+/**
+ * SessionLog Test
+ */
+public class SessionLogTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void compactDelTest() throws Exception {
+        File dir = folder.newFolder();
+        SessionLog log = new SessionLog(dir, 1024, 1, true);
+        log.open();
+        log.checkpoint();
+
+        // the oldest segment stays live, so it is never compacted
+        for (int i = 0; i < 40; i++) log.put("live" + i, new byte[10]);
+        for (int i = 0; i < 100; i++) log.put("key" + i, new byte[10]);
+        for (int i = 0; i < 100; i++) log.remove("key" + i);
+        // roll the DEL records out of the tail
+        for (int i = 0; i < 1000; i++) log.put("filler", new byte[10]);
+        log.commit();
+
+        // DEL records no longer shadowing anything are dropped, instead of being copied forward forever
+        for (int i = 0; i < 200 && dir.listFiles().length > 3; i++) Thread.sleep(10);
+        assert dir.listFiles().length <= 3;
+        log.close();
+
+        log = new SessionLog(dir, 1024, 1, true);
+        List<SessionLog.Record> records = log.open();
+        assert records.size() == 41;
+        assert records.stream().noneMatch(r -> r.key.startsWith("key"));
+        log.close();
+    }
+}
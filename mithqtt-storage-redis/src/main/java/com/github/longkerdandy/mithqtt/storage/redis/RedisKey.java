@@ -1,5 +1,7 @@
 package com.github.longkerdandy.mithqtt.storage.redis;
 
+import com.github.longkerdandy.mithqtt.util.TopicLevels;
+
 import java.util.List;
 
 /**
@@ -11,49 +13,59 @@ public class RedisKey {
     // Key - 'node'; 'state';
     // Value - Node; State;
     public static String connection(String clientId) {
-        return "client:" + clientId + ":connection";
+        return client(clientId) + ":connection";
     }
 
     // Key indicates client session state
     public static String session(String clientId) {
-        return "client:" + clientId + ":session";
+        return client(clientId) + ":session";
     }
 
     // Key indicates next packet id for the client
     public static String nextPacketId(String clientId) {
-        return "client:" + clientId + ":pid";
+        return client(clientId) + ":pid";
     }
 
     // Set of inbound QoS 2 message's packet id from the client
     // Value - MQTT Message's Packet Id
     public static String qos2Set(String clientId) {
-        return "client:" + clientId + ":qos2";
+        return client(clientId) + ":qos2";
     }
 
     // List of outbound in-flight messages' packet id for the client
     // Value - MQTT Message's Packet Id in order
     public static String inFlightList(String clientId) {
-        return "client:" + clientId + ":in.flight";
+        return client(clientId) + ":in.flight";
     }
 
     // Hash of outbound in-flight message for the client
     // MQTT Message in Hash
+    // Lua scripts rely on this key being the in-flight list key followed by ':' and the packet id
     public static String inFlightMessage(String clientId, int packetId) {
-        return "client:" + clientId + ":in.flight:" + packetId;
+        return inFlightList(clientId) + ":" + packetId;
     }
 
     // Hash of client's subscriptions
     // Key - Topic Name or Topic Filter
     // Value - Qos Level
     public static String subscription(String clientId) {
-        return "client:" + clientId + ":subscription";
+        return client(clientId) + ":subscription";
+    }
+
+    // Prefix of all the client's keys
+    // Client id is used as hash tag, so all the client's keys live in the same cluster slot
+    // Empty client id or one starting with '}' would make an empty hash tag, and each key would then be hashed on its
+    // own, so it's prefixed with U+0000, which MQTT doesn't allow in client id and so can't collide with another one
+    static String client(String clientId) {
+        if (clientId.isEmpty() || clientId.charAt(0) == '}') return "client:{\0" + clientId + "}";
+        return "client:{" + clientId + "}";
     }
 
     // Hash of topic name's subscriptions
     // Key - Client Id (which subscribed to this topic name)
     // Value - QoS Level
     public static String topicName(List<String> topicLevels) {
-        return "topic:n:" + String.join("/", topicLevels);
+        return "topic:n:" + TopicLevels.join(topicLevels);
     }
 
     // Hash of topic name's subscriptions
@@ -67,7 +79,7 @@ public class RedisKey {
     // Key - Client Id (which subscribed to this topic filter)
     // Value - QoS Level
     public static String topicFilter(List<String> topicLevels) {
-        return "topic:f:" + String.join("/", topicLevels);
+        return "topic:f:" + TopicLevels.join(topicLevels);
     }
 
     // Hash of topic filter's subscriptions
@@ -80,31 +92,47 @@ public class RedisKey {
     // Hash of topic filter's children in trie tree
     // Key - Topic Level (child node in the topic filter tree)
     // Value - Count (how many subscriptions traverse this node, 0 means route not exist)
-    public static String topicFilterChild(List<String> topicLevels) {
-        return topicLevels == null || topicLevels.isEmpty() ? "{topic:f:tree}" : "{topic:f:tree}:" + String.join("/", topicLevels);
+    public static String topicFilterChild(List<String> topicLevels, int shardLevels) {
+        return topicTreeNode("topic:f:tree", topicLevels, shardLevels);
     }
 
     // Key indicates next retain id for the topic name
     public static String nextRetainId(List<String> topicLevels) {
-        return "topic:r:" + String.join("/", topicLevels) + ":rid";
+        return "topic:r:" + TopicLevels.join(topicLevels) + ":rid";
     }
 
     // List of remain message's retain id for the topic name
     // Value MQTT Message's Packet Id
     public static String topicRetainList(List<String> topicLevels) {
-        return "topic:r:" + String.join("/", topicLevels);
+        return "topic:r:" + TopicLevels.join(topicLevels);
     }
 
     // Hash of retain message for the topic name
     // MQTT Message in Hash
     public static String topicRemainMessage(List<String> topicLevels, int retainId) {
-        return "topic:r:" + String.join("/", topicLevels) + ":" + retainId;
+        return "topic:r:" + TopicLevels.join(topicLevels) + ":" + retainId;
     }
 
     // Hash of topic retain's children in trie tree
     // Key - Topic Level (child node in the topic retain tree)
     // Value - Count (how many subscriptions traverse this node, 0 means route not exist)
-    public static String topicRetainChild(List<String> topicLevels) {
-        return topicLevels == null || topicLevels.isEmpty() ? "{topic:r:tree}" : "{topic:r:tree}:" + String.join("/", topicLevels);
+    public static String topicRetainChild(List<String> topicLevels, int shardLevels) {
+        return topicTreeNode("topic:r:tree", topicLevels, shardLevels);
+    }
+
+    // Node of the trie tree, hash tagged by its first shardLevels topic levels
+    // So each branch of the tree lives in its own cluster slot, while nodes in the same branch share the slot
+    // Nodes shallower than shardLevels are tagged by themselves
+    // shardLevels 0 puts the whole tree in a single slot
+    static String topicTreeNode(String tree, List<String> topicLevels, int shardLevels) {
+        if (topicLevels == null || topicLevels.isEmpty()) {
+            return "{" + tree + "}";
+        } else if (shardLevels <= 0) {
+            return "{" + tree + "}:" + TopicLevels.join(topicLevels);
+        } else if (topicLevels.size() <= shardLevels) {
+            return "{" + tree + ":" + TopicLevels.join(topicLevels) + "}";
+        } else {
+            return "{" + tree + ":" + String.join("/", topicLevels.subList(0, shardLevels)) + "}:" + TopicLevels.join(topicLevels);
+        }
     }
 }
@@ -51,6 +51,35 @@ public class RedisLua {
                     "end\n" +
                     "return r";
 
+    // Increments the children count of the trie tree nodes by one
+    //
+    // Keys 1..N. Tree nodes to be increased
+    // Args 1..N. Child (topic level) in the tree node to be increased
+    // Returns OK
+    public static final String TREEINCR =
+            "local length = table.getn(KEYS)\n" +
+                    "for i = 1, length do\n" +
+                    "   redis.call('HINCRBY', KEYS[i], ARGV[i], 1)\n" +
+                    "end\n" +
+                    "return redis.status_reply('OK')";
+
+    // Decrements the children count of the trie tree nodes by one
+    // Removes the child from the tree node if count reached 0
+    //
+    // Keys 1..N. Tree nodes to be decreased
+    // Args 1..N. Child (topic level) in the tree node to be decreased
+    // Returns OK
+    public static final String TREEDECR =
+            "local length = table.getn(KEYS)\n" +
+                    "for i = 1, length do\n" +
+                    "   local count = redis.call('HINCRBY', KEYS[i], ARGV[i], -1)\n" +
+                    "   if count == 0\n" +
+                    "   then\n" +
+                    "       redis.call('HDEL', KEYS[i], ARGV[i])\n" +
+                    "   end\n" +
+                    "end\n" +
+                    "return redis.status_reply('OK')";
+
     // Removes the specified key only if its current value is equal to the given value
     //
     // Keys 1. Key to be deleted
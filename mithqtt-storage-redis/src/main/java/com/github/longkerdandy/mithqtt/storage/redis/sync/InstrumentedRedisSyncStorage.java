@@ -0,0 +1,323 @@
+package com.github.longkerdandy.mithqtt.storage.redis.sync;
+
+import com.github.longkerdandy.mithqtt.api.message.Message;
+import com.github.longkerdandy.mithqtt.api.message.MqttPublishPayload;
+import com.github.longkerdandy.mithqtt.storage.redis.ConnectionState;
+import com.github.longkerdandy.mithqtt.util.Histogram;
+import io.netty.handler.codec.mqtt.MqttPublishVariableHeader;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import org.apache.commons.configuration.AbstractConfiguration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Synchronized Storage recording the latency of another storage
+ * <p>
+ * Chained in front of the storage by listing both in storage.sync.class, like
+ * storage.sync.class=...InstrumentedRedisSyncStorage,...RedisSyncSingleStorage
+ * the storage listed next is created and initialized by this one.
+ * <p>
+ * Latency in microseconds of each operation is recorded to the histogram {method}, whose count is the number of calls.
+ * Operations invoked while handling a message are also recorded to {scope}.{method}, scope being set by the caller
+ * (like the MQTT message type) with {@link #scope(String)}. Overloaded methods share one histogram.
+ * Operations slower than storage.sync.slow.threshold milliseconds are logged.
+ */
+public class InstrumentedRedisSyncStorage implements RedisSyncStorage {
+
+    private static final Logger logger = LoggerFactory.getLogger(InstrumentedRedisSyncStorage.class);
+
+    // Scope of the operations invoked by the current thread
+    private static final ThreadLocal<String> SCOPE = new ThreadLocal<>();
+
+    // Histograms by name, created for each method up front, by scope when first recorded
+    private final Map<String, Histogram> histograms = new ConcurrentHashMap<>();
+    // Histograms by scope and method, so the {scope}.{method} name is only built when first recorded
+    private final Map<String, Map<String, Histogram>> scoped = new ConcurrentHashMap<>();
+
+    private RedisSyncStorage storage;
+    // Slow operation threshold in microseconds, 0 means not logged
+    private long slowThreshold;
+
+    public InstrumentedRedisSyncStorage() {
+        for (Method method : RedisSyncStorage.class.getMethods()) {
+            if (!method.getName().equals("init") && !method.getName().equals("destroy")) {
+                this.histograms.put(method.getName(), new Histogram());
+            }
+        }
+    }
+
+    /**
+     * Wrap an initialized storage
+     *
+     * @param storage       Storage
+     * @param slowThreshold Slow Operation Threshold in Milliseconds, 0 means not logged
+     */
+    public InstrumentedRedisSyncStorage(RedisSyncStorage storage, long slowThreshold) {
+        this();
+        this.storage = storage;
+        this.slowThreshold = TimeUnit.MILLISECONDS.toMicros(slowThreshold);
+    }
+
+    /**
+     * Get the scope of the operations invoked by the current thread
+     *
+     * @return Scope, null if not set
+     */
+    public static String scope() {
+        return SCOPE.get();
+    }
+
+    /**
+     * Set the scope of the operations invoked by the current thread
+     *
+     * @param scope Scope, null to clear
+     * @return Former Scope
+     */
+    public static String scope(String scope) {
+        String former = SCOPE.get();
+        if (scope == null) SCOPE.remove();
+        else SCOPE.set(scope);
+        return former;
+    }
+
+    /**
+     * Get the latency histograms
+     * The map is live, histograms of new scopes show up when first recorded.
+     *
+     * @return Histograms: Key - {method} or {scope}.{method}, Value - Latency in Microseconds
+     */
+    public Map<String, Histogram> getHistograms() {
+        return Collections.unmodifiableMap(this.histograms);
+    }
+
+    /**
+     * Get the storage being instrumented
+     *
+     * @return Storage
+     */
+    public RedisSyncStorage getStorage() {
+        return this.storage;
+    }
+
+    @Override
+    public void init(AbstractConfiguration config) {
+        List<String> classes = Arrays.asList(config.getStringArray("storage.sync.class"));
+        int i = classes.indexOf(getClass().getName());
+        if (i < 0 || i == classes.size() - 1) {
+            throw new IllegalStateException("Storage to be instrumented must be listed after " + getClass().getName() + " in storage.sync.class");
+        }
+        try {
+            this.storage = (RedisSyncStorage) Class.forName(classes.get(i + 1)).newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Failed to create storage " + classes.get(i + 1), e);
+        }
+        this.storage.init(config);
+        this.slowThreshold = TimeUnit.MILLISECONDS.toMicros(config.getLong("storage.sync.slow.threshold", 0));
+    }
+
+    @Override
+    public void destroy() {
+        if (this.storage != null) this.storage.destroy();
+    }
+
+    private <T> T time(String method, Supplier<T> operation) {
+        long start = System.nanoTime();
+        try {
+            return operation.get();
+        } finally {
+            record(method, TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+        }
+    }
+
+    private void time(String method, Runnable operation) {
+        long start = System.nanoTime();
+        try {
+            operation.run();
+        } finally {
+            record(method, TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+        }
+    }
+
+    private void record(String method, long micros) {
+        this.histograms.get(method).record(micros);
+        String scope = SCOPE.get();
+        if (scope != null) {
+            this.scoped.computeIfAbsent(scope, s -> new ConcurrentHashMap<>())
+                    .computeIfAbsent(method, m -> this.histograms.computeIfAbsent(scope + "." + m, n -> new Histogram()))
+                    .record(micros);
+        }
+        if (this.slowThreshold > 0 && micros >= this.slowThreshold) {
+            logger.warn("Slow storage: {} took {} ms{}", method, micros / 1000.0, scope != null ? " handling " + scope : "");
+        }
+    }
+
+    @Override
+    public boolean lock(String clientId, ConnectionState state) {
+        return time("lock", () -> this.storage.lock(clientId, state));
+    }
+
+    @Override
+    public boolean release(String clientId, ConnectionState state) {
+        return time("release", () -> this.storage.release(clientId, state));
+    }
+
+    @Override
+    public String getConnectedNode(String clientId) {
+        return time("getConnectedNode", () -> this.storage.getConnectedNode(clientId));
+    }
+
+    @Override
+    public String updateConnectedNode(String clientId, String node, int seconds) {
+        return time("updateConnectedNode", () -> this.storage.updateConnectedNode(clientId, node, seconds));
+    }
+
+    @Override
+    public boolean refreshConnectedNode(String clientId, String node, int seconds) {
+        return time("refreshConnectedNode", () -> this.storage.refreshConnectedNode(clientId, node, seconds));
+    }
+
+    @Override
+    public boolean removeConnectedNode(String clientId, String node) {
+        return time("removeConnectedNode", () -> this.storage.removeConnectedNode(clientId, node));
+    }
+
+    @Override
+    public int getSessionExist(String clientId) {
+        return time("getSessionExist", () -> this.storage.getSessionExist(clientId));
+    }
+
+    @Override
+    public void updateSessionExist(String clientId, boolean cleanSession) {
+        time("updateSessionExist", () -> this.storage.updateSessionExist(clientId, cleanSession));
+    }
+
+    @Override
+    public boolean removeSessionExist(String clientId) {
+        return time("removeSessionExist", () -> this.storage.removeSessionExist(clientId));
+    }
+
+    @Override
+    public void removeAllSessionState(String clientId) {
+        time("removeAllSessionState", () -> this.storage.removeAllSessionState(clientId));
+    }
+
+    @Override
+    public int getNextPacketId(String clientId) {
+        return time("getNextPacketId", () -> this.storage.getNextPacketId(clientId));
+    }
+
+    @Override
+    public Message getInFlightMessage(String clientId, int packetId) {
+        return time("getInFlightMessage", () -> this.storage.getInFlightMessage(clientId, packetId));
+    }
+
+    @Override
+    public void addInFlightMessage(String clientId, int packetId, Message msg, boolean dup) {
+        time("addInFlightMessage", () -> this.storage.addInFlightMessage(clientId, packetId, msg, dup));
+    }
+
+    @Override
+    public void addInFlightMessage(String clientId, int packetId, Message msg, boolean dup, long ttl) {
+        time("addInFlightMessage", () -> this.storage.addInFlightMessage(clientId, packetId, msg, dup, ttl));
+    }
+
+    @Override
+    public void addInFlightMessages(Collection<Message> msgs) {
+        time("addInFlightMessages", () -> this.storage.addInFlightMessages(msgs));
+    }
+
+    @Override
+    public void removeInFlightMessage(String clientId, int packetId) {
+        time("removeInFlightMessage", () -> this.storage.removeInFlightMessage(clientId, packetId));
+    }
+
+    @Override
+    public List<Message> getAllInFlightMessages(String clientId) {
+        return time("getAllInFlightMessages", () -> this.storage.getAllInFlightMessages(clientId));
+    }
+
+    @Override
+    public void removeAllInFlightMessage(String clientId) {
+        time("removeAllInFlightMessage", () -> this.storage.removeAllInFlightMessage(clientId));
+    }
+
+    @Override
+    public boolean addQoS2MessageId(String clientId, int packetId) {
+        return time("addQoS2MessageId", () -> this.storage.addQoS2MessageId(clientId, packetId));
+    }
+
+    @Override
+    public boolean removeQoS2MessageId(String clientId, int packetId) {
+        return time("removeQoS2MessageId", () -> this.storage.removeQoS2MessageId(clientId, packetId));
+    }
+
+    @Override
+    public void removeAllQoS2MessageId(String clientId) {
+        time("removeAllQoS2MessageId", () -> this.storage.removeAllQoS2MessageId(clientId));
+    }
+
+    @Override
+    public List<Integer> getAllQoS2MessageIds(String clientId) {
+        return time("getAllQoS2MessageIds", () -> this.storage.getAllQoS2MessageIds(clientId));
+    }
+
+    @Override
+    public void updateQoS2MessageIds(String clientId, Collection<Integer> added, Collection<Integer> removed) {
+        time("updateQoS2MessageIds", () -> this.storage.updateQoS2MessageIds(clientId, added, removed));
+    }
+
+    @Override
+    public Map<String, MqttQoS> getTopicSubscriptions(List<String> topicLevels) {
+        return time("getTopicSubscriptions", () -> this.storage.getTopicSubscriptions(topicLevels));
+    }
+
+    @Override
+    public Map<String, MqttQoS> getClientSubscriptions(String clientId) {
+        return time("getClientSubscriptions", () -> this.storage.getClientSubscriptions(clientId));
+    }
+
+    @Override
+    public void updateSubscription(String clientId, List<String> topicLevels, MqttQoS qos) {
+        time("updateSubscription", () -> this.storage.updateSubscription(clientId, topicLevels, qos));
+    }
+
+    @Override
+    public void removeSubscription(String clientId, List<String> topicLevels) {
+        time("removeSubscription", () -> this.storage.removeSubscription(clientId, topicLevels));
+    }
+
+    @Override
+    public void removeAllSubscriptions(String clientId) {
+        time("removeAllSubscriptions", () -> this.storage.removeAllSubscriptions(clientId));
+    }
+
+    @Override
+    public void getMatchSubscriptions(List<String> topicLevels, Map<String, MqttQoS> map) {
+        time("getMatchSubscriptions", () -> this.storage.getMatchSubscriptions(topicLevels, map));
+    }
+
+    @Override
+    public int addRetainMessage(List<String> topicLevels, Message<MqttPublishVariableHeader, MqttPublishPayload> msg) {
+        return time("addRetainMessage", () -> this.storage.addRetainMessage(topicLevels, msg));
+    }
+
+    @Override
+    public void removeAllRetainMessage(List<String> topicLevels) {
+        time("removeAllRetainMessage", () -> this.storage.removeAllRetainMessage(topicLevels));
+    }
+
+    @Override
+    public List<Message<MqttPublishVariableHeader, MqttPublishPayload>> getMatchRetainMessages(List<String> topicLevels) {
+        return time("getMatchRetainMessages", () -> this.storage.getMatchRetainMessages(topicLevels));
+    }
+}
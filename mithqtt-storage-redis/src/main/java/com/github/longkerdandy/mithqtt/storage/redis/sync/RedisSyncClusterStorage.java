@@ -2,6 +2,7 @@ package com.github.longkerdandy.mithqtt.storage.redis.sync;
 
 import com.lambdaworks.redis.ReadFrom;
 import com.lambdaworks.redis.RedisURI;
+import com.lambdaworks.redis.api.async.RedisScriptingAsyncCommands;
 import com.lambdaworks.redis.api.sync.*;
 import com.lambdaworks.redis.cluster.ClusterClientOptions;
 import com.lambdaworks.redis.cluster.RedisClusterClient;
@@ -66,6 +67,15 @@ public class RedisSyncClusterStorage extends RedisSyncSingleStorage {
         return this.lettuceClusterConn.sync();
     }
 
+    protected RedisScriptingAsyncCommands<String, String> scriptAsync() {
+        return this.lettuceClusterConn.async();
+    }
+
+    @Override
+    protected boolean isCluster() {
+        return true;
+    }
+
     @Override
     public void init(AbstractConfiguration config) {
         if (!config.getString("redis.type").equals("cluster")) {
@@ -0,0 +1,183 @@
+package com.github.longkerdandy.mithqtt.storage.redis.sync;
+
+import com.github.longkerdandy.mithqtt.storage.redis.RedisKey;
+import com.github.longkerdandy.mithqtt.util.Topics;
+import com.lambdaworks.redis.KeyScanCursor;
+import com.lambdaworks.redis.RedisException;
+import com.lambdaworks.redis.ScanArgs;
+import org.apache.commons.configuration.PropertiesConfiguration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.function.BiFunction;
+import java.util.function.Predicate;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Migrate client keys from the old layout 'client:id:*' to the hash tagged layout 'client:{id}:*', and rebuild the
+ * topic trie trees in the layout of the configured redis.tree.shard.levels
+ * Should be invoked when all the brokers and http interfaces are stopped
+ * <p>
+ * Usage: java -cp "lib/*" com.github.longkerdandy.mithqtt.storage.redis.sync.RedisSyncKeyMigration config/redis.properties
+ * <p>
+ * Keys are moved by DUMP, RESTORE (with remaining TTL) and DEL, because in cluster setup the old and new keys
+ * usually live in different slots and can't be renamed
+ */
+public class RedisSyncKeyMigration {
+
+    private static final Logger logger = LoggerFactory.getLogger(RedisSyncKeyMigration.class);
+
+    // Client keys in the old layout
+    private static final Pattern OLD_CLIENT_KEY = Pattern.compile("^client:(.+):(connection|session|pid|qos2|in\\.flight|in\\.flight:\\d+|subscription)$");
+
+    public static void main(String[] args) throws Exception {
+        PropertiesConfiguration redisConfig = new PropertiesConfiguration(args.length >= 1 ? args[0] : "config/redis.properties");
+
+        RedisSyncStorage storage = (RedisSyncStorage) Class.forName(redisConfig.getString("storage.sync.class")).newInstance();
+        storage.init(redisConfig);
+        try {
+            // migrate through the instrumented storage directly
+            RedisSyncSingleStorage redis = (RedisSyncSingleStorage) (storage instanceof InstrumentedRedisSyncStorage ?
+                    ((InstrumentedRedisSyncStorage) storage).getStorage() : storage);
+            long count = migrate(redis);
+            logger.info("Migration finished: {} client keys have been migrated", count);
+            count = rebuildTopicTrees(redis);
+            logger.info("Migration finished: {} topic filters and retain topics have been added to the topic trees", count);
+        } finally {
+            storage.destroy();
+        }
+    }
+
+    /**
+     * Migrate all the client keys in the old layout
+     *
+     * @param redis Redis Storage
+     * @return Number of keys migrated
+     */
+    static long migrate(RedisSyncSingleStorage redis) {
+        return scan(redis, "client:*", key -> {
+            String newKey = newClientKey(key);
+            return newKey != null && migrateKey(redis, key, newKey);
+        });
+    }
+
+    /**
+     * Rebuild the topic trie trees in the layout of the configured shard levels
+     * Tree nodes in any former layout are removed, then the trees are rebuilt from the topic filter subscriptions and
+     * the retain message lists, which do not depend on the shard levels.
+     *
+     * @param redis Redis Storage
+     * @return Number of topic filters and retain topics added to the trees
+     */
+    static long rebuildTopicTrees(RedisSyncSingleStorage redis) {
+        scan(redis, "{topic:?:tree*", key -> {
+            redis.key().del(key);
+            return false;
+        });
+        long count = scan(redis, "topic:f:*", key -> {
+            if (!"hash".equals(redis.key().type(key))) return false;
+            List<String> topicLevels = Topics.sanitize(key.substring("topic:f:".length()));
+            addToTopicTree(redis, RedisKey::topicFilterChild, topicLevels, redis.hash().hlen(key));
+            return true;
+        });
+        count += scan(redis, "topic:r:*", key -> {
+            if (!"list".equals(redis.key().type(key))) return false;
+            List<String> topicLevels = Topics.sanitize(key.substring("topic:r:".length()));
+            addToTopicTree(redis, RedisKey::topicRetainChild, topicLevels, redis.list().llen(key));
+            return true;
+        });
+        return count;
+    }
+
+    /**
+     * Increase the children count of the trie tree nodes along the topic levels
+     *
+     * @param redis       Redis Storage
+     * @param tree        Trie tree node key
+     * @param topicLevels List of topic levels
+     * @param count       Count to increase
+     */
+    private static void addToTopicTree(RedisSyncSingleStorage redis, BiFunction<List<String>, Integer, String> tree, List<String> topicLevels, long count) {
+        if (count <= 0) return;
+        for (int i = 0; i < topicLevels.size(); i++) {
+            redis.hash().hincrby(tree.apply(topicLevels.subList(0, i), redis.getTreeShardLevels()), topicLevels.get(i), count);
+        }
+    }
+
+    /**
+     * Scan the keys matching the pattern
+     *
+     * @param redis   Redis Storage
+     * @param pattern Key Pattern
+     * @param action  Action on each key, returns true if counted
+     * @return Number of keys counted
+     */
+    private static long scan(RedisSyncSingleStorage redis, String pattern, Predicate<String> action) {
+        long count = 0;
+        ScanArgs scanArgs = ScanArgs.Builder.matches(pattern).limit(1000);
+        KeyScanCursor<String> cursor = redis.key().scan(scanArgs);
+        while (true) {
+            for (String key : cursor.getKeys()) {
+                if (action.test(key)) count++;
+            }
+            if (cursor.isFinished()) break;
+            cursor = redis.key().scan(cursor, scanArgs);
+        }
+        return count;
+    }
+
+    /**
+     * Convert client key in the old layout to the new layout
+     *
+     * @param key Client key in the old layout
+     * @return Client key in the new layout, null if the key is not in the old layout
+     */
+    static String newClientKey(String key) {
+        if (key.startsWith("client:{")) return null;
+        Matcher m = OLD_CLIENT_KEY.matcher(key);
+        if (!m.matches()) return null;
+        String clientId = m.group(1);
+        String suffix = m.group(2);
+        switch (suffix) {
+            case "connection":
+                return RedisKey.connection(clientId);
+            case "session":
+                return RedisKey.session(clientId);
+            case "pid":
+                return RedisKey.nextPacketId(clientId);
+            case "qos2":
+                return RedisKey.qos2Set(clientId);
+            case "in.flight":
+                return RedisKey.inFlightList(clientId);
+            case "subscription":
+                return RedisKey.subscription(clientId);
+            default:
+                return RedisKey.inFlightMessage(clientId, Integer.parseInt(suffix.substring("in.flight:".length())));
+        }
+    }
+
+    /**
+     * Move the key to the new key, keeping the remaining TTL
+     *
+     * @param redis  Redis Storage
+     * @param key    Old Key
+     * @param newKey New Key
+     * @return True if the key is moved
+     */
+    private static boolean migrateKey(RedisSyncSingleStorage redis, String key, String newKey) {
+        byte[] value = redis.key().dump(key);
+        if (value == null) return false;
+        long ttl = redis.key().pttl(key);
+        try {
+            redis.key().restore(newKey, ttl > 0 ? ttl : 0, value);
+        } catch (RedisException e) {
+            logger.warn("Migration failed: Key {} can't be restored to {}: {}", key, newKey, e.getMessage());
+            return false;
+        }
+        redis.key().del(key);
+        logger.debug("Key {} has been migrated to {}", key, newKey);
+        return true;
+    }
+}
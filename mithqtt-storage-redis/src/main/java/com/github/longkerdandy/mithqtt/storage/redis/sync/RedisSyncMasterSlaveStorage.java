@@ -3,6 +3,7 @@ package com.github.longkerdandy.mithqtt.storage.redis.sync;
 import com.lambdaworks.redis.ReadFrom;
 import com.lambdaworks.redis.RedisClient;
 import com.lambdaworks.redis.RedisURI;
+import com.lambdaworks.redis.api.async.RedisScriptingAsyncCommands;
 import com.lambdaworks.redis.api.sync.*;
 import com.lambdaworks.redis.codec.Utf8StringCodec;
 import com.lambdaworks.redis.masterslave.MasterSlave;
@@ -64,6 +65,10 @@ public class RedisSyncMasterSlaveStorage extends RedisSyncSingleStorage {
         return this.lettuceMasterSlaveConn.sync();
     }
 
+    protected RedisScriptingAsyncCommands<String, String> scriptAsync() {
+        return this.lettuceMasterSlaveConn.async();
+    }
+
     @Override
     public void init(AbstractConfiguration config) {
         if (!config.getString("redis.type").equals("master_slave")) {
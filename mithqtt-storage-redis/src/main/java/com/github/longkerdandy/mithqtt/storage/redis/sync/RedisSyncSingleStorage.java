@@ -5,12 +5,20 @@ import com.github.longkerdandy.mithqtt.api.message.MqttPublishPayload;
 import com.github.longkerdandy.mithqtt.storage.redis.ConnectionState;
 import com.github.longkerdandy.mithqtt.storage.redis.RedisKey;
 import com.github.longkerdandy.mithqtt.storage.redis.RedisLua;
+import com.github.longkerdandy.mithqtt.util.SharedSubscriptions;
+import com.github.longkerdandy.mithqtt.util.TopicLevels;
 import com.github.longkerdandy.mithqtt.util.Topics;
+import com.lambdaworks.redis.LettuceFutures;
 import com.lambdaworks.redis.RedisClient;
+import com.lambdaworks.redis.RedisCommandTimeoutException;
+import com.lambdaworks.redis.RedisFuture;
 import com.lambdaworks.redis.RedisURI;
 import com.lambdaworks.redis.ScriptOutputType;
 import com.lambdaworks.redis.api.StatefulRedisConnection;
+import com.lambdaworks.redis.api.async.RedisScriptingAsyncCommands;
 import com.lambdaworks.redis.api.sync.*;
+import com.lambdaworks.redis.cluster.SlotHash;
+import io.netty.handler.codec.mqtt.MqttPacketIdVariableHeader;
 import io.netty.handler.codec.mqtt.MqttPublishVariableHeader;
 import io.netty.handler.codec.mqtt.MqttQoS;
 import org.apache.commons.configuration.AbstractConfiguration;
@@ -18,8 +26,11 @@ import org.apache.commons.lang3.BooleanUtils;
 import org.apache.commons.lang3.StringUtils;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
+import java.util.function.BiFunction;
 import java.util.stream.Collectors;
 
 import static com.github.longkerdandy.mithqtt.storage.redis.util.Converter.mapToMessage;
@@ -37,6 +48,13 @@ public class RedisSyncSingleStorage implements RedisSyncStorage {
     private int qos2QueueSize;
     // Max retain queue size per topic
     private int retainQueueSize;
+    // Number of leading topic levels used to shard the topic trie trees
+    private int treeShardLevels;
+    // Interval in milliseconds the wildcard children of the topic filter tree root are refreshed
+    private long treeRootRefresh;
+    // Wildcard children ('#' and '+') of the topic filter tree root, cached to keep the root off the publish path
+    private volatile List<String> treeRootWildcards;
+    private volatile long treeRootWildcardsExpire;
 
     // A scalable thread-safe Redis client. Multiple threads may share one connection if they avoid
     // blocking and transactional operations such as BLPOP and MULTI/EXEC.
@@ -84,6 +102,10 @@ public class RedisSyncSingleStorage implements RedisSyncStorage {
         return this.lettuceConn.sync();
     }
 
+    protected RedisScriptingAsyncCommands<String, String> scriptAsync() {
+        return this.lettuceConn.async();
+    }
+
     @Override
     public void init(AbstractConfiguration config) {
         // config
@@ -133,6 +155,27 @@ public class RedisSyncSingleStorage implements RedisSyncStorage {
         this.inFlightQueueSize = config.getInt("mqtt.inflight.queue.size", 0);
         this.qos2QueueSize = config.getInt("mqtt.qos2.queue.size", 0);
         this.retainQueueSize = config.getInt("mqtt.retain.queue.size", 0);
+        this.treeShardLevels = config.getInt("redis.tree.shard.levels", 0);
+        this.treeRootRefresh = config.getLong("redis.tree.root.refresh", 1000);
+    }
+
+    /**
+     * Whether keys of different hash tags may live on different nodes
+     * Multi-key scripts can then only touch keys in the same slot
+     *
+     * @return True if this is a cluster setup
+     */
+    protected boolean isCluster() {
+        return false;
+    }
+
+    /**
+     * Get the number of leading topic levels used to shard the topic trie trees
+     *
+     * @return Shard Levels
+     */
+    int getTreeShardLevels() {
+        return this.treeShardLevels;
     }
 
     @Override
@@ -226,10 +269,16 @@ public class RedisSyncSingleStorage implements RedisSyncStorage {
 
     @Override
     public void removeAllSessionState(String clientId) {
-        removeSessionExist(clientId);
+        // subscriptions also live in the topic keys, which may be in other cluster slots
         removeAllSubscriptions(clientId);
-        removeAllQoS2MessageId(clientId);
-        removeAllInFlightMessage(clientId);
+        // session existence, qos 2 ids and in-flight messages are purged in a single script
+        this.script().eval("local ids = redis.call('LRANGE', KEYS[3], 0, -1)\n" +
+                        "for i = 1, table.getn(ids) do\n" +
+                        "   redis.call('DEL', KEYS[3] .. ':' .. ids[i])\n" +
+                        "end\n" +
+                        "redis.call('DEL', KEYS[1], KEYS[2], KEYS[3])\n" +
+                        "return redis.status_reply('OK')",
+                ScriptOutputType.STATUS, new String[]{RedisKey.session(clientId), RedisKey.qos2Set(clientId), RedisKey.inFlightList(clientId)});
     }
 
     @Override
@@ -244,13 +293,78 @@ public class RedisSyncSingleStorage implements RedisSyncStorage {
         return m;
     }
 
+    // Push packet id into in-flight list with length limit, delete the popped in-flight message, then save the message
+    //
+    // Keys 1. In-flight list
+    // Keys 2. In-flight message
+    // Args 1. Packet id
+    // Args 2. Maximum length of the list
+    // Args 3.. Message hash fields and values
+    private static final String ADD_IN_FLIGHT =
+            "local cnt = redis.call('RPUSH', KEYS[1], ARGV[1])\n" +
+                    "if tonumber(ARGV[2]) > 0 and cnt > tonumber(ARGV[2])\n" +
+                    "then\n" +
+                    "   redis.call('DEL', KEYS[1] .. ':' .. redis.call('LPOP', KEYS[1]))\n" +
+                    "end\n" +
+                    "redis.call('HMSET', KEYS[2], unpack(ARGV, 3))\n" +
+                    "return redis.status_reply('OK')";
+
     @Override
     public void addInFlightMessage(String clientId, int packetId, Message msg, boolean dup) {
+        this.script().eval(ADD_IN_FLIGHT, ScriptOutputType.STATUS,
+                new String[]{RedisKey.inFlightList(clientId), RedisKey.inFlightMessage(clientId, packetId)}, inFlightArgs(packetId, msg, dup));
+    }
+
+    @Override
+    public void addInFlightMessages(Collection<Message> msgs) {
+        // async commands are pipelined on the shared connection, so the whole batch costs about one round trip
+        List<RedisFuture<String>> futures = new ArrayList<>();
+        msgs.forEach(msg -> {
+            String clientId = msg.additionalHeader().clientId();
+            int packetId = packetId(msg);
+            futures.add(this.scriptAsync().eval(ADD_IN_FLIGHT, ScriptOutputType.STATUS,
+                    new String[]{RedisKey.inFlightList(clientId), RedisKey.inFlightMessage(clientId, packetId)}, inFlightArgs(packetId, msg, msg.fixedHeader().dup())));
+        });
+        if (!LettuceFutures.awaitAll(RedisURI.DEFAULT_TIMEOUT, RedisURI.DEFAULT_TIMEOUT_UNIT, futures.toArray(new RedisFuture[futures.size()]))) {
+            throw new RedisCommandTimeoutException("Add in-flight messages timed out");
+        }
+    }
+
+    /**
+     * Get packet id from PUBLISH or PUBREL message
+     *
+     * @param msg Message
+     * @return Packet Id
+     */
+    private static int packetId(Message msg) {
+        if (msg.variableHeader() instanceof MqttPublishVariableHeader) {
+            return ((MqttPublishVariableHeader) msg.variableHeader()).packetId();
+        } else {
+            return ((MqttPacketIdVariableHeader) msg.variableHeader()).packetId();
+        }
+    }
+
+    /**
+     * Build the arguments of the add in-flight script
+     *
+     * @param packetId Packet Id
+     * @param msg      In-Flight Message
+     * @param dup      Duplicated
+     * @return Arguments
+     */
+    private String[] inFlightArgs(int packetId, Message msg, boolean dup) {
         Map<String, String> map = messageToMap(msg);
         map.put("dup", BooleanUtils.toString(dup, "1", "0"));
-        String r = this.script().eval(RedisLua.RPUSHLIMIT, ScriptOutputType.VALUE, new String[]{RedisKey.inFlightList(clientId)}, String.valueOf(packetId), String.valueOf(this.inFlightQueueSize));
-        if (r != null) this.key().del(RedisKey.inFlightMessage(clientId, Integer.parseInt(r)));
-        this.hash().hmset(RedisKey.inFlightMessage(clientId, packetId), map);
+        List<String> argv = new ArrayList<>();
+        argv.add(String.valueOf(packetId));
+        argv.add(String.valueOf(this.inFlightQueueSize));
+        map.forEach((field, value) -> {
+            if (value != null) {
+                argv.add(field);
+                argv.add(value);
+            }
+        });
+        return argv.toArray(new String[argv.size()]);
     }
 
     @Override
@@ -261,8 +375,10 @@ public class RedisSyncSingleStorage implements RedisSyncStorage {
 
     @Override
     public void removeInFlightMessage(String clientId, int packetId) {
-        this.list().lrem(RedisKey.inFlightList(clientId), 0, String.valueOf(packetId));
-        this.key().del(RedisKey.inFlightMessage(clientId, packetId));
+        this.script().eval("redis.call('LREM', KEYS[1], 0, ARGV[1])\n" +
+                        "redis.call('DEL', KEYS[2])\n" +
+                        "return redis.status_reply('OK')",
+                ScriptOutputType.STATUS, new String[]{RedisKey.inFlightList(clientId), RedisKey.inFlightMessage(clientId, packetId)}, String.valueOf(packetId));
     }
 
     @Override
@@ -281,11 +397,13 @@ public class RedisSyncSingleStorage implements RedisSyncStorage {
 
     @Override
     public void removeAllInFlightMessage(String clientId) {
-        List<String> ids = this.list().lrange(RedisKey.inFlightList(clientId), 0, -1);
-        if (ids != null) {
-            ids.forEach(packetId ->
-                    removeInFlightMessage(clientId, Integer.parseInt(packetId)));
-        }
+        this.script().eval("local ids = redis.call('LRANGE', KEYS[1], 0, -1)\n" +
+                        "for i = 1, table.getn(ids) do\n" +
+                        "   redis.call('DEL', KEYS[1] .. ':' .. ids[i])\n" +
+                        "end\n" +
+                        "redis.call('DEL', KEYS[1])\n" +
+                        "return redis.status_reply('OK')",
+                ScriptOutputType.STATUS, new String[]{RedisKey.inFlightList(clientId)});
     }
 
     @Override
@@ -308,6 +426,40 @@ public class RedisSyncSingleStorage implements RedisSyncStorage {
         this.key().del(RedisKey.qos2Set(clientId));
     }
 
+    @Override
+    public List<Integer> getAllQoS2MessageIds(String clientId) {
+        List<Integer> r = new ArrayList<>();
+        List<String> ids = this.sortedSet().zrange(RedisKey.qos2Set(clientId), 0, -1);
+        if (ids != null) ids.forEach(packetId -> r.add(Integer.parseInt(packetId)));
+        return r;
+    }
+
+    @Override
+    public void updateQoS2MessageIds(String clientId, Collection<Integer> added, Collection<Integer> removed) {
+        if (added.isEmpty() && removed.isEmpty()) return;
+        List<String> argv = new ArrayList<>();
+        argv.add(String.valueOf(System.currentTimeMillis()));
+        argv.add(String.valueOf(this.qos2QueueSize));
+        argv.add(String.valueOf(added.size()));
+        added.forEach(packetId -> argv.add(String.valueOf(packetId)));
+        removed.forEach(packetId -> argv.add(String.valueOf(packetId)));
+        // oldest packet ids beyond the queue size are dropped, like adding them one by one
+        this.script().eval("local added = tonumber(ARGV[3])\n" +
+                        "for i = 4, 3 + added do\n" +
+                        "   redis.call('ZADD', KEYS[1], ARGV[1], ARGV[i])\n" +
+                        "end\n" +
+                        "for i = 4 + added, table.getn(ARGV) do\n" +
+                        "   redis.call('ZREM', KEYS[1], ARGV[i])\n" +
+                        "end\n" +
+                        "local cnt = redis.call('ZCARD', KEYS[1])\n" +
+                        "if tonumber(ARGV[2]) > 0 and cnt > tonumber(ARGV[2])\n" +
+                        "then\n" +
+                        "   redis.call('ZREMRANGEBYRANK', KEYS[1], 0, cnt - tonumber(ARGV[2]) - 1)\n" +
+                        "end\n" +
+                        "return redis.status_reply('OK')",
+                ScriptOutputType.STATUS, new String[]{RedisKey.qos2Set(clientId)}, argv.toArray(new String[argv.size()]));
+    }
+
     @Override
     public Map<String, MqttQoS> getTopicSubscriptions(List<String> topicLevels) {
         Map<String, String> subscriptions;
@@ -331,57 +483,46 @@ public class RedisSyncSingleStorage implements RedisSyncStorage {
 
     @Override
     public void updateSubscription(String clientId, List<String> topicLevels, MqttQoS qos) {
-        if (Topics.isTopicFilter(topicLevels)) {
-            boolean b1 = this.hash().hset(RedisKey.subscription(clientId), String.join("/", topicLevels), String.valueOf(qos.value()));
-            boolean b2 = this.hash().hset(RedisKey.topicFilter(topicLevels), clientId, String.valueOf(qos.value()));
+        // shared subscription is kept in the tree under its topic filter, by the group member
+        String subscriber = clientId;
+        List<String> filterLevels = topicLevels;
+        if (SharedSubscriptions.isShared(topicLevels)) {
+            subscriber = SharedSubscriptions.member(topicLevels, clientId);
+            filterLevels = SharedSubscriptions.filter(topicLevels);
+        }
+        if (Topics.isTopicFilter(filterLevels)) {
+            boolean b1 = this.hash().hset(RedisKey.subscription(clientId), TopicLevels.join(topicLevels), String.valueOf(qos.value()));
+            boolean b2 = this.hash().hset(RedisKey.topicFilter(filterLevels), subscriber, String.valueOf(qos.value()));
             if (b1 && b2) {
-                List<String> keys = new ArrayList<>();
-                List<String> argv = new ArrayList<>();
                 // topic filter tree
-                for (int i = 0; i < topicLevels.size(); i++) {
-                    keys.add(RedisKey.topicFilterChild(topicLevels.subList(0, i)));
-                    argv.add(topicLevels.get(i));
-                }
-                this.script().eval("local length = table.getn(KEYS)\n" +
-                                "for i = 1, length do\n" +
-                                "   redis.call('HINCRBY', KEYS[i], ARGV[i], 1)\n" +
-                                "end\n" +
-                                "return redis.status_reply('OK')",
-                        ScriptOutputType.STATUS, keys.toArray(new String[keys.size()]), argv.toArray(new String[argv.size()]));
+                updateTopicTree(RedisKey::topicFilterChild, filterLevels, RedisLua.TREEINCR);
+                if ("#".equals(filterLevels.get(0)) || "+".equals(filterLevels.get(0))) this.treeRootWildcards = null;
             }
         } else {
-            this.hash().hset(RedisKey.subscription(clientId), String.join("/", topicLevels), String.valueOf(qos.value()));
-            this.hash().hset(RedisKey.topicName(topicLevels), clientId, String.valueOf(qos.value()));
+            this.hash().hset(RedisKey.subscription(clientId), TopicLevels.join(topicLevels), String.valueOf(qos.value()));
+            this.hash().hset(RedisKey.topicName(filterLevels), subscriber, String.valueOf(qos.value()));
         }
     }
 
     @Override
     public void removeSubscription(String clientId, List<String> topicLevels) {
-        if (Topics.isTopicFilter(topicLevels)) {
-            long b1 = this.hash().hdel(RedisKey.subscription(clientId), String.join("/", topicLevels));
-            long b2 = this.hash().hdel(RedisKey.topicFilter(topicLevels), clientId);
+        String subscriber = clientId;
+        List<String> filterLevels = topicLevels;
+        if (SharedSubscriptions.isShared(topicLevels)) {
+            subscriber = SharedSubscriptions.member(topicLevels, clientId);
+            filterLevels = SharedSubscriptions.filter(topicLevels);
+        }
+        if (Topics.isTopicFilter(filterLevels)) {
+            long b1 = this.hash().hdel(RedisKey.subscription(clientId), TopicLevels.join(topicLevels));
+            long b2 = this.hash().hdel(RedisKey.topicFilter(filterLevels), subscriber);
             if (b1 == 1 && b2 == 1) {
-                List<String> keys = new ArrayList<>();
-                List<String> argv = new ArrayList<>();
                 // topic filter tree
-                for (int i = 0; i < topicLevels.size(); i++) {
-                    keys.add(RedisKey.topicFilterChild(topicLevels.subList(0, i)));
-                    argv.add(topicLevels.get(i));
-                }
-                this.script().eval("local length = table.getn(KEYS)\n" +
-                                "for i = 1, length do\n" +
-                                "   local count = redis.call('HINCRBY', KEYS[i], ARGV[i], -1)\n" +
-                                "   if count == 0\n" +
-                                "   then\n" +
-                                "       redis.call('HDEL', KEYS[i], ARGV[i])\n" +
-                                "   end\n" +
-                                "end\n" +
-                                "return redis.status_reply('OK')",
-                        ScriptOutputType.STATUS, keys.toArray(new String[keys.size()]), argv.toArray(new String[argv.size()]));
+                updateTopicTree(RedisKey::topicFilterChild, filterLevels, RedisLua.TREEDECR);
+                if ("#".equals(filterLevels.get(0)) || "+".equals(filterLevels.get(0))) this.treeRootWildcards = null;
             }
         } else {
-            this.hash().hdel(RedisKey.subscription(clientId), String.join("/", topicLevels));
-            this.hash().hdel(RedisKey.topicName(topicLevels), clientId);
+            this.hash().hdel(RedisKey.subscription(clientId), TopicLevels.join(topicLevels));
+            this.hash().hdel(RedisKey.topicName(filterLevels), subscriber);
         }
     }
 
@@ -392,6 +533,57 @@ public class RedisSyncSingleStorage implements RedisSyncStorage {
                         removeSubscription(clientId, Topics.sanitize(topic)));
     }
 
+    /**
+     * Increase or decrease the children count of the trie tree nodes along the topic levels
+     * The whole path is updated by a single script, so concurrent updates never interleave within a path.
+     * In cluster setup nodes shallower than the shard levels live in their own slots, so the path is updated by one
+     * script per slot: deepest first when increasing and shallowest first when decreasing, so a route is only
+     * reachable from the root while all its deeper nodes exist.
+     *
+     * @param tree        Trie tree node key
+     * @param topicLevels List of topic levels
+     * @param script      TREEINCR or TREEDECR script
+     */
+    private void updateTopicTree(BiFunction<List<String>, Integer, String> tree, List<String> topicLevels, String script) {
+        List<List<String>> keys = new ArrayList<>();
+        List<List<String>> argv = new ArrayList<>();
+        int slot = -1;
+        for (int i = 0; i < topicLevels.size(); i++) {
+            String key = tree.apply(topicLevels.subList(0, i), this.treeShardLevels);
+            int s = isCluster() ? SlotHash.getSlot(key) : 0;
+            if (keys.isEmpty() || s != slot) {
+                keys.add(new ArrayList<>());
+                argv.add(new ArrayList<>());
+                slot = s;
+            }
+            keys.get(keys.size() - 1).add(key);
+            argv.get(argv.size() - 1).add(topicLevels.get(i));
+        }
+        boolean deepestFirst = script.equals(RedisLua.TREEINCR);
+        for (int j = 0; j < keys.size(); j++) {
+            int g = deepestFirst ? keys.size() - 1 - j : j;
+            this.script().eval(script, ScriptOutputType.STATUS, keys.get(g).toArray(new String[keys.get(g).size()]), argv.get(g).toArray(new String[argv.get(g).size()]));
+        }
+    }
+
+    /**
+     * Get the wildcard children ('#' and '+') of the topic filter tree root
+     * Cached for the refresh interval, so the root is not read on every publish. Changes made by this storage are
+     * seen immediately, changes made by other brokers within the refresh interval.
+     *
+     * @return Children counts of '#' and '+', null if not exist
+     */
+    private List<String> getTreeRootWildcards() {
+        long now = System.currentTimeMillis();
+        List<String> wildcards = this.treeRootWildcards;
+        if (wildcards == null || now >= this.treeRootWildcardsExpire) {
+            wildcards = this.hash().hmget(RedisKey.topicFilterChild(null, this.treeShardLevels), "#", "+");
+            this.treeRootWildcardsExpire = now + this.treeRootRefresh;
+            this.treeRootWildcards = wildcards;
+        }
+        return wildcards;
+    }
+
     /**
      * Get possible topic filter tree sub nodes matching the topic
      * Topic Levels must been sanitized
@@ -401,10 +593,14 @@ public class RedisSyncSingleStorage implements RedisSyncStorage {
      * @return Possible matching children
      */
     private List<String> getMatchTopicFilter(List<String> topicLevels, int index) {
-        if (index == topicLevels.size() - 1) {
-            return this.hash().hmget(RedisKey.topicFilterChild(topicLevels.subList(0, index)), END, "#");
+        if (index == 0 && index < topicLevels.size() - 1 && this.treeShardLevels > 0 && this.treeRootRefresh > 0) {
+            // the first level node is read directly instead, it is empty if no route passes through it
+            List<String> wildcards = getTreeRootWildcards();
+            return Arrays.asList("1", wildcards.get(0), wildcards.get(1));
+        } else if (index == topicLevels.size() - 1) {
+            return this.hash().hmget(RedisKey.topicFilterChild(topicLevels.subList(0, index), this.treeShardLevels), END, "#");
         } else {
-            return this.hash().hmget(RedisKey.topicFilterChild(topicLevels.subList(0, index)), topicLevels.get(index), "#", "+");
+            return this.hash().hmget(RedisKey.topicFilterChild(topicLevels.subList(0, index), this.treeShardLevels), topicLevels.get(index), "#", "+");
         }
     }
 
@@ -498,39 +694,13 @@ public class RedisSyncSingleStorage implements RedisSyncStorage {
         // retain's message list
         String r = this.script().eval(RedisLua.RPUSHLIMIT, ScriptOutputType.VALUE, new String[]{RedisKey.topicRetainList(topicLevels)}, String.valueOf(retainId), String.valueOf(this.retainQueueSize));
         if (r != null) {
-            List<String> keys = new ArrayList<>();
-            List<String> argv = new ArrayList<>();
-            for (int i = 0; i < topicLevels.size(); i++) {
-                keys.add(RedisKey.topicRetainChild(topicLevels.subList(0, i)));
-                argv.add(topicLevels.get(i));
-            }
-            this.script().eval("local length = table.getn(KEYS)\n" +
-                            "for i = 1, length do\n" +
-                            "   local count = redis.call('HINCRBY', KEYS[i], ARGV[i], -1)\n" +
-                            "   if count == 0\n" +
-                            "   then\n" +
-                            "       redis.call('HDEL', KEYS[i], ARGV[i])\n" +
-                            "   end\n" +
-                            "end\n" +
-                            "return redis.status_reply('OK')",
-                    ScriptOutputType.STATUS, keys.toArray(new String[keys.size()]), argv.toArray(new String[argv.size()]));
+            updateTopicTree(RedisKey::topicRetainChild, topicLevels, RedisLua.TREEDECR);
 
             this.key().del(RedisKey.topicRemainMessage(topicLevels, retainId));
         }
 
         // retain tree
-        List<String> keys = new ArrayList<>();
-        List<String> argv = new ArrayList<>();
-        for (int i = 0; i < topicLevels.size(); i++) {
-            keys.add(RedisKey.topicRetainChild(topicLevels.subList(0, i)));
-            argv.add(topicLevels.get(i));
-        }
-        this.script().eval("local length = table.getn(KEYS)\n" +
-                        "for i = 1, length do\n" +
-                        "    redis.call('HINCRBY', KEYS[i], ARGV[i], 1)\n" +
-                        "end\n" +
-                        "return redis.status_reply('OK')",
-                ScriptOutputType.STATUS, keys.toArray(new String[keys.size()]), argv.toArray(new String[argv.size()]));
+        updateTopicTree(RedisKey::topicRetainChild, topicLevels, RedisLua.TREEINCR);
 
         // retain message
         this.hash().hmset(RedisKey.topicRemainMessage(topicLevels, retainId), messageToMap(msg));
@@ -550,22 +720,7 @@ public class RedisSyncSingleStorage implements RedisSyncStorage {
 
         // retain tree
         if (b == 1) {
-            List<String> keys = new ArrayList<>();
-            List<String> argv = new ArrayList<>();
-            for (int i = 0; i < topicLevels.size(); i++) {
-                keys.add(RedisKey.topicRetainChild(topicLevels.subList(0, i)));
-                argv.add(topicLevels.get(i));
-            }
-            this.script().eval("local length = table.getn(KEYS)\n" +
-                            "for i = 1, length do\n" +
-                            "   local count = redis.call('HINCRBY', KEYS[i], ARGV[i], -1)\n" +
-                            "   if count == 0\n" +
-                            "   then\n" +
-                            "       redis.call('HDEL', KEYS[i], ARGV[i])\n" +
-                            "   end\n" +
-                            "end\n" +
-                            "return redis.status_reply('OK')",
-                    ScriptOutputType.STATUS, keys.toArray(new String[keys.size()]), argv.toArray(new String[argv.size()]));
+            updateTopicTree(RedisKey::topicRetainChild, topicLevels, RedisLua.TREEDECR);
         }
 
         // retain message
@@ -591,7 +746,7 @@ public class RedisSyncSingleStorage implements RedisSyncStorage {
      * @param list        RETURN VALUE! List of retain message topics
      */
     private void getMatchRetainPrefix(List<String> topicLevels, List<List<String>> list) {
-        Map<String, String> nodes = this.hash().hgetall(RedisKey.topicRetainChild(topicLevels));
+        Map<String, String> nodes = this.hash().hgetall(RedisKey.topicRetainChild(topicLevels, this.treeShardLevels));
         if (nodes != null) {
             nodes.forEach((node, count) -> {
                 int c = Integer.parseInt(count);
@@ -626,7 +781,7 @@ public class RedisSyncSingleStorage implements RedisSyncStorage {
                 getMatchRetainPrefix(t1, list);
                 break;
             case "+":
-                Map<String, String> nodes = this.hash().hgetall(RedisKey.topicRetainChild(topicLevels.subList(0, index)));
+                Map<String, String> nodes = this.hash().hgetall(RedisKey.topicRetainChild(topicLevels.subList(0, index), this.treeShardLevels));
                 if (nodes != null) {
                     nodes.forEach((node, count) -> {
                         if (!node.equals(Topics.END) && Integer.parseInt(count) > 0) {
@@ -644,7 +799,7 @@ public class RedisSyncSingleStorage implements RedisSyncStorage {
                 }
                 break;
             default:
-                String count = this.hash().hget(RedisKey.topicRetainChild(topicLevels.subList(0, index)), level);
+                String count = this.hash().hget(RedisKey.topicRetainChild(topicLevels.subList(0, index), this.treeShardLevels), level);
                 if (count != null && Integer.parseInt(count) > 0) {
                     if (level.equals(Topics.END) && index == topicLevels.size() - 1) {
                         list.add(topicLevels);
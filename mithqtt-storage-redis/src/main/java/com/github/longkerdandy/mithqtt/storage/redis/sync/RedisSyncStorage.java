@@ -7,6 +7,7 @@ import io.netty.handler.codec.mqtt.MqttPublishVariableHeader;
 import io.netty.handler.codec.mqtt.MqttQoS;
 import org.apache.commons.configuration.AbstractConfiguration;
 
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 
@@ -156,6 +157,15 @@ public interface RedisSyncStorage {
      */
     void addInFlightMessage(String clientId, int packetId, Message msg, boolean dup, long ttl);
 
+    /**
+     * Add in-flight messages for multiple clients in batch, used to group commit
+     * Client id, packet id and dup flag are taken from the message's headers
+     * Implementation should pipeline the writes, so the whole batch costs about one round trip
+     *
+     * @param msgs In-Flight Messages
+     */
+    void addInFlightMessages(Collection<Message> msgs);
+
     /**
      * Remove specific in-flight message for the client
      *
@@ -208,6 +218,24 @@ public interface RedisSyncStorage {
      */
     void removeAllQoS2MessageId(String clientId);
 
+    /**
+     * Get all unacknowledged qos 2 PUBLISH message's packet id from the client
+     *
+     * @param clientId Client Id
+     * @return List of Packet Id
+     */
+    List<Integer> getAllQoS2MessageIds(String clientId);
+
+    /**
+     * Add and remove unacknowledged qos 2 PUBLISH message's packet ids from the client, in a single round trip
+     * Packet ids not in either collection are kept.
+     *
+     * @param clientId Client Id
+     * @param added    Packet Ids to be added
+     * @param removed  Packet Ids to be removed
+     */
+    void updateQoS2MessageIds(String clientId, Collection<Integer> added, Collection<Integer> removed);
+
     /**
      * Get the topic's subscriptions
      * Topic Levels must been sanitized
@@ -228,6 +256,7 @@ public interface RedisSyncStorage {
     /**
      * Update topic subscription for the client
      * Topic Levels must been sanitized
+     * Shared subscription '$share/{group}/{filter}' joins the client to the group of the topic filter
      *
      * @param clientId    Client Id
      * @param topicLevels List of topic levels
@@ -256,7 +285,7 @@ public interface RedisSyncStorage {
      * This is a recursion method
      *
      * @param topicLevels List of topic levels
-     * @param map         RETURN VALUE! Subscriptions: Key - Client Id, Value - QoS
+     * @param map         RETURN VALUE! Subscriptions: Key - Client Id or shared subscription group member, Value - QoS
      */
     void getMatchSubscriptions(List<String> topicLevels, Map<String, MqttQoS> map);
 
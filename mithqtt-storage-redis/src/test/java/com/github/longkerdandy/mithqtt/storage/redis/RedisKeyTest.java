@@ -0,0 +1,57 @@
+package com.github.longkerdandy.mithqtt.storage.redis;
+
+import com.github.longkerdandy.mithqtt.util.Topics;
+import com.lambdaworks.redis.cluster.SlotHash;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * RedisKey Test
+ */
+public class RedisKeyTest {
+
+    @Test
+    public void clientTest() {
+        assert RedisKey.session("client1").equals("client:{client1}:session");
+        assert RedisKey.inFlightMessage("client1", 100).equals("client:{client1}:in.flight:100");
+        int slot = SlotHash.getSlot(RedisKey.connection("client1"));
+        assert SlotHash.getSlot(RedisKey.session("client1")) == slot;
+        assert SlotHash.getSlot(RedisKey.nextPacketId("client1")) == slot;
+        assert SlotHash.getSlot(RedisKey.qos2Set("client1")) == slot;
+        assert SlotHash.getSlot(RedisKey.inFlightList("client1")) == slot;
+        assert SlotHash.getSlot(RedisKey.inFlightMessage("client1", 100)) == slot;
+        assert SlotHash.getSlot(RedisKey.subscription("client1")) == slot;
+
+        // client id makes an empty hash tag
+        slot = SlotHash.getSlot(RedisKey.connection("}client1"));
+        assert SlotHash.getSlot(RedisKey.session("}client1")) == slot;
+        assert SlotHash.getSlot(RedisKey.inFlightMessage("}client1", 100)) == slot;
+        assert !RedisKey.session("}client1").equals(RedisKey.session("client1"));
+        assert SlotHash.getSlot(RedisKey.connection("")) == SlotHash.getSlot(RedisKey.subscription(""));
+    }
+
+    @Test
+    public void topicTreeNodeTest() {
+        List<String> topicLevels = Topics.sanitize("a/b/+/d");
+
+        // single slot
+        assert RedisKey.topicFilterChild(new ArrayList<>(), 0).equals("{topic:f:tree}");
+        assert RedisKey.topicFilterChild(topicLevels.subList(0, 2), 0).equals("{topic:f:tree}:a/b");
+        assert SlotHash.getSlot(RedisKey.topicFilterChild(topicLevels.subList(0, 1), 0)) == SlotHash.getSlot(RedisKey.topicFilterChild(topicLevels.subList(0, 4), 0));
+
+        // shard by first level
+        assert RedisKey.topicFilterChild(new ArrayList<>(), 1).equals("{topic:f:tree}");
+        assert RedisKey.topicFilterChild(topicLevels.subList(0, 1), 1).equals("{topic:f:tree:a}");
+        assert RedisKey.topicFilterChild(topicLevels.subList(0, 3), 1).equals("{topic:f:tree:a}:a/b/+");
+        assert SlotHash.getSlot(RedisKey.topicFilterChild(topicLevels.subList(0, 1), 1)) == SlotHash.getSlot(RedisKey.topicFilterChild(topicLevels.subList(0, 4), 1));
+        assert SlotHash.getSlot(RedisKey.topicFilterChild(topicLevels.subList(0, 1), 1)) != SlotHash.getSlot(RedisKey.topicFilterChild(Topics.sanitize("x/b/+/d").subList(0, 1), 1));
+
+        // shard by first two levels
+        assert RedisKey.topicRetainChild(topicLevels.subList(0, 1), 2).equals("{topic:r:tree:a}");
+        assert RedisKey.topicRetainChild(topicLevels.subList(0, 2), 2).equals("{topic:r:tree:a/b}");
+        assert RedisKey.topicRetainChild(topicLevels.subList(0, 4), 2).equals("{topic:r:tree:a/b}:a/b/+/d");
+        assert SlotHash.getSlot(RedisKey.topicRetainChild(topicLevels.subList(0, 2), 2)) == SlotHash.getSlot(RedisKey.topicRetainChild(topicLevels.subList(0, 4), 2));
+    }
+}
@@ -0,0 +1,72 @@
+package com.github.longkerdandy.mithqtt.storage.redis.sync;
+
+import com.github.longkerdandy.mithqtt.storage.redis.ConnectionState;
+import com.github.longkerdandy.mithqtt.util.Histogram;
+import org.apache.commons.configuration.MapConfiguration;
+import org.junit.Test;
+
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * InstrumentedRedisSyncStorage Test
+ */
+public class InstrumentedRedisSyncStorageTest {
+
+    @Test
+    public void recordTest() {
+        RedisSyncStorage target = (RedisSyncStorage) Proxy.newProxyInstance(RedisSyncStorage.class.getClassLoader(), new Class[]{RedisSyncStorage.class}, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "lock":
+                    return true;
+                case "getNextPacketId":
+                    if (args[0] == null) throw new IllegalArgumentException();
+                    return 1;
+                default:
+                    return null;
+            }
+        });
+        InstrumentedRedisSyncStorage redis = new InstrumentedRedisSyncStorage(target, 0);
+
+        assert redis.lock("client1", ConnectionState.CONNECTING);
+        String former = InstrumentedRedisSyncStorage.scope("PUBLISH");
+        try {
+            assert InstrumentedRedisSyncStorage.scope().equals("PUBLISH");
+            assert redis.getNextPacketId("client1") == 1;
+            // overloaded methods share one histogram
+            redis.addInFlightMessage("client1", 1, null, false);
+            redis.addInFlightMessage("client1", 1, null, false, 60);
+        } finally {
+            InstrumentedRedisSyncStorage.scope(former);
+        }
+        try {
+            redis.getNextPacketId(null);
+            assert false;
+        } catch (IllegalArgumentException ignored) {
+            // exception thrown by the storage is passed through, and still recorded
+        }
+
+        Map<String, Histogram> histograms = redis.getHistograms();
+        assert histograms.get("lock").count() == 1;
+        assert histograms.get("getNextPacketId").count() == 2;
+        assert histograms.get("addInFlightMessage").count() == 2;
+        assert histograms.get("removeAllSubscriptions").count() == 0;
+        assert histograms.get("PUBLISH.getNextPacketId").count() == 1;
+        assert histograms.get("PUBLISH.addInFlightMessage").count() == 2;
+        assert !histograms.containsKey("PUBLISH.lock");
+        assert !histograms.containsKey("init");
+    }
+
+    @Test
+    public void initTest() {
+        Map<String, Object> map = new HashMap<>();
+        map.put("storage.sync.class", InstrumentedRedisSyncStorage.class.getName());
+        try {
+            new InstrumentedRedisSyncStorage().init(new MapConfiguration(map));
+            assert false;
+        } catch (IllegalStateException ignored) {
+            // storage to be instrumented is missing
+        }
+    }
+}
@@ -6,6 +6,7 @@ import com.github.longkerdandy.mithqtt.api.message.MqttAdditionalHeader;
 import com.github.longkerdandy.mithqtt.api.message.MqttPublishPayload;
 import com.github.longkerdandy.mithqtt.storage.redis.ConnectionState;
 import com.github.longkerdandy.mithqtt.storage.redis.RedisKey;
+import com.github.longkerdandy.mithqtt.storage.redis.util.Converter;
 import com.github.longkerdandy.mithqtt.util.Topics;
 import io.netty.handler.codec.mqtt.*;
 import org.apache.commons.configuration.ConfigurationException;
@@ -16,7 +17,10 @@ import org.junit.BeforeClass;
 import org.junit.Test;
 
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import static com.github.longkerdandy.mithqtt.storage.redis.util.JSONs.ObjectMapper;
@@ -224,6 +228,32 @@ public class RedisSyncSingleStorageTest {
         assert redis.getInFlightMessage("client1", 10002) == null;
         assert redis.getInFlightMessage("client1", 10003) == null;
         assert redis.getAllInFlightMessages("client1").size() == 0;
+
+        // batch for multiple clients
+        redis.addInFlightMessages(Arrays.asList(
+                new Message<>(
+                        new MqttFixedHeader(MqttMessageType.PUBLISH, true, MqttQoS.AT_LEAST_ONCE, false, 0),
+                        new MqttAdditionalHeader(MqttVersion.MQTT_3_1_1, "client2", null, null),
+                        MqttPublishVariableHeader.from("menuTopic", 1),
+                        new MqttPublishPayload("Hello".getBytes())),
+                new Message<>(
+                        new MqttFixedHeader(MqttMessageType.PUBLISH, false, MqttQoS.EXACTLY_ONCE, false, 0),
+                        new MqttAdditionalHeader(MqttVersion.MQTT_3_1_1, "client3", null, null),
+                        MqttPublishVariableHeader.from("menuTopic", 2),
+                        new MqttPublishPayload("World".getBytes())),
+                new Message<>(
+                        new MqttFixedHeader(MqttMessageType.PUBREL, false, MqttQoS.AT_LEAST_ONCE, false, 0),
+                        new MqttAdditionalHeader(MqttVersion.MQTT_3_1_1, "client2", null, null),
+                        MqttPacketIdVariableHeader.from(3),
+                        null)));
+
+        assert redis.getAllInFlightMessages("client2").size() == 2;
+        assert redis.getInFlightMessage("client2", 1).fixedHeader().dup();
+        assert redis.getInFlightMessage("client2", 3).fixedHeader().messageType() == MqttMessageType.PUBREL;
+        publish = redis.getInFlightMessage("client3", 2);
+        assert !publish.fixedHeader().dup();
+        assert publish.fixedHeader().qos() == MqttQoS.EXACTLY_ONCE;
+        assert new String(publish.payload().bytes()).equals("World");
     }
 
     @Test
@@ -250,6 +280,69 @@ public class RedisSyncSingleStorageTest {
         assert !redis.removeQoS2MessageId("client1", 10004);
         assert !redis.removeQoS2MessageId("client1", 10005);
         assert !redis.removeQoS2MessageId("client1", 10006);
+
+        redis.updateQoS2MessageIds("client1", Arrays.asList(10007, 10008), Collections.emptyList());
+        List<Integer> ids = redis.getAllQoS2MessageIds("client1");
+        assert ids.size() == 2;
+        assert ids.contains(10007) && ids.contains(10008);
+
+        // ids in neither collection are kept
+        redis.updateQoS2MessageIds("client1", Arrays.asList(10009), Arrays.asList(10007, 10010));
+        ids = redis.getAllQoS2MessageIds("client1");
+        assert ids.size() == 2;
+        assert ids.contains(10008) && ids.contains(10009);
+
+        redis.updateQoS2MessageIds("client1", Collections.emptyList(), Arrays.asList(10008, 10009));
+        assert redis.getAllQoS2MessageIds("client1").isEmpty();
+
+        // the oldest ids beyond the queue size are dropped
+        redis.updateQoS2MessageIds("client1", Arrays.asList(10001, 10002, 10003, 10004), Collections.emptyList());
+        ids = redis.getAllQoS2MessageIds("client1");
+        assert ids.size() == 3;
+        assert !ids.contains(10001);
+    }
+
+    @Test
+    public void keyMigrationTest() {
+        redis.string().set("client:client1:session", "0");
+        redis.string().set("client:client1:pid", "100");
+        redis.list().rpush("client:client1:in.flight", "10000");
+        redis.hash().hmset("client:client1:in.flight:10000", Converter.messageToMap(new Message<>(
+                new MqttFixedHeader(MqttMessageType.PUBREL, false, MqttQoS.AT_LEAST_ONCE, false, 0),
+                new MqttAdditionalHeader(MqttVersion.MQTT_3_1_1, "client1", "user1", "broker1"),
+                MqttPacketIdVariableHeader.from(10000),
+                null)));
+        redis.hash().hset("client:client:2:connection", "node", "node1");
+        redis.key().expire("client:client:2:connection", 30);
+
+        assert RedisSyncKeyMigration.migrate(redis) == 5;
+        assert RedisSyncKeyMigration.migrate(redis) == 0;
+
+        assert redis.getSessionExist("client1") == 0;
+        assert redis.getNextPacketId("client1") == 101;
+        assert redis.getAllInFlightMessages("client1").size() == 1;
+        assert redis.getInFlightMessage("client1", 10000).fixedHeader().messageType() == MqttMessageType.PUBREL;
+        assert redis.getConnectedNode("client:2").equals("node1");
+        assert redis.key().ttl(RedisKey.connection("client:2")) > 0;
+        assert redis.key().keys("client:client*").isEmpty();
+    }
+
+    @Test
+    public void treeMigrationTest() {
+        redis.updateSubscription("client1", Topics.sanitizeTopicFilter("a/+/e"), MqttQoS.AT_MOST_ONCE);
+        redis.updateSubscription("client2", Topics.sanitizeTopicFilter("a/+/e"), MqttQoS.AT_LEAST_ONCE);
+        redis.updateSubscription("client2", Topics.sanitizeTopicFilter("#"), MqttQoS.AT_MOST_ONCE);
+        // tree node in a former layout
+        redis.hash().hset("{topic:f:tree:x}", "y", "1");
+
+        assert RedisSyncKeyMigration.rebuildTopicTrees(redis) == 2;
+        assert redis.key().exists("{topic:f:tree:x}") == 0;
+        assert redis.hash().hget(RedisKey.topicFilterChild(Topics.sanitizeTopicFilter("a/+/e").subList(0, 1), 0), "+").equals("2");
+
+        Map<String, MqttQoS> result = new HashMap<>();
+        redis.getMatchSubscriptions(Topics.sanitizeTopicName("a/b/e"), result);
+        assert result.get("client1") == MqttQoS.AT_MOST_ONCE;
+        assert result.get("client2") == MqttQoS.AT_LEAST_ONCE;
     }
 
     @Test